@@ -0,0 +1,361 @@
+package com.gardner.fastpackbuilder.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.gardner.fastpackbuilder.CompressedEntry;
+import com.gardner.fastpackbuilder.FastPackBuilder;
+import com.gardner.fastpackbuilder.FastpackBuildOptions;
+import com.gardner.fastpackbuilder.FastpackEntryCompressor;
+import com.gardner.fastpackbuilder.FastpackScanner;
+import com.gardner.fastpackbuilder.FastpackSnapshot;
+import com.gardner.fastpackbuilder.PluginResource;
+import com.gardner.fastpackbuilder.PluginXmlWriter;
+import com.gardner.fastpackbuilder.ScannedFile;
+
+/**
+ * Measures the build phases on a generated fixture tree so changes can be compared run to run.
+ * Each benchmark is warmed up and then timed for a number of iterations; time per operation,
+ * input throughput and the allocation rate (all threads) are printed, and optionally appended
+ * to a CSV file to track regressions.
+ *
+ * <pre>
+ * java -cp FastPack_Builder.jar:bench com.gardner.fastpackbuilder.bench.FastpackBenchmark [options]
+ *
+ *   --dir DIR          fixture tree, generated when it does not exist (default: fastpack-bench)
+ *   --scale N          fixture size passed to the FastpackTreeGenerator (default: 1)
+ *   --threads N        threads used by the scan, compress and build benchmarks (default: cores)
+ *   --warmup N         warmup iterations per benchmark (default: 3)
+ *   --iterations N     measured iterations per benchmark (default: 5)
+ *   --only NAME,...    run only these benchmarks: scan, pluginxml, compress, build
+ *   --csv FILE         append the results to FILE
+ * </pre>
+ *
+ * Run with -XX:+UseParallelGC and a fixed -Xmx for comparable numbers.
+ */
+public class FastpackBenchmark
+{
+    private File m_oDir = new File("fastpack-bench");
+    private int m_iScale = 1;
+    private int m_iThreads = Runtime.getRuntime().availableProcessors();
+    private int m_iWarmup = 3;
+    private int m_iIterations = 5;
+    private List<String> m_oOnly = null;
+    private File m_oCsv = null;
+
+    private FastpackSnapshot m_oSnapshot;
+    private final Map<String, Benchmark> m_oBenchmarks = new LinkedHashMap<String, Benchmark>();
+
+    /**
+     * One unit of work to be timed. run() returns the number of input bytes it processed.
+     */
+    private interface Benchmark
+    {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        FastpackBenchmark oBenchmark = new FastpackBenchmark();
+        try
+        {
+            oBenchmark.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        }
+        oBenchmark.runAll();
+    }
+
+    private void parse(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String strArg = args[i];
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + strArg);
+            String strValue = args[++i];
+            if (strArg.equals("--dir")) m_oDir = new File(strValue);
+            else if (strArg.equals("--scale")) m_iScale = Integer.parseInt(strValue);
+            else if (strArg.equals("--threads")) m_iThreads = Math.max(1, Integer.parseInt(strValue));
+            else if (strArg.equals("--warmup")) m_iWarmup = Math.max(0, Integer.parseInt(strValue));
+            else if (strArg.equals("--iterations")) m_iIterations = Math.max(1, Integer.parseInt(strValue));
+            else if (strArg.equals("--only")) m_oOnly = Arrays.asList(strValue.split(","));
+            else if (strArg.equals("--csv")) m_oCsv = new File(strValue);
+            else throw new IllegalArgumentException("Unknown option " + strArg);
+        }
+    }
+
+    private void runAll() throws Exception
+    {
+        if (!m_oDir.isDirectory())
+        {
+            System.out.println("Generating fixture tree in " + m_oDir);
+            new FastpackTreeGenerator(m_iScale, 42).generate(m_oDir.toPath());
+        }
+        m_oSnapshot = new FastpackScanner(m_iThreads).scan(m_oDir.toPath());
+        System.out.println(String.format("Fixture: %d files, %d directories, %.1f MB, %d threads", m_oSnapshot.getFiles().size(), m_oSnapshot.getDirectories().size(), m_oSnapshot.getTotalBytes() / (1024.0 * 1024.0), m_iThreads));
+
+        m_oBenchmarks.put("scan", new Benchmark()
+        {
+            public long run() throws IOException
+            {
+                return new FastpackScanner(m_iThreads).scan(m_oDir.toPath()).getTotalBytes();
+            }
+        });
+        m_oBenchmarks.put("pluginxml", new Benchmark()
+        {
+            public long run() throws IOException
+            {
+                return writePluginXml();
+            }
+        });
+        m_oBenchmarks.put("compress", new Benchmark()
+        {
+            public long run() throws Exception
+            {
+                return compressAll();
+            }
+        });
+        m_oBenchmarks.put("build", new Benchmark()
+        {
+            public long run() throws IOException
+            {
+                File oJar = new FastPackBuilder(m_oDir, new FastpackBuildOptions().setThreads(m_iThreads)).build("bench", "1.0");
+                Files.delete(oJar.toPath());
+                return m_oSnapshot.getTotalBytes();
+            }
+        });
+
+        System.out.println(String.format("%-10s %12s %10s %10s %12s %14s", "Benchmark", "ms/op", "+-", "MB/s", "alloc MB/s", "alloc MB/op"));
+        for (Map.Entry<String, Benchmark> oEntry : m_oBenchmarks.entrySet())
+        {
+            if (m_oOnly != null && !m_oOnly.contains(oEntry.getKey())) continue;
+            measure(oEntry.getKey(), oEntry.getValue());
+        }
+    }
+
+    private void measure(String strName, Benchmark oBenchmark) throws Exception
+    {
+        for (int i = 0; i < m_iWarmup; i++) oBenchmark.run();
+
+        AllocationCounter oAllocations = new AllocationCounter();
+        double[] adMillis = new double[m_iIterations];
+        long lBytes = 0;
+        double dAllocated = 0;
+        for (int i = 0; i < m_iIterations; i++)
+        {
+            oAllocations.start();
+            long lStart = System.nanoTime();
+            lBytes += oBenchmark.run();
+            adMillis[i] = (System.nanoTime() - lStart) / 1e6;
+            dAllocated += oAllocations.stop();
+        }
+
+        double dMean = 0;
+        for (double dMillis : adMillis) dMean += dMillis;
+        dMean /= adMillis.length;
+        double dVariance = 0;
+        for (double dMillis : adMillis) dVariance += (dMillis - dMean) * (dMillis - dMean);
+        double dStdDev = adMillis.length > 1 ? Math.sqrt(dVariance / (adMillis.length - 1)) : 0;
+        double dSeconds = dMean * m_iIterations / 1000.0;
+        double dThroughput = lBytes / (1024.0 * 1024.0) / dSeconds;
+        double dAllocRate = oAllocations.isSupported() ? dAllocated / (1024.0 * 1024.0) / dSeconds : Double.NaN;
+        double dAllocPerOp = oAllocations.isSupported() ? dAllocated / (1024.0 * 1024.0) / m_iIterations : Double.NaN;
+
+        System.out.println(String.format("%-10s %12.1f %10.1f %10.1f %12.1f %14.2f", strName, dMean, dStdDev, dThroughput, dAllocRate, dAllocPerOp));
+        if (m_oCsv != null) appendCsv(strName, dMean, dStdDev, dThroughput, dAllocRate, dAllocPerOp);
+    }
+
+    private void appendCsv(String strName, double dMean, double dStdDev, double dThroughput, double dAllocRate, double dAllocPerOp) throws IOException
+    {
+        boolean bHeader = !m_oCsv.exists();
+        try (PrintWriter oOut = new PrintWriter(new FileWriter(m_oCsv, true)))
+        {
+            if (bHeader) oOut.println("timestamp,benchmark,threads,files,bytes,ms_per_op,stddev,mb_per_s,alloc_mb_per_s,alloc_mb_per_op");
+            oOut.println(String.format(Locale.ROOT, "%d,%s,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f", System.currentTimeMillis(), strName, m_iThreads,
+                    m_oSnapshot.getFiles().size(), m_oSnapshot.getTotalBytes(), dMean, dStdDev, dThroughput, dAllocRate, dAllocPerOp));
+        }
+    }
+
+    /**
+     * Collect the plugin.xml resources of the fixture with the builder and write the document.
+     * @return size of the written document
+     */
+    private long writePluginXml() throws IOException
+    {
+        List<PluginResource> oResources = new FastPackBuilder(m_oDir, new FastpackBuildOptions().setThreads(m_iThreads)).collectResources(m_oSnapshot);
+        CountingOutputStream oOut = new CountingOutputStream();
+        new PluginXmlWriter().write(oOut, "bench", oResources);
+        return oOut.m_lCount;
+    }
+
+    /**
+     * Compress every file of the fixture on a pool, without writing a jar.
+     */
+    private long compressAll() throws Exception
+    {
+        final FastpackEntryCompressor oCompressor = new FastpackEntryCompressor(new FastpackBuildOptions().getCompressionPolicy());
+        ExecutorService oPool = Executors.newFixedThreadPool(m_iThreads);
+        try
+        {
+            List<Future<CompressedEntry>> oFutures = new ArrayList<Future<CompressedEntry>>();
+            for (final ScannedFile oFile : m_oSnapshot.getFiles())
+            {
+                oFutures.add(oPool.submit(new Callable<CompressedEntry>()
+                {
+                    public CompressedEntry call() throws IOException
+                    {
+                        return oCompressor.compress(oFile);
+                    }
+                }));
+            }
+            long lBytes = 0;
+            for (Future<CompressedEntry> oFuture : oFutures)
+            {
+                try
+                {
+                    lBytes += oFuture.get().getSize();
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IOException("Compression failed", e.getCause());
+                }
+            }
+            return lBytes;
+        }
+        finally
+        {
+            oPool.shutdownNow();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream
+    {
+        long m_lCount = 0;
+
+        @Override
+        public void write(int iByte)
+        {
+            m_lCount++;
+        }
+
+        @Override
+        public void write(byte[] abData, int iOffset, int iLength)
+        {
+            m_lCount += iLength;
+        }
+    }
+
+    /**
+     * Bytes allocated by all threads between start() and stop().
+     * The builder's worker threads end with the build and take their counters with them,
+     * so live threads are sampled every few milliseconds and the last value seen per thread is kept.
+     * The few allocations between the last sample and the end of a worker thread are missed.
+     */
+    private static class AllocationCounter
+    {
+        private static final long SAMPLE_INTERVAL_MS = 5;
+
+        private final com.sun.management.ThreadMXBean m_oThreads;
+        private final Map<Long, Long> m_oBaseline = new HashMap<Long, Long>();
+        private final Map<Long, Long> m_oLatest = new HashMap<Long, Long>();
+        private Thread m_oSampler;
+        private volatile boolean m_bRunning;
+
+        AllocationCounter()
+        {
+            java.lang.management.ThreadMXBean oBean = ManagementFactory.getThreadMXBean();
+            com.sun.management.ThreadMXBean oThreads = null;
+            if (oBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) oBean).isThreadAllocatedMemorySupported())
+            {
+                oThreads = (com.sun.management.ThreadMXBean) oBean;
+                oThreads.setThreadAllocatedMemoryEnabled(true);
+            }
+            m_oThreads = oThreads;
+        }
+
+        boolean isSupported()
+        {
+            return m_oThreads != null;
+        }
+
+        void start()
+        {
+            if (m_oThreads == null) return;
+            m_oBaseline.clear();
+            m_oLatest.clear();
+            sample(m_oBaseline);
+            m_bRunning = true;
+            m_oSampler = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    while (m_bRunning)
+                    {
+                        sample(m_oLatest);
+                        try
+                        {
+                            Thread.sleep(SAMPLE_INTERVAL_MS);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                }
+            }, "allocation-sampler");
+            m_oSampler.setDaemon(true);
+            m_oSampler.start();
+        }
+
+        /**
+         * @return bytes allocated since start(), excluding the sampler itself
+         */
+        double stop() throws InterruptedException
+        {
+            if (m_oThreads == null) return 0;
+            m_bRunning = false;
+            m_oSampler.join();
+            sample(m_oLatest);
+
+            long lSampler = m_oSampler.getId();
+            double dAllocated = 0;
+            for (Map.Entry<Long, Long> oEntry : m_oLatest.entrySet())
+            {
+                if (oEntry.getKey() == lSampler) continue;
+                Long lBaseline = m_oBaseline.get(oEntry.getKey());
+                dAllocated += oEntry.getValue() - (lBaseline != null ? lBaseline : 0);
+            }
+            return dAllocated;
+        }
+
+        private synchronized void sample(Map<Long, Long> oInto)
+        {
+            long[] alIds = m_oThreads.getAllThreadIds();
+            long[] alBytes = m_oThreads.getThreadAllocatedBytes(alIds);
+            for (int i = 0; i < alIds.length; i++)
+            {
+                if (alBytes[i] >= 0) oInto.put(alIds[i], alBytes[i]);
+            }
+        }
+    }
+}
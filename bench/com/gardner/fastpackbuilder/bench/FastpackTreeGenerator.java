@@ -0,0 +1,250 @@
+package com.gardner.fastpackbuilder.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.UUID;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+
+/**
+ * Creates a synthetic fastpack "raw files" folder that looks like a real one:
+ * thousands of small dashboards, larger system profiles, deep sensor pack folders,
+ * a few big session (.dts) files and web dashboard JSON/XML pairs.
+ *
+ * The content only depends on the seed and the scale, and every file gets the same
+ * timestamp, so two trees generated with the same arguments give identical fastpacks.
+ *
+ * <pre>
+ * java com.gardner.fastpackbuilder.bench.FastpackTreeGenerator &lt;dir&gt; [scale] [seed]
+ * </pre>
+ */
+public class FastpackTreeGenerator
+{
+    private static final long FILE_TIME = 1483228800000L; // 2017-01-01, keeps generated trees reproducible
+    private static final String[] MEASURES = { "PurePath Response Time", "CPU Time", "Failed Transaction Count", "Heap Memory Used", "GC Suspension Time", "Database Calls", "Web Requests", "Exceptions" };
+    private static final String[] METHODS = { "doGet", "doPost", "execute", "executeQuery", "service", "invoke", "handleRequest", "process" };
+
+    private final Random m_oRandom;
+    private final int m_iScale;
+    private long m_lBytes = 0;
+    private int m_iFiles = 0;
+
+    /**
+     * @param iScale 1 gives roughly 2500 files and 150 MB
+     * @param lSeed seed for all generated content
+     */
+    public FastpackTreeGenerator(int iScale, long lSeed)
+    {
+        m_iScale = Math.max(1, iScale);
+        m_oRandom = new Random(lSeed);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: FastpackTreeGenerator <dir> [scale] [seed]");
+            System.exit(2);
+        }
+        int iScale = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        long lSeed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        FastpackTreeGenerator oGenerator = new FastpackTreeGenerator(iScale, lSeed);
+        oGenerator.generate(new File(args[0]).toPath());
+        System.out.println(String.format("Generated %d files, %.1f MB in %s", oGenerator.getFileCount(), oGenerator.getBytes() / (1024.0 * 1024.0), args[0]));
+    }
+
+    /**
+     * Fill the directory. Existing files with the same names are overwritten, nothing is deleted.
+     * @param oRoot the fastpack "raw files" folder
+     * @throws IOException
+     */
+    public void generate(Path oRoot) throws IOException
+    {
+        Files.createDirectories(oRoot);
+
+        for (int i = 0; i < 2000 * m_iScale; i++) writeText(oRoot.resolve(String.format("dashboard_%05d.dashboard.xml", i)), dashboard(i, 2 + m_oRandom.nextInt(40)));
+        for (int i = 0; i < 50 * m_iScale; i++) writeText(oRoot.resolve(String.format("profile_%03d.profile.xml", i)), profile(i, 100 + m_oRandom.nextInt(1500)));
+
+        // Sensor packs are extracted .dtcs files: a plugin.xml and classes a few packages deep
+        for (int i = 0; i < 10 * m_iScale; i++)
+        {
+            Path oPack = oRoot.resolve(String.format("com.example.sensorpack%02d", i));
+            writeText(oPack.resolve("plugin.xml"), profile(i, 10));
+            writeText(oPack.resolve("META-INF/MANIFEST.MF"), "Manifest-Version: 1.0\nBundle-SymbolicName: com.example.sensorpack" + i + "\n");
+            for (int j = 0; j < 30; j++)
+            {
+                Path oPackage = oPack.resolve("com/example/sensorpack" + i + "/level" + (j % 3) + "/level" + (j % 5) + "/impl");
+                writeBinary(oPackage.resolve("Sensor" + j + ".class"), 2048 + m_oRandom.nextInt(16 * 1024), 4);
+            }
+        }
+
+        // Web dashboards are JSON/XML pairs named after a UUID
+        Path oWeb = oRoot.resolve("webdashboards");
+        for (int i = 0; i < 100 * m_iScale; i++)
+        {
+            String strId = new UUID(m_oRandom.nextLong(), m_oRandom.nextLong()).toString();
+            writeText(oWeb.resolve(strId + ".json"), webDashboardJson(strId, 2 + m_oRandom.nextInt(20)));
+            writeText(oWeb.resolve(strId + ".xml"), dashboard(i, 2 + m_oRandom.nextInt(10)));
+        }
+
+        // A user plugin and a license are already compressed / random
+        writeUserPlugin(oRoot.resolve("com.example.userplugin_1.0.0.jar"), 2 * 1024 * 1024);
+        writeBinary(oRoot.resolve("license.key"), 4096, 256);
+
+        // Session files: big, repetitive binary records
+        for (int i = 0; i < 2 * m_iScale; i++) writeSession(oRoot.resolve(String.format("session_%02d.dts", i)), 64L * 1024 * 1024);
+    }
+
+    public int getFileCount()
+    {
+        return m_iFiles;
+    }
+
+    public long getBytes()
+    {
+        return m_lBytes;
+    }
+
+    private String dashboard(int iId, int iCharts)
+    {
+        StringBuilder oXml = new StringBuilder(1024 + iCharts * 512);
+        oXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+        oXml.append("<dashboard authorization=\"public\" icon=\"/dashboard.png\" memento.version=\"6\" sourcetype=\"dashboard\" version=\"6.5.0\">\n");
+        oXml.append("  <data>\n    <datasource name=\"Dashboard ").append(iId).append("\" sourcetype=\"profile\"/>\n  </data>\n");
+        oXml.append("  <widgets>\n");
+        for (int i = 0; i < iCharts; i++)
+        {
+            String strMeasure = MEASURES[m_oRandom.nextInt(MEASURES.length)];
+            oXml.append("    <portlet uniqueid=\"").append(m_oRandom.nextInt(1000000)).append("\" type=\"chart\" x=\"").append(m_oRandom.nextInt(1600)).append("\" y=\"").append(m_oRandom.nextInt(1200)).append("\">\n");
+            oXml.append("      <chartconfig charttype=\"line\" title=\"").append(strMeasure).append("\" resolution=\"").append(10000 * (1 + m_oRandom.nextInt(6))).append("\">\n");
+            oXml.append("        <series measure=\"").append(strMeasure).append(" - Agent ").append(m_oRandom.nextInt(64)).append("\" aggregation=\"avg\" color=\"#").append(Integer.toHexString(m_oRandom.nextInt(0xffffff))).append("\"/>\n");
+            oXml.append("      </chartconfig>\n    </portlet>\n");
+        }
+        oXml.append("  </widgets>\n</dashboard>\n");
+        return oXml.toString();
+    }
+
+    private String profile(int iId, int iSensors)
+    {
+        StringBuilder oXml = new StringBuilder(1024 + iSensors * 256);
+        oXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+        oXml.append("<dynatrace version=\"6.5.0\">\n  <systemprofile id=\"Profile").append(iId).append("\" description=\"Generated profile\">\n");
+        oXml.append("    <sensorconfig>\n");
+        for (int i = 0; i < iSensors; i++)
+        {
+            oXml.append("      <sensorrule active=\"").append(m_oRandom.nextBoolean()).append("\" class=\"com.example.app.module").append(m_oRandom.nextInt(50))
+                .append(".Service").append(m_oRandom.nextInt(500)).append("\" method=\"").append(METHODS[m_oRandom.nextInt(METHODS.length)])
+                .append("\" capture=\"").append(m_oRandom.nextInt(4)).append("\" deepobjectaccess=\"false\"/>\n");
+        }
+        oXml.append("    </sensorconfig>\n  </systemprofile>\n</dynatrace>\n");
+        return oXml.toString();
+    }
+
+    private String webDashboardJson(String strId, int iTiles)
+    {
+        StringBuilder oJson = new StringBuilder(512 + iTiles * 256);
+        oJson.append("{\n  \"id\": \"").append(strId).append("\",\n  \"title\": \"Web dashboard ").append(strId.substring(0, 8)).append("\",\n  \"tiles\": [\n");
+        for (int i = 0; i < iTiles; i++)
+        {
+            if (i > 0) oJson.append(",\n");
+            oJson.append("    { \"type\": \"chart\", \"measure\": \"").append(MEASURES[m_oRandom.nextInt(MEASURES.length)])
+                .append("\", \"bounds\": { \"top\": ").append(m_oRandom.nextInt(1200)).append(", \"left\": ").append(m_oRandom.nextInt(1600))
+                .append(", \"width\": 304, \"height\": 152 }, \"timeframe\": \"-").append(1 + m_oRandom.nextInt(24)).append("h\" }");
+        }
+        oJson.append("\n  ]\n}\n");
+        return oJson.toString();
+    }
+
+    private void writeText(Path oPath, String strContent) throws IOException
+    {
+        byte[] abContent = strContent.getBytes(StandardCharsets.UTF_8);
+        Files.createDirectories(oPath.getParent());
+        Files.write(oPath, abContent);
+        finish(oPath, abContent.length);
+    }
+
+    /**
+     * @param iAlphabet number of distinct byte values, low values compress well, 256 does not compress at all
+     */
+    private void writeBinary(Path oPath, int iSize, int iAlphabet) throws IOException
+    {
+        byte[] abContent = new byte[iSize];
+        if (iAlphabet >= 256) m_oRandom.nextBytes(abContent);
+        else for (int i = 0; i < iSize; i++) abContent[i] = (byte) m_oRandom.nextInt(iAlphabet);
+        Files.createDirectories(oPath.getParent());
+        Files.write(oPath, abContent);
+        finish(oPath, iSize);
+    }
+
+    /**
+     * A bundle jar with a manifest and one stored entry of random bytes, so it passes validation and does not compress.
+     */
+    private void writeUserPlugin(Path oPath, int iSize) throws IOException
+    {
+        Manifest oManifest = new Manifest();
+        oManifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        oManifest.getMainAttributes().putValue("Bundle-SymbolicName", "com.example.userplugin");
+        oManifest.getMainAttributes().putValue("Bundle-Version", "1.0.0");
+        byte[] abContent = new byte[iSize];
+        m_oRandom.nextBytes(abContent);
+        CRC32 oCrc = new CRC32();
+        oCrc.update(abContent);
+
+        Files.createDirectories(oPath.getParent());
+        try (JarOutputStream oJar = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(oPath))))
+        {
+            // Written by hand, JarOutputStream would stamp the manifest with the current time
+            JarEntry oManifestEntry = new JarEntry(JarFile.MANIFEST_NAME);
+            oManifestEntry.setTime(FILE_TIME);
+            oJar.putNextEntry(oManifestEntry);
+            oManifest.write(oJar);
+            oJar.closeEntry();
+
+            JarEntry oEntry = new JarEntry("com/example/userplugin/data.bin");
+            oEntry.setMethod(JarEntry.STORED);
+            oEntry.setSize(iSize);
+            oEntry.setCrc(oCrc.getValue());
+            oEntry.setTime(FILE_TIME);
+            oJar.putNextEntry(oEntry);
+            oJar.write(abContent);
+            oJar.closeEntry();
+        }
+        finish(oPath, Files.size(oPath));
+    }
+
+    /**
+     * Sessions are streams of fixed layout records with a few varying fields.
+     */
+    private void writeSession(Path oPath, long lSize) throws IOException
+    {
+        byte[] abRecord = new byte[256];
+        for (int i = 0; i < abRecord.length; i++) abRecord[i] = (byte) (i % 32);
+        try (OutputStream oOut = new BufferedOutputStream(Files.newOutputStream(oPath), 64 * 1024))
+        {
+            for (long lWritten = 0; lWritten < lSize; lWritten += abRecord.length)
+            {
+                for (int i = 0; i < 24; i++) abRecord[m_oRandom.nextInt(abRecord.length)] = (byte) m_oRandom.nextInt(256);
+                oOut.write(abRecord);
+            }
+        }
+        finish(oPath, lSize);
+    }
+
+    private void finish(Path oPath, long lSize) throws IOException
+    {
+        Files.setLastModifiedTime(oPath, FileTime.fromMillis(FILE_TIME));
+        m_lBytes += lSize;
+        m_iFiles++;
+    }
+}
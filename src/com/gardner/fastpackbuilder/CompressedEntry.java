@@ -0,0 +1,156 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.ZipEntry;
+
+/**
+ * A jar entry whose payload has already been compressed (or stored).
+ * Everything the zip format needs up front (CRC, both sizes, method) is known,
+ * so the entry can be produced on any thread and written later by the FastpackJarWriter.
+ */
+public class CompressedEntry
+{
+    public static final int STORED = ZipEntry.STORED;
+    public static final int DEFLATED = ZipEntry.DEFLATED;
+
+    /**
+     * Source of the bytes that go into the jar after the local header.
+     * Either compressed bytes in memory or a region of another file (e.g. a previous jar or a temp file).
+     */
+    public interface Payload
+    {
+        void writeTo(WritableByteChannel oChannel) throws IOException;
+    }
+
+    private final String m_strName;
+    private final int m_iMethod;
+    private final long m_lCrc;
+    private final long m_lSize;
+    private final long m_lTime;
+    private final long m_lCompressedSize;
+    private final Payload m_oPayload;
+    private final long m_lSourceSize;
+    private final byte[] m_abDigest;
+
+    public CompressedEntry(String strName, int iMethod, long lCrc, long lSize, long lTime, byte[] abData)
+    {
+        this(strName, iMethod, lCrc, lSize, lTime, abData, lSize);
+    }
+
+    /**
+     * @param lSourceSize size of the file the entry was made from, if its content was changed (e.g. minified)
+     */
+    public CompressedEntry(String strName, int iMethod, long lCrc, long lSize, long lTime, final byte[] abData, long lSourceSize)
+    {
+        this(strName, iMethod, lCrc, lSize, lTime, abData.length, new Payload()
+        {
+            public void writeTo(WritableByteChannel oChannel) throws IOException
+            {
+                ByteBuffer oBuffer = ByteBuffer.wrap(abData);
+                while (oBuffer.hasRemaining()) oChannel.write(oBuffer);
+            }
+        }, lSourceSize, null);
+    }
+
+    public CompressedEntry(String strName, int iMethod, long lCrc, long lSize, long lTime, long lCompressedSize, Payload oPayload)
+    {
+        this(strName, iMethod, lCrc, lSize, lTime, lCompressedSize, oPayload, lSize, null);
+    }
+
+    /**
+     * @param lSourceSize size of the file the entry was made from, if its content was changed (e.g. minified)
+     */
+    public CompressedEntry(String strName, int iMethod, long lCrc, long lSize, long lTime, long lCompressedSize, Payload oPayload, long lSourceSize)
+    {
+        this(strName, iMethod, lCrc, lSize, lTime, lCompressedSize, oPayload, lSourceSize, null);
+    }
+
+    private CompressedEntry(String strName, int iMethod, long lCrc, long lSize, long lTime, long lCompressedSize, Payload oPayload, long lSourceSize, byte[] abDigest)
+    {
+        m_strName = strName;
+        m_iMethod = iMethod;
+        m_lCrc = lCrc;
+        m_lSize = lSize;
+        m_lTime = lTime;
+        m_lCompressedSize = lCompressedSize;
+        m_oPayload = oPayload;
+        m_lSourceSize = lSourceSize;
+        m_abDigest = abDigest;
+    }
+
+    /**
+     * @param abDigest SHA-256 of the uncompressed content
+     * @return the same entry, carrying the digest
+     */
+    public CompressedEntry withDigest(byte[] abDigest)
+    {
+        return new CompressedEntry(m_strName, m_iMethod, m_lCrc, m_lSize, m_lTime, m_lCompressedSize, m_oPayload, m_lSourceSize, abDigest);
+    }
+
+    public String getName()
+    {
+        return m_strName;
+    }
+
+    public int getMethod()
+    {
+        return m_iMethod;
+    }
+
+    public long getCrc()
+    {
+        return m_lCrc;
+    }
+
+    /**
+     * @return uncompressed size of the entry
+     */
+    public long getSize()
+    {
+        return m_lSize;
+    }
+
+    /**
+     * @return size of the file the entry was made from, differs from getSize() for minified entries
+     */
+    public long getSourceSize()
+    {
+        return m_lSourceSize;
+    }
+
+    /**
+     * @return SHA-256 of the uncompressed content, null unless the build computes digests
+     */
+    public byte[] getDigest()
+    {
+        return m_abDigest;
+    }
+
+    /**
+     * @return size of the payload as it is written into the jar
+     */
+    public long getCompressedSize()
+    {
+        return m_lCompressedSize;
+    }
+
+    /**
+     * @return last modified time in java milliseconds
+     */
+    public long getTime()
+    {
+        return m_lTime;
+    }
+
+    /**
+     * Write the (already compressed) payload to the channel.
+     * @param oChannel
+     * @throws IOException
+     */
+    public void writePayload(WritableByteChannel oChannel) throws IOException
+    {
+        m_oPayload.writeTo(oChannel);
+    }
+}
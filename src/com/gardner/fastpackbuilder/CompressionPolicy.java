@@ -0,0 +1,133 @@
+package com.gardner.fastpackbuilder;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Decides per resource type how entries are compressed.
+ *
+ * User plugins (.jar) and session files (.dts) are usually compressed already, deflating them
+ * again costs CPU for no size gain. By default these are sampled (AUTO): the start of the file
+ * is deflated quickly and when the ratio is poor the entry is STORED instead.
+ *
+ * A policy is read by several compression threads, do not change it while a build is running.
+ */
+public class CompressionPolicy
+{
+    public enum Mode
+    {
+        /** Always deflate with the configured level */
+        DEFLATE,
+        /** Never compress, the entry is written as is (STORED) */
+        STORE,
+        /** Deflate unless a sample of the file compresses poorly */
+        AUTO
+    }
+
+    private final Map<ResourceType, Mode> m_oModes = new EnumMap<ResourceType, Mode>(ResourceType.class);
+    private final Map<ResourceType, Integer> m_oLevels = new EnumMap<ResourceType, Integer>(ResourceType.class);
+    private int m_iDefaultLevel = Deflater.DEFAULT_COMPRESSION;
+    private double m_dStoreRatio = 0.9;
+    private int m_iSampleSize = 64 * 1024;
+
+    public CompressionPolicy()
+    {
+        m_oModes.put(ResourceType.USER_PLUGIN, Mode.AUTO);
+        m_oModes.put(ResourceType.SESSION, Mode.AUTO);
+    }
+
+    public Mode getMode(ResourceType oType)
+    {
+        Mode oMode = m_oModes.get(oType);
+        return oMode == null ? Mode.DEFLATE : oMode;
+    }
+
+    public CompressionPolicy setMode(ResourceType oType, Mode oMode)
+    {
+        m_oModes.put(oType, oMode);
+        return this;
+    }
+
+    /**
+     * @return deflate level for the type, the default level if none was set
+     */
+    public int getLevel(ResourceType oType)
+    {
+        Integer oLevel = m_oLevels.get(oType);
+        return oLevel == null ? m_iDefaultLevel : oLevel.intValue();
+    }
+
+    public CompressionPolicy setLevel(ResourceType oType, int iLevel)
+    {
+        m_oLevels.put(oType, Integer.valueOf(checkLevel(iLevel)));
+        return this;
+    }
+
+    public int getDefaultLevel()
+    {
+        return m_iDefaultLevel;
+    }
+
+    /**
+     * @param iLevel 0-9 or Deflater.DEFAULT_COMPRESSION
+     */
+    public CompressionPolicy setDefaultLevel(int iLevel)
+    {
+        m_iDefaultLevel = checkLevel(iLevel);
+        return this;
+    }
+
+    public double getStoreRatio()
+    {
+        return m_dStoreRatio;
+    }
+
+    /**
+     * AUTO entries are stored when the sample compresses to more than this fraction of its size.
+     * @param dStoreRatio e.g. 0.9 = store unless deflate saves at least 10%
+     */
+    public CompressionPolicy setStoreRatio(double dStoreRatio)
+    {
+        m_dStoreRatio = dStoreRatio;
+        return this;
+    }
+
+    public int getSampleSize()
+    {
+        return m_iSampleSize;
+    }
+
+    /**
+     * @param iSampleSize number of bytes from the start of the file used by AUTO
+     */
+    public CompressionPolicy setSampleSize(int iSampleSize)
+    {
+        m_iSampleSize = Math.max(1024, iSampleSize);
+        return this;
+    }
+
+    /**
+     * @return every setting that changes how an entry is compressed, e.g. "level=-1;storeRatio=0.9;sample=65536;SESSION=AUTO/-1;...".
+     * Equal for two policies exactly when they compress every file the same way.
+     */
+    public String describe()
+    {
+        StringBuilder oSettings = new StringBuilder();
+        oSettings.append("level=").append(m_iDefaultLevel).append(";storeRatio=").append(m_dStoreRatio).append(";sample=").append(m_iSampleSize);
+        for (ResourceType oType : ResourceType.values())
+        {
+            oSettings.append(';').append(oType.name()).append('=').append(getMode(oType)).append('/').append(getLevel(oType));
+        }
+        return oSettings.toString();
+    }
+
+    private static int checkLevel(int iLevel)
+    {
+        if (iLevel != Deflater.DEFAULT_COMPRESSION && (iLevel < 0 || iLevel > 9))
+        {
+            throw new IllegalArgumentException("Invalid compression level: " + iLevel);
+        }
+        return iLevel;
+    }
+}
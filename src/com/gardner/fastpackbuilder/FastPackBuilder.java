@@ -1,26 +1,43 @@
 package com.gardner.fastpackbuilder;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 import com.gardner.fastpackbuilder.Constants.IConstants;
 
@@ -32,77 +49,502 @@ public class FastPackBuilder
     
     private File m_oInputDir;
     private File m_oWebDashboardsDir;
-    private static String FASTPACK_NAME = ""; // Fastpack name
-    private static String FASTPACK_VERSION = ""; // Fastpack version
-    
-    
-    List<File> filesListInDir = new ArrayList<File>();
-    List<File> m_oDirList = new ArrayList<File>();
+    // Per build state. A builder runs one build at a time, use one builder per build to run builds concurrently.
+    private String m_strFastpackName = ""; // Fastpack name
+    private String m_strFastpackVersion = ""; // Fastpack version
     
     
     /*
-     * List to hold exclusions. These are used to exclude from the plugin.xml file
-     * Currently, exclusions are: 
-     *    MANIFEST.MF
-     *    plugin.xml
-     *    META-INF (folder)
+     * Relative paths to leave out of the plugin.xml file because they already have their resource element.
+     * Web dashboard files are added during the build. Fixed exclusions (MANIFEST.MF, plugin.xml, META-INF)
+     * are rules of the ResourceClassifier.
      */
-    List<String> m_oExclusions = new ArrayList<String>();
+    private Set<String> m_oExclusions;
     
-    private DocumentBuilderFactory DOC_FACTORY = DocumentBuilderFactory.newInstance();
-    private DocumentBuilder DOC_BUILDER;
+    private static final String COMPRESSION_ATTRIBUTE = "Fastpack-Compression"; // Manifest attribute, the policy an incremental build's entries were compressed with
+    private FastpackJarReader m_oPrevious; // Previous jar of an incremental build
+    private final AtomicLong m_oBytesDone = new AtomicLong();
+    private long m_lBytesTotal;
+    private long m_lWriteNanos; // Only touched by the thread writing the jar
+    private volatile FastpackBuildReport m_oReport;
+    private volatile FastpackFlightRecorder m_oRecorder;
+    private volatile FastpackDelta m_oDelta;
+    private volatile FastpackEntryCache m_oEntryCache;
+    
+    private final FastpackBuildOptions m_oOptions;
+    private final FastpackEntryCompressor m_oCompressor;
+    private volatile FastpackBuildListener m_oListener = new FastpackBuildAdapter() {};
+    private volatile boolean m_bCancelled = false;
+    private volatile Thread m_oBuildThread;
+    private final Object m_oCancelLock = new Object(); // Guards the build thread and the cancel flag
+    private boolean m_bMatrixVariant = false; // Scanned and validated by buildMatrix, entries come from its entry cache
+    private final List<FastPackBuilder> m_oVariantBuilders = new CopyOnWriteArrayList<FastPackBuilder>();
     
     public FastPackBuilder(File oInputDir)
+    {
+        this(oInputDir, new FastpackBuildOptions());
+    }
+    
+    public FastPackBuilder(File oInputDir, FastpackBuildOptions oOptions)
     {
         m_oInputDir = oInputDir;
-
-        // Do not add these files to the plugin.xml <resource tag.
-        m_oExclusions = new ArrayList<String>();
-        m_oExclusions.add("MANIFEST.MF");
-        m_oExclusions.add("plugin.xml");
-        m_oExclusions.add("META-INF");
-        m_oExclusions.add("webdashboards");
+        m_oOptions = oOptions;
+        m_oCompressor = new FastpackEntryCompressor(oOptions);
+    }
+    
+    /**
+     * @param oListener receives progress of the following builds
+     */
+    public void setListener(FastpackBuildListener oListener)
+    {
+        m_oListener = oListener != null ? oListener : new FastpackBuildAdapter() {};
+    }
+    
+    /**
+     * Keep compressed entries in memory between builds. Files that did not change since an earlier build
+     * with the same cache are not compressed again.
+     * @param oEntryCache null to compress every file
+     */
+    public void setEntryCache(FastpackEntryCache oEntryCache)
+    {
+        m_oEntryCache = oEntryCache;
+    }
+    
+    /**
+     * Cancel the running build. It fails with a FastpackBuildCancelledException and the partial jar is removed.
+     * Does nothing if no build is running, so a late cancel cannot fail the next build. Can be called from any thread.
+     */
+    public void cancel()
+    {
+        synchronized (m_oCancelLock)
+        {
+            if (m_oBuildThread == null) return;
+            m_bCancelled = true;
+            for (FastPackBuilder oVariantBuilder : m_oVariantBuilders) cancelVariant(oVariantBuilder);
+            m_oBuildThread.interrupt(); // Wakes up blocking I/O
+        }
+    }
+    
+    /**
+     * Cancel a variant builder of a matrix build, also if its build has not started yet.
+     * Variant builders are used for one build only, so the flag cannot outlive it.
+     */
+    private static void cancelVariant(FastPackBuilder oVariantBuilder)
+    {
+        synchronized (oVariantBuilder.m_oCancelLock)
+        {
+            oVariantBuilder.m_bCancelled = true;
+            if (oVariantBuilder.m_oBuildThread != null) oVariantBuilder.m_oBuildThread.interrupt();
+        }
+    }
+    
+    /**
+     * Mark the calling thread as running a build.
+     */
+    private void startBuild()
+    {
+        synchronized (m_oCancelLock)
+        {
+            m_oBuildThread = Thread.currentThread();
+        }
+    }
+    
+    /**
+     * Clear the build thread and the cancel flag, under the lock cancel() takes so no cancel slips in between.
+     */
+    private void endBuild()
+    {
+        synchronized (m_oCancelLock)
+        {
+            m_oBuildThread = null;
+            if (m_bCancelled) Thread.interrupted(); // Our own interrupt must not leak to the caller
+            m_bCancelled = false;
+        }
+    }
+    
+    public boolean isCancelled()
+    {
+        return m_bCancelled;
+    }
+    
+    /**
+     * @return report of the running or last build, null before the first build
+     */
+    public FastpackBuildReport getLastReport()
+    {
+        return m_oReport;
+    }
+    
+    /**
+     * @return what the last delta build (FastpackBuildOptions.setBaseline) packaged, null if it was not a delta build
+     */
+    public FastpackDelta getLastDelta()
+    {
+        return m_oDelta;
+    }
+    
+    /**
+     * Run build() on a background thread.
+     * Cancelling the returned future cancels the build.
+     * @return future holding the written jar
+     */
+    public Future<File> buildAsync(final String strFastpackName, final String strFastpackVersion)
+    {
+        FutureTask<File> oTask = new FutureTask<File>(new Callable<File>()
+        {
+            public File call() throws IOException
+            {
+                return build(strFastpackName, strFastpackVersion);
+            }
+        })
+        {
+            @Override
+            public boolean cancel(boolean bMayInterruptIfRunning)
+            {
+                if (!isDone()) FastPackBuilder.this.cancel(); // The builder may already run its next build
+                return super.cancel(bMayInterruptIfRunning);
+            }
+        };
+        Thread oThread = new Thread(oTask, "fastpack-build-" + strFastpackName);
+        oThread.setDaemon(true);
+        oThread.start();
+        return oTask;
+    }
+    
+    /**
+     * Build the fastpack, reporting problems on stdout.
+     * @return true if {NAME}_{VERSION}.jar was written
+     */
+    public boolean processFastpack(String strFastpackName, String strFastpackVersion)
+    {
         try
         {
-            DOC_BUILDER = DOC_FACTORY.newDocumentBuilder();
+            build(strFastpackName, strFastpackVersion);
+            return true;
         }
         catch (Exception e)
         {
-            System.out.println("Exception creating doc builder");
+            System.out.println("Exception caught building fastpack " + strFastpackName + "_" + strFastpackVersion);
+            e.printStackTrace();
+            return false;
         }
     }
     
-    public boolean processFastpack(String strFastpackName, String strFastpackVersion)
+    /**
+     * Build the fastpack.
+     * @return the jar file that was written
+     * @throws IOException if the build failed, no jar is left behind in that case
+     */
+    public File build(String strFastpackName, String strFastpackVersion) throws IOException
+    {
+        return build(strFastpackName, strFastpackVersion, null);
+    }
+    
+    /**
+     * Build the fastpack from files the caller has already scanned.
+     * @param oSnapshot content of the input directory, null to scan it
+     * @return the jar file that was written
+     * @throws IOException if the build failed, no jar is left behind in that case
+     */
+    public File build(String strFastpackName, String strFastpackVersion, FastpackSnapshot oSnapshot) throws IOException
+    {
+        return build(strFastpackName, strFastpackVersion, oSnapshot, null);
+    }
+    
+    /**
+     * Build the same content under several names and versions, e.g. for different customers or server lines.
+     * The folder is scanned, validated and compressed once: the first variant compresses every file into an
+     * entry cache while its jar is written, then the other variants are written in parallel from the cached
+     * bytes, each with its own manifest and plugin.xml. The listener follows the first variant.
+     * The entry cache of this builder is used if it has one, otherwise a temporary one. Previous jars
+     * are not reused (FastpackBuildOptions.setIncremental), the compressed entries are shared instead.
+     * @param oVariants name and version of each jar, the first one is compressed
+     * @return the jars, in the order of the variants
+     * @throws IOException if a variant failed, once the other variants are finished. Their jars are kept.
+     */
+    public synchronized List<File> buildMatrix(List<FastpackVariant> oVariants) throws IOException
+    {
+        if (oVariants.isEmpty()) throw new IllegalArgumentException("No variants to build");
+        Set<String> oNames = new HashSet<String>();
+        for (FastpackVariant oVariant : oVariants)
+        {
+            if (!oNames.add(oVariant.toString())) throw new IllegalArgumentException("Variant " + oVariant + " is listed twice");
+        }
+        FastpackVariant oFirst = oVariants.get(0);
+        m_strFastpackName = oFirst.getName();
+        m_strFastpackVersion = oFirst.getVersion();
+        startBuild();
+        try
+        {
+            // Never package the output of any variant
+            File oOutputDir = getOutputDirectory(m_oInputDir, m_oOptions);
+            FastpackScanner oScanner = new FastpackScanner(m_oOptions.getThreads());
+            for (FastpackVariant oVariant : oVariants) excludeOutputs(oScanner, oOutputDir, oVariant.getName());
+            FastpackSnapshot oSnapshot = oScanner.scan(m_oInputDir.toPath());
+            checkCancelled();
+            if (m_oOptions.isValidate()) new FastpackValidator(m_oOptions.getClassifier(), m_oOptions.getThreads()).check(oFirst.toString(), oSnapshot);
+            checkCancelled();
+
+            FastpackEntryCache oEntryCache = m_oEntryCache != null ? m_oEntryCache : new FastpackEntryCache();
+            List<File> oJars = new ArrayList<File>();
+            FastPackBuilder oBuilder = newVariantBuilder(oEntryCache);
+            oBuilder.setListener(m_oListener);
+            try
+            {
+                oJars.add(oBuilder.build(oFirst.getName(), oFirst.getVersion(), oSnapshot));
+            }
+            finally
+            {
+                m_oReport = oBuilder.getLastReport();
+            }
+            oJars.addAll(buildVariants(oVariants.subList(1, oVariants.size()), oSnapshot, oEntryCache));
+            return oJars;
+        }
+        finally
+        {
+            m_oVariantBuilders.clear();
+            endBuild();
+        }
+    }
+    
+    /**
+     * Write the variants of a matrix build in parallel. Their entries are all in the entry cache.
+     * @return the jars, in the order of the variants
+     */
+    private List<File> buildVariants(List<FastpackVariant> oVariants, final FastpackSnapshot oSnapshot, FastpackEntryCache oEntryCache) throws IOException
     {
-        FASTPACK_NAME = strFastpackName;
-        FASTPACK_VERSION = strFastpackVersion;
+        List<File> oJars = new ArrayList<File>();
+        if (oVariants.isEmpty()) return oJars;
+        ExecutorService oPool = Executors.newFixedThreadPool(Math.min(Math.max(1, m_oOptions.getThreads()), oVariants.size()), new ThreadFactory()
+        {
+            private final AtomicInteger m_oCount = new AtomicInteger();
+            
+            public Thread newThread(Runnable oRunnable)
+            {
+                Thread oThread = new Thread(oRunnable, "fastpack-variant-" + m_oCount.incrementAndGet());
+                oThread.setDaemon(true);
+                return oThread;
+            }
+        });
+        try
+        {
+            List<Future<File>> oFutures = new ArrayList<Future<File>>();
+            for (final FastpackVariant oVariant : oVariants)
+            {
+                final FastPackBuilder oBuilder = newVariantBuilder(oEntryCache);
+                oFutures.add(oPool.submit(new Callable<File>()
+                {
+                    public File call() throws IOException
+                    {
+                        return oBuilder.build(oVariant.getName(), oVariant.getVersion(), oSnapshot);
+                    }
+                }));
+            }
+            IOException oError = null;
+            for (Future<File> oFuture : oFutures)
+            {
+                try
+                {
+                    oJars.add(oFuture.get());
+                }
+                catch (ExecutionException e)
+                {
+                    if (oError != null) continue;
+                    oError = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Exception caught building a variant", e.getCause());
+                }
+            }
+            if (oError != null) throw oError;
+            return oJars;
+        }
+        catch (InterruptedException e)
+        {
+            checkCancelled();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the variants");
+        }
+        finally
+        {
+            oPool.shutdownNow();
+        }
+    }
+    
+    private FastPackBuilder newVariantBuilder(FastpackEntryCache oEntryCache)
+    {
+        FastPackBuilder oBuilder = new FastPackBuilder(m_oInputDir, m_oOptions);
+        oBuilder.m_bMatrixVariant = true;
+        oBuilder.setEntryCache(oEntryCache);
+        m_oVariantBuilders.add(oBuilder);
+        if (m_bCancelled) cancelVariant(oBuilder); // Cancelled while it was created
+        return oBuilder;
+    }
+    
+    /**
+     * Build the fastpack and write the jar to a stream instead of a file, e.g. to upload it while it is built.
+     * The stream is flushed but not closed. If the build fails the stream holds an incomplete jar;
+     * incremental builds are not possible as there is no previous jar.
+     * @param oOut receives the jar
+     * @throws IOException if the build failed
+     */
+    public void buildTo(String strFastpackName, String strFastpackVersion, OutputStream oOut) throws IOException
+    {
+        buildTo(strFastpackName, strFastpackVersion, Channels.newChannel(oOut));
+        oOut.flush();
+    }
+    
+    /**
+     * Build the fastpack and write the jar to a channel instead of a file. The channel is not closed.
+     * @param oChannel receives the jar
+     * @throws IOException if the build failed, the channel holds an incomplete jar in that case
+     */
+    public void buildTo(String strFastpackName, String strFastpackVersion, WritableByteChannel oChannel) throws IOException
+    {
+        build(strFastpackName, strFastpackVersion, null, oChannel);
+    }
+    
+    /**
+     * @param oSnapshot content of the input directory, null to scan it
+     * @param oChannel target of the jar, null to write {NAME}_{VERSION}.jar to the output directory
+     * @return the jar file, null if the jar was written to the channel
+     */
+    private synchronized File build(String strFastpackName, String strFastpackVersion, FastpackSnapshot oSnapshot, WritableByteChannel oChannel) throws IOException
+    {
+        m_strFastpackName = strFastpackName;
+        m_strFastpackVersion = strFastpackVersion;
+        startBuild();
+        m_oReport = new FastpackBuildReport(strFastpackName, strFastpackVersion, m_oOptions.getThreads(), m_oOptions.isIncremental());
+        m_oRecorder = FastpackFlightRecorder.beginBuild(strFastpackName + "_" + strFastpackVersion);
+        try
+        {
+            checkCancelled();
+            File oJar = doBuild(oSnapshot, oChannel);
+            finishReport(FastpackBuildReport.Status.COMPLETED, oJar, null);
+            m_oListener.buildCompleted(oJar);
+            return oJar;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Whatever went wrong after a cancel (e.g. a channel closed by the interrupt) is reported as the cancel.
+            Exception oError = m_bCancelled ? new FastpackBuildCancelledException("Build of " + strFastpackName + "_" + strFastpackVersion + " cancelled") : e;
+            finishReport(m_bCancelled ? FastpackBuildReport.Status.CANCELLED : FastpackBuildReport.Status.FAILED, null, oError);
+            m_oListener.buildFailed(oError);
+            if (oError instanceof IOException) throw (IOException) oError;
+            throw (RuntimeException) oError;
+        }
+        finally
+        {
+            endBuild();
+        }
+    }
+    
+    /**
+     * Hand the report to the flight recorder and write it next to the jar if asked to.
+     * A report that cannot be written does not fail the build.
+     */
+    private void finishReport(FastpackBuildReport.Status oStatus, File oJar, Exception oError)
+    {
+        m_oReport.finish(oStatus, oJar, oError);
+        m_oRecorder.endBuild(m_oReport);
+        if (!m_oOptions.isBuildReport()) return;
+        try
+        {
+            m_oReport.writeJson(getReportFile());
+        }
+        catch (IOException e)
+        {
+            System.out.println("Build report " + getReportFile() + " could not be written: " + e.getMessage());
+        }
+    }
+    
+    private File doBuild(FastpackSnapshot oSnapshot, WritableByteChannel oChannel) throws IOException
+    {        
+        m_oExclusions = new HashSet<String>();
         
         // Step 1: Build Manifest
+        FastpackFlightRecorder.Span oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.MANIFEST);
+        long lStart = System.nanoTime();
         Manifest oManifest = buildManifest();
-        // Step 2: Read Dashboards
-        try
+        endPhase(oSpan, FastpackBuildReport.Phase.MANIFEST, System.nanoTime() - lStart, 0, 0, 0);
+        // Step 2: Read Dashboards. The directory is walked once, both the plugin.xml and the jar use this snapshot.
+        // Never package our own output, of this or any other version (or a temp file or report left behind by an earlier build).
+        m_oListener.scanStarted(m_oInputDir);
+        oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.SCAN);
+        lStart = System.nanoTime();
+        if (oSnapshot == null)
         {
-            populateFilesList(m_oInputDir);
+            FastpackScanner oScanner = new FastpackScanner(m_oOptions.getThreads());
+            excludeOutputs(oScanner, getOutputDirectory(m_oInputDir, m_oOptions), m_strFastpackName);
+            oSnapshot = oScanner.scan(m_oInputDir.toPath());
         }
-        catch (Exception e)
+        endPhase(oSpan, FastpackBuildReport.Phase.SCAN, System.nanoTime() - lStart, oSnapshot.getTotalBytes(), 0, oSnapshot.getFiles().size());
+        m_oListener.scanFinished(oSnapshot.getFiles().size(), oSnapshot.getTotalBytes());
+        checkCancelled();
+        
+        // Step 3: Validate. Files the server would reject fail the build before anything is packaged.
+        if (m_oOptions.isValidate() && !m_bMatrixVariant)
         {
-            System.out.println("Exception caught populating files list");
+            oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.VALIDATE);
+            lStart = System.nanoTime();
+            // Files in the entry cache passed validation when they were cached, only their structure is checked again
+            new FastpackValidator(m_oOptions.getClassifier(), m_oOptions.getThreads()).check(m_strFastpackName + "_" + m_strFastpackVersion, oSnapshot, m_oEntryCache);
+            endPhase(oSpan, FastpackBuildReport.Phase.VALIDATE, System.nanoTime() - lStart, 0, 0, oSnapshot.getFiles().size());
+            checkCancelled();
+        }
+        
+        // Delta build: only package the resources that differ from the baseline
+        FastpackSnapshot oPackaged = oSnapshot;
+        m_oDelta = null;
+        if (m_oOptions.getBaseline() != null)
+        {
+            oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.DELTA);
+            lStart = System.nanoTime();
+            try (FastpackJarReader oBaseline = new FastpackJarReader(m_oOptions.getBaseline().toPath()))
+            {
+                m_oDelta = FastpackDelta.compute(oBaseline, oSnapshot, m_oCompressor);
+            }
+            oPackaged = m_oDelta.getSnapshot();
+            m_oReport.setDelta(m_oDelta);
+            endPhase(oSpan, FastpackBuildReport.Phase.DELTA, System.nanoTime() - lStart, 0, 0, oPackaged.getFiles().size());
+            checkCancelled();
         }
         
-        // Step 4: Build Plugin XML File
-        StringWriter oXMLContent = buildPluginXMLFile();
+        // Step 4: Collect the Plugin XML resources. The file itself is streamed into the jar.
+        List<PluginResource> oResources = buildPluginXMLFile(oPackaged);
         
         // Step 5: Build and save JAR
-        return zipDirectory(oManifest,m_oInputDir, oXMLContent);
+        File oJar = null;
+        if (oChannel != null) writeJar(new UnclosableChannel(oChannel), oManifest, oPackaged, oResources);
+        else oJar = zipDirectory(oManifest, oPackaged, oResources);
+        if (m_oDelta != null) m_oDelta.writeJson(getDeltaFile()); // The removed resources have to reach whoever installs the delta
+        FastpackEntryCache oEntryCache = m_oEntryCache;
+        if (oEntryCache != null) oEntryCache.retain(oSnapshot);
+        trimBlobCache();
+        return oJar;
+    }
+    
+    /**
+     * Keep the shared blob cache within its size limit. The jar is written already, so a failure here is only reported.
+     */
+    private void trimBlobCache()
+    {
+        FastpackBlobCache oBlobCache = m_oOptions.getBlobCache();
+        if (oBlobCache == null) return;
+        try
+        {
+            oBlobCache.trimIfNeeded();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Blob cache " + oBlobCache.getDirectory() + " could not be trimmed: " + e.getMessage());
+        }
     }
     
     private Manifest buildManifest()
     {
         // Fastpack name with spaces removed & lowercase
-        String strBundleName = FASTPACK_NAME.replaceAll("\\s+","").toLowerCase();
+        String strBundleName = m_strFastpackName.replaceAll("\\s+","").toLowerCase();
 
-        String strBundleVersion = FASTPACK_VERSION;
-        String strImplementationVersion = FASTPACK_VERSION;
+        String strBundleVersion = m_strFastpackVersion;
+        String strImplementationVersion = m_strFastpackVersion;
         
         Manifest oManifest = new Manifest();
         oManifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0"); //Manifest-Version: 1.0
@@ -114,198 +556,658 @@ public class FastPackBuilder
         oManifest.getMainAttributes().putValue("Bundle-ManifestVersion", "2"); //Bundle-ManifestVersion: 2
         oManifest.getMainAttributes().putValue("Require-Bundle", "com.dynatrace.diagnostics.sdk"); //Require-Bundle: com.dynatrace.diagnostics.sdk
         oManifest.getMainAttributes().putValue("Bundle-SymbolicName", "com.dynatrace.diagnostics."+strBundleName+";singleton:=true"); //Bundle-SymbolicName: com.dynatrace.diagnostics.demopatch;singleton:=true
+        // The next incremental build only reuses entries that were compressed the way it would compress them
+        if (m_oOptions.isIncremental()) oManifest.getMainAttributes().putValue(COMPRESSION_ATTRIBUTE, m_oOptions.getCompressionPolicy().describe());
 
         return oManifest;
     }
         
-    private StringWriter buildPluginXMLFile()
+    private List<PluginResource> buildPluginXMLFile(FastpackSnapshot oSnapshot)
     {
-        Document oPluginXMLDoc = DOC_BUILDER.newDocument();
-        StringWriter oWriter = new StringWriter();
-        
-        // plugin
-        Element rootElement = oPluginXMLDoc.createElement("plugin");
-        oPluginXMLDoc.appendChild(rootElement);
-
-        // extension
-        Element extension = oPluginXMLDoc.createElement("extension");
-        extension.setAttribute("id", "Installer Content");
-        extension.setAttribute("point", "com.dynatrace.diagnostics.InstallerContent");
-        rootElement.appendChild(extension);
-
-        // metainfo
-        Element metainfo = oPluginXMLDoc.createElement("metainfo");
-        metainfo.setAttribute("installer_type", "resourcepack");
-        metainfo.setAttribute("name", FASTPACK_NAME);
-        extension.appendChild(metainfo);
+        List<PluginResource> oResources = new ArrayList<PluginResource>();
 
         // Process web dashboards
-        if (hasWebDashboards()) processWebDashboards(metainfo,oPluginXMLDoc);
+        FastpackFlightRecorder.Span oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.WEB_DASHBOARDS);
+        long lStart = System.nanoTime();
+        processWebDashboards(oSnapshot, oResources);
+        endPhase(oSpan, FastpackBuildReport.Phase.WEB_DASHBOARDS, System.nanoTime() - lStart, 0, 0, oResources.size());
         
         //resources
-        for (File oTmpFile : filesListInDir)
+        oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.PLUGIN_XML);
+        lStart = System.nanoTime();
+        addResources(oSnapshot, oResources);
+        endPhase(oSpan, FastpackBuildReport.Phase.PLUGIN_XML, System.nanoTime() - lStart, 0, 0, 0);
+
+        return oResources;
+    }
+    
+    /**
+     * Collect the plugin.xml resources of a snapshot the way a build lists them, without building anything.
+     * @param oSnapshot files of the input directory, e.g. from a FastpackScanner
+     * @return the resource elements, in plugin.xml order
+     */
+    public synchronized List<PluginResource> collectResources(FastpackSnapshot oSnapshot)
+    {
+        m_oExclusions = new HashSet<String>();
+        List<PluginResource> oResources = new ArrayList<PluginResource>();
+        processWebDashboards(oSnapshot, oResources);
+        addResources(oSnapshot, oResources);
+        return oResources;
+    }
+    
+    /**
+     * Add a resource for every file and sensor pack directory that is not excluded, as the ResourceClassifier says.
+     */
+    private void addResources(FastpackSnapshot oSnapshot, List<PluginResource> oResources)
+    {
+        ResourceClassifier oClassifier = m_oOptions.getClassifier();
+        for (ScannedFile oTmpFile : oSnapshot.getFiles())
         {
             // Ignore any excluded files
-            if (m_oExclusions.contains(oTmpFile.getName())) continue;
+            if (m_oExclusions.contains(oTmpFile.getRelativePath())) continue;
             
-            Element resource = oPluginXMLDoc.createElement(IConstants.RESOURCE);
-            resource.setAttribute(IConstants.RESOURCE, oTmpFile.getName());
+            // Set resource type accordingly, see ResourceClassifier
+            ResourceClassifier.Rule oRule = oClassifier.classify(oTmpFile.getRelativePath());
+            if (oRule.isExcluded()) continue;
+            PluginResource oResource = new PluginResource(oTmpFile.getName(), oRule.getType().getAttributeValue(), oRule.getTargetDir());
+            if (oRule.getInstance() != null) oResource.addInstance(oRule.getInstance());
+            oResources.add(oResource);
+        }
+        
+        for (ScannedFile oDir : oSnapshot.getDirectories())
+        {
+            // Ignore any excluded directories
+            if (m_oExclusions.contains(oDir.getRelativePath()) || oClassifier.isExcluded(oDir.getRelativePath())) continue;
             
-            /* Set resource type accordingly
-             * dashboards:                      resource_type="dashboard"
-             * profiles:                        resource_type="systemProfile"
-             * user plugin (directory or .jar)  resource_type="userPlugin" 
-             * license file:                    resource_type="licenseFile" 
-             * sensor packs:                    resource_type="sensorPack"
-             * TODO v2. arbitrary files
-             */
-            if (oTmpFile.getName().endsWith(".dashboard.xml")) resource.setAttribute(IConstants.RESOURCE_TYPE,"dashboard");
-            else if (oTmpFile.getName().endsWith(".profile.xml")) resource.setAttribute(IConstants.RESOURCE_TYPE,"systemProfile");
-            else if (oTmpFile.getName().endsWith(".jar")) resource.setAttribute(IConstants.RESOURCE_TYPE,"userPlugin");
-            else if (oTmpFile.getName().endsWith(".key")) resource.setAttribute(IConstants.RESOURCE_TYPE,"licenseFile");
-            else if (oTmpFile.isDirectory()) resource.setAttribute(IConstants.RESOURCE_TYPE,"sensorPack");
-            else if (oTmpFile.getName().endsWith(".dts")) resource.setAttribute(IConstants.RESOURCE_TYPE,"session"); // This is not in the official documentation: https://community.dynatrace.com/community/display/DOCDT99/Building+FastPacks
-            //TODO - Additional items (session files, arbitrary files). 
+            oResources.add(new PluginResource(oDir.getName(), ResourceType.SENSOR_PACK.getAttributeValue(), null));
+        }
+    }
+        
+    /**
+     * This method zips the directory into {NAME}_{VERSION}.jar in the output directory.
+     * The jar is written to a temp file next to it and renamed when complete, so the jar is either the
+     * previous or the new one, never a partial file.
+     * @param oManifest
+     * @param oSnapshot files to add to the jar
+     * @param oResources plugin.xml resources
+     * @return the jar
+     */
+    private File zipDirectory(Manifest oManifest, FastpackSnapshot oSnapshot, List<PluginResource> oResources) throws IOException
+    {
+        File oJarFile = getOutputFile();
+        File oTmpFile = getTempFile();
+        m_oPrevious = null;
+        try {
+            Files.createDirectories(oJarFile.getParentFile().toPath());
+            if (m_oOptions.isIncremental() && !m_bMatrixVariant && oJarFile.isFile()) m_oPrevious = openPrevious(oJarFile);
             
-            metainfo.appendChild(resource);
+            // Write to a temp file first: the previous jar may still be read from while the new one is written.
+            writeJar(FileChannel.open(oTmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                    oManifest, oSnapshot, oResources);
+            checkCancelled();
+            
+            FastpackFlightRecorder.Span oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.WRITE);
+            long lStart = System.nanoTime();
+            if (m_oPrevious != null)
+            {
+                m_oPrevious.close(); // Must be closed before it can be replaced on Windows.
+                m_oPrevious = null;
+            }
+            try
+            {
+                Files.move(oTmpFile.toPath(), oJarFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(oTmpFile.toPath(), oJarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            // A checksum file left by an earlier build would no longer match
+            if (m_oReport.getSha256() != null) FastpackDigests.writeChecksumFile(oJarFile, m_oReport.getSha256());
+            else Files.deleteIfExists(getChecksumFile().toPath());
+            endPhase(oSpan, FastpackBuildReport.Phase.WRITE, System.nanoTime() - lStart, 0, 0, 0);
+            return oJarFile;
+        } catch (IOException | RuntimeException e) {
+            oTmpFile.delete();
+            throw e;
+        } finally {
+            closeQuietly(m_oPrevious);
+            m_oPrevious = null;
         }
+    }
+    
+    /**
+     * Write the jar: manifest, plugin.xml and the files of the snapshot.
+     * With digests the files are compressed first, the manifest that lists their digests has to come first in the jar.
+     * @param oOut target, closed when done
+     */
+    private void writeJar(WritableByteChannel oOut, Manifest oManifest, FastpackSnapshot oSnapshot, List<PluginResource> oResources) throws IOException
+    {
+        m_oBytesDone.set(0);
+        m_lBytesTotal = oSnapshot.getTotalBytes();
+        
+        // Generated entries get the newest input timestamp so the same input always gives the same jar.
+        long lEntryTime = oSnapshot.getNewestModified();
+        if (lEntryTime == 0) lEntryTime = System.currentTimeMillis();
         
-        for (File oDir : m_oDirList)
+        // The jar's digest is computed from the bytes as they are written, it is never read back
+        FastpackDigests.DigestingChannel oDigesting = m_oOptions.isDigests() ? new FastpackDigests.DigestingChannel(oOut) : null;
+        try (FastpackJarWriter oJarWriter = new FastpackJarWriter(oDigesting != null ? oDigesting : oOut, m_oOptions.getIoBufferSize()))
         {
-            // Ignore any excluded directories
-            if (m_oExclusions.contains(oDir.getName())) continue;
+            // Compression and writing overlap, the time the writer is not busy writing is charged to compression
+            m_lWriteNanos = 0;
+            List<CompressedEntry> oEntries = null;
+            if (m_oOptions.isDigests())
+            {
+                FastpackFlightRecorder.Span oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.COMPRESS);
+                long lStart = System.nanoTime();
+                final List<CompressedEntry> oCompressed = new ArrayList<CompressedEntry>(oSnapshot.getFiles().size());
+                compressFiles(oSnapshot, new EntrySink()
+                {
+                    public void accept(CompressedEntry oEntry)
+                    {
+                        oCompressed.add(oEntry);
+                    }
+                });
+                endPhase(oSpan, FastpackBuildReport.Phase.COMPRESS, System.nanoTime() - lStart, 0, 0, 0);
+                
+                // plugin.xml is listed too, so it is rendered up front instead of streamed into the jar
+                oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.PLUGIN_XML);
+                lStart = System.nanoTime();
+                ByteArrayOutputStream oXMLBytes = new ByteArrayOutputStream();
+                new PluginXmlWriter().write(oXMLBytes, m_strFastpackName, oResources);
+                CompressedEntry oXMLEntry = m_oCompressor.compress("plugin.xml", oXMLBytes.toByteArray(), lEntryTime);
+                oEntries = new ArrayList<CompressedEntry>(oCompressed.size() + 1);
+                oEntries.add(oXMLEntry);
+                oEntries.addAll(oCompressed);
+                endPhase(oSpan, FastpackBuildReport.Phase.PLUGIN_XML, System.nanoTime() - lStart, oXMLEntry.getSize(), oXMLEntry.getCompressedSize(), 1);
+            }
+            
+            FastpackFlightRecorder.Span oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.MANIFEST);
+            long lStart = System.nanoTime();
+            ByteArrayOutputStream oManifestBytes = new ByteArrayOutputStream();
+            oManifest.write(oManifestBytes);
+            if (oEntries != null) FastpackDigests.writeSections(oManifestBytes, oEntries);
+            CompressedEntry oManifestEntry = m_oCompressor.compress(JarFile.MANIFEST_NAME, oManifestBytes.toByteArray(), lEntryTime);
+            oJarWriter.writeEntry(oManifestEntry);
+            endPhase(oSpan, FastpackBuildReport.Phase.MANIFEST, System.nanoTime() - lStart, oManifestEntry.getSize(), oManifestEntry.getCompressedSize(), 1);
             
-            Element resource = oPluginXMLDoc.createElement(IConstants.RESOURCE); // TODO - Move to constant.
-            resource.setAttribute(IConstants.RESOURCE, oDir.getName()); // TODO - Move to constant.
-            resource.setAttribute(IConstants.RESOURCE_TYPE,"sensorPack");
-            metainfo.appendChild(resource);
+            FastpackFlightRecorder.Span oWriteSpan;
+            if (oEntries == null)
+            {
+                // Add plugin XML file, written straight into the jar entry.
+                oSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.PLUGIN_XML);
+                lStart = System.nanoTime();
+                long lPosition = oJarWriter.getPosition();
+                CountingOutputStream oXMLEntry = new CountingOutputStream(oJarWriter.openEntry("plugin.xml", lEntryTime, m_oOptions.getCompressionLevel()));
+                try (OutputStream oXMLOut = new BufferedOutputStream(oXMLEntry))
+                {
+                    new PluginXmlWriter().write(oXMLOut, m_strFastpackName, oResources);
+                }
+                endPhase(oSpan, FastpackBuildReport.Phase.PLUGIN_XML, System.nanoTime() - lStart, oXMLEntry.m_lCount, oJarWriter.getPosition() - lPosition, 1);
+                
+                // Entries are written as they are compressed
+                FastpackFlightRecorder.Span oCompressSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.COMPRESS);
+                oWriteSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.WRITE);
+                lStart = System.nanoTime();
+                compressFiles(oSnapshot, new EntrySink()
+                {
+                    public void accept(CompressedEntry oEntry) throws IOException
+                    {
+                        writeEntry(oJarWriter, oEntry);
+                    }
+                });
+                endPhase(oCompressSpan, FastpackBuildReport.Phase.COMPRESS, System.nanoTime() - lStart - m_lWriteNanos, 0, 0, 0);
+            }
+            else
+            {
+                oWriteSpan = m_oRecorder.beginPhase(FastpackBuildReport.Phase.WRITE);
+                oJarWriter.writeEntry(oEntries.get(0));
+                for (CompressedEntry oEntry : oEntries.subList(1, oEntries.size())) writeEntry(oJarWriter, oEntry);
+            }
+            
+            lStart = System.nanoTime();
+            oJarWriter.finish();
+            m_lWriteNanos += System.nanoTime() - lStart;
+            endPhase(oWriteSpan, FastpackBuildReport.Phase.WRITE, m_lWriteNanos, 0, oJarWriter.getPosition(), oSnapshot.getFiles().size() + 2);
         }
-
-        // write the content into xml file
+        if (oDigesting != null) m_oReport.setSha256(FastpackDigests.toHex(oDigesting.digest()));
+    }
+    
+    /**
+     * Compress the files of the snapshot, on the worker pool if there is more than one to compress,
+     * and hand them to the sink in snapshot order.
+     */
+    private void compressFiles(FastpackSnapshot oSnapshot, EntrySink oSink) throws IOException
+    {
+        try (FastpackReadAhead oReadAhead = newReadAhead(oSnapshot.getFiles()))
+        {
+            if (m_oOptions.getThreads() > 1 && countUncached(oSnapshot.getFiles()) > 1) compressParallel(oSink, oSnapshot.getFiles(), oReadAhead);
+            else compressSequential(oSink, oSnapshot.getFiles(), oReadAhead);
+            if (oReadAhead != null) m_oReport.setPrefetched(oReadAhead.getPrefetched());
+        }
+    }
+    
+    /**
+     * @return a read ahead over the files that are not in the entry cache, null if read ahead is off
+     */
+    private FastpackReadAhead newReadAhead(List<ScannedFile> oFiles)
+    {
+        if (m_oOptions.getReadAhead() <= 0) return null;
+        FastpackEntryCache oEntryCache = m_oEntryCache;
+        List<ScannedFile> oToRead = new ArrayList<ScannedFile>(oFiles.size());
+        for (ScannedFile oFile : oFiles)
+        {
+            if (oEntryCache == null || oEntryCache.get(oFile) == null) oToRead.add(oFile);
+        }
+        return new FastpackReadAhead(oToRead, m_oOptions.getReadAhead(), m_oOptions.getIoBufferSize(), m_oOptions.getReadAheadThreads());
+    }
+    
+    /**
+     * @return number of files that are not in the entry cache and have to be compressed
+     */
+    private int countUncached(List<ScannedFile> oFiles)
+    {
+        FastpackEntryCache oEntryCache = m_oEntryCache;
+        if (oEntryCache == null) return oFiles.size();
+        int iUncached = 0;
+        for (ScannedFile oFile : oFiles)
+        {
+            if (oEntryCache.get(oFile) == null) iUncached++;
+        }
+        return iUncached;
+    }
+    
+    /**
+     * @return the previous jar, null if it cannot be read or was built with another compression policy
+     */
+    private FastpackJarReader openPrevious(File oJarFile)
+    {
+        FastpackJarReader oPrevious = null;
         try
         {
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            DOMSource source = new DOMSource(oPluginXMLDoc);
-
-            // Write results to a string
-            StreamResult oResult = new StreamResult(oWriter);
-            transformer.transform(source,oResult);
-
+            oPrevious = new FastpackJarReader(oJarFile.toPath());
+            FastpackJarReader.Entry oManifestEntry = oPrevious.getEntry(JarFile.MANIFEST_NAME);
+            String strPolicy = null;
+            if (oManifestEntry != null)
+            {
+                try (InputStream oIn = oPrevious.getInputStream(oManifestEntry))
+                {
+                    strPolicy = new Manifest(oIn).getMainAttributes().getValue(COMPRESSION_ATTRIBUTE);
+                }
+            }
+            if (!m_oOptions.getCompressionPolicy().describe().equals(strPolicy))
+            {
+                System.out.println("Previous fastpack " + oJarFile + " was built with other compression settings, doing a full build");
+                closeQuietly(oPrevious);
+                return null;
+            }
+            return oPrevious;
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            System.out.println("Exception caught transforming XML result.");
-            e.printStackTrace();
+            closeQuietly(oPrevious);
+            System.out.println("Previous fastpack " + oJarFile + " could not be read, doing a full build: " + e.getMessage());
+            return null;
         }
-        return oWriter;
     }
-        
+    
     /**
-     * This method zips the directory
-     * @param dir
-     * @param zipDirName
+     * Reuse the entry of the previous jar when the file is unchanged, otherwise compress it.
+     * Unchanged means same size, same timestamp (at zip resolution) and same CRC.
+     * @param oReadAhead has the content of the file if it was read ahead, may be null
      */
-    private boolean zipDirectory(Manifest oManifest, File oInputDir, StringWriter oXMLContent)
+    private CompressedEntry prepareEntry(ScannedFile oFile, FastpackReadAhead oReadAhead) throws IOException
     {
-        try {
-            populateFilesList(oInputDir);
-            
-            //now zip files one by one
-            //create JarOutputStream to write to the zip file
-            FileOutputStream fos = new FileOutputStream(new File(oInputDir.getAbsolutePath()+"/"+FASTPACK_NAME+"_"+FASTPACK_VERSION+".jar"));
-            JarOutputStream zos = new JarOutputStream(fos, oManifest);
-            
-            // Add plugin XML file
-            JarEntry oXMLEntry = new JarEntry("plugin.xml");
-            oXMLEntry.setTime(System.currentTimeMillis());
-            // Put the file into the ZIP: Note - it has no actual content yet.
-            zos.putNextEntry(oXMLEntry);
-            
-            // Write the true plugin.xml content.
-            zos.write(oXMLContent.toString().getBytes("UTF-8"));
+        checkCancelled();
+        m_oListener.entryStarted(oFile.getRelativePath(), oFile.getSize());
+        long lStart = System.nanoTime();
+        try
+        {
+            FastpackEntryCache oEntryCache = m_oEntryCache;
+            CompressedEntry oCached = oEntryCache != null ? oEntryCache.get(oFile) : null;
+            if (oCached != null)
+            {
+                m_oReport.addReused(m_oOptions.getClassifier().typeOf(oFile.getRelativePath()));
+                return oCached;
+            }
             
-            for(File oFile : filesListInDir){
-                String strFilePath = oFile.getAbsolutePath();
-                //for ZipEntry we need to keep only relative file path, so we used substring on absolute path
-                ZipEntry ze = new ZipEntry(strFilePath.substring(oInputDir.getAbsolutePath().length()+1, strFilePath.length()));
-                zos.putNextEntry(ze);
-                //read the file and write to JarOutputStream
-                FileInputStream fis = new FileInputStream(strFilePath);
-                byte[] buffer = new byte[1024];
-                int len;
-                while ((len = fis.read(buffer)) > 0) {
-                    zos.write(buffer, 0, len);
+            FastpackReadAhead.Content oContent = oReadAhead != null ? oReadAhead.take(oFile) : null;
+            try
+            {
+                FastpackJarReader oPrevious = m_oPrevious;
+                if (oPrevious != null && !m_oCompressor.isMinified(oFile)) // A minified entry never matches the file's CRC
+                {
+                    FastpackJarReader.Entry oEntry = oPrevious.getEntry(oFile.getRelativePath());
+                    if (oEntry != null && !oEntry.isEncrypted()
+                            && (oEntry.getMethod() == CompressedEntry.DEFLATED || oEntry.getMethod() == CompressedEntry.STORED)
+                            && oEntry.getSize() == oFile.getSize()
+                            && oEntry.getDosTime() == FastpackJarWriter.javaToDosTime(oFile.getLastModified()))
+                    {
+                        // The reused entry needs the file's digest too, it is computed in the same pass as the CRC (the level does not matter)
+                        FastpackBlobCache.Key oHash = m_oOptions.isDigests() ? m_oCompressor.hash(oFile, oContent, 0) : null;
+                        if (oEntry.getCrc() == (oHash != null ? oHash.lCrc : m_oCompressor.crc(oFile, oContent)))
+                        {
+                            m_oReport.addReused(m_oOptions.getClassifier().typeOf(oFile.getRelativePath()));
+                            CompressedEntry oReused = oPrevious.toCompressedEntry(oEntry); // Not cached, it can only be read while the previous jar is open
+                            return oHash != null ? oReused.withDigest(oHash.abSha256) : oReused;
+                        }
+                    }
                 }
-                zos.closeEntry();
-                fis.close();
+                CompressedEntry oEntry = m_oCompressor.compress(oFile, oContent);
+                if (oEntryCache != null) oEntryCache.put(oFile, oEntry);
+                return oEntry;
+            }
+            finally
+            {
+                if (oContent != null) oContent.release();
             }
-            zos.close();
-            fos.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
         }
-        return true;
+        finally
+        {
+            m_oReport.addCompressThreadTime(System.nanoTime() - lStart);
+        }
     }
-     
+    
     /**
-     * This method populates all the files in a directory to a List
-     * @param dir
-     * @throws IOException
+     * Compress the files one by one on the calling thread.
+     * With a read ahead the next files are read while this thread compresses and writes.
      */
-    private void populateFilesList(File dir) throws IOException
+    private void compressSequential(EntrySink oSink, List<ScannedFile> oFiles, FastpackReadAhead oReadAhead) throws IOException
     {
-        File[] files = dir.listFiles();
-        if (files == null) return; // Got to the bottom of a directory. No more files.
-        for(File file : files)
+        for (ScannedFile oFile : oFiles)
         {
-            // Check that file is indeed a file & that we aren't adding the same file twice.
-            if (file.isFile() && !filesListInDir.contains(file)) filesListInDir.add(file);
-            else
+            if (oReadAhead != null) oReadAhead.fill();
+            oSink.accept(prepareEntry(oFile, oReadAhead));
+        }
+    }
+    
+    /**
+     * Add a phase to the report and commit its flight recorder event.
+     * @param lNanos time charged to the phase
+     */
+    private void endPhase(FastpackFlightRecorder.Span oSpan, FastpackBuildReport.Phase oPhase, long lNanos, long lBytesIn, long lBytesOut, int iEntries)
+    {
+        m_oReport.addPhase(oPhase, lNanos, lBytesIn, lBytesOut, iEntries);
+        oSpan.end(lNanos, lBytesIn, lBytesOut, iEntries);
+    }
+    
+    private void writeEntry(FastpackJarWriter oJarWriter, CompressedEntry oEntry) throws IOException
+    {
+        checkCancelled();
+        long lStart = System.nanoTime();
+        oJarWriter.writeEntry(oEntry);
+        m_lWriteNanos += System.nanoTime() - lStart;
+        m_oReport.addEntry(oEntry, m_oOptions.getClassifier().typeOf(oEntry.getName()));
+        m_oListener.entryFinished(oEntry.getName(), m_oBytesDone.addAndGet(oEntry.getSourceSize()), m_lBytesTotal);
+    }
+    
+    private void checkCancelled() throws FastpackBuildCancelledException
+    {
+        if (m_bCancelled) throw new FastpackBuildCancelledException("Build of " + m_strFastpackName + "_" + m_strFastpackVersion + " cancelled");
+    }
+    
+    /**
+     * Deflate the files on a worker pool and hand them to the sink in list order.
+     * Only a window of entries is kept in flight so memory stays bounded.
+     */
+    private void compressParallel(EntrySink oSink, List<ScannedFile> oFiles, final FastpackReadAhead oReadAhead) throws IOException
+    {
+        int iThreads = m_oOptions.getThreads();
+        ExecutorService oPool = Executors.newFixedThreadPool(iThreads, new ThreadFactory()
+        {
+            private final AtomicInteger m_oCount = new AtomicInteger();
+            
+            public Thread newThread(Runnable oRunnable)
             {
-                m_oDirList.add(file);
-                
-                // Recursively traverse down directory structure.
-                populateFilesList(file);
+                Thread oThread = new Thread(oRunnable, "fastpack-compress-" + m_oCount.incrementAndGet());
+                oThread.setDaemon(true);
+                return oThread;
+            }
+        });
+        
+        Deque<Future<CompressedEntry>> oWindow = new ArrayDeque<Future<CompressedEntry>>();
+        try
+        {
+            for (final ScannedFile oFile : oFiles)
+            {
+                if (oReadAhead != null) oReadAhead.fill();
+                oWindow.add(oPool.submit(new Callable<CompressedEntry>()
+                {
+                    public CompressedEntry call() throws IOException
+                    {
+                        return prepareEntry(oFile, oReadAhead);
+                    }
+                }));
+                if (oWindow.size() >= iThreads * 2) oSink.accept(await(oWindow.poll()));
+            }
+            while (!oWindow.isEmpty()) oSink.accept(await(oWindow.poll()));
+        }
+        finally
+        {
+            for (Future<CompressedEntry> oPending : oWindow) oPending.cancel(true);
+            oPool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Receives the compressed entries in jar order: the jar writer, or a list while the manifest still has to be written.
+     */
+    private interface EntrySink
+    {
+        void accept(CompressedEntry oEntry) throws IOException;
+    }
+    
+    private CompressedEntry await(Future<CompressedEntry> oFuture) throws IOException
+    {
+        try
+        {
+            return oFuture.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing fastpack entries");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Exception caught compressing fastpack entry", e.getCause());
+        }
+    }
+    
+    private File getOutputFile()
+    {
+        return getOutputFile(getOutputDirectory(m_oInputDir, m_oOptions), m_strFastpackName, m_strFastpackVersion);
+    }
+    
+    private File getTempFile()
+    {
+        return getTempFile(getOutputDirectory(m_oInputDir, m_oOptions), m_strFastpackName, m_strFastpackVersion);
+    }
+    
+    private File getReportFile()
+    {
+        return getReportFile(getOutputDirectory(m_oInputDir, m_oOptions), m_strFastpackName, m_strFastpackVersion);
+    }
+    
+    private File getDeltaFile()
+    {
+        return getDeltaFile(getOutputDirectory(m_oInputDir, m_oOptions), m_strFastpackName, m_strFastpackVersion);
+    }
+    
+    private File getChecksumFile()
+    {
+        return getChecksumFile(getOutputDirectory(m_oInputDir, m_oOptions), m_strFastpackName, m_strFastpackVersion);
+    }
+    
+    /**
+     * @return where jars and reports go: the output directory of the options, the input directory if there is none
+     */
+    static File getOutputDirectory(File oInputDir, FastpackBuildOptions oOptions)
+    {
+        return oOptions.getOutputDirectory() != null ? oOptions.getOutputDirectory() : oInputDir;
+    }
+    
+    /**
+     * @return true for the files a build of the fastpack writes into the output directory, whatever its version:
+     * {NAME}_*.jar, .{NAME}_*.jar.tmp, {NAME}_*.report.json, {NAME}_*.delta.json and {NAME}_*.jar.sha256
+     */
+    static boolean isOutputFile(File oOutputDir, String strFastpackName, Path oFile)
+    {
+        Path oParent = oFile.toAbsolutePath().normalize().getParent();
+        if (oParent == null || !oParent.equals(oOutputDir.toPath().toAbsolutePath().normalize())) return false;
+        String strName = oFile.getFileName().toString();
+        String strPrefix = strFastpackName + "_";
+        if (strName.startsWith("." + strPrefix)) return strName.endsWith(".jar.tmp");
+        return strName.startsWith(strPrefix) && (strName.endsWith(".jar") || strName.endsWith(".jar.sha256")
+                || strName.endsWith(".report.json") || strName.endsWith(".delta.json"));
+    }
+    
+    /**
+     * Leave every output file of the fastpack (see isOutputFile) that is in the output directory out of a scan.
+     */
+    static FastpackScanner excludeOutputs(FastpackScanner oScanner, File oOutputDir, String strFastpackName) throws IOException
+    {
+        if (oOutputDir.isDirectory())
+        {
+            try (DirectoryStream<Path> oFiles = Files.newDirectoryStream(oOutputDir.toPath()))
+            {
+                for (Path oFile : oFiles)
+                {
+                    if (isOutputFile(oOutputDir, strFastpackName, oFile)) oScanner.exclude(oFile);
+                }
             }
         }
+        return oScanner;
     }
     
-    private boolean hasWebDashboards()
+    /**
+     * @return {outputDir}/{NAME}_{VERSION}.jar
+     */
+    static File getOutputFile(File oOutputDir, String strFastpackName, String strFastpackVersion)
     {
-    	File[] files = m_oInputDir.listFiles();
-    	if (files == null) return false;
-    	
-    	for (File file : files) if (file.isDirectory() && file.getName().equalsIgnoreCase(IConstants.WEB_DASHBOARDS)) return true;
-    	return false;
+        return new File(oOutputDir.getAbsolutePath()+"/"+strFastpackName+"_"+strFastpackVersion+".jar");
     }
     
-    private Element processWebDashboards(Element metainfo, Document oPluginXMLDoc)
+    static File getTempFile(File oOutputDir, String strFastpackName, String strFastpackVersion)
+    {
+        return new File(oOutputDir.getAbsolutePath()+"/."+strFastpackName+"_"+strFastpackVersion+".jar.tmp");
+    }
+    
+    /**
+     * @return {outputDir}/{NAME}_{VERSION}.report.json
+     */
+    static File getReportFile(File oOutputDir, String strFastpackName, String strFastpackVersion)
+    {
+        return new File(oOutputDir.getAbsolutePath()+"/"+strFastpackName+"_"+strFastpackVersion+".report.json");
+    }
+    
+    /**
+     * @return {outputDir}/{NAME}_{VERSION}.delta.json
+     */
+    static File getDeltaFile(File oOutputDir, String strFastpackName, String strFastpackVersion)
+    {
+        return new File(oOutputDir.getAbsolutePath()+"/"+strFastpackName+"_"+strFastpackVersion+".delta.json");
+    }
+    
+    /**
+     * @return {outputDir}/{NAME}_{VERSION}.jar.sha256
+     */
+    static File getChecksumFile(File oOutputDir, String strFastpackName, String strFastpackVersion)
+    {
+        return FastpackDigests.getChecksumFile(getOutputFile(oOutputDir, strFastpackName, strFastpackVersion));
+    }
+    
+    private static void closeQuietly(Closeable oCloseable)
+    {
+        if (oCloseable == null) return;
+        try
+        {
+            oCloseable.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing useful to do
+        }
+    }
+    
+    /**
+     * Keeps the FastpackJarWriter from closing a channel that belongs to the caller.
+     */
+    private static class UnclosableChannel implements WritableByteChannel
+    {
+        private final WritableByteChannel m_oChannel;
+        private boolean m_bOpen = true;
+        
+        UnclosableChannel(WritableByteChannel oChannel)
+        {
+            m_oChannel = oChannel;
+        }
+        
+        public int write(ByteBuffer oBuffer) throws IOException
+        {
+            return m_oChannel.write(oBuffer);
+        }
+        
+        public boolean isOpen()
+        {
+            return m_bOpen && m_oChannel.isOpen();
+        }
+        
+        public void close()
+        {
+            m_bOpen = false;
+        }
+    }
+    
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        long m_lCount = 0;
+        
+        CountingOutputStream(OutputStream oOut)
+        {
+            super(oOut);
+        }
+        
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            m_lCount++;
+        }
+        
+        @Override
+        public void write(byte[] abData, int iOffset, int iLen) throws IOException
+        {
+            out.write(abData, iOffset, iLen);
+            m_lCount += iLen;
+        }
+    }
+    
+    /**
+     * Web dashboards live in the IConstants.WEB_DASHBOARDS subfolder (case insensitive) as JSON/XML pairs.
+     * Each file gets its own resource element. 
+     */
+    private void processWebDashboards(FastpackSnapshot oSnapshot, List<PluginResource> oResources)
     {
-    	// Get the web dashboards directory from input dir.
-    	File[] files = m_oInputDir.listFiles();
-    	File oWebDashboardDir = null;
-    	if (files == null) return metainfo;
-    	
-    	for (File file : files) if (file.isDirectory() && file.getName().equalsIgnoreCase(IConstants.WEB_DASHBOARDS)) oWebDashboardDir = file;
-    	
-    	if (oWebDashboardDir == null) return metainfo;
-    	
     	/* 
     	 * For each file in IConstants.WEB_DASHBOARDS
-    	 * Build the relevant XML and attach to the metainfo then return the metainfo object.
+    	 * Build the relevant resource and add it to the list.
     	 */
-    	File[] oWebDashboardFiles = oWebDashboardDir.listFiles();
-        for (File oTmpFile : oWebDashboardFiles)
+        List<ScannedFile> oEntries = new ArrayList<ScannedFile>(oSnapshot.getFiles());
+        oEntries.addAll(oSnapshot.getDirectories());
+        for (ScannedFile oTmpFile : oEntries)
         {
-            // Ignore any excluded files
-            if (m_oExclusions.contains(oTmpFile.getName())) continue;
+            String strPath = oTmpFile.getRelativePath();
+            int iSlash = strPath.indexOf('/');
+            if (iSlash < 0 || strPath.indexOf('/', iSlash + 1) >= 0) continue; // Only direct children of the web dashboards folder
+            if (!strPath.substring(0, iSlash).equalsIgnoreCase(IConstants.WEB_DASHBOARDS)) continue;
             
-            Element resource = oPluginXMLDoc.createElement(IConstants.RESOURCE);
-            resource.setAttribute(IConstants.RESOURCE, oTmpFile.getName());
+            // Ignore any excluded files
+            if (m_oExclusions.contains(oTmpFile.getRelativePath()) || m_oOptions.getClassifier().isExcluded(oTmpFile.getRelativePath())) continue;
             
             /* 
              * <resource resource="dashboards/web/7b8ed814-49c7-4e62-9f08-d4b57c2ff0dd.xml" resource_type="resource" target_dir="conf/dashboards/web">
@@ -315,20 +1217,11 @@ public class FastPackBuilder
 			 *		<instance instance="server"/>
 			 * </resource>
              */
-            resource.setAttribute(IConstants.RESOURCE,"webdashboards/"+oTmpFile.getName()); //<resource resource="dashboards/web/543dscs.json"....
-            resource.setAttribute(IConstants.RESOURCE_TYPE, IConstants.RESOURCE); // ... resource_type="resource"....
-            resource.setAttribute("target_dir", "conf/dashboards/web"); // ..... target_dir="conf/dahsboards/web"
-            	Element oInstanceElem = oPluginXMLDoc.createElement("instance"); // <instance instance="server" />
-            	oInstanceElem.setAttribute("instance", "server");
-            	resource.appendChild(oInstanceElem);
-            
-            metainfo.appendChild(resource);
+            oResources.add(new PluginResource("webdashboards/"+oTmpFile.getName(), ResourceType.RESOURCE.getAttributeValue(), "conf/dashboards/web").addInstance("server"));
             
             // We've already written relevant plugin.xml web dashboard stuff
             // Add to exclusion list to prevent anything else adding a duplicate.
-            m_oExclusions.add(oTmpFile.getName());
+            m_oExclusions.add(oTmpFile.getRelativePath());
         }
-        
-        return metainfo;
     }
 }
@@ -0,0 +1,520 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Deflated entries shared by every build on this machine, stored in a directory and keyed by the SHA-256 of the
+ * content and the deflate level. Fastpacks that bundle the same user plugins, sensor packs or sessions only pay
+ * for deflating them once; later builds copy the compressed bytes from the cache into their jar.
+ *
+ * Any number of builder processes can use the same directory. Blobs are written to a temp file and renamed into
+ * place, so a blob is either complete or not there. When a blob is read its header is checked against the key and its
+ * deflated bytes against the CRC32 stored in the header, so a damaged blob is a miss instead of a corrupt jar entry.
+ * The cache is kept below its size limit by deleting the least recently used blobs; only one process trims at a
+ * time (file lock), a blob that is deleted while being looked up is simply a miss.
+ *
+ * Layout: {dir}/{first two hex digits}/{sha256}-{level}.blob, each blob is a header followed by the deflated bytes.
+ * Blobs of an older format fail the header check and are replaced by the next build that compresses their content.
+ */
+public class FastpackBlobCache
+{
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_MIN_ENTRY_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x46504243; // FPBC
+    private static final int FORMAT_VERSION = 2; // 2 added the CRC of the deflated bytes
+    private static final int HEADER_SIZE = 4 + 4 + 32 + 4 + 8 + 8 + 8 + 8;
+    private static final String BLOB_SUFFIX = ".blob";
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+    private static final Cleaner CHANNEL_CLEANER = Cleaner.create();
+
+    private final Path m_oDir;
+    private final long m_lMaxBytes;
+    private long m_lMinEntrySize = DEFAULT_MIN_ENTRY_SIZE;
+
+    private final AtomicLong m_oHits = new AtomicLong();
+    private final AtomicLong m_oMisses = new AtomicLong();
+    private final AtomicLong m_oStores = new AtomicLong();
+    private final AtomicLong m_oEvictions = new AtomicLong();
+    private final AtomicLong m_oBytesSaved = new AtomicLong();
+    private final AtomicLong m_oStoredSinceTrim = new AtomicLong();
+    private volatile boolean m_bTrimmed = false;
+
+    /**
+     * Content hash and compression settings of a file, computed by the FastpackEntryCompressor.
+     */
+    public static class Key
+    {
+        final byte[] abSha256;
+        final int iLevel;
+        final long lCrc;
+        final long lSize;
+
+        public Key(byte[] abSha256, int iLevel, long lCrc, long lSize)
+        {
+            this.abSha256 = abSha256;
+            this.iLevel = iLevel;
+            this.lCrc = lCrc;
+            this.lSize = lSize;
+        }
+
+        String getFileName()
+        {
+            StringBuilder oName = new StringBuilder(80);
+            for (byte b : abSha256) oName.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return oName.append('-').append(iLevel < 0 ? "d" : Integer.toString(iLevel)).append(BLOB_SUFFIX).toString();
+        }
+    }
+
+    /**
+     * @param oDir cache directory, created when needed
+     * @param lMaxBytes blobs beyond this size are evicted, least recently used first
+     */
+    public FastpackBlobCache(Path oDir, long lMaxBytes)
+    {
+        m_oDir = oDir.toAbsolutePath().normalize();
+        m_lMaxBytes = lMaxBytes;
+    }
+
+    public Path getDirectory()
+    {
+        return m_oDir;
+    }
+
+    public long getMinEntrySize()
+    {
+        return m_lMinEntrySize;
+    }
+
+    /**
+     * Smaller files are not worth a blob of their own and are always compressed.
+     * @param lMinEntrySize in bytes
+     */
+    public FastpackBlobCache setMinEntrySize(long lMinEntrySize)
+    {
+        m_lMinEntrySize = Math.max(0, lMinEntrySize);
+        return this;
+    }
+
+    /**
+     * Look up a deflated entry.
+     * @param oKey content hash of the file
+     * @param strName jar entry name of the returned entry
+     * @param lTime modification time of the returned entry
+     * @return the entry with the cached compressed bytes, null on a miss
+     * @throws InterruptedIOException if the thread was interrupted, e.g. because the build was cancelled
+     */
+    public CompressedEntry get(Key oKey, String strName, long lTime) throws InterruptedIOException
+    {
+        Path oBlob = getPath(oKey);
+        CompressedEntry oEntry = null;
+        FileChannel oChannel = null;
+        try
+        {
+            oChannel = FileChannel.open(oBlob, StandardOpenOption.READ);
+            ByteBuffer oHeader = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(oChannel, oHeader);
+            oHeader.flip();
+            byte[] abSha256 = new byte[32];
+            boolean bValid = oHeader.getInt() == MAGIC & oHeader.getInt() == FORMAT_VERSION;
+            oHeader.get(abSha256);
+            bValid &= Arrays.equals(abSha256, oKey.abSha256) & oHeader.getInt() == oKey.iLevel & oHeader.getLong() == oKey.lCrc & oHeader.getLong() == oKey.lSize;
+            long lCompressedSize = oHeader.getLong();
+            long lDataCrc = oHeader.getLong();
+            if (bValid && lCompressedSize >= 0 && oChannel.size() == HEADER_SIZE + lCompressedSize)
+            {
+                if (lCompressedSize < FastpackEntryCompressor.SPILL_THRESHOLD)
+                {
+                    ByteBuffer oData = ByteBuffer.allocate((int) lCompressedSize);
+                    readFully(oChannel, oData);
+                    CRC32 oCrc = new CRC32();
+                    oCrc.update(oData.array(), 0, oData.capacity());
+                    if (oCrc.getValue() == lDataCrc) oEntry = new CompressedEntry(strName, CompressedEntry.DEFLATED, oKey.lCrc, oKey.lSize, lTime, oData.array());
+                }
+                else if (crc(oChannel) == lDataCrc)
+                {
+                    // Large blobs stay on disk like the compressor's spilled entries, the open channel keeps a trimmed blob readable
+                    oEntry = new CompressedEntry(strName, CompressedEntry.DEFLATED, oKey.lCrc, oKey.lSize, lTime, lCompressedSize, new BlobPayload(oChannel, lCompressedSize));
+                    oChannel = null;
+                }
+            }
+        }
+        catch (NoSuchFileException e)
+        {
+            m_oMisses.incrementAndGet();
+            return null;
+        }
+        catch (ClosedByInterruptException e)
+        {
+            // Cancelled, the blob is fine
+            InterruptedIOException oInterrupted = new InterruptedIOException("Interrupted reading " + oBlob);
+            oInterrupted.initCause(e);
+            throw oInterrupted;
+        }
+        catch (InterruptedIOException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            // Truncated or unreadable, handled like a blob that is not what its name says
+        }
+        finally
+        {
+            closeQuietly(oChannel);
+        }
+
+        if (oEntry == null)
+        {
+            deleteQuietly(oBlob); // e.g. written by a broken build, the next put() replaces it
+            m_oMisses.incrementAndGet();
+            return null;
+        }
+        touch(oBlob);
+        m_oHits.incrementAndGet();
+        m_oBytesSaved.addAndGet(oKey.lSize);
+        return oEntry;
+    }
+
+    /**
+     * Store a deflated entry. Failing to store is not an error, the entry is just not cached.
+     * @param oKey content hash of the file the entry was compressed from
+     * @param oEntry a DEFLATED entry of that content
+     */
+    public void put(Key oKey, CompressedEntry oEntry)
+    {
+        if (oEntry.getMethod() != CompressedEntry.DEFLATED || oEntry.getCrc() != oKey.lCrc || oEntry.getSize() != oKey.lSize) return;
+        Path oBlob = getPath(oKey);
+        Path oTemp = null;
+        try
+        {
+            Files.createDirectories(oBlob.getParent());
+            oTemp = Files.createTempFile(oBlob.getParent(), oBlob.getFileName().toString(), ".tmp");
+            try (final FileChannel oChannel = FileChannel.open(oTemp, StandardOpenOption.WRITE))
+            {
+                // The deflated bytes go first, the header with their CRC is written in front of them afterwards
+                final CRC32 oDataCrc = new CRC32();
+                oChannel.position(HEADER_SIZE);
+                oEntry.writePayload(new WritableByteChannel()
+                {
+                    public int write(ByteBuffer oBuffer) throws IOException
+                    {
+                        ByteBuffer oWritten = oBuffer.duplicate();
+                        int iLen = oChannel.write(oBuffer);
+                        oWritten.limit(oWritten.position() + iLen);
+                        oDataCrc.update(oWritten);
+                        return iLen;
+                    }
+
+                    public boolean isOpen()
+                    {
+                        return oChannel.isOpen();
+                    }
+
+                    public void close()
+                    {
+                        // The blob channel is closed by put()
+                    }
+                });
+                ByteBuffer oHeader = ByteBuffer.allocate(HEADER_SIZE);
+                oHeader.putInt(MAGIC).putInt(FORMAT_VERSION).put(oKey.abSha256).putInt(oKey.iLevel);
+                oHeader.putLong(oKey.lCrc).putLong(oKey.lSize).putLong(oEntry.getCompressedSize()).putLong(oDataCrc.getValue());
+                oHeader.flip();
+                while (oHeader.hasRemaining()) oChannel.write(oHeader, oHeader.position());
+            }
+            try
+            {
+                Files.move(oTemp, oBlob, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(oTemp, oBlob);
+            }
+            oTemp = null;
+            m_oStores.incrementAndGet();
+            m_oStoredSinceTrim.addAndGet(HEADER_SIZE + oEntry.getCompressedSize());
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            // Another build stored the same content first
+        }
+        catch (IOException e)
+        {
+            // Disk full, no permission... the build goes on without caching
+        }
+        finally
+        {
+            if (oTemp != null) deleteQuietly(oTemp);
+        }
+    }
+
+    /**
+     * Trim the cache if this object has not trimmed it yet or stored blobs since.
+     */
+    public void trimIfNeeded() throws IOException
+    {
+        if (!m_bTrimmed || m_oStoredSinceTrim.get() > 0) trim();
+    }
+
+    /**
+     * Delete least recently used blobs until the cache is below 90% of its size limit.
+     * Does nothing if another process is trimming the same directory right now.
+     */
+    public synchronized void trim() throws IOException
+    {
+        m_oStoredSinceTrim.set(0);
+        m_bTrimmed = true;
+        if (!Files.isDirectory(m_oDir)) return;
+        try (FileChannel oLockChannel = FileChannel.open(m_oDir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock oLock = oLockChannel.tryLock())
+        {
+            if (oLock == null) return;
+
+            List<Blob> oBlobs = new ArrayList<Blob>();
+            long lTotal = 0;
+            long lNow = System.currentTimeMillis();
+            try (DirectoryStream<Path> oSubDirs = Files.newDirectoryStream(m_oDir))
+            {
+                for (Path oSubDir : oSubDirs)
+                {
+                    if (!Files.isDirectory(oSubDir)) continue;
+                    try (DirectoryStream<Path> oFiles = Files.newDirectoryStream(oSubDir))
+                    {
+                        for (Path oFile : oFiles)
+                        {
+                            BasicFileAttributes oAttributes;
+                            try
+                            {
+                                oAttributes = Files.readAttributes(oFile, BasicFileAttributes.class);
+                            }
+                            catch (NoSuchFileException e)
+                            {
+                                continue;
+                            }
+                            long lModified = oAttributes.lastModifiedTime().toMillis();
+                            if (oFile.getFileName().toString().endsWith(BLOB_SUFFIX))
+                            {
+                                oBlobs.add(new Blob(oFile, oAttributes.size(), lModified));
+                                lTotal += oAttributes.size();
+                            }
+                            else if (lNow - lModified > STALE_TEMP_MILLIS) deleteQuietly(oFile); // Left behind by a crashed build
+                        }
+                    }
+                }
+            }
+            if (lTotal <= m_lMaxBytes) return;
+
+            Collections.sort(oBlobs, new Comparator<Blob>()
+            {
+                public int compare(Blob o1, Blob o2)
+                {
+                    return Long.compare(o1.lLastUsed, o2.lLastUsed);
+                }
+            });
+            long lTarget = m_lMaxBytes / 10 * 9;
+            for (Blob oBlob : oBlobs)
+            {
+                if (lTotal <= lTarget) break;
+                if (deleteQuietly(oBlob.oPath))
+                {
+                    lTotal -= oBlob.lSize;
+                    m_oEvictions.incrementAndGet();
+                }
+            }
+        }
+        catch (OverlappingFileLockException e)
+        {
+            // Another cache object of this JVM is trimming the same directory
+        }
+    }
+
+    public long getHits()
+    {
+        return m_oHits.get();
+    }
+
+    public long getMisses()
+    {
+        return m_oMisses.get();
+    }
+
+    /**
+     * @return number of blobs written by this object
+     */
+    public long getStores()
+    {
+        return m_oStores.get();
+    }
+
+    /**
+     * @return number of blobs deleted to stay below the size limit
+     */
+    public long getEvictions()
+    {
+        return m_oEvictions.get();
+    }
+
+    /**
+     * @return uncompressed bytes that did not have to be deflated thanks to the cache
+     */
+    public long getBytesSaved()
+    {
+        return m_oBytesSaved.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        long lLookups = getHits() + getMisses();
+        return String.format("blob cache %s: %d hits, %d misses (%.0f%% hit rate), %d stored, %d evicted, %.1f MB not compressed again",
+                m_oDir, getHits(), getMisses(), lLookups > 0 ? 100.0 * getHits() / lLookups : 0.0, getStores(), getEvictions(), getBytesSaved() / (1024.0 * 1024.0));
+    }
+
+    private Path getPath(Key oKey)
+    {
+        String strName = oKey.getFileName();
+        return m_oDir.resolve(strName.substring(0, 2)).resolve(strName);
+    }
+
+    /**
+     * The modification time of a blob is its last use, eviction goes by it.
+     */
+    private static void touch(Path oBlob)
+    {
+        try
+        {
+            Files.setLastModifiedTime(oBlob, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e)
+        {
+            // Read only cache, evicted meanwhile... the blob was read already
+        }
+    }
+
+    private static void readFully(FileChannel oChannel, ByteBuffer oBuffer) throws IOException
+    {
+        while (oBuffer.hasRemaining())
+        {
+            if (oChannel.read(oBuffer) < 0) throw new IOException("Truncated blob");
+        }
+    }
+
+    /**
+     * @return CRC32 of everything after the header, read in chunks
+     */
+    private static long crc(FileChannel oChannel) throws IOException
+    {
+        CRC32 oCrc = new CRC32();
+        ByteBuffer oBuffer = ByteBuffer.allocateDirect(FastpackBuildOptions.DEFAULT_IO_BUFFER_SIZE);
+        long lPosition = HEADER_SIZE;
+        int iRead;
+        while ((iRead = oChannel.read(oBuffer, lPosition)) >= 0)
+        {
+            oBuffer.flip();
+            oCrc.update(oBuffer);
+            oBuffer.clear();
+            lPosition += iRead;
+        }
+        return oCrc.getValue();
+    }
+
+    private static void closeQuietly(FileChannel oChannel)
+    {
+        if (oChannel == null) return;
+        try
+        {
+            oChannel.close();
+        }
+        catch (IOException e)
+        {
+            // Only read from
+        }
+    }
+
+    private static boolean deleteQuietly(Path oPath)
+    {
+        try
+        {
+            return Files.deleteIfExists(oPath);
+        }
+        catch (IOException e)
+        {
+            return false; // e.g. open in another process on Windows, it goes next time
+        }
+    }
+
+    /**
+     * The deflated bytes of a large blob, copied from the blob into the jar whenever the entry is written.
+     * The channel is opened by get() and closed once the entry is no longer referenced.
+     */
+    private static class BlobPayload implements CompressedEntry.Payload
+    {
+        private final FileChannel m_oChannel;
+        private final long m_lSize;
+
+        BlobPayload(final FileChannel oChannel, long lSize)
+        {
+            m_oChannel = oChannel;
+            m_lSize = lSize;
+            CHANNEL_CLEANER.register(this, new Runnable()
+            {
+                public void run()
+                {
+                    closeQuietly(oChannel);
+                }
+            });
+        }
+
+        public void writeTo(WritableByteChannel oTarget) throws IOException
+        {
+            // Positional transfers, variants may write the same entry to several jars at once
+            long lPosition = 0;
+            while (lPosition < m_lSize)
+            {
+                long lCopied = m_oChannel.transferTo(HEADER_SIZE + lPosition, m_lSize - lPosition, oTarget);
+                if (lCopied <= 0) throw new EOFException("Blob was truncated while it was read");
+                lPosition += lCopied;
+            }
+        }
+    }
+
+    private static class Blob
+    {
+        final Path oPath;
+        final long lSize;
+        final long lLastUsed;
+
+        Blob(Path oPath, long lSize, long lLastUsed)
+        {
+            this.oPath = oPath;
+            this.lSize = lSize;
+            this.lLastUsed = lLastUsed;
+        }
+    }
+}
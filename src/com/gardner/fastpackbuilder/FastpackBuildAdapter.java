@@ -0,0 +1,33 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.File;
+
+/**
+ * Empty FastpackBuildListener to extend when only some callbacks are of interest.
+ */
+public abstract class FastpackBuildAdapter implements FastpackBuildListener
+{
+    public void scanStarted(File oInputDir)
+    {
+    }
+
+    public void scanFinished(int iFiles, long lTotalBytes)
+    {
+    }
+
+    public void entryStarted(String strName, long lSize)
+    {
+    }
+
+    public void entryFinished(String strName, long lBytesDone, long lBytesTotal)
+    {
+    }
+
+    public void buildCompleted(File oJar)
+    {
+    }
+
+    public void buildFailed(Exception oError)
+    {
+    }
+}
@@ -0,0 +1,16 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.IOException;
+
+/**
+ * Thrown by FastPackBuilder.build when the build was cancelled.
+ */
+public class FastpackBuildCancelledException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public FastpackBuildCancelledException(String strMessage)
+    {
+        super(strMessage);
+    }
+}
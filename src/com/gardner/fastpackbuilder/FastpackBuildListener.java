@@ -0,0 +1,49 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.File;
+
+/**
+ * Receives progress of a fastpack build. Register with FastPackBuilder.setListener.
+ *
+ * Entries are compressed on worker threads, so the callbacks can arrive on any thread
+ * (never on the Swing event dispatch thread). Implementations must be thread safe and quick.
+ * Extend FastpackBuildAdapter to only implement the callbacks you need.
+ */
+public interface FastpackBuildListener
+{
+    /**
+     * The input directory is about to be scanned.
+     */
+    void scanStarted(File oInputDir);
+
+    /**
+     * @param iFiles number of files that will be packaged
+     * @param lTotalBytes their total size
+     */
+    void scanFinished(int iFiles, long lTotalBytes);
+
+    /**
+     * A worker starts reading/compressing an entry.
+     * @param strName jar entry name
+     * @param lSize uncompressed size
+     */
+    void entryStarted(String strName, long lSize);
+
+    /**
+     * An entry was written to the jar.
+     * @param strName jar entry name
+     * @param lBytesDone uncompressed bytes written so far, including this entry
+     * @param lBytesTotal uncompressed bytes of all entries
+     */
+    void entryFinished(String strName, long lBytesDone, long lBytesTotal);
+
+    /**
+     * @param oJar the fastpack that was written, null if it was written to a stream
+     */
+    void buildCompleted(File oJar);
+
+    /**
+     * The build failed or was cancelled (FastpackBuildCancelledException). No jar was written.
+     */
+    void buildFailed(Exception oError);
+}
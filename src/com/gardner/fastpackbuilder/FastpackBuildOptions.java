@@ -0,0 +1,279 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.File;
+
+/**
+ * Tuning options for a FastPackBuilder. The defaults are what the GUI uses.
+ */
+public class FastpackBuildOptions
+{
+    public static final int DEFAULT_IO_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_MMAP_THRESHOLD = 16 * 1024 * 1024;
+
+    private int m_iThreads = Runtime.getRuntime().availableProcessors();
+    private CompressionPolicy m_oCompressionPolicy = new CompressionPolicy();
+    private boolean m_bIncremental = false;
+    private int m_iIoBufferSize = DEFAULT_IO_BUFFER_SIZE;
+    private long m_lMmapThreshold = DEFAULT_MMAP_THRESHOLD;
+    private boolean m_bBuildReport = false;
+    private ResourceClassifier m_oClassifier = ResourceClassifier.withDefaults();
+    private FastpackBlobCache m_oBlobCache = null;
+    private File m_oOutputDirectory = null;
+    private boolean m_bValidate = true;
+    private File m_oBaseline = null;
+    private long m_lReadAhead = 0;
+    private int m_iReadAheadThreads = FastpackReadAhead.DEFAULT_READERS;
+    private boolean m_bMinify = false;
+    private boolean m_bDigests = false;
+
+    /**
+     * @return number of worker threads used to compress entries. 1 means sequential.
+     */
+    public int getThreads()
+    {
+        return m_iThreads;
+    }
+
+    /**
+     * Set the size of the compression worker pool.
+     * Anything below 2 builds the jar sequentially on the calling thread.
+     * @param iThreads
+     */
+    public FastpackBuildOptions setThreads(int iThreads)
+    {
+        m_iThreads = Math.max(1, iThreads);
+        return this;
+    }
+
+    /**
+     * @return deflate level used for the manifest, plugin.xml and any resource type without its own level
+     */
+    public int getCompressionLevel()
+    {
+        return m_oCompressionPolicy.getDefaultLevel();
+    }
+
+    /**
+     * @param iCompressionLevel 0-9 or Deflater.DEFAULT_COMPRESSION
+     */
+    public FastpackBuildOptions setCompressionLevel(int iCompressionLevel)
+    {
+        m_oCompressionPolicy.setDefaultLevel(iCompressionLevel);
+        return this;
+    }
+
+    public CompressionPolicy getCompressionPolicy()
+    {
+        return m_oCompressionPolicy;
+    }
+
+    /**
+     * @param oCompressionPolicy per resource type compression settings
+     */
+    public FastpackBuildOptions setCompressionPolicy(CompressionPolicy oCompressionPolicy)
+    {
+        m_oCompressionPolicy = oCompressionPolicy;
+        return this;
+    }
+
+    public boolean isIncremental()
+    {
+        return m_bIncremental;
+    }
+
+    /**
+     * Reuse entries of the previous {NAME}_{VERSION}.jar for files whose size, timestamp and CRC are unchanged.
+     * Reused entries are copied as raw compressed bytes. The jar records the compression policy it was built with and
+     * nothing is reused once the policy changed.
+     * @param bIncremental
+     */
+    public FastpackBuildOptions setIncremental(boolean bIncremental)
+    {
+        m_bIncremental = bIncremental;
+        return this;
+    }
+
+    public int getIoBufferSize()
+    {
+        return m_iIoBufferSize;
+    }
+
+    /**
+     * Size of the read buffer of each compression thread and of the jar write buffer.
+     * @param iIoBufferSize in bytes
+     */
+    public FastpackBuildOptions setIoBufferSize(int iIoBufferSize)
+    {
+        m_iIoBufferSize = Math.max(4096, iIoBufferSize);
+        return this;
+    }
+
+    public long getMmapThreshold()
+    {
+        return m_lMmapThreshold;
+    }
+
+    /**
+     * Files of at least this size are memory mapped instead of read through the buffer.
+     * @param lMmapThreshold in bytes, Long.MAX_VALUE disables memory mapping
+     */
+    public FastpackBuildOptions setMmapThreshold(long lMmapThreshold)
+    {
+        m_lMmapThreshold = lMmapThreshold;
+        return this;
+    }
+
+    public ResourceClassifier getClassifier()
+    {
+        return m_oClassifier;
+    }
+
+    /**
+     * @param oClassifier rules for the resource_type and target_dir of each file in plugin.xml
+     */
+    public FastpackBuildOptions setClassifier(ResourceClassifier oClassifier)
+    {
+        m_oClassifier = oClassifier;
+        return this;
+    }
+
+    public FastpackBlobCache getBlobCache()
+    {
+        return m_oBlobCache;
+    }
+
+    /**
+     * Share deflated entries with other builds through a cache directory. Builds of different fastpacks
+     * (or different versions of one) that contain the same large files only deflate them once.
+     * @param oBlobCache null to always compress
+     */
+    public FastpackBuildOptions setBlobCache(FastpackBlobCache oBlobCache)
+    {
+        m_oBlobCache = oBlobCache;
+        return this;
+    }
+
+    public File getOutputDirectory()
+    {
+        return m_oOutputDirectory;
+    }
+
+    /**
+     * Write the jar and the build report to this directory instead of the input directory. It is created if needed.
+     * The jar is written to a temp file in the directory first and renamed when complete.
+     * @param oOutputDirectory null for the input directory
+     */
+    public FastpackBuildOptions setOutputDirectory(File oOutputDirectory)
+    {
+        m_oOutputDirectory = oOutputDirectory;
+        return this;
+    }
+
+    public boolean isValidate()
+    {
+        return m_bValidate;
+    }
+
+    /**
+     * Check XML and JSON files, user plugin manifests, web dashboard pairs and sensor packs before packaging
+     * (see FastpackValidator). A build with problems fails with a FastpackValidationException. On by default.
+     * @param bValidate
+     */
+    public FastpackBuildOptions setValidate(boolean bValidate)
+    {
+        m_bValidate = bValidate;
+        return this;
+    }
+
+    public File getBaseline()
+    {
+        return m_oBaseline;
+    }
+
+    /**
+     * Build a delta fastpack: only resources that were added or changed since the baseline jar are packaged
+     * and listed in plugin.xml, resources that were removed are listed in {NAME}_{VERSION}.delta.json (see FastpackDelta).
+     * @param oBaseline e.g. the jar of the previous version, null for a full build
+     */
+    public FastpackBuildOptions setBaseline(File oBaseline)
+    {
+        m_oBaseline = oBaseline;
+        return this;
+    }
+
+    public long getReadAhead()
+    {
+        return m_lReadAhead;
+    }
+
+    /**
+     * Read upcoming files on background threads while earlier ones are compressed and written (see FastpackReadAhead).
+     * Worth it when the input folder is on slow or remote storage.
+     * @param lReadAhead maximum bytes of file content held in memory, 0 to read each file when it is compressed
+     */
+    public FastpackBuildOptions setReadAhead(long lReadAhead)
+    {
+        m_lReadAhead = Math.max(0, lReadAhead);
+        return this;
+    }
+
+    public int getReadAheadThreads()
+    {
+        return m_iReadAheadThreads;
+    }
+
+    /**
+     * @param iReadAheadThreads number of files read ahead at the same time
+     */
+    public FastpackBuildOptions setReadAheadThreads(int iReadAheadThreads)
+    {
+        m_iReadAheadThreads = Math.max(1, iReadAheadThreads);
+        return this;
+    }
+
+    public boolean isMinify()
+    {
+        return m_bMinify;
+    }
+
+    /**
+     * Strip comments and insignificant whitespace from dashboards, system profiles and web dashboards
+     * while packaging them (see FastpackMinifier). Files that cannot be parsed are packaged as they are.
+     */
+    public FastpackBuildOptions setMinify(boolean bMinify)
+    {
+        m_bMinify = bMinify;
+        return this;
+    }
+
+    public boolean isDigests()
+    {
+        return m_bDigests;
+    }
+
+    /**
+     * List the SHA-256 of every entry in the manifest and write the jar's own SHA-256 to {NAME}_{VERSION}.jar.sha256
+     * (see FastpackDigests). The manifest is the first entry of the jar, so every entry is compressed before it is
+     * written: the deflated entries are held in memory until then, up to the size of the jar.
+     */
+    public FastpackBuildOptions setDigests(boolean bDigests)
+    {
+        m_bDigests = bDigests;
+        return this;
+    }
+
+    public boolean isBuildReport()
+    {
+        return m_bBuildReport;
+    }
+
+    /**
+     * Write a FastpackBuildReport as {NAME}_{VERSION}.report.json next to the jar, also when the build fails.
+     * @param bBuildReport
+     */
+    public FastpackBuildOptions setBuildReport(boolean bBuildReport)
+    {
+        m_bBuildReport = bBuildReport;
+        return this;
+    }
+}
@@ -0,0 +1,177 @@
+package com.gardner.fastpackbuilder;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Frame;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
+/**
+ * Shows progress (throughput and ETA) of a running build and lets the user cancel it.
+ * Listener callbacks come from builder threads, the UI is only touched on the event dispatch thread.
+ */
+public class FastpackBuildProgressDialog extends JDialog implements FastpackBuildListener
+{
+    private static final long serialVersionUID = 1L;
+    private static final double MB = 1024 * 1024;
+
+    private final FastPackBuilder m_oBuilder;
+    private final Runnable m_oOnFinished;
+    private final JProgressBar m_oProgressBar = new JProgressBar(0, 1000);
+    private final JLabel m_oStatusLabel = new JLabel("Scanning input directory...");
+    private final JButton m_oCancelButton = new JButton("Cancel");
+
+    // Latest progress, written by builder threads and picked up by the EDT.
+    private final AtomicBoolean m_oUpdatePending = new AtomicBoolean();
+    private volatile long m_lBytesDone;
+    private volatile long m_lBytesTotal;
+    private volatile String m_strCurrentEntry = "";
+    private volatile long m_lStartNanos;
+
+    /**
+     * @param oOwner parent window
+     * @param oBuilder builder to cancel
+     * @param oOnFinished run on the EDT once the build completed, failed or was cancelled
+     */
+    public FastpackBuildProgressDialog(Frame oOwner, FastPackBuilder oBuilder, Runnable oOnFinished)
+    {
+        super(oOwner, "Building Fastpack", false);
+        m_oBuilder = oBuilder;
+        m_oOnFinished = oOnFinished;
+
+        m_oProgressBar.setStringPainted(true);
+        m_oProgressBar.setIndeterminate(true);
+        m_oCancelButton.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                cancelBuild();
+            }
+        });
+        setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter()
+        {
+            @Override
+            public void windowClosing(WindowEvent evt)
+            {
+                cancelBuild();
+            }
+        });
+
+        JPanel oContent = new JPanel(new BorderLayout(0, 10));
+        oContent.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        oContent.add(m_oProgressBar, BorderLayout.NORTH);
+        oContent.add(m_oStatusLabel, BorderLayout.CENTER);
+        JPanel oButtons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 0, 0));
+        oButtons.add(m_oCancelButton);
+        oContent.add(oButtons, BorderLayout.SOUTH);
+        setContentPane(oContent);
+        setSize(500, 150);
+        setLocationRelativeTo(oOwner);
+    }
+
+    private void cancelBuild()
+    {
+        m_oCancelButton.setEnabled(false);
+        m_oStatusLabel.setText("Cancelling...");
+        m_oBuilder.cancel();
+    }
+
+    public void scanStarted(File oInputDir)
+    {
+        m_lStartNanos = System.nanoTime();
+    }
+
+    public void scanFinished(int iFiles, long lTotalBytes)
+    {
+        m_lBytesTotal = lTotalBytes;
+        m_lStartNanos = System.nanoTime(); // Throughput is about packaging, not scanning
+        scheduleUpdate();
+    }
+
+    public void entryStarted(String strName, long lSize)
+    {
+        m_strCurrentEntry = strName;
+        scheduleUpdate();
+    }
+
+    public void entryFinished(String strName, long lBytesDone, long lBytesTotal)
+    {
+        m_lBytesDone = lBytesDone;
+        m_lBytesTotal = lBytesTotal;
+        scheduleUpdate();
+    }
+
+    public void buildCompleted(final File oJar)
+    {
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                dispose();
+                m_oOnFinished.run();
+                JOptionPane.showMessageDialog(getOwner(), "FastPack created successfully: " + oJar.getAbsolutePath(), "FastPack Processing Complete", JOptionPane.INFORMATION_MESSAGE);
+            }
+        });
+    }
+
+    public void buildFailed(final Exception oError)
+    {
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                dispose();
+                m_oOnFinished.run();
+                if (oError instanceof FastpackBuildCancelledException) JOptionPane.showMessageDialog(getOwner(), "FastPack build cancelled.", "FastPack Processing Cancelled", JOptionPane.INFORMATION_MESSAGE);
+                else JOptionPane.showMessageDialog(getOwner(), "FastPack build failed: " + oError.getMessage(), "FastPack Processing Failed", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+    }
+
+    /**
+     * Entries can finish thousands of times per second, only queue one repaint at a time.
+     */
+    private void scheduleUpdate()
+    {
+        if (!m_oUpdatePending.compareAndSet(false, true)) return;
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                m_oUpdatePending.set(false);
+                updateProgress();
+            }
+        });
+    }
+
+    private void updateProgress()
+    {
+        if (!m_oCancelButton.isEnabled()) return; // Cancelling
+
+        long lDone = m_lBytesDone;
+        long lTotal = m_lBytesTotal;
+        double dSeconds = Math.max(0.001, (System.nanoTime() - m_lStartNanos) / 1e9);
+        double dBytesPerSecond = lDone / dSeconds;
+
+        m_oProgressBar.setIndeterminate(false);
+        m_oProgressBar.setValue(lTotal == 0 ? 1000 : (int) (lDone * 1000 / lTotal));
+
+        String strEta = dBytesPerSecond > 0 ? String.format("about %d s left", (long) Math.ceil((lTotal - lDone) / dBytesPerSecond)) : "estimating...";
+        m_oStatusLabel.setText(String.format("<html>%.1f of %.1f MB &nbsp; %.1f MB/s &nbsp; %s<br/>%s</html>",
+                lDone / MB, lTotal / MB, dBytesPerSecond / MB, strEta, m_strCurrentEntry));
+    }
+}
@@ -0,0 +1,405 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What a build spent its time on: wall time, bytes in and out and entry counts per phase,
+ * and the compression ratio per resource type. With minification the bytes saved by it are counted per
+ * resource type too; bytes in are the files' sizes before minification.
+ * Filled in by FastPackBuilder while it builds, available from FastPackBuilder.getLastReport() afterwards,
+ * and optionally written as JSON next to the jar (FastpackBuildOptions.setBuildReport).
+ *
+ * Entries are compressed while earlier ones are written, so COMPRESS and WRITE overlap:
+ * WRITE is the time spent writing the jar, COMPRESS the time the writer spent waiting for entries
+ * to be compressed (or compressing them itself in a sequential build). Their sum is the wall time
+ * of packaging the files. The time the workers spent compressing is reported as compressThreadMillis.
+ */
+public class FastpackBuildReport
+{
+    public enum Phase
+    {
+        MANIFEST, SCAN, VALIDATE, DELTA, WEB_DASHBOARDS, PLUGIN_XML, COMPRESS, WRITE
+    }
+
+    public enum Status
+    {
+        RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    /**
+     * Totals of one phase or one resource type.
+     */
+    public static class Stats
+    {
+        private long m_lNanos = 0;
+        private long m_lBytesIn = 0;
+        private long m_lBytesOut = 0;
+        private int m_iEntries = 0;
+        private int m_iReused = 0;
+        private long m_lBytesSaved = 0;
+
+        public double getMillis()
+        {
+            return m_lNanos / 1e6;
+        }
+
+        public long getBytesIn()
+        {
+            return m_lBytesIn;
+        }
+
+        public long getBytesOut()
+        {
+            return m_lBytesOut;
+        }
+
+        public int getEntries()
+        {
+            return m_iEntries;
+        }
+
+        /**
+         * @return entries copied from the previous jar of an incremental build
+         */
+        public int getReused()
+        {
+            return m_iReused;
+        }
+
+        /**
+         * @return bytes removed by minification before compressing
+         */
+        public long getBytesSaved()
+        {
+            return m_lBytesSaved;
+        }
+
+        /**
+         * @return bytes out / bytes in, 1 when nothing went in
+         */
+        public double getRatio()
+        {
+            return m_lBytesIn > 0 ? (double) m_lBytesOut / m_lBytesIn : 1;
+        }
+    }
+
+    private final String m_strFastpackName;
+    private final String m_strFastpackVersion;
+    private final int m_iThreads;
+    private final boolean m_bIncremental;
+    private final long m_lStartTime = System.currentTimeMillis();
+    private final long m_lStartNanos = System.nanoTime();
+    private final Map<Phase, Stats> m_oPhases = new EnumMap<Phase, Stats>(Phase.class);
+    private final Map<ResourceType, Stats> m_oTypes = new EnumMap<ResourceType, Stats>(ResourceType.class);
+    private long m_lCompressThreadNanos = 0;
+    private long m_lTotalNanos = 0;
+    private Status m_oStatus = Status.RUNNING;
+    private String m_strError = null;
+    private File m_oJar = null;
+    private String m_strSha256 = null;
+    private FastpackDelta m_oDelta = null;
+    private int m_iPrefetched = -1;
+
+    public FastpackBuildReport(String strFastpackName, String strFastpackVersion, int iThreads, boolean bIncremental)
+    {
+        m_strFastpackName = strFastpackName;
+        m_strFastpackVersion = strFastpackVersion;
+        m_iThreads = iThreads;
+        m_bIncremental = bIncremental;
+        for (Phase oPhase : Phase.values()) m_oPhases.put(oPhase, new Stats());
+    }
+
+    /**
+     * Add to the totals of a phase.
+     * @param lNanos wall time spent in the phase
+     */
+    public synchronized void addPhase(Phase oPhase, long lNanos, long lBytesIn, long lBytesOut, int iEntries)
+    {
+        Stats oStats = m_oPhases.get(oPhase);
+        oStats.m_lNanos += lNanos;
+        oStats.m_lBytesIn += lBytesIn;
+        oStats.m_lBytesOut += lBytesOut;
+        oStats.m_iEntries += iEntries;
+    }
+
+    /**
+     * Count an entry that was written to the jar.
+     */
+    public synchronized void addEntry(CompressedEntry oEntry, ResourceType oType)
+    {
+        Stats oStats = m_oTypes.get(oType);
+        if (oStats == null) m_oTypes.put(oType, oStats = new Stats());
+        oStats.m_lBytesIn += oEntry.getSourceSize();
+        oStats.m_lBytesOut += oEntry.getCompressedSize();
+        oStats.m_lBytesSaved += oEntry.getSourceSize() - oEntry.getSize();
+        oStats.m_iEntries++;
+        addPhase(Phase.COMPRESS, 0, oEntry.getSourceSize(), oEntry.getCompressedSize(), 1);
+    }
+
+    /**
+     * Count an entry that was copied from the previous jar instead of being compressed.
+     */
+    public synchronized void addReused(ResourceType oType)
+    {
+        Stats oStats = m_oTypes.get(oType);
+        if (oStats == null) m_oTypes.put(oType, oStats = new Stats());
+        oStats.m_iReused++;
+        m_oPhases.get(Phase.COMPRESS).m_iReused++;
+    }
+
+    /**
+     * @param lNanos time a worker spent compressing one entry
+     */
+    public synchronized void addCompressThreadTime(long lNanos)
+    {
+        m_lCompressThreadNanos += lNanos;
+    }
+
+    /**
+     * Record that this was a delta build against a baseline.
+     */
+    public synchronized void setDelta(FastpackDelta oDelta)
+    {
+        m_oDelta = oDelta;
+    }
+
+    /**
+     * @return the delta of a delta build, null for a full build
+     */
+    public synchronized FastpackDelta getDelta()
+    {
+        return m_oDelta;
+    }
+
+    /**
+     * Record how many files a read ahead loaded before they were compressed.
+     */
+    synchronized void setPrefetched(int iPrefetched)
+    {
+        m_iPrefetched = iPrefetched;
+    }
+
+    /**
+     * @return number of files the read ahead loaded, -1 if the build did not read ahead
+     */
+    public synchronized int getPrefetched()
+    {
+        return m_iPrefetched;
+    }
+
+    synchronized void finish(Status oStatus, File oJar, Exception oError)
+    {
+        m_oStatus = oStatus;
+        m_oJar = oJar;
+        m_strError = oError != null ? oError.toString() : null;
+        m_lTotalNanos = System.nanoTime() - m_lStartNanos;
+    }
+
+    /**
+     * Record the SHA-256 of the written jar, as hex.
+     */
+    synchronized void setSha256(String strSha256)
+    {
+        m_strSha256 = strSha256;
+    }
+
+    /**
+     * @return SHA-256 of the jar as hex, null unless the build computed digests
+     */
+    public synchronized String getSha256()
+    {
+        return m_strSha256;
+    }
+
+    public String getFastpackName()
+    {
+        return m_strFastpackName;
+    }
+
+    public String getFastpackVersion()
+    {
+        return m_strFastpackVersion;
+    }
+
+    public int getThreads()
+    {
+        return m_iThreads;
+    }
+
+    public boolean isIncremental()
+    {
+        return m_bIncremental;
+    }
+
+    public synchronized Status getStatus()
+    {
+        return m_oStatus;
+    }
+
+    /**
+     * @return the failure, null if the build did not fail
+     */
+    public synchronized String getError()
+    {
+        return m_strError;
+    }
+
+    /**
+     * @return the written jar, null if the build did not complete or wrote to a stream
+     */
+    public synchronized File getJar()
+    {
+        return m_oJar;
+    }
+
+    /**
+     * @return start of the build in java milliseconds
+     */
+    public long getStartTime()
+    {
+        return m_lStartTime;
+    }
+
+    public synchronized double getTotalMillis()
+    {
+        return m_lTotalNanos / 1e6;
+    }
+
+    public synchronized double getCompressThreadMillis()
+    {
+        return m_lCompressThreadNanos / 1e6;
+    }
+
+    public synchronized Stats getPhase(Phase oPhase)
+    {
+        return m_oPhases.get(oPhase);
+    }
+
+    /**
+     * @return stats per resource type, only types that occurred in the build
+     */
+    public synchronized Map<ResourceType, Stats> getResourceTypes()
+    {
+        return new EnumMap<ResourceType, Stats>(m_oTypes);
+    }
+
+    /**
+     * Write the report as a JSON document.
+     * @param oFile target, replaced if it exists
+     * @throws IOException
+     */
+    public void writeJson(File oFile) throws IOException
+    {
+        Files.write(oFile.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized String toJson()
+    {
+        Stats oCompress = m_oPhases.get(Phase.COMPRESS);
+        StringBuilder oJson = new StringBuilder(2048);
+        oJson.append("{\n");
+        field(oJson, 1, "fastpack", m_strFastpackName).append(",\n");
+        field(oJson, 1, "version", m_strFastpackVersion).append(",\n");
+        field(oJson, 1, "status", m_oStatus.name().toLowerCase(Locale.ROOT)).append(",\n");
+        field(oJson, 1, "error", m_strError).append(",\n");
+        field(oJson, 1, "jar", m_oJar != null ? m_oJar.getAbsolutePath() : null).append(",\n");
+        if (m_strSha256 != null) field(oJson, 1, "sha256", m_strSha256).append(",\n");
+        field(oJson, 1, "startTime", m_lStartTime).append(",\n");
+        field(oJson, 1, "totalMillis", m_lTotalNanos / 1e6).append(",\n");
+        field(oJson, 1, "threads", m_iThreads).append(",\n");
+        field(oJson, 1, "incremental", m_bIncremental).append(",\n");
+        field(oJson, 1, "entries", oCompress.m_iEntries).append(",\n");
+        field(oJson, 1, "reusedEntries", oCompress.m_iReused).append(",\n");
+        if (m_iPrefetched >= 0) field(oJson, 1, "prefetchedFiles", m_iPrefetched).append(",\n");
+        field(oJson, 1, "compressThreadMillis", m_lCompressThreadNanos / 1e6).append(",\n");
+        field(oJson, 1, "compressionRatio", oCompress.getRatio()).append(",\n");
+        if (m_oDelta != null)
+        {
+            indent(oJson, 1).append("\"delta\": {");
+            oJson.append("\"baseline\": ").append(quote(m_oDelta.getBaseline().getAbsolutePath()));
+            oJson.append(", \"added\": ").append(m_oDelta.getAdded().size());
+            oJson.append(", \"changed\": ").append(m_oDelta.getChanged().size());
+            oJson.append(", \"unchanged\": ").append(m_oDelta.getUnchanged());
+            oJson.append(", \"removed\": ").append(m_oDelta.getRemoved().size()).append("},\n");
+        }
+
+        indent(oJson, 1).append("\"phases\": {\n");
+        boolean bFirst = true;
+        for (Map.Entry<Phase, Stats> oPhase : m_oPhases.entrySet())
+        {
+            if (!bFirst) oJson.append(",\n");
+            bFirst = false;
+            stats(oJson, oPhase.getKey().name().toLowerCase(Locale.ROOT), oPhase.getValue(), true);
+        }
+        oJson.append("\n");
+        indent(oJson, 1).append("},\n");
+
+        indent(oJson, 1).append("\"resourceTypes\": {\n");
+        bFirst = true;
+        for (Map.Entry<ResourceType, Stats> oType : m_oTypes.entrySet())
+        {
+            if (!bFirst) oJson.append(",\n");
+            bFirst = false;
+            stats(oJson, oType.getKey().name().toLowerCase(Locale.ROOT), oType.getValue(), false);
+        }
+        oJson.append("\n");
+        indent(oJson, 1).append("}\n");
+        oJson.append("}\n");
+        return oJson.toString();
+    }
+
+    private static void stats(StringBuilder oJson, String strName, Stats oStats, boolean bPhase)
+    {
+        indent(oJson, 2).append(quote(strName)).append(": {");
+        if (bPhase) oJson.append("\"millis\": ").append(number(oStats.getMillis())).append(", ");
+        oJson.append("\"entries\": ").append(oStats.m_iEntries);
+        oJson.append(", \"reused\": ").append(oStats.m_iReused);
+        oJson.append(", \"bytesIn\": ").append(oStats.m_lBytesIn);
+        oJson.append(", \"bytesOut\": ").append(oStats.m_lBytesOut);
+        if (oStats.m_lBytesIn > 0 && oStats.m_lBytesOut > 0) oJson.append(", \"ratio\": ").append(number(oStats.getRatio()));
+        if (oStats.m_lBytesSaved > 0) oJson.append(", \"minifiedBytesSaved\": ").append(oStats.m_lBytesSaved);
+        oJson.append("}");
+    }
+
+    private static StringBuilder field(StringBuilder oJson, int iLevel, String strName, Object oValue)
+    {
+        indent(oJson, iLevel).append(quote(strName)).append(": ");
+        if (oValue == null) return oJson.append("null");
+        if (oValue instanceof String) return oJson.append(quote((String) oValue));
+        if (oValue instanceof Double) return oJson.append(number((Double) oValue));
+        return oJson.append(oValue);
+    }
+
+    private static StringBuilder indent(StringBuilder oJson, int iLevel)
+    {
+        for (int i = 0; i < iLevel; i++) oJson.append("  ");
+        return oJson;
+    }
+
+    private static String number(double dValue)
+    {
+        return String.format(Locale.ROOT, "%.3f", dValue);
+    }
+
+    static String quote(String strValue)
+    {
+        StringBuilder oQuoted = new StringBuilder(strValue.length() + 2).append('"');
+        for (int i = 0; i < strValue.length(); i++)
+        {
+            char c = strValue.charAt(i);
+            if (c == '"' || c == '\\') oQuoted.append('\\').append(c);
+            else if (c == '\n') oQuoted.append("\\n");
+            else if (c == '\r') oQuoted.append("\\r");
+            else if (c == '\t') oQuoted.append("\\t");
+            else if (c < 0x20) oQuoted.append(String.format("\\u%04x", (int) c));
+            else oQuoted.append(c);
+        }
+        return oQuoted.append('"').toString();
+    }
+}
@@ -0,0 +1,598 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Builds fastpacks for other machines over HTTP, so a team can share one builder.
+ *
+ * <pre>
+ *   POST /build?name=NAME&amp;version=VERSION   body: zip of the raw files folder's content, response: the jar
+ *   GET  /metrics                             queue depth, job counts and latencies as JSON
+ * </pre>
+ *
+ * The upload is extracted into a work folder of its own and built there by a new FastPackBuilder on a
+ * fixed pool of workers, so jobs share nothing but the options (and through them the classifier and blob cache).
+ * The jar is written to the work folder and streamed back once it is complete, so a failed build gets an
+ * error status instead of a truncated jar: 422 with the problems if validation failed, 500 otherwise.
+ *
+ * At most workers + queue size jobs are accepted at a time. When they are all taken a build request is
+ * answered with 429 and a Retry-After header straight away, before its upload is read.
+ */
+public class FastpackBuildService implements Closeable
+{
+    public static final int DEFAULT_PORT = 8417;
+    public static final int DEFAULT_QUEUE_SIZE = 8;
+    public static final long DEFAULT_MAX_UPLOAD = 1024L * 1024 * 1024;
+
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private final FastpackBuildOptions m_oOptions;
+    private final int m_iWorkers;
+    private final int m_iQueueSize;
+    private final HttpServer m_oServer;
+    private final ExecutorService m_oHandlers;
+    private final ExecutorService m_oJobs;
+    private final Semaphore m_oSlots;
+    private final Path m_oWorkDir;
+    private final CountDownLatch m_oClosed = new CountDownLatch(1);
+    private long m_lMaxUpload = DEFAULT_MAX_UPLOAD;
+
+    private final AtomicLong m_oJobIds = new AtomicLong();
+    private final AtomicInteger m_oQueued = new AtomicInteger();
+    private final AtomicInteger m_oRunning = new AtomicInteger();
+    private final AtomicLong m_oAccepted = new AtomicLong();
+    private final AtomicLong m_oRejected = new AtomicLong();
+    private final AtomicLong m_oCompleted = new AtomicLong();
+    private final AtomicLong m_oFailed = new AtomicLong();
+    private final Latency m_oQueueLatency = new Latency();
+    private final Latency m_oBuildLatency = new Latency();
+    private final Latency m_oRequestLatency = new Latency();
+
+    /**
+     * Bind the server. Call start() to accept requests.
+     * @param oAddress address to listen on, e.g. new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT)
+     * @param iWorkers number of fastpacks built at the same time
+     * @param iQueueSize number of accepted jobs that may wait for a worker
+     * @param oOptions used by every job. Jobs write their jar to their work folder, so the options must not
+     *        have an output directory, baseline or build report.
+     */
+    public FastpackBuildService(InetSocketAddress oAddress, int iWorkers, int iQueueSize, FastpackBuildOptions oOptions) throws IOException
+    {
+        if (oOptions.getOutputDirectory() != null || oOptions.getBaseline() != null || oOptions.isBuildReport())
+        {
+            throw new IllegalArgumentException("Service builds cannot have an output directory, baseline or build report");
+        }
+        m_oOptions = oOptions;
+        m_iWorkers = Math.max(1, iWorkers);
+        m_iQueueSize = Math.max(0, iQueueSize);
+        m_oSlots = new Semaphore(m_iWorkers + m_iQueueSize);
+        m_oWorkDir = Files.createTempDirectory("fastpack-service-");
+        m_oJobs = Executors.newFixedThreadPool(m_iWorkers, new ThreadFactory()
+        {
+            private final AtomicInteger m_oCount = new AtomicInteger();
+
+            public Thread newThread(Runnable oRunnable)
+            {
+                Thread oThread = new Thread(oRunnable, "fastpack-service-job-" + m_oCount.incrementAndGet());
+                oThread.setDaemon(true);
+                return oThread;
+            }
+        });
+        // Handlers mostly wait for uploads, jobs and downloads
+        m_oHandlers = Executors.newCachedThreadPool(FastpackReadAhead.newThreadFactory("fastpack-service-http-"));
+        m_oServer = HttpServer.create(oAddress, 0);
+        m_oServer.setExecutor(m_oHandlers);
+        m_oServer.createContext("/build", new HttpHandler()
+        {
+            public void handle(HttpExchange oExchange) throws IOException
+            {
+                try
+                {
+                    if (route(oExchange, "/build", "POST")) handleBuild(oExchange);
+                }
+                finally
+                {
+                    oExchange.close();
+                }
+            }
+        });
+        m_oServer.createContext("/metrics", new HttpHandler()
+        {
+            public void handle(HttpExchange oExchange) throws IOException
+            {
+                try
+                {
+                    if (route(oExchange, "/metrics", "GET")) respond(oExchange, 200, "application/json", getMetrics());
+                }
+                finally
+                {
+                    oExchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param lMaxUpload largest upload accepted, and most bytes extracted from one, in bytes. Larger ones get 413.
+     */
+    public FastpackBuildService setMaxUpload(long lMaxUpload)
+    {
+        m_lMaxUpload = Math.max(1, lMaxUpload);
+        return this;
+    }
+
+    public void start()
+    {
+        m_oServer.start();
+    }
+
+    /**
+     * @return the address the server listens on, with the actual port if it was bound to port 0
+     */
+    public InetSocketAddress getAddress()
+    {
+        return m_oServer.getAddress();
+    }
+
+    /**
+     * Stop accepting requests, cancel the running jobs and remove the work folder.
+     */
+    public void close() throws IOException
+    {
+        if (m_oClosed.getCount() == 0) return;
+        m_oServer.stop(0);
+        m_oJobs.shutdownNow();
+        m_oHandlers.shutdownNow();
+        try
+        {
+            delete(m_oWorkDir);
+        }
+        finally
+        {
+            m_oClosed.countDown();
+        }
+    }
+
+    /**
+     * Block until close() was called.
+     */
+    public void awaitClose() throws InterruptedException
+    {
+        m_oClosed.await();
+    }
+
+    /**
+     * @return queue depth, job counts and latencies (the percentiles over the last jobs) as JSON
+     */
+    public String getMetrics()
+    {
+        StringBuilder oJson = new StringBuilder();
+        oJson.append("{\n");
+        oJson.append("  \"workers\": ").append(m_iWorkers).append(",\n");
+        oJson.append("  \"queueSize\": ").append(m_iQueueSize).append(",\n");
+        oJson.append("  \"queued\": ").append(m_oQueued.get()).append(",\n");
+        oJson.append("  \"running\": ").append(m_oRunning.get()).append(",\n");
+        oJson.append("  \"accepted\": ").append(m_oAccepted.get()).append(",\n");
+        oJson.append("  \"rejected\": ").append(m_oRejected.get()).append(",\n");
+        oJson.append("  \"completed\": ").append(m_oCompleted.get()).append(",\n");
+        oJson.append("  \"failed\": ").append(m_oFailed.get()).append(",\n");
+        oJson.append("  \"queueMillis\": ");
+        m_oQueueLatency.appendJson(oJson).append(",\n");
+        oJson.append("  \"buildMillis\": ");
+        m_oBuildLatency.appendJson(oJson).append(",\n");
+        oJson.append("  \"requestMillis\": ");
+        m_oRequestLatency.appendJson(oJson).append("\n");
+        oJson.append("}\n");
+        return oJson.toString();
+    }
+
+    /**
+     * Contexts match by prefix, only serve the exact path.
+     * @return true if the request is for this path and method, otherwise it was answered with 404 or 405
+     */
+    private static boolean route(HttpExchange oExchange, String strPath, String strMethod) throws IOException
+    {
+        if (!oExchange.getRequestURI().getPath().equals(strPath))
+        {
+            respond(oExchange, 404, "Not found: " + oExchange.getRequestURI().getPath());
+            return false;
+        }
+        if (!oExchange.getRequestMethod().equals(strMethod))
+        {
+            oExchange.getResponseHeaders().set("Allow", strMethod);
+            respond(oExchange, 405, strMethod + " only");
+            return false;
+        }
+        return true;
+    }
+
+    private void handleBuild(HttpExchange oExchange) throws IOException
+    {
+        long lStart = System.nanoTime();
+        if (!m_oSlots.tryAcquire())
+        {
+            m_oRejected.incrementAndGet();
+            oExchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            respond(oExchange, 429, "All " + m_iWorkers + " workers are busy and " + m_iQueueSize + " jobs are waiting, try again later");
+            return;
+        }
+        long lJob = m_oJobIds.incrementAndGet();
+        Path oJobDir = null;
+        try
+        {
+            Map<String, String> oParameters = parseQuery(oExchange.getRequestURI().getRawQuery());
+            String strName = oParameters.get("name");
+            String strVersion = oParameters.containsKey("version") ? oParameters.get("version") : "1.0";
+            if (strName == null || strName.trim().isEmpty() || strVersion.trim().isEmpty()) throw new RequestException(400, "name is required, version must not be empty");
+            if (!isFileName(strName) || !isFileName(strVersion)) throw new RequestException(400, "name and version must not contain path separators");
+
+            oJobDir = Files.createTempDirectory(m_oWorkDir, "job-");
+            Path oRawDir = Files.createDirectory(oJobDir.resolve("raw"));
+            unzip(new LimitedInputStream(oExchange.getRequestBody(), m_lMaxUpload), oRawDir, m_lMaxUpload);
+
+            Future<File> oFuture = m_oJobs.submit(new Job(lJob, oRawDir.toFile(), oJobDir.resolve("fastpack.jar").toFile(), strName, strVersion));
+            m_oAccepted.incrementAndGet(); // Only requests that got as far as a build
+            File oJar = await(oFuture);
+            oExchange.getResponseHeaders().set("Content-Type", "application/java-archive");
+            oExchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + strName + "_" + strVersion + ".jar\"");
+            oExchange.sendResponseHeaders(200, oJar.length());
+            try (OutputStream oOut = oExchange.getResponseBody())
+            {
+                Files.copy(oJar.toPath(), oOut);
+            }
+        }
+        catch (RequestException e)
+        {
+            fail(oExchange, e.getStatus(), e.getMessage());
+        }
+        catch (FastpackValidationException e)
+        {
+            fail(oExchange, 422, e.getMessage());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            System.out.println("Job " + lJob + " failed: " + e);
+            fail(oExchange, 500, "Build failed: " + e.getMessage());
+        }
+        finally
+        {
+            m_oSlots.release();
+            m_oRequestLatency.add(System.nanoTime() - lStart);
+            if (oJobDir != null) delete(oJobDir);
+        }
+    }
+
+    /**
+     * Count the failed job and answer with the error, unless the jar was already being sent (e.g. the client went away).
+     */
+    private void fail(HttpExchange oExchange, int iStatus, String strMessage) throws IOException
+    {
+        m_oFailed.incrementAndGet();
+        if (oExchange.getResponseCode() == -1) respond(oExchange, iStatus, strMessage);
+    }
+
+    private static File await(Future<File> oFuture) throws IOException
+    {
+        try
+        {
+            return oFuture.get();
+        }
+        catch (InterruptedException e)
+        {
+            oFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the build");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException("Exception caught building fastpack", e.getCause());
+        }
+    }
+
+    /**
+     * One build with its own builder, input folder and jar.
+     */
+    private class Job implements Callable<File>
+    {
+        private final long m_lId;
+        private final File m_oRawDir;
+        private final File m_oJar;
+        private final String m_strName;
+        private final String m_strVersion;
+        private final long m_lSubmitted = System.nanoTime();
+
+        Job(long lId, File oRawDir, File oJar, String strName, String strVersion)
+        {
+            m_lId = lId;
+            m_oRawDir = oRawDir;
+            m_oJar = oJar;
+            m_strName = strName;
+            m_strVersion = strVersion;
+            m_oQueued.incrementAndGet();
+        }
+
+        public File call() throws IOException
+        {
+            long lStart = System.nanoTime();
+            m_oQueued.decrementAndGet();
+            m_oRunning.incrementAndGet();
+            m_oQueueLatency.add(lStart - m_lSubmitted);
+            try (FileChannel oChannel = FileChannel.open(m_oJar.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+            {
+                new FastPackBuilder(m_oRawDir, m_oOptions).buildTo(m_strName, m_strVersion, oChannel);
+                m_oCompleted.incrementAndGet();
+                System.out.println(String.format("Job %d: built %s_%s, %.1f MB in %d ms", m_lId, m_strName, m_strVersion,
+                        oChannel.size() / (1024.0 * 1024.0), (System.nanoTime() - lStart) / 1000000));
+                return m_oJar;
+            }
+            finally
+            {
+                m_oRunning.decrementAndGet();
+                m_oBuildLatency.add(System.nanoTime() - lStart);
+            }
+        }
+    }
+
+    /**
+     * Extract the upload. Entries must stay inside the folder and may hold lMaxBytes together.
+     */
+    private static void unzip(InputStream oIn, Path oDir, long lMaxBytes) throws IOException
+    {
+        long lTotal = 0;
+        int iFiles = 0;
+        byte[] abBuffer = new byte[64 * 1024];
+        try (ZipInputStream oZip = new ZipInputStream(oIn))
+        {
+            ZipEntry oEntry;
+            while ((oEntry = oZip.getNextEntry()) != null)
+            {
+                Path oTarget = oDir.resolve(oEntry.getName()).normalize();
+                if (!oTarget.startsWith(oDir) || oTarget.equals(oDir)) throw new RequestException(400, "Zip entry outside the raw files folder: " + oEntry.getName());
+                if (oEntry.isDirectory())
+                {
+                    Files.createDirectories(oTarget);
+                    continue;
+                }
+                Files.createDirectories(oTarget.getParent());
+                try (OutputStream oOut = Files.newOutputStream(oTarget, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+                {
+                    int iRead;
+                    while ((iRead = oZip.read(abBuffer)) > 0)
+                    {
+                        lTotal += iRead;
+                        if (lTotal > lMaxBytes) throw new RequestException(413, "The raw files are larger than " + lMaxBytes + " bytes");
+                        oOut.write(abBuffer, 0, iRead);
+                    }
+                }
+                if (oEntry.getTime() != -1) Files.setLastModifiedTime(oTarget, FileTime.fromMillis(oEntry.getTime()));
+                iFiles++;
+            }
+            // Read the central directory too. Closing a connection with unread input resets it, which cuts off the jar on its way back.
+            while (oIn.read(abBuffer) >= 0)
+            {
+                // Nothing to extract after the last entry
+            }
+        }
+        catch (ZipException | FileAlreadyExistsException e)
+        {
+            throw new RequestException(400, "Not a valid zip of the raw files: " + e.getMessage());
+        }
+        if (iFiles == 0) throw new RequestException(400, "The zip holds no files, upload a zip of the raw files folder");
+    }
+
+    private static Map<String, String> parseQuery(String strQuery) throws IOException
+    {
+        Map<String, String> oParameters = new HashMap<String, String>();
+        if (strQuery == null) return oParameters;
+        for (String strPair : strQuery.split("&"))
+        {
+            if (strPair.isEmpty()) continue;
+            int iEquals = strPair.indexOf('=');
+            String strKey = iEquals < 0 ? strPair : strPair.substring(0, iEquals);
+            String strValue = iEquals < 0 ? "" : strPair.substring(iEquals + 1);
+            try
+            {
+                oParameters.put(URLDecoder.decode(strKey, "UTF-8"), URLDecoder.decode(strValue, "UTF-8"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new RequestException(400, "Malformed query: " + e.getMessage());
+            }
+        }
+        return oParameters;
+    }
+
+    private static boolean isFileName(String strValue)
+    {
+        return strValue.indexOf('/') < 0 && strValue.indexOf('\\') < 0 && !strValue.equals(".") && !strValue.equals("..");
+    }
+
+    private static void respond(HttpExchange oExchange, int iStatus, String strText) throws IOException
+    {
+        respond(oExchange, iStatus, "text/plain; charset=utf-8", strText + "\n");
+    }
+
+    private static void respond(HttpExchange oExchange, int iStatus, String strContentType, String strBody) throws IOException
+    {
+        byte[] abBody = strBody.getBytes(StandardCharsets.UTF_8);
+        oExchange.getResponseHeaders().set("Content-Type", strContentType);
+        oExchange.sendResponseHeaders(iStatus, abBody.length);
+        try (OutputStream oOut = oExchange.getResponseBody())
+        {
+            oOut.write(abBody);
+        }
+    }
+
+    private static void delete(Path oDir)
+    {
+        try
+        {
+            Files.walkFileTree(oDir, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path oFile, BasicFileAttributes oAttributes) throws IOException
+                {
+                    Files.deleteIfExists(oFile);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path oPath, IOException e) throws IOException
+                {
+                    Files.deleteIfExists(oPath);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            System.out.println("Work folder " + oDir + " could not be removed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A request the service cannot build, answered with its HTTP status.
+     */
+    private static class RequestException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int m_iStatus;
+
+        RequestException(int iStatus, String strMessage)
+        {
+            super(strMessage);
+            m_iStatus = iStatus;
+        }
+
+        int getStatus()
+        {
+            return m_iStatus;
+        }
+    }
+
+    /**
+     * Fails with 413 once more than the limit was read.
+     */
+    private static class LimitedInputStream extends FilterInputStream
+    {
+        private final long m_lLimit;
+        private long m_lRead = 0;
+
+        LimitedInputStream(InputStream oIn, long lLimit)
+        {
+            super(oIn);
+            m_lLimit = lLimit;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int iByte = super.read();
+            if (iByte >= 0) count(1);
+            return iByte;
+        }
+
+        @Override
+        public int read(byte[] abData, int iOffset, int iLen) throws IOException
+        {
+            int iRead = super.read(abData, iOffset, iLen);
+            if (iRead > 0) count(iRead);
+            return iRead;
+        }
+
+        private void count(int iRead) throws IOException
+        {
+            m_lRead += iRead;
+            if (m_lRead > m_lLimit) throw new RequestException(413, "Upload larger than " + m_lLimit + " bytes");
+        }
+    }
+
+    /**
+     * Count, mean and maximum of all samples, percentiles of the most recent ones.
+     */
+    private static class Latency
+    {
+        private static final int WINDOW = 1024;
+
+        private final long[] m_alRecent = new long[WINDOW];
+        private long m_lCount = 0;
+        private long m_lTotal = 0;
+        private long m_lMax = 0;
+
+        synchronized void add(long lNanos)
+        {
+            m_alRecent[(int) (m_lCount % WINDOW)] = lNanos;
+            m_lCount++;
+            m_lTotal += lNanos;
+            m_lMax = Math.max(m_lMax, lNanos);
+        }
+
+        synchronized StringBuilder appendJson(StringBuilder oJson)
+        {
+            long[] alSorted = Arrays.copyOf(m_alRecent, (int) Math.min(m_lCount, WINDOW));
+            Arrays.sort(alSorted);
+            oJson.append("{\"count\": ").append(m_lCount);
+            if (m_lCount > 0)
+            {
+                oJson.append(", \"mean\": ").append(millis(m_lTotal / m_lCount));
+                oJson.append(", \"p50\": ").append(millis(percentile(alSorted, 0.50)));
+                oJson.append(", \"p95\": ").append(millis(percentile(alSorted, 0.95)));
+                oJson.append(", \"p99\": ").append(millis(percentile(alSorted, 0.99)));
+                oJson.append(", \"max\": ").append(millis(m_lMax));
+            }
+            return oJson.append("}");
+        }
+
+        private static long percentile(long[] alSorted, double dFraction)
+        {
+            return alSorted[Math.max(0, (int) Math.ceil(dFraction * alSorted.length) - 1)];
+        }
+
+        private static String millis(long lNanos)
+        {
+            return String.format(Locale.ROOT, "%.1f", lNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,713 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless entry point. Builds one or many fastpacks without the GUI.
+ *
+ * <pre>
+ * java -cp FastPack_Builder.jar com.gardner.fastpackbuilder.FastpackBuilderCLI [options] &lt;dir&gt;...
+ * java -cp FastPack_Builder.jar com.gardner.fastpackbuilder.FastpackBuilderCLI --inspect [--find PATTERN] &lt;jar or dir&gt;...
+ * java -cp FastPack_Builder.jar com.gardner.fastpackbuilder.FastpackBuilderCLI --verify &lt;jar&gt;...
+ * java -cp FastPack_Builder.jar com.gardner.fastpackbuilder.FastpackBuilderCLI --serve [HOST:]PORT [options]
+ *
+ *   --name NAME         fastpack name (single directory only, default: directory name)
+ *   --version VERSION   fastpack version (default: 1.0)
+ *   --output DIR        write the jars (and reports) to DIR instead of the input directories
+ *   --stdout            write the jar to standard output (single directory only), messages go to standard error
+ *   --manifest FILE     build the fastpacks listed in FILE, one "name,version,directory" per line
+ *   --variant NAME,VERSION  also build the directory under this name and version (single directory only, repeatable)
+ *   --jobs N            number of fastpacks built at the same time (default: 2)
+ *   --threads N         compression threads per fastpack (default: cores / jobs)
+ *   --incremental       reuse unchanged entries of the previous jar
+ *   --read-ahead MB     read upcoming files in the background, holding at most MB of them in memory (for slow or network storage)
+ *   --minify            strip comments and whitespace from dashboard, system profile and web dashboard files
+ *   --digests           list the SHA-256 of every entry in the manifest and write the jar's SHA-256 to {NAME}_{VERSION}.jar.sha256
+ *   --no-validate       package files without checking them first
+ *   --baseline JAR      build a delta fastpack with only the resources that changed since JAR (single directory only)
+ *   --report            write {NAME}_{VERSION}.report.json with timings and compression ratios next to each jar
+ *   --watch             keep running and rebuild whenever a file changes (single directory only)
+ *   --rules FILE        extra plugin.xml rules, one "pattern,resource_type[,target_dir[,instance]]" per line
+ *   --cache DIR         share deflated files with other builds through the blob cache in DIR
+ *   --cache-size MB     size limit of the blob cache (default: 1024)
+ *   --inspect           check existing fastpack jars instead of building; folders of jars are indexed in .fastpack-index
+ *   --find PATTERN      with --inspect, list the jars containing files matching PATTERN (name or glob)
+ *   --verify            check existing fastpack jars against the digests of a --digests build instead of building
+ *   --serve [HOST:]PORT build fastpacks uploaded over HTTP (see FastpackBuildService), on localhost unless HOST is given
+ *   --queue N           with --serve, number of builds that may wait for one of the --jobs workers (default: 8)
+ * </pre>
+ *
+ * Fastpacks built from the same directory (--variant, or manifest lines naming the same directory) are built
+ * as one matrix build: the files are scanned and compressed once and every variant's jar reuses the compressed bytes.
+ *
+ * The exit status is 0 when every fastpack was built, 1 when any build failed and 2 for bad arguments.
+ * With --inspect and --verify it is 1 when any jar has problems, with --find when nothing matched.
+ */
+public class FastpackBuilderCLI
+{
+    private static final String DEFAULT_VERSION = "1.0";
+
+    private final List<BuildRequest> m_oRequests = new ArrayList<BuildRequest>();
+    private int m_iJobs = 2;
+    private int m_iThreads = 0;
+    private boolean m_bIncremental = false;
+    private long m_lReadAhead = 0;
+    private boolean m_bReport = false;
+    private boolean m_bWatch = false;
+    private boolean m_bStdout = false;
+    private boolean m_bValidate = true;
+    private boolean m_bMinify = false;
+    private boolean m_bDigests = false;
+    private File m_oOutputDir = null;
+    private File m_oBaseline = null;
+    private ResourceClassifier m_oClassifier = ResourceClassifier.withDefaults();
+    private File m_oCacheDir = null;
+    private long m_lCacheSize = FastpackBlobCache.DEFAULT_MAX_BYTES;
+    private FastpackBlobCache m_oBlobCache = null;
+    private boolean m_bInspect = false;
+    private String m_strFind = null;
+    private boolean m_bVerify = false;
+    private boolean m_bHelp = false;
+    private InetSocketAddress m_oServeAddress = null;
+    private int m_iQueueSize = FastpackBuildService.DEFAULT_QUEUE_SIZE;
+    private final List<File> m_oInspectTargets = new ArrayList<File>();
+
+    public static void main(String[] args)
+    {
+        System.exit(run(args));
+    }
+
+    /**
+     * Parse the arguments and run the builds.
+     * @return process exit status
+     */
+    public static int run(String[] args)
+    {
+        FastpackBuilderCLI oCLI = new FastpackBuilderCLI();
+        try
+        {
+            oCLI.parse(args);
+        }
+        catch (IllegalArgumentException | IOException e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            printUsage(System.err);
+            return 2;
+        }
+        if (oCLI.m_bHelp)
+        {
+            printUsage(System.out);
+            return 0;
+        }
+        if (oCLI.m_bInspect) return oCLI.inspect() ? 0 : 1;
+        if (oCLI.m_bVerify) return oCLI.verify() ? 0 : 1;
+        if (oCLI.m_oServeAddress != null) return oCLI.serve() ? 0 : 1;
+        if (oCLI.m_bWatch) return oCLI.watch() ? 0 : 1;
+        if (oCLI.m_bStdout) return oCLI.buildToStdout() ? 0 : 1;
+        return oCLI.buildAll() ? 0 : 1;
+    }
+
+    /**
+     * Build the single requested fastpack and rebuild it on every change until the process is stopped.
+     * @return false if the folder could not be watched
+     */
+    private boolean watch()
+    {
+        final BuildRequest oRequest = m_oRequests.get(0);
+        int iThreads = m_iThreads > 0 ? m_iThreads : Runtime.getRuntime().availableProcessors();
+        FastpackBuildOptions oOptions = newOptions(iThreads);
+        final FastpackWatcher oWatcher = new FastpackWatcher(oRequest.oDir, oRequest.strName, oRequest.strVersion, oOptions);
+        Runtime.getRuntime().addShutdownHook(new Thread("fastpack-watch-shutdown")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    oWatcher.close();
+                }
+                catch (IOException e)
+                {
+                    // Exiting anyway
+                }
+            }
+        });
+        System.out.println("Watching " + oRequest.oDir.getAbsolutePath() + ", press Ctrl+C to stop");
+        try
+        {
+            oWatcher.watch();
+            return true;
+        }
+        catch (IOException e)
+        {
+            System.err.println("FAILED " + oRequest + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Stream the single requested fastpack to standard output. Everything the builder prints goes to
+     * standard error instead so it cannot end up in the jar.
+     * @return true if the jar was written completely
+     */
+    private boolean buildToStdout()
+    {
+        BuildRequest oRequest = m_oRequests.get(0);
+        int iThreads = m_iThreads > 0 ? m_iThreads : Runtime.getRuntime().availableProcessors();
+        OutputStream oStdout = new FileOutputStream(FileDescriptor.out); // Unlike System.out it reports write errors
+        System.setOut(System.err);
+        try
+        {
+            FastPackBuilder oBuilder = new FastPackBuilder(oRequest.oDir, newOptions(iThreads));
+            oBuilder.buildTo(oRequest.strName, oRequest.strVersion, oStdout);
+            printDetails(System.err, oBuilder.getLastReport());
+            if (m_oBlobCache != null) System.err.println(m_oBlobCache);
+            return true;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            System.err.println("FAILED " + oRequest + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Inspect the given jars, and index the given folders of jars, without building anything.
+     * @return false if a jar has problems or, with --find, if nothing matched
+     */
+    private boolean inspect()
+    {
+        int iThreads = m_iThreads > 0 ? m_iThreads : Runtime.getRuntime().availableProcessors();
+        boolean bProblems = false;
+        int iMatches = 0;
+        for (File oTarget : m_oInspectTargets)
+        {
+            try
+            {
+                List<FastpackInspection> oInspections = new ArrayList<FastpackInspection>();
+                FastpackIndex oIndex = null;
+                if (oTarget.isDirectory())
+                {
+                    oIndex = new FastpackIndex(new File(oTarget, FastpackIndex.FILE_NAME), m_oClassifier);
+                    oIndex.update(oTarget, iThreads);
+                    oIndex.save();
+                    oInspections.addAll(oIndex.getInspections());
+                }
+                else oInspections.add(FastpackInspection.inspect(oTarget.toPath(), m_oClassifier));
+
+                for (FastpackInspection oInspection : oInspections)
+                {
+                    if (m_strFind != null)
+                    {
+                        for (String strEntry : oInspection.find(m_strFind))
+                        {
+                            System.out.println(oInspection.getJar() + ": " + strEntry);
+                            iMatches++;
+                        }
+                        continue;
+                    }
+                    bProblems |= !oInspection.getProblems().isEmpty();
+                    if (oIndex != null && oInspection.getProblems().isEmpty()) continue; // Only list the jars of a folder that need attention
+                    System.out.println(oInspection);
+                    for (String strProblem : oInspection.getProblems()) System.out.println("  " + strProblem);
+                }
+                if (oIndex != null) System.out.println(oIndex);
+            }
+            catch (IOException e)
+            {
+                System.err.println("FAILED " + oTarget + ": " + e);
+                bProblems = true;
+            }
+        }
+        return m_strFind != null ? iMatches > 0 : !bProblems;
+    }
+
+    /**
+     * Check the given jars against their digests without building anything.
+     * @return false if a jar has problems
+     */
+    private boolean verify()
+    {
+        int iThreads = m_iThreads > 0 ? m_iThreads : Runtime.getRuntime().availableProcessors();
+        boolean bProblems = false;
+        for (File oJar : m_oInspectTargets)
+        {
+            FastpackVerification oVerification = FastpackVerification.verify(oJar.toPath(), iThreads);
+            bProblems |= !oVerification.getProblems().isEmpty();
+            System.out.println(oVerification);
+            for (String strProblem : oVerification.getProblems()) System.out.println("  " + strProblem);
+        }
+        return !bProblems;
+    }
+
+    /**
+     * Build uploaded fastpacks until the process is stopped.
+     * @return false if the server could not be started
+     */
+    private boolean serve()
+    {
+        int iThreads = m_iThreads > 0 ? m_iThreads : Math.max(1, Runtime.getRuntime().availableProcessors() / m_iJobs);
+        final FastpackBuildService oService;
+        try
+        {
+            oService = new FastpackBuildService(m_oServeAddress, m_iJobs, m_iQueueSize, newOptions(iThreads));
+        }
+        catch (IOException e)
+        {
+            System.err.println("FAILED to listen on " + m_oServeAddress + ": " + e);
+            return false;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("fastpack-service-shutdown")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    oService.close();
+                }
+                catch (IOException e)
+                {
+                    // Exiting anyway
+                }
+            }
+        });
+        oService.start();
+        InetSocketAddress oAddress = oService.getAddress();
+        System.out.println("Building fastpacks on http://" + oAddress.getHostString() + ":" + oAddress.getPort() + "/build with " + m_iJobs
+                + " workers and a queue of " + m_iQueueSize + ", press Ctrl+C to stop");
+        try
+        {
+            oService.awaitClose();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void parse(String[] args) throws IOException
+    {
+        String strName = null;
+        String strVersion = DEFAULT_VERSION;
+        List<File> oDirs = new ArrayList<File>();
+        List<String[]> oVariants = new ArrayList<String[]>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String strArg = args[i];
+            if (strArg.equals("--name")) strName = value(args, ++i, strArg);
+            else if (strArg.equals("--version")) strVersion = value(args, ++i, strArg);
+            else if (strArg.equals("--output")) m_oOutputDir = new File(value(args, ++i, strArg));
+            else if (strArg.equals("--stdout")) m_bStdout = true;
+            else if (strArg.equals("--manifest")) readManifest(new File(value(args, ++i, strArg)));
+            else if (strArg.equals("--variant")) oVariants.add(variant(value(args, ++i, strArg)));
+            else if (strArg.equals("--jobs")) m_iJobs = Math.max(1, intValue(args, ++i, strArg));
+            else if (strArg.equals("--threads")) m_iThreads = Math.max(1, intValue(args, ++i, strArg));
+            else if (strArg.equals("--incremental")) m_bIncremental = true;
+            else if (strArg.equals("--read-ahead")) m_lReadAhead = Math.max(0, intValue(args, ++i, strArg)) * 1024L * 1024;
+            else if (strArg.equals("--minify")) m_bMinify = true;
+            else if (strArg.equals("--digests")) m_bDigests = true;
+            else if (strArg.equals("--no-validate")) m_bValidate = false;
+            else if (strArg.equals("--baseline")) m_oBaseline = new File(value(args, ++i, strArg));
+            else if (strArg.equals("--report")) m_bReport = true;
+            else if (strArg.equals("--watch")) m_bWatch = true;
+            else if (strArg.equals("--rules")) m_oClassifier.load(new File(value(args, ++i, strArg)));
+            else if (strArg.equals("--cache")) m_oCacheDir = new File(value(args, ++i, strArg));
+            else if (strArg.equals("--cache-size")) m_lCacheSize = Math.max(1, intValue(args, ++i, strArg)) * 1024L * 1024;
+            else if (strArg.equals("--inspect")) m_bInspect = true;
+            else if (strArg.equals("--find")) m_strFind = value(args, ++i, strArg);
+            else if (strArg.equals("--verify")) m_bVerify = true;
+            else if (strArg.equals("--serve")) m_oServeAddress = address(value(args, ++i, strArg));
+            else if (strArg.equals("--queue")) m_iQueueSize = Math.max(0, intValue(args, ++i, strArg));
+            else if (strArg.equals("--help") || strArg.equals("-h"))
+            {
+                m_bHelp = true;
+                return; // Nothing else is checked or run
+            }
+            else if (strArg.startsWith("--")) throw new IllegalArgumentException("Unknown option " + strArg);
+            else oDirs.add(new File(strArg));
+        }
+
+        if (m_strFind != null && !m_bInspect) throw new IllegalArgumentException("--find can only be used with --inspect");
+        if (m_bVerify && m_bInspect) throw new IllegalArgumentException("--verify cannot be used with --inspect");
+        if (m_bInspect)
+        {
+            if (oDirs.isEmpty()) throw new IllegalArgumentException("No fastpack jars or folders given");
+            for (File oTarget : oDirs)
+            {
+                if (!oTarget.exists()) throw new IllegalArgumentException("Not found: " + oTarget);
+            }
+            m_oInspectTargets.addAll(oDirs);
+            return;
+        }
+        if (m_bVerify)
+        {
+            if (oDirs.isEmpty()) throw new IllegalArgumentException("No fastpack jars given");
+            for (File oJar : oDirs)
+            {
+                if (!oJar.isFile()) throw new IllegalArgumentException("Not a file: " + oJar);
+            }
+            m_oInspectTargets.addAll(oDirs);
+            return;
+        }
+        if (m_oServeAddress != null)
+        {
+            if (!oDirs.isEmpty() || m_bWatch || m_bStdout || m_bReport || m_oOutputDir != null || m_oBaseline != null)
+            {
+                throw new IllegalArgumentException("--serve builds uploaded folders, it cannot be used with input directories, --watch, --stdout, --report, --output or --baseline");
+            }
+            if (m_oCacheDir != null) m_oBlobCache = new FastpackBlobCache(m_oCacheDir.toPath(), m_lCacheSize);
+            return;
+        }
+        if (strName != null && oDirs.size() > 1) throw new IllegalArgumentException("--name can only be used with a single directory");
+        for (File oDir : oDirs) m_oRequests.add(new BuildRequest(strName != null ? strName : oDir.getAbsoluteFile().getName(), strVersion, oDir));
+        if (!oVariants.isEmpty())
+        {
+            if (oDirs.size() != 1) throw new IllegalArgumentException("--variant can only be used with a single directory");
+            for (String[] astrVariant : oVariants) m_oRequests.add(new BuildRequest(astrVariant[0], astrVariant[1], oDirs.get(0)));
+        }
+        if (m_oRequests.isEmpty()) throw new IllegalArgumentException("No input directories given");
+        if (m_bWatch && m_oRequests.size() > 1) throw new IllegalArgumentException("--watch can only be used with a single fastpack");
+        if (m_bStdout && (m_bWatch || m_oRequests.size() > 1)) throw new IllegalArgumentException("--stdout can only be used with a single fastpack and not with --watch");
+        if (m_oBaseline != null && m_oRequests.size() > 1) throw new IllegalArgumentException("--baseline can only be used with a single fastpack");
+        if (m_oBaseline != null && !m_oBaseline.isFile()) throw new IllegalArgumentException("Baseline not found: " + m_oBaseline);
+        if (m_oCacheDir != null) m_oBlobCache = new FastpackBlobCache(m_oCacheDir.toPath(), m_lCacheSize);
+
+        for (BuildRequest oRequest : m_oRequests)
+        {
+            if (!oRequest.oDir.isDirectory()) throw new IllegalArgumentException("Not a directory: " + oRequest.oDir);
+            if (oRequest.strName.trim().isEmpty() || oRequest.strVersion.trim().isEmpty()) throw new IllegalArgumentException("Fastpack name and version must not be empty for " + oRequest.oDir);
+        }
+    }
+
+    /**
+     * Options of one build. Only the classifier and the blob cache are shared, both are safe to use from concurrent builds.
+     */
+    private FastpackBuildOptions newOptions(int iThreads)
+    {
+        return new FastpackBuildOptions().setThreads(iThreads).setIncremental(m_bIncremental).setBuildReport(m_bReport)
+                .setClassifier(m_oClassifier).setBlobCache(m_oBlobCache).setOutputDirectory(m_oOutputDir)
+                .setValidate(m_bValidate).setBaseline(m_oBaseline).setReadAhead(m_lReadAhead).setMinify(m_bMinify).setDigests(m_bDigests);
+    }
+
+    /**
+     * One fastpack per line: name,version,directory. Blank lines and lines starting with # are ignored.
+     * Relative directories are resolved against the folder of the manifest file.
+     */
+    private void readManifest(File oManifest) throws IOException
+    {
+        File oBase = oManifest.getAbsoluteFile().getParentFile();
+        int iLine = 0;
+        try (BufferedReader oReader = Files.newBufferedReader(oManifest.toPath(), StandardCharsets.UTF_8))
+        {
+            String strLine;
+            while ((strLine = oReader.readLine()) != null)
+            {
+                iLine++;
+                strLine = strLine.trim();
+                if (strLine.isEmpty() || strLine.startsWith("#")) continue;
+                String[] astrParts = strLine.split(",", 3);
+                if (astrParts.length != 3) throw new IllegalArgumentException(oManifest + " line " + iLine + ": expected name,version,directory");
+                File oDir = new File(astrParts[2].trim());
+                if (!oDir.isAbsolute()) oDir = new File(oBase, oDir.getPath());
+                m_oRequests.add(new BuildRequest(astrParts[0].trim(), astrParts[1].trim(), oDir));
+            }
+        }
+    }
+
+    /**
+     * Run every build on a bounded pool and print a summary.
+     * Requests for the same directory are built together by one matrix build.
+     * @return true if all builds succeeded
+     */
+    private boolean buildAll()
+    {
+        Map<Path, List<BuildRequest>> oGroups = new LinkedHashMap<Path, List<BuildRequest>>();
+        for (BuildRequest oRequest : m_oRequests)
+        {
+            Path oDir = oRequest.oDir.getAbsoluteFile().toPath().normalize();
+            List<BuildRequest> oGroup = oGroups.get(oDir);
+            if (oGroup == null) oGroups.put(oDir, oGroup = new ArrayList<BuildRequest>());
+            oGroup.add(oRequest);
+        }
+        int iJobs = Math.min(m_iJobs, oGroups.size());
+        int iThreads = m_iThreads > 0 ? m_iThreads : Math.max(1, Runtime.getRuntime().availableProcessors() / iJobs);
+
+        ExecutorService oPool = Executors.newFixedThreadPool(iJobs);
+        List<Future<List<BuildResult>>> oFutures = new ArrayList<Future<List<BuildResult>>>();
+        try
+        {
+            for (final List<BuildRequest> oGroup : oGroups.values())
+            {
+                // Every build gets its own builder and options
+                final FastpackBuildOptions oOptions = newOptions(iThreads);
+                oFutures.add(oPool.submit(new Callable<List<BuildResult>>()
+                {
+                    public List<BuildResult> call()
+                    {
+                        if (oGroup.size() == 1) return Collections.singletonList(build(oGroup.get(0), oOptions));
+                        return buildMatrix(oGroup, oOptions);
+                    }
+                }));
+            }
+
+            List<BuildResult> oResults = new ArrayList<BuildResult>();
+            for (Future<List<BuildResult>> oFuture : oFutures)
+            {
+                try
+                {
+                    oResults.addAll(oFuture.get());
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IllegalStateException(e.getCause()); // build() and buildMatrix() catch everything
+                }
+            }
+            return printSummary(oResults);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted");
+            return false;
+        }
+        finally
+        {
+            oPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Build the variants of one directory, scanning and compressing it once.
+     * @return one result per variant. If the matrix build fails every variant is reported as failed.
+     */
+    private List<BuildResult> buildMatrix(final List<BuildRequest> oGroup, FastpackBuildOptions oOptions)
+    {
+        long lStart = System.nanoTime();
+        List<BuildResult> oResults = new ArrayList<BuildResult>();
+        List<FastpackVariant> oVariants = new ArrayList<FastpackVariant>();
+        for (BuildRequest oRequest : oGroup)
+        {
+            oResults.add(new BuildResult(oRequest));
+            oVariants.add(new FastpackVariant(oRequest.strName, oRequest.strVersion));
+        }
+        try
+        {
+            FastPackBuilder oBuilder = new FastPackBuilder(oGroup.get(0).oDir, oOptions);
+            oBuilder.setListener(new FastpackBuildAdapter()
+            {
+                @Override
+                public void scanFinished(int iFiles, long lTotalBytes)
+                {
+                    System.out.println(String.format("Packaging %d variants of %s: %d files, %.1f MB", oGroup.size(), oGroup.get(0).oDir, iFiles, lTotalBytes / (1024.0 * 1024.0)));
+                }
+            });
+            List<File> oJars = oBuilder.buildMatrix(oVariants);
+            for (int i = 0; i < oJars.size(); i++)
+            {
+                oResults.get(i).oJar = oJars.get(i);
+                System.out.println("Built " + oJars.get(i));
+            }
+            printDetails(System.out, oBuilder.getLastReport());
+        }
+        catch (Exception e)
+        {
+            for (BuildResult oResult : oResults) oResult.oError = e;
+            System.err.println("FAILED " + oVariants + " [" + oGroup.get(0).oDir + "]: " + e);
+        }
+        long lMillis = (System.nanoTime() - lStart) / 1000000;
+        for (BuildResult oResult : oResults) oResult.lMillis = lMillis;
+        return oResults;
+    }
+
+    private BuildResult build(final BuildRequest oRequest, FastpackBuildOptions oOptions)
+    {
+        long lStart = System.nanoTime();
+        BuildResult oResult = new BuildResult(oRequest);
+        try
+        {
+            FastPackBuilder oBuilder = new FastPackBuilder(oRequest.oDir, oOptions);
+            oBuilder.setListener(new FastpackBuildAdapter()
+            {
+                @Override
+                public void scanFinished(int iFiles, long lTotalBytes)
+                {
+                    System.out.println(String.format("Packaging %s: %d files, %.1f MB", oRequest, iFiles, lTotalBytes / (1024.0 * 1024.0)));
+                }
+            });
+            oResult.oJar = oBuilder.build(oRequest.strName, oRequest.strVersion);
+            System.out.println("Built " + oResult.oJar);
+            printDetails(System.out, oBuilder.getLastReport());
+        }
+        catch (Exception e)
+        {
+            oResult.oError = e;
+            System.err.println("FAILED " + oRequest + ": " + e);
+        }
+        oResult.lMillis = (System.nanoTime() - lStart) / 1000000;
+        return oResult;
+    }
+
+    /**
+     * Print what the build reused: the delta against the baseline, entries copied from the previous jar and files read ahead.
+     */
+    private static void printDetails(PrintStream oOut, FastpackBuildReport oReport)
+    {
+        if (oReport == null) return;
+        int iEntries = oReport.getPhase(FastpackBuildReport.Phase.COMPRESS).getEntries();
+        if (oReport.getDelta() != null) oOut.println("  " + oReport.getDelta());
+        if (oReport.isIncremental()) oOut.println("  Incremental build reused " + oReport.getPhase(FastpackBuildReport.Phase.COMPRESS).getReused() + " of " + iEntries + " entries");
+        if (oReport.getPrefetched() >= 0) oOut.println("  Read ahead " + oReport.getPrefetched() + " of " + iEntries + " files");
+    }
+
+    private boolean printSummary(List<BuildResult> oResults)
+    {
+        int iFailed = 0;
+        System.out.println();
+        System.out.println("Fastpack build summary");
+        for (BuildResult oResult : oResults)
+        {
+            if (oResult.oError != null) iFailed++;
+            System.out.println(String.format("  %-6s %s (%d ms)%s", oResult.oError == null ? "OK" : "FAILED", oResult.oRequest, oResult.lMillis,
+                    oResult.oError == null ? "" : " - " + oResult.oError.getMessage()));
+        }
+        System.out.println((oResults.size() - iFailed) + " of " + oResults.size() + " fastpacks built");
+        if (m_oBlobCache != null) System.out.println(m_oBlobCache);
+        return iFailed == 0;
+    }
+
+    /**
+     * @param strValue PORT (on the loopback interface) or HOST:PORT
+     */
+    private static InetSocketAddress address(String strValue)
+    {
+        int iColon = strValue.lastIndexOf(':');
+        try
+        {
+            int iPort = Integer.parseInt(strValue.substring(iColon + 1));
+            if (iColon < 0) return new InetSocketAddress(InetAddress.getLoopbackAddress(), iPort);
+            return new InetSocketAddress(strValue.substring(0, iColon), iPort);
+        }
+        catch (IllegalArgumentException e) // Also a NumberFormatException
+        {
+            throw new IllegalArgumentException("--serve needs [HOST:]PORT, not " + strValue);
+        }
+    }
+
+    /**
+     * @param strValue NAME,VERSION
+     */
+    private static String[] variant(String strValue)
+    {
+        String[] astrParts = strValue.split(",", 2);
+        if (astrParts.length != 2 || astrParts[0].trim().isEmpty() || astrParts[1].trim().isEmpty()) throw new IllegalArgumentException("--variant needs NAME,VERSION, not " + strValue);
+        return new String[] { astrParts[0].trim(), astrParts[1].trim() };
+    }
+
+    private static String value(String[] args, int i, String strOption)
+    {
+        if (i >= args.length) throw new IllegalArgumentException(strOption + " needs a value");
+        return args[i];
+    }
+
+    private static int intValue(String[] args, int i, String strOption)
+    {
+        try
+        {
+            return Integer.parseInt(value(args, i, strOption));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(strOption + " needs a number");
+        }
+    }
+
+    private static void printUsage(PrintStream oOut)
+    {
+        oOut.println("Usage: FastpackBuilderCLI [options] <dir>...");
+        oOut.println("       FastpackBuilderCLI --inspect [--find PATTERN] <jar or dir>...");
+        oOut.println("       FastpackBuilderCLI --verify <jar>...");
+        oOut.println("       FastpackBuilderCLI --serve [HOST:]PORT [--jobs N] [--queue N] [options]");
+        oOut.println("  --name NAME         fastpack name (single directory only, default: directory name)");
+        oOut.println("  --version VERSION   fastpack version (default: " + DEFAULT_VERSION + ")");
+        oOut.println("  --output DIR        write the jars (and reports) to DIR instead of the input directories");
+        oOut.println("  --stdout            write the jar to standard output (single directory only), messages go to standard error");
+        oOut.println("  --manifest FILE     build the fastpacks listed in FILE, one name,version,directory per line");
+        oOut.println("  --variant NAME,VERSION  also build the directory under this name and version (single directory only, repeatable)");
+        oOut.println("  --jobs N            number of fastpacks built at the same time (default: 2)");
+        oOut.println("  --threads N         compression threads per fastpack (default: cores / jobs)");
+        oOut.println("  --incremental       reuse unchanged entries of the previous jar");
+        oOut.println("  --read-ahead MB     read upcoming files in the background, holding at most MB of them in memory (for slow or network storage)");
+        oOut.println("  --minify            strip comments and whitespace from dashboard, system profile and web dashboard files");
+        oOut.println("  --digests           list the SHA-256 of every entry in the manifest and write the jar's SHA-256 to {NAME}_{VERSION}.jar.sha256");
+        oOut.println("  --no-validate       package files without checking them first");
+        oOut.println("  --baseline JAR      build a delta fastpack with only the resources that changed since JAR (single directory only)");
+        oOut.println("  --report            write {NAME}_{VERSION}.report.json with timings and compression ratios next to each jar");
+        oOut.println("  --watch             keep running and rebuild whenever a file changes (single directory only)");
+        oOut.println("  --rules FILE        extra plugin.xml rules, one pattern,resource_type[,target_dir[,instance]] per line");
+        oOut.println("  --cache DIR         share deflated files with other builds through the blob cache in DIR");
+        oOut.println("  --cache-size MB     size limit of the blob cache (default: " + FastpackBlobCache.DEFAULT_MAX_BYTES / (1024 * 1024) + ")");
+        oOut.println("  --inspect           check existing fastpack jars instead of building; folders of jars are indexed in " + FastpackIndex.FILE_NAME);
+        oOut.println("  --find PATTERN      with --inspect, list the jars containing files matching PATTERN (name or glob)");
+        oOut.println("  --verify            check existing fastpack jars against the digests of a --digests build instead of building");
+        oOut.println("  --serve [HOST:]PORT build fastpacks uploaded over HTTP, on localhost unless HOST is given");
+        oOut.println("  --queue N           with --serve, number of builds that may wait for one of the --jobs workers (default: " + FastpackBuildService.DEFAULT_QUEUE_SIZE + ")");
+    }
+
+    private static class BuildRequest
+    {
+        final String strName;
+        final String strVersion;
+        final File oDir;
+
+        BuildRequest(String strName, String strVersion, File oDir)
+        {
+            this.strName = strName;
+            this.strVersion = strVersion;
+            this.oDir = oDir;
+        }
+
+        @Override
+        public String toString()
+        {
+            return strName + "_" + strVersion + " [" + oDir + "]";
+        }
+    }
+
+    private static class BuildResult
+    {
+        final BuildRequest oRequest;
+        File oJar;
+        Exception oError;
+        long lMillis;
+
+        BuildResult(BuildRequest oRequest)
+        {
+            this.oRequest = oRequest;
+        }
+    }
+}
@@ -158,12 +158,20 @@ public class FastpackBuilderGUI extends javax.swing.JFrame {
         oFileChooser.showOpenDialog(this);
         
         File oFile = oFileChooser.getSelectedFile();
+        if (oFile == null) return; // Directory selection cancelled
         
         m_oFastpackBuilder = new FastPackBuilder(oFile);
         
-        boolean bSuccess = m_oFastpackBuilder.processFastpack(strFastpackName, strFastpackVersion);
-        
-        if (bSuccess) JOptionPane.showMessageDialog(null, "FastPack created successfully. Look in the original directory for the {FASTPACKNAME}_{VERSION}.jar file", "FastPack Processing Complete", JOptionPane.INFORMATION_MESSAGE);
+        // Build in the background so the window stays responsive. The progress dialog reports the result.
+        button_build_fastpack.setEnabled(false);
+        FastpackBuildProgressDialog oProgressDialog = new FastpackBuildProgressDialog(this, m_oFastpackBuilder, new Runnable() {
+            public void run() {
+                button_build_fastpack.setEnabled(true);
+            }
+        });
+        m_oFastpackBuilder.setListener(oProgressDialog);
+        m_oFastpackBuilder.buildAsync(strFastpackName, strFastpackVersion);
+        oProgressDialog.setVisible(true);
 
     }//GEN-LAST:event_button_build_fastpackActionPerformed
 
@@ -175,6 +183,12 @@ public class FastpackBuilderGUI extends javax.swing.JFrame {
      * @param args the command line arguments
      */
     public static void main(String args[]) {
+        /* Any arguments mean a headless build, see FastpackBuilderCLI */
+        if (args.length > 0) {
+            FastpackBuilderCLI.main(args);
+            return;
+        }
+        
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -0,0 +1,216 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarFile;
+
+import com.gardner.fastpackbuilder.Constants.IConstants;
+
+/**
+ * Difference between the input folder and a baseline fastpack jar, e.g. the previous version.
+ * A delta build packages only what was added or changed, so small updates ship and install quickly.
+ *
+ * Files are compared with the baseline entries by size and SHA-256. The baseline's digests are taken from its manifest
+ * if it was built with digests (FastpackDigests), otherwise its entries are inflated once to compute them.
+ * The comparison is per plugin.xml resource: a file at the top of the folder, a web dashboard file,
+ * or a whole sensor pack directory. A sensor pack is installed as one unit, so if any of its files
+ * changed, was added or was removed, the complete pack is part of the delta.
+ * Resources that are in the baseline but no longer in the folder are listed as removed; a fastpack
+ * cannot remove anything from the server, so they have to be removed by hand.
+ */
+public class FastpackDelta
+{
+    private final File m_oBaseline;
+    private final List<String> m_oAdded;
+    private final List<String> m_oChanged;
+    private final List<String> m_oRemoved;
+    private final int m_iUnchanged;
+    private final FastpackSnapshot m_oSnapshot;
+
+    private FastpackDelta(File oBaseline, Set<String> oAdded, Set<String> oChanged, Set<String> oRemoved, int iUnchanged, FastpackSnapshot oSnapshot)
+    {
+        m_oBaseline = oBaseline;
+        m_oAdded = Collections.unmodifiableList(new ArrayList<String>(oAdded));
+        m_oChanged = Collections.unmodifiableList(new ArrayList<String>(oChanged));
+        m_oRemoved = Collections.unmodifiableList(new ArrayList<String>(oRemoved));
+        m_iUnchanged = iUnchanged;
+        m_oSnapshot = oSnapshot;
+    }
+
+    /**
+     * Compare the input folder with the baseline.
+     * @param oBaseline the baseline jar
+     * @param oSnapshot the files of the new version
+     * @param oCompressor computes the SHA-256 of files whose size matches their baseline entry
+     * @return the delta, its snapshot holds the files of the added and changed resources
+     * @throws IOException if a file cannot be read
+     */
+    public static FastpackDelta compute(FastpackJarReader oBaseline, FastpackSnapshot oSnapshot, FastpackEntryCompressor oCompressor) throws IOException
+    {
+        Set<String> oCurrent = new HashSet<String>();
+        Set<String> oCurrentPaths = new HashSet<String>(oSnapshot.getFiles().size() * 2);
+        Set<String> oDirty = new HashSet<String>();
+        Map<String, byte[]> oListed = FastpackDigests.readDigests(oBaseline);
+        for (ScannedFile oFile : oSnapshot.getFiles())
+        {
+            String strResource = resourceOf(oFile.getRelativePath());
+            oCurrent.add(strResource);
+            oCurrentPaths.add(oFile.getRelativePath());
+            if (oDirty.contains(strResource)) continue; // Whole pack goes in anyway
+
+            FastpackJarReader.Entry oEntry = oBaseline.getEntry(oFile.getRelativePath());
+            if (oEntry == null) oDirty.add(strResource);
+            else if (oCompressor.isMinified(oFile))
+            {
+                CompressedEntry oMinified = oCompressor.compress(oFile, null, true); // The baseline holds the minified content
+                if (oEntry.getSize() != oMinified.getSize() || !Arrays.equals(digestOf(oBaseline, oEntry, oListed), oMinified.getDigest())) oDirty.add(strResource);
+            }
+            else if (oEntry.getSize() != oFile.getSize() || !Arrays.equals(digestOf(oBaseline, oEntry, oListed), oCompressor.hash(oFile, null, 0).abSha256)) oDirty.add(strResource);
+        }
+
+        Set<String> oInBaseline = new HashSet<String>();
+        Set<String> oRemoved = new TreeSet<String>();
+        for (FastpackJarReader.Entry oEntry : oBaseline.getEntries())
+        {
+            String strName = oEntry.getName();
+            if (strName.endsWith("/") || strName.equals(JarFile.MANIFEST_NAME) || strName.equals("plugin.xml")) continue;
+            String strResource = resourceOf(strName);
+            oInBaseline.add(strResource);
+            if (oCurrentPaths.contains(strName)) continue;
+            if (oCurrent.contains(strResource)) oDirty.add(strResource); // A file of a sensor pack was removed
+            else oRemoved.add(strResource);
+        }
+
+        Set<String> oAdded = new TreeSet<String>();
+        Set<String> oChanged = new TreeSet<String>();
+        for (String strResource : oDirty)
+        {
+            if (oInBaseline.contains(strResource)) oChanged.add(strResource);
+            else oAdded.add(strResource);
+        }
+
+        List<ScannedFile> oFiles = new ArrayList<ScannedFile>();
+        for (ScannedFile oFile : oSnapshot.getFiles())
+        {
+            if (oDirty.contains(resourceOf(oFile.getRelativePath()))) oFiles.add(oFile);
+        }
+        List<ScannedFile> oDirs = new ArrayList<ScannedFile>();
+        for (ScannedFile oDir : oSnapshot.getDirectories())
+        {
+            if (oDirty.contains(resourceOf(oDir.getRelativePath()))) oDirs.add(oDir);
+        }
+        return new FastpackDelta(oBaseline.getPath().toFile(), oAdded, oChanged, oRemoved, oCurrent.size() - oDirty.size(),
+                new FastpackSnapshot(oSnapshot.getRoot(), oFiles, oDirs));
+    }
+
+    /**
+     * @param oListed digests listed in the baseline's manifest
+     * @return SHA-256 of the baseline entry's content
+     */
+    private static byte[] digestOf(FastpackJarReader oBaseline, FastpackJarReader.Entry oEntry, Map<String, byte[]> oListed) throws IOException
+    {
+        byte[] abListed = oListed.get(oEntry.getName());
+        if (abListed != null) return abListed;
+        try (InputStream oIn = oBaseline.getInputStream(oEntry))
+        {
+            return FastpackDigests.digest(oIn);
+        }
+    }
+
+    /**
+     * @return the plugin.xml resource a file belongs to: the file itself at the top or in the web dashboards
+     * folder, the sensor pack directory anywhere else
+     */
+    static String resourceOf(String strRelativePath)
+    {
+        int iSlash = strRelativePath.indexOf('/');
+        if (iSlash < 0) return strRelativePath;
+        if (iSlash == IConstants.WEB_DASHBOARDS.length() && strRelativePath.regionMatches(true, 0, IConstants.WEB_DASHBOARDS, 0, iSlash)) return strRelativePath;
+        return strRelativePath.substring(0, iSlash);
+    }
+
+    public File getBaseline()
+    {
+        return m_oBaseline;
+    }
+
+    /**
+     * @return resources that are not in the baseline, sorted
+     */
+    public List<String> getAdded()
+    {
+        return m_oAdded;
+    }
+
+    /**
+     * @return resources whose content differs from the baseline, sorted
+     */
+    public List<String> getChanged()
+    {
+        return m_oChanged;
+    }
+
+    /**
+     * @return resources of the baseline that are gone, sorted. They are not removed from the server by installing the delta.
+     */
+    public List<String> getRemoved()
+    {
+        return m_oRemoved;
+    }
+
+    public int getUnchanged()
+    {
+        return m_iUnchanged;
+    }
+
+    /**
+     * @return the files and directories of the added and changed resources, what the delta fastpack contains
+     */
+    public FastpackSnapshot getSnapshot()
+    {
+        return m_oSnapshot;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Delta against %s: %d added, %d changed, %d unchanged, %d removed", m_oBaseline.getName(),
+                m_oAdded.size(), m_oChanged.size(), m_iUnchanged, m_oRemoved.size());
+    }
+
+    /**
+     * Write the delta as a JSON document listing the added, changed and removed resources.
+     * @param oFile target, replaced if it exists
+     */
+    public void writeJson(File oFile) throws IOException
+    {
+        StringBuilder oJson = new StringBuilder(1024);
+        oJson.append("{\n  \"baseline\": ").append(FastpackBuildReport.quote(m_oBaseline.getAbsolutePath())).append(",\n");
+        oJson.append("  \"unchanged\": ").append(m_iUnchanged).append(",\n");
+        list(oJson, "added", m_oAdded).append(",\n");
+        list(oJson, "changed", m_oChanged).append(",\n");
+        list(oJson, "removed", m_oRemoved).append("\n}\n");
+        Files.write(oFile.toPath(), oJson.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StringBuilder list(StringBuilder oJson, String strName, List<String> oValues)
+    {
+        oJson.append("  ").append(FastpackBuildReport.quote(strName)).append(": [");
+        for (int i = 0; i < oValues.size(); i++)
+        {
+            oJson.append(i == 0 ? "\n    " : ",\n    ").append(FastpackBuildReport.quote(oValues.get(i)));
+        }
+        return oJson.append(oValues.isEmpty() ? "]" : "\n  ]");
+    }
+}
@@ -0,0 +1,211 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The SHA-256 digests of a fastpack. Every entry's digest is listed in the manifest in a "Name:" section
+ * with a SHA-256-Digest attribute, the way signed jars list them, and the digest of the whole jar is written
+ * next to it as {NAME}_{VERSION}.jar.sha256 in the format of sha256sum. FastpackVerification checks a jar
+ * against both.
+ */
+public class FastpackDigests
+{
+    public static final String DIGEST_ATTRIBUTE = "SHA-256-Digest";
+    private static final byte[] NEWLINE = { '\r', '\n' };
+    private static final int MAX_LINE = 72; // Bytes per manifest line, without the line break
+
+    private FastpackDigests()
+    {
+    }
+
+    static MessageDigest newSha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e); // Required of every Java platform
+        }
+    }
+
+    static String toHex(byte[] abDigest)
+    {
+        StringBuilder oHex = new StringBuilder(abDigest.length * 2);
+        for (byte b : abDigest) oHex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return oHex.toString();
+    }
+
+    /**
+     * Write a manifest section per entry, in jar order. Goes after the main section written by Manifest.write.
+     * Written by hand as Manifest keeps its sections in hash order.
+     */
+    static void writeSections(OutputStream oOut, List<CompressedEntry> oEntries) throws IOException
+    {
+        Base64.Encoder oBase64 = Base64.getEncoder();
+        for (CompressedEntry oEntry : oEntries)
+        {
+            if (oEntry.getDigest() == null) continue;
+            writeLine(oOut, "Name: " + oEntry.getName());
+            writeLine(oOut, DIGEST_ATTRIBUTE + ": " + oBase64.encodeToString(oEntry.getDigest()));
+            oOut.write(NEWLINE);
+        }
+    }
+
+    /**
+     * Lines longer than 72 bytes continue on the next line after a space. Characters are never split.
+     */
+    private static void writeLine(OutputStream oOut, String strLine) throws IOException
+    {
+        byte[] abLine = strLine.getBytes(StandardCharsets.UTF_8);
+        int iStart = 0;
+        int iMax = MAX_LINE;
+        while (abLine.length - iStart > iMax)
+        {
+            int iEnd = iStart + iMax;
+            while ((abLine[iEnd] & 0xC0) == 0x80) iEnd--; // Back to the first byte of the character
+            oOut.write(abLine, iStart, iEnd - iStart);
+            oOut.write(NEWLINE);
+            oOut.write(' ');
+            iStart = iEnd;
+            iMax = MAX_LINE - 1;
+        }
+        oOut.write(abLine, iStart, abLine.length - iStart);
+        oOut.write(NEWLINE);
+    }
+
+    /**
+     * @return the decoded digest of every entry section of the jar's manifest, in manifest order; null for a value that
+     * is not Base64. Empty if the jar has no manifest or was built without digests.
+     */
+    static Map<String, byte[]> readDigests(FastpackJarReader oReader) throws IOException
+    {
+        Map<String, byte[]> oDigests = new LinkedHashMap<String, byte[]>();
+        FastpackJarReader.Entry oManifestEntry = oReader.getEntry(JarFile.MANIFEST_NAME);
+        if (oManifestEntry == null) return oDigests;
+        Manifest oManifest;
+        try (InputStream oIn = oReader.getInputStream(oManifestEntry))
+        {
+            oManifest = new Manifest(oIn);
+        }
+        for (Map.Entry<String, Attributes> oSection : oManifest.getEntries().entrySet())
+        {
+            String strDigest = oSection.getValue().getValue(DIGEST_ATTRIBUTE);
+            if (strDigest == null) continue;
+            try
+            {
+                oDigests.put(oSection.getKey(), Base64.getDecoder().decode(strDigest.trim()));
+            }
+            catch (IllegalArgumentException e)
+            {
+                oDigests.put(oSection.getKey(), null);
+            }
+        }
+        return oDigests;
+    }
+
+    /**
+     * @return SHA-256 of everything left in the stream
+     */
+    static byte[] digest(InputStream oIn) throws IOException
+    {
+        MessageDigest oDigest = newSha256();
+        byte[] abBuffer = new byte[64 * 1024];
+        int iLen;
+        while ((iLen = oIn.read(abBuffer)) >= 0) oDigest.update(abBuffer, 0, iLen);
+        return oDigest.digest();
+    }
+
+    /**
+     * @return {jar}.sha256
+     */
+    static File getChecksumFile(File oJar)
+    {
+        return new File(oJar.getAbsolutePath() + ".sha256");
+    }
+
+    /**
+     * Write the jar's digest to its checksum file as sha256sum does, so "sha256sum -c" can check it as well.
+     */
+    static void writeChecksumFile(File oJar, String strSha256) throws IOException
+    {
+        Files.write(getChecksumFile(oJar).toPath(), (strSha256 + "  " + oJar.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the hex digest in the jar's checksum file, null if there is none
+     * @throws IOException if the file cannot be read or holds no digest
+     */
+    static String readChecksumFile(File oJar) throws IOException
+    {
+        File oFile = getChecksumFile(oJar);
+        if (!oFile.isFile()) return null;
+        try (BufferedReader oReader = Files.newBufferedReader(oFile.toPath(), StandardCharsets.UTF_8))
+        {
+            String strLine = oReader.readLine();
+            String strSha256 = strLine != null ? strLine.trim().split("\\s+")[0].toLowerCase() : "";
+            if (!strSha256.matches("[0-9a-f]{64}")) throw new IOException("No SHA-256 digest in " + oFile);
+            return strSha256;
+        }
+    }
+
+    /**
+     * Passes everything on to another channel and digests it on the way, so the jar's digest is ready
+     * when it is written without reading it again.
+     */
+    static class DigestingChannel implements WritableByteChannel
+    {
+        private final WritableByteChannel m_oChannel;
+        private final MessageDigest m_oDigest = newSha256();
+
+        DigestingChannel(WritableByteChannel oChannel)
+        {
+            m_oChannel = oChannel;
+        }
+
+        public int write(ByteBuffer oBuffer) throws IOException
+        {
+            ByteBuffer oWritten = oBuffer.duplicate();
+            int iLen = m_oChannel.write(oBuffer);
+            oWritten.limit(oWritten.position() + iLen);
+            m_oDigest.update(oWritten);
+            return iLen;
+        }
+
+        public boolean isOpen()
+        {
+            return m_oChannel.isOpen();
+        }
+
+        public void close() throws IOException
+        {
+            m_oChannel.close();
+        }
+
+        /**
+         * @return digest of everything written so far
+         */
+        byte[] digest()
+        {
+            return m_oDigest.digest();
+        }
+    }
+}
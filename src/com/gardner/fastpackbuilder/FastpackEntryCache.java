@@ -0,0 +1,80 @@
+package com.gardner.fastpackbuilder;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compressed entries of earlier builds, kept in memory so a FastPackBuilder that builds
+ * the same folder again (e.g. the FastpackWatcher) only compresses files that changed.
+ *
+ * An entry is used again while its file has the same size and timestamp. Deflated entries
+ * hold their compressed bytes, stored entries are still copied from the file when written.
+ */
+public class FastpackEntryCache
+{
+    private final Map<String, Cached> m_oEntries = new ConcurrentHashMap<String, Cached>();
+
+    /**
+     * @return the cached entry of the file, null if there is none or the file changed since
+     */
+    public CompressedEntry get(ScannedFile oFile)
+    {
+        Cached oCached = m_oEntries.get(oFile.getRelativePath());
+        if (oCached == null || oCached.lSize != oFile.getSize() || oCached.lLastModified != oFile.getLastModified()) return null;
+        return oCached.oEntry;
+    }
+
+    public void put(ScannedFile oFile, CompressedEntry oEntry)
+    {
+        m_oEntries.put(oFile.getRelativePath(), new Cached(oFile, oEntry));
+    }
+
+    /**
+     * Forget a file, e.g. because it is known to have changed.
+     * @param strRelativePath jar entry name
+     */
+    public void remove(String strRelativePath)
+    {
+        m_oEntries.remove(strRelativePath);
+    }
+
+    /**
+     * Drop the entries of files that are no longer part of the fastpack.
+     */
+    public void retain(FastpackSnapshot oSnapshot)
+    {
+        Set<String> oPaths = new HashSet<String>(oSnapshot.getFiles().size() * 2);
+        for (ScannedFile oFile : oSnapshot.getFiles()) oPaths.add(oFile.getRelativePath());
+        for (Iterator<String> oIterator = m_oEntries.keySet().iterator(); oIterator.hasNext();)
+        {
+            if (!oPaths.contains(oIterator.next())) oIterator.remove();
+        }
+    }
+
+    public void clear()
+    {
+        m_oEntries.clear();
+    }
+
+    public int size()
+    {
+        return m_oEntries.size();
+    }
+
+    private static class Cached
+    {
+        final long lSize;
+        final long lLastModified;
+        final CompressedEntry oEntry;
+
+        Cached(ScannedFile oFile, CompressedEntry oEntry)
+        {
+            lSize = oFile.getSize();
+            lLastModified = oFile.getLastModified();
+            this.oEntry = oEntry;
+        }
+    }
+}
@@ -0,0 +1,688 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Turns files (or in-memory content) into CompressedEntry objects.
+ * Has no shared mutable state so a single instance can be used from many worker threads.
+ *
+ * Files are read through a FileChannel into a direct buffer that each thread reuses,
+ * files above the mmap threshold are memory mapped instead. Deflater and CRC32 read
+ * straight from those buffers, so file content is never copied onto the heap.
+ * The deflated bytes of files of 16 MB and more go to a temp file rather than a byte array,
+ * so large files don't have to fit into the heap (or into the 2 GB of an array) while they wait to be written.
+ *
+ * With a FastpackBlobCache, large files are hashed first and deflated only if the cache does not
+ * have them yet; a hit costs one read of the file instead of compressing it.
+ *
+ * Files that a FastpackReadAhead already loaded are compressed from its buffers instead of being read again.
+ *
+ * With minification on, dashboard and system profile XML and web dashboard files are passed through the
+ * FastpackMinifier on their way to the deflater. Such an entry holds the minified content, so its size
+ * and CRC differ from the file's.
+ *
+ * With digests on, the SHA-256 of each entry's content (see CompressedEntry.getDigest) is computed in the
+ * same pass as its CRC.
+ */
+public class FastpackEntryCompressor
+{
+    private static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+    private static final int MAPPED_SLICE_SIZE = 4 * 1024 * 1024;
+    private static final byte[] NO_INPUT = new byte[0];
+    static final long SPILL_THRESHOLD = 16 * 1024 * 1024; // Entries this large are kept on disk, here and in FastpackBlobCache
+    private static final Cleaner SPILL_CLEANER = Cleaner.create();
+
+    private final CompressionPolicy m_oPolicy;
+    private final ResourceClassifier m_oClassifier;
+    private final long m_lMmapThreshold;
+    private final FastpackBlobCache m_oBlobCache;
+    private final boolean m_bMinify;
+    private final boolean m_bDigests;
+    private final ThreadLocal<IoBuffers> m_oBuffers;
+
+    public FastpackEntryCompressor(CompressionPolicy oPolicy)
+    {
+        this(oPolicy, ResourceClassifier.getDefault(), FastpackBuildOptions.DEFAULT_IO_BUFFER_SIZE, FastpackBuildOptions.DEFAULT_MMAP_THRESHOLD);
+    }
+
+    /**
+     * @param oPolicy compression per resource type
+     * @param oClassifier decides the resource type of each file
+     * @param iBufferSize size of the per thread read buffer
+     * @param lMmapThreshold files of at least this size are memory mapped
+     */
+    public FastpackEntryCompressor(CompressionPolicy oPolicy, ResourceClassifier oClassifier, int iBufferSize, long lMmapThreshold)
+    {
+        this(oPolicy, oClassifier, iBufferSize, lMmapThreshold, null);
+    }
+
+    /**
+     * Compressor as configured by the build options.
+     */
+    public FastpackEntryCompressor(FastpackBuildOptions oOptions)
+    {
+        this(oOptions.getCompressionPolicy(), oOptions.getClassifier(), oOptions.getIoBufferSize(), oOptions.getMmapThreshold(), oOptions.getBlobCache(), oOptions.isMinify(), oOptions.isDigests());
+    }
+
+    /**
+     * @param oPolicy compression per resource type
+     * @param oClassifier decides the resource type of each file
+     * @param iBufferSize size of the per thread read buffer
+     * @param lMmapThreshold files of at least this size are memory mapped
+     * @param oBlobCache deflated entries shared between builds, null for none
+     */
+    public FastpackEntryCompressor(CompressionPolicy oPolicy, ResourceClassifier oClassifier, int iBufferSize, long lMmapThreshold, FastpackBlobCache oBlobCache)
+    {
+        this(oPolicy, oClassifier, iBufferSize, lMmapThreshold, oBlobCache, false);
+    }
+
+    /**
+     * @param oPolicy compression per resource type
+     * @param oClassifier decides the resource type of each file
+     * @param iBufferSize size of the per thread read buffer
+     * @param lMmapThreshold files of at least this size are memory mapped
+     * @param oBlobCache deflated entries shared between builds, null for none
+     * @param bMinify strip whitespace and comments from dashboards, system profiles and web dashboards
+     */
+    public FastpackEntryCompressor(CompressionPolicy oPolicy, ResourceClassifier oClassifier, int iBufferSize, long lMmapThreshold, FastpackBlobCache oBlobCache, boolean bMinify)
+    {
+        this(oPolicy, oClassifier, iBufferSize, lMmapThreshold, oBlobCache, bMinify, false);
+    }
+
+    /**
+     * @param oPolicy compression per resource type
+     * @param oClassifier decides the resource type of each file
+     * @param iBufferSize size of the per thread read buffer
+     * @param lMmapThreshold files of at least this size are memory mapped
+     * @param oBlobCache deflated entries shared between builds, null for none
+     * @param bMinify strip whitespace and comments from dashboards, system profiles and web dashboards
+     * @param bDigests compute the SHA-256 of every entry's content
+     */
+    public FastpackEntryCompressor(CompressionPolicy oPolicy, ResourceClassifier oClassifier, final int iBufferSize, long lMmapThreshold, FastpackBlobCache oBlobCache, boolean bMinify, boolean bDigests)
+    {
+        m_oPolicy = oPolicy;
+        m_oClassifier = oClassifier;
+        m_lMmapThreshold = lMmapThreshold;
+        m_oBlobCache = oBlobCache;
+        m_bMinify = bMinify;
+        m_bDigests = bDigests;
+        m_oBuffers = new ThreadLocal<IoBuffers>()
+        {
+            @Override
+            protected IoBuffers initialValue()
+            {
+                return new IoBuffers(iBufferSize);
+            }
+        };
+    }
+
+    /**
+     * Compress a scanned file as the compression policy says for its resource type.
+     * @param oFile file to compress
+     * @return the compressed entry, named after the file's relative path
+     * @throws IOException
+     */
+    public CompressedEntry compress(ScannedFile oFile) throws IOException
+    {
+        return compress(oFile, null);
+    }
+
+    /**
+     * Compress a scanned file whose content may already be in memory.
+     * @param oFile file to compress
+     * @param oContent the file's content as read by a FastpackReadAhead, null to read the file
+     * @return the compressed entry, it does not refer to the content so the content can be released afterwards
+     * @throws IOException
+     */
+    public CompressedEntry compress(ScannedFile oFile, FastpackReadAhead.Content oContent) throws IOException
+    {
+        return compress(oFile, oContent, m_bDigests);
+    }
+
+    /**
+     * @param bDigest compute the entry's SHA-256 even if digests are off, e.g. to compare it with a baseline
+     */
+    CompressedEntry compress(ScannedFile oFile, FastpackReadAhead.Content oContent, boolean bDigest) throws IOException
+    {
+        ResourceType oType = m_oClassifier.typeOf(oFile.getRelativePath());
+        CompressionPolicy.Mode oMode = m_oPolicy.getMode(oType);
+        if (oMode == CompressionPolicy.Mode.AUTO) oMode = isCompressible(oFile, oContent) ? CompressionPolicy.Mode.DEFLATE : CompressionPolicy.Mode.STORE;
+
+        if (oMode == CompressionPolicy.Mode.STORE) return store(oFile, oContent, bDigest);
+        int iLevel = m_oPolicy.getLevel(oType);
+        FastpackMinifier.Format oFormat = m_bMinify ? FastpackMinifier.formatOf(oFile.getRelativePath(), oType) : null;
+        if (oFormat != null)
+        {
+            CompressedEntry oMinified = minify(oFile, oContent, oFormat, iLevel, bDigest);
+            if (oMinified != null) return oMinified;
+        }
+        if (m_oBlobCache == null || oFile.getSize() < m_oBlobCache.getMinEntrySize()) return deflate(oFile, oContent, iLevel, newDigest(bDigest));
+
+        // The key already holds the content's SHA-256, it is the entry's digest
+        FastpackBlobCache.Key oKey = hash(oFile, oContent, iLevel);
+        CompressedEntry oEntry = m_oBlobCache.get(oKey, oFile.getRelativePath(), oFile.getLastModified());
+        if (oEntry == null)
+        {
+            oEntry = deflate(oFile, oContent, iLevel, null);
+            m_oBlobCache.put(oKey, oEntry); // Skipped by the cache if the file changed since it was hashed
+        }
+        return bDigest ? oEntry.withDigest(oKey.abSha256) : oEntry;
+    }
+
+    /**
+     * @return true if the file's entry may hold minified content rather than the file as it is
+     */
+    public boolean isMinified(ScannedFile oFile)
+    {
+        return m_bMinify && FastpackMinifier.formatOf(oFile.getRelativePath(), m_oClassifier.typeOf(oFile.getRelativePath())) != null;
+    }
+
+    /**
+     * Compute the CRC32 of a file without compressing it.
+     * Used to check whether a file still matches an entry of a previous jar.
+     */
+    public long crc(ScannedFile oFile) throws IOException
+    {
+        return crc(oFile, null);
+    }
+
+    /**
+     * @param oContent the file's content as read by a FastpackReadAhead, null to read the file
+     */
+    public long crc(ScannedFile oFile, FastpackReadAhead.Content oContent) throws IOException
+    {
+        final CRC32 oCrc = new CRC32();
+        read(oFile, oContent, -1, new ChunkHandler()
+        {
+            public void handle(ByteBuffer oChunk)
+            {
+                oCrc.update(oChunk);
+            }
+        });
+        return oCrc.getValue();
+    }
+
+    /**
+     * SHA-256 and CRC32 of a file in one pass, the blob cache key of its deflated content.
+     * Also checks files against a previous jar when digests are on, as the digest is needed if the entry is reused,
+     * and against the baseline of a delta build.
+     */
+    FastpackBlobCache.Key hash(ScannedFile oFile, FastpackReadAhead.Content oContent, int iLevel) throws IOException
+    {
+        final CRC32 oCrc = new CRC32();
+        final MessageDigest oDigest = FastpackDigests.newSha256();
+        long lSize = read(oFile, oContent, -1, new ChunkHandler()
+        {
+            public void handle(ByteBuffer oChunk)
+            {
+                oCrc.update(oChunk.duplicate());
+                oDigest.update(oChunk);
+            }
+        });
+        return new FastpackBlobCache.Key(oDigest.digest(), iLevel, oCrc.getValue(), lSize);
+    }
+
+    /**
+     * Deflate content that is already in memory (manifest, plugin.xml).
+     * @param strName name of the entry inside the jar
+     * @param abContent uncompressed content
+     * @param lTime modification time of the entry
+     * @return the compressed entry
+     */
+    public CompressedEntry compress(String strName, byte[] abContent, long lTime)
+    {
+        CRC32 oCrc = new CRC32();
+        oCrc.update(abContent, 0, abContent.length);
+        Deflater oDeflater = new Deflater(m_oPolicy.getDefaultLevel(), true);
+        try
+        {
+            ByteArrayOutputStream oOut = new ByteArrayOutputStream(Math.max(64, abContent.length / 2));
+            byte[] abBuffer = m_oBuffers.get().abOut;
+            oDeflater.setInput(abContent);
+            oDeflater.finish();
+            while (!oDeflater.finished())
+            {
+                int iLen = oDeflater.deflate(abBuffer);
+                oOut.write(abBuffer, 0, iLen);
+            }
+            CompressedEntry oEntry = new CompressedEntry(strName, CompressedEntry.DEFLATED, oCrc.getValue(), abContent.length, lTime, oOut.toByteArray());
+            return m_bDigests ? oEntry.withDigest(FastpackDigests.newSha256().digest(abContent)) : oEntry;
+        }
+        finally
+        {
+            oDeflater.end();
+        }
+    }
+
+    /**
+     * Deflate the start of the file at the fastest level and check whether it is worth compressing.
+     */
+    private boolean isCompressible(ScannedFile oFile, FastpackReadAhead.Content oContent) throws IOException
+    {
+        if (oFile.getSize() < 1024) return true; // Not worth sampling
+        final Deflater oDeflater = new Deflater(Deflater.BEST_SPEED, true);
+        try
+        {
+            final byte[] abOut = m_oBuffers.get().abOut;
+            final long[] alCompressed = new long[1];
+            long lSampled = read(oFile, oContent, m_oPolicy.getSampleSize(), new ChunkHandler()
+            {
+                public void handle(ByteBuffer oChunk)
+                {
+                    oDeflater.setInput(oChunk);
+                    while (!oDeflater.needsInput()) alCompressed[0] += oDeflater.deflate(abOut);
+                    oDeflater.setInput(NO_INPUT); // The chunk buffer is reused, the deflater must not hold on to it
+                }
+            });
+            if (lSampled == 0) return true;
+            oDeflater.finish();
+            while (!oDeflater.finished()) alCompressed[0] += oDeflater.deflate(abOut);
+            return alCompressed[0] < lSampled * m_oPolicy.getStoreRatio();
+        }
+        finally
+        {
+            oDeflater.end();
+        }
+    }
+
+    /**
+     * A STORED entry needs its CRC in the local header, so the file is read once for the CRC here
+     * and transferred as is when the entry is written. If the file changes in between the build fails
+     * rather than writing a corrupt jar.
+     */
+    private CompressedEntry store(final ScannedFile oFile, FastpackReadAhead.Content oContent, boolean bDigest) throws IOException
+    {
+        final CRC32 oCrc = new CRC32();
+        final MessageDigest oDigest = newDigest(bDigest);
+        read(oFile, oContent, -1, new ChunkHandler()
+        {
+            public void handle(ByteBuffer oChunk)
+            {
+                if (oDigest != null) oDigest.update(oChunk.duplicate());
+                oCrc.update(oChunk);
+            }
+        });
+        CompressedEntry oEntry = new CompressedEntry(oFile.getRelativePath(), CompressedEntry.STORED, oCrc.getValue(), oFile.getSize(), oFile.getLastModified(), oFile.getSize(), new CompressedEntry.Payload()
+        {
+            public void writeTo(WritableByteChannel oTarget) throws IOException
+            {
+                try (FileChannel oChannel = FileChannel.open(oFile.getPath(), StandardOpenOption.READ))
+                {
+                    long lPosition = 0;
+                    while (lPosition < oFile.getSize())
+                    {
+                        long lCopied = oChannel.transferTo(lPosition, oFile.getSize() - lPosition, oTarget);
+                        if (lCopied <= 0) throw new EOFException("File changed while building the fastpack: " + oFile.getPath());
+                        lPosition += lCopied;
+                    }
+                    if (oChannel.size() != oFile.getSize() || Files.getLastModifiedTime(oFile.getPath()).toMillis() != oFile.getLastModified())
+                    {
+                        throw new IOException("File changed while building the fastpack: " + oFile.getPath());
+                    }
+                }
+            }
+        });
+        return oDigest != null ? oEntry.withDigest(oDigest.digest()) : oEntry;
+    }
+
+    /**
+     * @param oDigest receives the file's content, null if no digest is needed
+     */
+    private CompressedEntry deflate(ScannedFile oFile, FastpackReadAhead.Content oContent, int iLevel, final MessageDigest oDigest) throws IOException
+    {
+        final CRC32 oCrc = new CRC32();
+        final Deflater oDeflater = new Deflater(iLevel, true);
+        final DeflatedOutput oOut = new DeflatedOutput(oFile.getSize(), oFile.getSize() / 2);
+        try
+        {
+            final byte[] abOut = m_oBuffers.get().abOut;
+            long lSize = read(oFile, oContent, -1, new ChunkHandler()
+            {
+                public void handle(ByteBuffer oChunk) throws IOException
+                {
+                    if (oDigest != null) oDigest.update(oChunk.duplicate());
+                    oCrc.update(oChunk.duplicate());
+                    oDeflater.setInput(oChunk);
+                    while (!oDeflater.needsInput()) oOut.write(abOut, 0, oDeflater.deflate(abOut));
+                    oDeflater.setInput(NO_INPUT); // The chunk buffer is reused, the deflater must not hold on to it
+                }
+            });
+            oDeflater.finish();
+            while (!oDeflater.finished()) oOut.write(abOut, 0, oDeflater.deflate(abOut));
+            CompressedEntry oEntry = oOut.toEntry(oFile.getRelativePath(), oCrc.getValue(), lSize, oFile.getLastModified(), lSize);
+            return oDigest != null ? oEntry.withDigest(oDigest.digest()) : oEntry;
+        }
+        finally
+        {
+            oDeflater.end();
+            oOut.discard();
+        }
+    }
+
+    /**
+     * Minify and deflate in one pass. Not shared through the blob cache, whose keys describe the file's own bytes.
+     * @return the entry, null if the file cannot be minified (e.g. malformed) or gets no smaller
+     */
+    private CompressedEntry minify(ScannedFile oFile, FastpackReadAhead.Content oContent, FastpackMinifier.Format oFormat, int iLevel, boolean bDigest) throws IOException
+    {
+        final CRC32 oCrc = new CRC32();
+        final MessageDigest oDigest = newDigest(bDigest);
+        final long[] alSize = new long[1];
+        Deflater oDeflater = new Deflater(iLevel, true);
+        DeflatedOutput oOut = new DeflatedOutput(oFile.getSize(), oFile.getSize() / 4);
+        try
+        {
+            DeflaterOutputStream oDeflated = new DeflaterOutputStream(oOut, oDeflater, m_oBuffers.get().abOut.length);
+            OutputStream oSink = new FilterOutputStream(oDeflated)
+            {
+                @Override
+                public void write(int b) throws IOException
+                {
+                    oCrc.update(b);
+                    if (oDigest != null) oDigest.update((byte) b);
+                    alSize[0]++;
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] abData, int iOffset, int iLen) throws IOException
+                {
+                    oCrc.update(abData, iOffset, iLen);
+                    if (oDigest != null) oDigest.update(abData, iOffset, iLen);
+                    alSize[0] += iLen;
+                    out.write(abData, iOffset, iLen);
+                }
+            };
+            try (InputStream oIn = oContent != null ? oContent.getInputStream() : new BufferedInputStream(Files.newInputStream(oFile.getPath()), m_oBuffers.get().abOut.length))
+            {
+                FastpackMinifier.minify(oFormat, oIn, oSink);
+            }
+            catch (IOException e)
+            {
+                if (e instanceof InterruptedIOException) throw e;
+                return null; // Packaged as is, the validator reports malformed files
+            }
+            oDeflated.finish();
+            if (alSize[0] >= oFile.getSize()) return null;
+            CompressedEntry oEntry = oOut.toEntry(oFile.getRelativePath(), oCrc.getValue(), alSize[0], oFile.getLastModified(), oFile.getSize());
+            return oDigest != null ? oEntry.withDigest(oDigest.digest()) : oEntry;
+        }
+        finally
+        {
+            oDeflater.end();
+            oOut.discard();
+        }
+    }
+
+    /**
+     * @return a SHA-256 digest for an entry's content, null if no digest is needed
+     */
+    private static MessageDigest newDigest(boolean bDigest)
+    {
+        return bDigest ? FastpackDigests.newSha256() : null;
+    }
+
+    /**
+     * Feed the file to the handler chunk by chunk, from the read ahead content if there is one.
+     * @param lLimit maximum number of bytes to read, -1 for the whole file
+     * @return number of bytes read
+     */
+    private long read(ScannedFile oFile, FastpackReadAhead.Content oContent, long lLimit, ChunkHandler oHandler) throws IOException
+    {
+        if (oContent == null) return read(oFile.getPath(), lLimit, oHandler);
+        long lRead = 0;
+        for (int i = 0; i < oContent.getChunkCount() && (lLimit < 0 || lRead < lLimit); i++)
+        {
+            ByteBuffer oChunk = oContent.getChunk(i);
+            if (lLimit >= 0) oChunk.limit((int) Math.min(oChunk.limit(), lLimit - lRead));
+            lRead += oChunk.remaining();
+            oHandler.handle(oChunk);
+        }
+        return lRead;
+    }
+
+    private long read(Path oPath, long lLimit, ChunkHandler oHandler) throws IOException
+    {
+        try (FileChannel oChannel = FileChannel.open(oPath, StandardOpenOption.READ))
+        {
+            long lSize = oChannel.size();
+            if (lLimit >= 0) lSize = Math.min(lSize, lLimit);
+
+            if (lSize >= m_lMmapThreshold)
+            {
+                long lPosition = 0;
+                while (lPosition < lSize)
+                {
+                    long lLength = Math.min(MAX_MAP_SIZE, lSize - lPosition);
+                    ByteBuffer oMapped = oChannel.map(FileChannel.MapMode.READ_ONLY, lPosition, lLength);
+                    // Hand the mapping over in slices so a cancelled build stops within one slice
+                    while (oMapped.hasRemaining())
+                    {
+                        if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Interrupted reading " + oPath);
+                        ByteBuffer oSlice = oMapped.duplicate();
+                        oSlice.limit(Math.min(oMapped.limit(), oMapped.position() + MAPPED_SLICE_SIZE));
+                        oMapped.position(oSlice.limit());
+                        oHandler.handle(oSlice);
+                    }
+                    lPosition += lLength;
+                }
+                return lSize;
+            }
+
+            ByteBuffer oBuffer = m_oBuffers.get().oIn;
+            long lRead = 0;
+            while (lLimit < 0 || lRead < lLimit)
+            {
+                oBuffer.clear();
+                if (lLimit >= 0) oBuffer.limit((int) Math.min(oBuffer.capacity(), lLimit - lRead));
+                int iLen = oChannel.read(oBuffer);
+                if (iLen < 0) break;
+                lRead += iLen;
+                oBuffer.flip();
+                oHandler.handle(oBuffer);
+            }
+            return lRead;
+        }
+    }
+
+    private interface ChunkHandler
+    {
+        /**
+         * @param oChunk next part of the file, between position and limit. Only valid during the call.
+         */
+        void handle(ByteBuffer oChunk) throws IOException;
+    }
+
+    /**
+     * Buffers reused by one thread for every file it compresses.
+     */
+    private static class IoBuffers
+    {
+        final ByteBuffer oIn;
+        final byte[] abOut;
+
+        IoBuffers(int iBufferSize)
+        {
+            oIn = ByteBuffer.allocateDirect(iBufferSize);
+            abOut = new byte[Math.min(iBufferSize, 64 * 1024)];
+        }
+    }
+
+    /**
+     * Receives an entry's deflated bytes, in memory or, for large files, in a temp file.
+     * Call discard() when done; it removes the temp file unless toEntry() handed it on.
+     */
+    private static class DeflatedOutput extends OutputStream
+    {
+        private final ByteArrayOutputStream m_oMemory;
+        private final Path m_oSpill;
+        private final OutputStream m_oOut;
+        private long m_lSize = 0;
+        private boolean m_bHandedOn = false;
+
+        /**
+         * @param lSourceSize size of the file, decides where the bytes go
+         * @param lExpected initial capacity of the in-memory buffer
+         */
+        DeflatedOutput(long lSourceSize, long lExpected) throws IOException
+        {
+            if (lSourceSize < SPILL_THRESHOLD)
+            {
+                m_oMemory = new ByteArrayOutputStream((int) Math.max(64, lExpected));
+                m_oSpill = null;
+                m_oOut = m_oMemory;
+                return;
+            }
+            m_oMemory = null;
+            m_oSpill = SpillDirectory.createFile();
+            try
+            {
+                m_oOut = Files.newOutputStream(m_oSpill);
+            }
+            catch (IOException e)
+            {
+                Files.deleteIfExists(m_oSpill);
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            m_oOut.write(b);
+            m_lSize++;
+        }
+
+        @Override
+        public void write(byte[] abData, int iOffset, int iLen) throws IOException
+        {
+            m_oOut.write(abData, iOffset, iLen);
+            m_lSize += iLen;
+        }
+
+        CompressedEntry toEntry(String strName, long lCrc, long lSize, long lTime, long lSourceSize) throws IOException
+        {
+            m_oOut.close();
+            if (m_oSpill == null) return new CompressedEntry(strName, CompressedEntry.DEFLATED, lCrc, lSize, lTime, m_oMemory.toByteArray(), lSourceSize);
+            CompressedEntry oEntry = new CompressedEntry(strName, CompressedEntry.DEFLATED, lCrc, lSize, lTime, m_lSize, new SpilledPayload(m_oSpill, m_lSize), lSourceSize);
+            m_bHandedOn = true;
+            return oEntry;
+        }
+
+        void discard()
+        {
+            if (m_oSpill == null || m_bHandedOn) return;
+            try
+            {
+                m_oOut.close();
+                Files.deleteIfExists(m_oSpill);
+            }
+            catch (IOException e)
+            {
+                // Removed with the spill directory on exit
+            }
+        }
+    }
+
+    /**
+     * Deflated bytes in a temp file. Entries are kept across builds by entry caches and written into every
+     * variant's jar, so the file lives as long as the payload is reachable and is deleted after that (or with the
+     * spill directory on exit).
+     */
+    private static class SpilledPayload implements CompressedEntry.Payload
+    {
+        private final Path m_oFile;
+        private final long m_lSize;
+
+        SpilledPayload(final Path oFile, long lSize)
+        {
+            m_oFile = oFile;
+            m_lSize = lSize;
+            SPILL_CLEANER.register(this, new Runnable()
+            {
+                public void run()
+                {
+                    oFile.toFile().delete();
+                }
+            });
+        }
+
+        public void writeTo(WritableByteChannel oTarget) throws IOException
+        {
+            try (FileChannel oChannel = FileChannel.open(m_oFile, StandardOpenOption.READ))
+            {
+                long lPosition = 0;
+                while (lPosition < m_lSize)
+                {
+                    long lCopied = oChannel.transferTo(lPosition, m_lSize - lPosition, oTarget);
+                    if (lCopied <= 0) throw new EOFException("Temp file of a deflated entry was truncated: " + m_oFile);
+                    lPosition += lCopied;
+                }
+            }
+        }
+    }
+
+    /**
+     * One temp directory per process for the spill files, emptied and removed on exit. A deleteOnExit per file
+     * would keep every path in memory until then, which --watch and --serve processes never reach.
+     */
+    private static class SpillDirectory
+    {
+        private static final Path DIR = create();
+
+        private static Path create()
+        {
+            try
+            {
+                final Path oDir = Files.createTempDirectory("fastpack-spill-");
+                Runtime.getRuntime().addShutdownHook(new Thread("fastpack-spill-cleanup")
+                {
+                    @Override
+                    public void run()
+                    {
+                        try (DirectoryStream<Path> oFiles = Files.newDirectoryStream(oDir))
+                        {
+                            for (Path oFile : oFiles) Files.deleteIfExists(oFile);
+                            Files.deleteIfExists(oDir);
+                        }
+                        catch (IOException e)
+                        {
+                            // Exiting anyway, the system's temp cleanup gets the rest
+                        }
+                    }
+                });
+                return oDir;
+            }
+            catch (IOException e)
+            {
+                return null; // Spill files then go to the temp directory itself
+            }
+        }
+
+        static Path createFile() throws IOException
+        {
+            if (DIR == null) return Files.createTempFile("fastpack-", ".deflated");
+            Files.createDirectories(DIR); // In case a temp cleaner removed it while the process ran
+            return Files.createTempFile(DIR, "fastpack-", ".deflated");
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.gardner.fastpackbuilder;
+
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits a FastpackBuildReport as JDK Flight Recorder events, so slow fastpacks
+ * show up in a recording of a production server next to GC and I/O events.
+ *
+ * One recorder per build: the build event begins when the build starts and every phase event is begun and
+ * ended around its phase, so the events sit on the recording's timeline where the work happened.
+ * Compression and writing the jar overlap, so do their events; Phase Time is the time charged to the phase.
+ *
+ * Events are only created when a recording has them enabled. On a JVM without JFR no jdk.jfr class is ever loaded.
+ */
+class FastpackFlightRecorder
+{
+    private static final boolean AVAILABLE = isAvailable();
+    private static final Span NO_SPAN = new Span()
+    {
+        public void end(long lNanos, long lBytesIn, long lBytesOut, int iEntries)
+        {
+        }
+    };
+
+    /**
+     * A phase event that has begun.
+     */
+    interface Span
+    {
+        /**
+         * Commit the event.
+         * @param lNanos time charged to the phase, may be less than the event's duration
+         */
+        void end(long lNanos, long lBytesIn, long lBytesOut, int iEntries);
+    }
+
+    private final String m_strFastpack;
+    private final Object m_oBuildEvent; // Events.BuildEvent, null if it is not recorded
+
+    private FastpackFlightRecorder(String strFastpack)
+    {
+        m_strFastpack = strFastpack;
+        m_oBuildEvent = AVAILABLE ? Events.beginBuild() : null;
+    }
+
+    /**
+     * Begin the build event of a build that starts now.
+     */
+    static FastpackFlightRecorder beginBuild(String strFastpack)
+    {
+        return new FastpackFlightRecorder(strFastpack);
+    }
+
+    /**
+     * Begin the event of a phase that starts now.
+     */
+    Span beginPhase(FastpackBuildReport.Phase oPhase)
+    {
+        if (!AVAILABLE) return NO_SPAN;
+        return Events.beginPhase(m_strFastpack, oPhase);
+    }
+
+    /**
+     * End the build event and emit the compression of every resource type.
+     * @param oReport the finished report of the build
+     */
+    void endBuild(FastpackBuildReport oReport)
+    {
+        if (!AVAILABLE) return;
+        Events.endBuild(m_strFastpack, m_oBuildEvent, oReport);
+    }
+
+    private static boolean isAvailable()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Keeps every reference to jdk.jfr out of FastpackFlightRecorder itself.
+     */
+    private static class Events
+    {
+        static Object beginBuild()
+        {
+            BuildEvent oBuild = new BuildEvent();
+            if (!oBuild.isEnabled()) return null;
+            oBuild.begin();
+            return oBuild;
+        }
+
+        static Span beginPhase(final String strFastpack, final FastpackBuildReport.Phase oPhase)
+        {
+            final PhaseEvent oEvent = new PhaseEvent();
+            if (!oEvent.isEnabled()) return NO_SPAN;
+            oEvent.begin();
+            return new Span()
+            {
+                public void end(long lNanos, long lBytesIn, long lBytesOut, int iEntries)
+                {
+                    oEvent.end();
+                    if (!oEvent.shouldCommit()) return;
+                    oEvent.fastpack = strFastpack;
+                    oEvent.phase = oPhase.name();
+                    oEvent.phaseTime = lNanos;
+                    oEvent.entries = iEntries;
+                    oEvent.bytesIn = lBytesIn;
+                    oEvent.bytesOut = lBytesOut;
+                    oEvent.commit();
+                }
+            };
+        }
+
+        static void endBuild(String strFastpack, Object oBuildEvent, FastpackBuildReport oReport)
+        {
+            if (oBuildEvent != null)
+            {
+                BuildEvent oBuild = (BuildEvent) oBuildEvent;
+                oBuild.end();
+                if (oBuild.shouldCommit())
+                {
+                    FastpackBuildReport.Stats oCompress = oReport.getPhase(FastpackBuildReport.Phase.COMPRESS);
+                    oBuild.fastpack = strFastpack;
+                    oBuild.status = oReport.getStatus().name();
+                    oBuild.buildTime = (long) (oReport.getTotalMillis() * 1e6);
+                    oBuild.threads = oReport.getThreads();
+                    oBuild.entries = oCompress.getEntries();
+                    oBuild.reused = oCompress.getReused();
+                    oBuild.bytesIn = oCompress.getBytesIn();
+                    oBuild.bytesOut = oReport.getPhase(FastpackBuildReport.Phase.WRITE).getBytesOut();
+                    oBuild.commit();
+                }
+            }
+
+            for (Map.Entry<ResourceType, FastpackBuildReport.Stats> oType : oReport.getResourceTypes().entrySet())
+            {
+                CompressionEvent oEvent = new CompressionEvent();
+                if (!oEvent.isEnabled()) break;
+                oEvent.fastpack = strFastpack;
+                oEvent.resourceType = oType.getKey().name();
+                oEvent.entries = oType.getValue().getEntries();
+                oEvent.reused = oType.getValue().getReused();
+                oEvent.bytesIn = oType.getValue().getBytesIn();
+                oEvent.bytesOut = oType.getValue().getBytesOut();
+                oEvent.ratio = oType.getValue().getRatio();
+                oEvent.bytesSaved = oType.getValue().getBytesSaved();
+                oEvent.commit();
+            }
+        }
+    }
+
+    @Name("com.gardner.fastpackbuilder.Build")
+    @Label("Fastpack Build")
+    @Category("Fastpack Builder")
+    @Description("A fastpack build, from its start until the jar is written or the build fails")
+    @StackTrace(false)
+    static class BuildEvent extends Event
+    {
+        @Label("Fastpack")
+        String fastpack;
+
+        @Label("Status")
+        String status;
+
+        @Label("Build Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long buildTime;
+
+        @Label("Threads")
+        int threads;
+
+        @Label("Entries")
+        int entries;
+
+        @Label("Reused Entries")
+        int reused;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Jar Size")
+        @DataAmount
+        long bytesOut;
+    }
+
+    @Name("com.gardner.fastpackbuilder.Phase")
+    @Label("Fastpack Build Phase")
+    @Category("Fastpack Builder")
+    @Description("One part of a fastpack build; compression and writing the jar overlap")
+    @StackTrace(false)
+    static class PhaseEvent extends Event
+    {
+        @Label("Fastpack")
+        String fastpack;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Phase Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long phaseTime;
+
+        @Label("Entries")
+        int entries;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+    }
+
+    @Name("com.gardner.fastpackbuilder.Compression")
+    @Label("Fastpack Compression")
+    @Category("Fastpack Builder")
+    @Description("Compression of one resource type in a fastpack build")
+    @StackTrace(false)
+    static class CompressionEvent extends Event
+    {
+        @Label("Fastpack")
+        String fastpack;
+
+        @Label("Resource Type")
+        String resourceType;
+
+        @Label("Entries")
+        int entries;
+
+        @Label("Reused Entries")
+        int reused;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Ratio")
+        double ratio;
+
+        @Label("Bytes Saved by Minification")
+        @DataAmount
+        long bytesSaved;
+    }
+}
@@ -0,0 +1,323 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Persistent index of a folder of fastpack jars, e.g. an archive of released versions, so questions like
+ * "which fastpacks contain dashboard X" are answered without opening every jar.
+ *
+ * update() inspects the jars (see FastpackInspection) on a pool of threads. A jar whose size and modification
+ * time are unchanged since it was indexed is not opened again. The index is kept in a binary file,
+ * by default .fastpack-index in the folder. The plugin.xml checks are repeated whenever the index is loaded
+ * so they always use the current rules.
+ */
+public class FastpackIndex
+{
+    public static final String FILE_NAME = ".fastpack-index";
+
+    private static final int MAGIC = 0x46504958; // "FPIX"
+    private static final int FORMAT_VERSION = 1;
+
+    private final File m_oFile;
+    private final ResourceClassifier m_oClassifier;
+    private final Map<Path, FastpackInspection> m_oInspections = new TreeMap<Path, FastpackInspection>();
+    private int m_iInspected = 0;
+    private int m_iUnchanged = 0;
+    private int m_iRemoved = 0;
+
+    /**
+     * Load the index file if it exists. An unreadable or outdated file is ignored, every jar is inspected again.
+     * @param oFile the index file
+     * @param oClassifier decides which entries do not need to be listed in plugin.xml
+     */
+    public FastpackIndex(File oFile, ResourceClassifier oClassifier)
+    {
+        m_oFile = oFile;
+        m_oClassifier = oClassifier;
+        if (oFile.isFile())
+        {
+            try
+            {
+                load();
+            }
+            catch (IOException | RuntimeException e) // Garbage can also show up as e.g. a negative count or an invalid path
+            {
+                System.out.println("Fastpack index " + oFile + " could not be read, rebuilding it: " + e.getMessage());
+                m_oInspections.clear();
+            }
+        }
+    }
+
+    /**
+     * Bring the index up to date with the jars in the folder and its subfolders. Jars that are gone are dropped.
+     * Call save() to keep the result.
+     * @param oDir folder of fastpack jars
+     * @param iThreads number of jars inspected at the same time
+     */
+    public void update(File oDir, int iThreads) throws IOException
+    {
+        Path oRoot = oDir.toPath().toAbsolutePath().normalize();
+        Set<Path> oJars = new HashSet<Path>();
+        try (Stream<Path> oFiles = Files.walk(oRoot))
+        {
+            Iterator<Path> oIterator = oFiles.iterator();
+            while (oIterator.hasNext())
+            {
+                Path oPath = oIterator.next();
+                if (oPath.getFileName().toString().toLowerCase().endsWith(".jar") && Files.isRegularFile(oPath)) oJars.add(oPath);
+            }
+        }
+
+        m_iInspected = 0;
+        m_iUnchanged = 0;
+        m_iRemoved = 0;
+        for (Iterator<Path> oIterator = m_oInspections.keySet().iterator(); oIterator.hasNext(); )
+        {
+            Path oPath = oIterator.next();
+            if (oPath.startsWith(oRoot) && !oJars.contains(oPath))
+            {
+                oIterator.remove();
+                m_iRemoved++;
+            }
+        }
+
+        ExecutorService oPool = Executors.newFixedThreadPool(Math.max(1, iThreads), FastpackReadAhead.newThreadFactory("fastpack-inspect-"));
+        List<Future<FastpackInspection>> oPending = new ArrayList<Future<FastpackInspection>>();
+        List<Path> oPendingJars = new ArrayList<Path>();
+        try
+        {
+            for (final Path oJar : new TreeSet<Path>(oJars))
+            {
+                FastpackInspection oCached = m_oInspections.get(oJar);
+                BasicFileAttributes oAttributes;
+                try
+                {
+                    oAttributes = Files.readAttributes(oJar, BasicFileAttributes.class);
+                }
+                catch (NoSuchFileException e)
+                {
+                    removed(oJar); // Deleted since the folder was walked
+                    continue;
+                }
+                if (oCached != null && oCached.getSize() == oAttributes.size() && oCached.getLastModified() == oAttributes.lastModifiedTime().toMillis())
+                {
+                    m_iUnchanged++;
+                    continue;
+                }
+                oPending.add(oPool.submit(new Callable<FastpackInspection>()
+                {
+                    public FastpackInspection call() throws IOException
+                    {
+                        try
+                        {
+                            return FastpackInspection.inspect(oJar, m_oClassifier);
+                        }
+                        catch (NoSuchFileException e)
+                        {
+                            return null;
+                        }
+                    }
+                }));
+                oPendingJars.add(oJar);
+            }
+            for (int i = 0; i < oPending.size(); i++)
+            {
+                FastpackInspection oInspection = await(oPending.get(i));
+                if (oInspection == null)
+                {
+                    removed(oPendingJars.get(i));
+                    continue;
+                }
+                m_oInspections.put(oInspection.getJar(), oInspection);
+                m_iInspected++;
+            }
+        }
+        finally
+        {
+            oPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Drop a jar that was deleted while the index was updated.
+     */
+    private void removed(Path oJar)
+    {
+        if (m_oInspections.remove(oJar) != null) m_iRemoved++;
+    }
+
+    private static FastpackInspection await(Future<FastpackInspection> oFuture) throws IOException
+    {
+        try
+        {
+            return oFuture.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing fastpacks");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Exception caught indexing fastpack", e.getCause());
+        }
+    }
+
+    /**
+     * @return the indexed jars, sorted by path
+     */
+    public Collection<FastpackInspection> getInspections()
+    {
+        return Collections.unmodifiableCollection(m_oInspections.values());
+    }
+
+    /**
+     * Find the fastpacks containing matching files.
+     * @param strPattern file name or glob ("*.dashboard.xml"); patterns containing '/' are matched against the entry path
+     * @return one "jar: entry" line per match, sorted by jar
+     */
+    public List<String> find(String strPattern)
+    {
+        List<String> oMatches = new ArrayList<String>();
+        for (FastpackInspection oInspection : m_oInspections.values())
+        {
+            for (String strEntry : oInspection.find(strPattern)) oMatches.add(oInspection.getJar() + ": " + strEntry);
+        }
+        return oMatches;
+    }
+
+    /**
+     * Write the index file. It is written to a temp file first and renamed, so a reader never sees half of it.
+     */
+    public void save() throws IOException
+    {
+        Path oTarget = m_oFile.toPath();
+        Path oTmp = oTarget.resolveSibling(oTarget.getFileName() + ".tmp");
+        try (DataOutputStream oOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(oTmp))))
+        {
+            oOut.writeInt(MAGIC);
+            oOut.writeInt(FORMAT_VERSION);
+            oOut.writeInt(m_oInspections.size());
+            for (FastpackInspection oInspection : m_oInspections.values())
+            {
+                oOut.writeUTF(oInspection.getJar().toString());
+                oOut.writeLong(oInspection.getSize());
+                oOut.writeLong(oInspection.getLastModified());
+                writeString(oOut, oInspection.getName());
+                writeString(oOut, oInspection.getBundleName());
+                writeString(oOut, oInspection.getVersion());
+                writeStrings(oOut, oInspection.getEntries());
+                oOut.writeInt(oInspection.getResources().size());
+                for (PluginResource oResource : oInspection.getResources())
+                {
+                    writeString(oOut, oResource.getResource());
+                    writeString(oOut, oResource.getResourceType());
+                    writeString(oOut, oResource.getTargetDir());
+                    writeStrings(oOut, oResource.getInstances());
+                }
+                writeStrings(oOut, oInspection.getReadProblems());
+            }
+        }
+        try
+        {
+            Files.move(oTmp, oTarget, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(oTmp, oTarget, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void load() throws IOException
+    {
+        try (DataInputStream oIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(m_oFile.toPath()))))
+        {
+            if (oIn.readInt() != MAGIC) throw new IOException("not a fastpack index");
+            if (oIn.readInt() != FORMAT_VERSION) throw new IOException("written by another version");
+            int iCount = oIn.readInt();
+            for (int i = 0; i < iCount; i++)
+            {
+                Path oJar = Paths.get(oIn.readUTF());
+                long lSize = oIn.readLong();
+                long lLastModified = oIn.readLong();
+                String strName = readString(oIn);
+                String strBundleName = readString(oIn);
+                String strVersion = readString(oIn);
+                List<String> oEntries = readStrings(oIn);
+                int iResources = oIn.readInt();
+                List<PluginResource> oResources = new ArrayList<PluginResource>(iResources);
+                for (int j = 0; j < iResources; j++)
+                {
+                    PluginResource oResource = new PluginResource(readString(oIn), readString(oIn), readString(oIn));
+                    for (String strInstance : readStrings(oIn)) oResource.addInstance(strInstance);
+                    oResources.add(oResource);
+                }
+                List<String> oReadProblems = readStrings(oIn);
+                m_oInspections.put(oJar, new FastpackInspection(oJar, lSize, lLastModified, strName, strBundleName, strVersion,
+                        oEntries, oResources, oReadProblems, m_oClassifier));
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream oOut, String strValue) throws IOException
+    {
+        oOut.writeBoolean(strValue != null);
+        if (strValue != null) oOut.writeUTF(strValue);
+    }
+
+    private static String readString(DataInputStream oIn) throws IOException
+    {
+        return oIn.readBoolean() ? oIn.readUTF() : null;
+    }
+
+    private static void writeStrings(DataOutputStream oOut, List<String> oValues) throws IOException
+    {
+        oOut.writeInt(oValues.size());
+        for (String strValue : oValues) oOut.writeUTF(strValue);
+    }
+
+    private static List<String> readStrings(DataInputStream oIn) throws IOException
+    {
+        int iCount = oIn.readInt();
+        if (iCount < 0) throw new IOException("corrupt index");
+        List<String> oValues = new ArrayList<String>(Math.min(iCount, 4096));
+        for (int i = 0; i < iCount; i++) oValues.add(oIn.readUTF());
+        return oValues;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Index of %d fastpacks: %d inspected, %d unchanged, %d removed", m_oInspections.size(), m_iInspected, m_iUnchanged, m_iRemoved);
+    }
+}
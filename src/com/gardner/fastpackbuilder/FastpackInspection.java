@@ -0,0 +1,337 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.gardner.fastpackbuilder.Constants.IConstants;
+
+/**
+ * What an existing fastpack jar contains, read without unpacking it: the entry names from the central
+ * directory, the bundle name and version from the manifest and the resources listed in plugin.xml.
+ * No other entry is inflated.
+ *
+ * plugin.xml is checked against the entries the same way FastPackBuilder writes it: a resource names a
+ * file of the jar (by name, or by path for web dashboards) or, for sensor packs, a directory. Every entry
+ * the ResourceClassifier does not exclude has to be listed. Names are compared ignoring case.
+ */
+public class FastpackInspection
+{
+    private static final ThreadLocal<XMLInputFactory> XML_FACTORY = new ThreadLocal<XMLInputFactory>()
+    {
+        @Override
+        protected XMLInputFactory initialValue()
+        {
+            XMLInputFactory oFactory = XMLInputFactory.newInstance();
+            oFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            oFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            return oFactory;
+        }
+    };
+
+    private final Path m_oJar;
+    private final long m_lSize;
+    private final long m_lLastModified;
+    private final String m_strName;
+    private final String m_strBundleName;
+    private final String m_strVersion;
+    private final List<String> m_oEntries;
+    private final List<PluginResource> m_oResources;
+    private final List<String> m_oReadProblems;
+    private final List<String> m_oProblems;
+
+    /**
+     * @param oReadProblems problems found while reading the jar, e.g. a missing plugin.xml
+     * @param oClassifier decides which entries do not need to be listed in plugin.xml
+     */
+    FastpackInspection(Path oJar, long lSize, long lLastModified, String strName, String strBundleName, String strVersion,
+            List<String> oEntries, List<PluginResource> oResources, List<String> oReadProblems, ResourceClassifier oClassifier)
+    {
+        m_oJar = oJar;
+        m_lSize = lSize;
+        m_lLastModified = lLastModified;
+        m_strName = strName;
+        m_strBundleName = strBundleName;
+        m_strVersion = strVersion;
+        m_oEntries = Collections.unmodifiableList(oEntries);
+        m_oResources = Collections.unmodifiableList(oResources);
+        m_oReadProblems = Collections.unmodifiableList(oReadProblems);
+        List<String> oProblems = new ArrayList<String>(oReadProblems);
+        check(oProblems, oClassifier);
+        Collections.sort(oProblems);
+        m_oProblems = Collections.unmodifiableList(oProblems);
+    }
+
+    /**
+     * Read the central directory, the manifest and plugin.xml of a fastpack jar.
+     * @param oJar the fastpack
+     * @param oClassifier decides which entries do not need to be listed in plugin.xml
+     * @return the inspection, a jar that cannot be read at all has that as its only problem
+     * @throws IOException if the file's attributes cannot be read
+     */
+    public static FastpackInspection inspect(Path oJar, ResourceClassifier oClassifier) throws IOException
+    {
+        BasicFileAttributes oAttributes = Files.readAttributes(oJar, BasicFileAttributes.class);
+        long lSize = oAttributes.size();
+        long lLastModified = oAttributes.lastModifiedTime().toMillis();
+        List<String> oEntries = new ArrayList<String>();
+        List<PluginResource> oResources = new ArrayList<PluginResource>();
+        List<String> oProblems = new ArrayList<String>();
+        String[] astrInfo = new String[3]; // metainfo name, Bundle-Name, Bundle-Version
+
+        try (FastpackJarReader oReader = new FastpackJarReader(oJar))
+        {
+            for (FastpackJarReader.Entry oEntry : oReader.getEntries())
+            {
+                String strName = oEntry.getName();
+                if (strName.endsWith("/") || strName.equals(JarFile.MANIFEST_NAME) || strName.equals("plugin.xml")) continue;
+                oEntries.add(strName);
+            }
+
+            FastpackJarReader.Entry oManifestEntry = oReader.getEntry(JarFile.MANIFEST_NAME);
+            if (oManifestEntry == null) oProblems.add(JarFile.MANIFEST_NAME + ": missing");
+            else
+            {
+                try (InputStream oIn = oReader.getInputStream(oManifestEntry))
+                {
+                    Manifest oManifest = new Manifest(oIn);
+                    astrInfo[1] = oManifest.getMainAttributes().getValue("Bundle-Name");
+                    astrInfo[2] = oManifest.getMainAttributes().getValue("Bundle-Version");
+                }
+                catch (IOException e)
+                {
+                    oProblems.add(JarFile.MANIFEST_NAME + ": " + e.getMessage());
+                }
+            }
+
+            FastpackJarReader.Entry oPluginXml = oReader.getEntry("plugin.xml");
+            if (oPluginXml == null) oProblems.add("plugin.xml: missing");
+            else
+            {
+                try (InputStream oIn = oReader.getInputStream(oPluginXml))
+                {
+                    astrInfo[0] = readPluginXml(oIn, oResources);
+                }
+                catch (XMLStreamException e)
+                {
+                    oProblems.add("plugin.xml: " + FastpackValidator.describe(e));
+                }
+                catch (IOException e)
+                {
+                    oProblems.add("plugin.xml: " + e.getMessage());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            oEntries.clear();
+            oResources.clear();
+            oProblems.clear();
+            oProblems.add(oJar.getFileName() + ": cannot be read: " + e.getMessage());
+        }
+        return new FastpackInspection(oJar, lSize, lLastModified, astrInfo[0], astrInfo[1], astrInfo[2], oEntries, oResources, oProblems, oClassifier);
+    }
+
+    /**
+     * @return the name attribute of metainfo
+     */
+    private static String readPluginXml(InputStream oIn, List<PluginResource> oResources) throws XMLStreamException
+    {
+        String strName = null;
+        XMLStreamReader oReader = XML_FACTORY.get().createXMLStreamReader(oIn);
+        try
+        {
+            PluginResource oResource = null;
+            while (oReader.hasNext())
+            {
+                if (oReader.next() != XMLStreamReader.START_ELEMENT) continue;
+                String strElement = oReader.getLocalName();
+                if (strElement.equals("metainfo")) strName = oReader.getAttributeValue(null, "name");
+                else if (strElement.equals(IConstants.RESOURCE))
+                {
+                    oResource = new PluginResource(oReader.getAttributeValue(null, IConstants.RESOURCE), oReader.getAttributeValue(null, IConstants.RESOURCE_TYPE),
+                            oReader.getAttributeValue(null, "target_dir"));
+                    oResources.add(oResource);
+                }
+                else if (strElement.equals("instance") && oResource != null) oResource.addInstance(oReader.getAttributeValue(null, "instance"));
+            }
+        }
+        finally
+        {
+            oReader.close();
+        }
+        return strName;
+    }
+
+    /**
+     * Match the plugin.xml resources and the entries both ways.
+     */
+    private void check(List<String> oProblems, ResourceClassifier oClassifier)
+    {
+        Set<String> oNames = new HashSet<String>();
+        Set<String> oPaths = new HashSet<String>();
+        Set<String> oDirectories = new HashSet<String>();
+        for (String strEntry : m_oEntries)
+        {
+            String[] astrParts = strEntry.toLowerCase(Locale.ROOT).split("/");
+            oPaths.add(strEntry.toLowerCase(Locale.ROOT));
+            oNames.add(astrParts[astrParts.length - 1]);
+            for (int i = 0; i < astrParts.length - 1; i++) oDirectories.add(astrParts[i]);
+        }
+
+        Set<String> oListed = new HashSet<String>();
+        for (PluginResource oResource : m_oResources)
+        {
+            String strResource = oResource.getResource();
+            if (strResource == null || strResource.isEmpty())
+            {
+                oProblems.add("plugin.xml: resource without a resource attribute");
+                continue;
+            }
+            String strKey = strResource.toLowerCase(Locale.ROOT);
+            oListed.add(strKey);
+            boolean bFound;
+            if (ResourceType.SENSOR_PACK.getAttributeValue().equals(oResource.getResourceType())) bFound = oDirectories.contains(strKey);
+            else if (strKey.indexOf('/') >= 0) bFound = oPaths.contains(strKey);
+            else bFound = oNames.contains(strKey);
+            if (!bFound) oProblems.add(strResource + ": listed in plugin.xml but not in the jar");
+        }
+
+        for (String strEntry : m_oEntries)
+        {
+            if (oClassifier.isExcluded(strEntry)) continue;
+            String strName = strEntry.substring(strEntry.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+            if (!oListed.contains(strEntry.toLowerCase(Locale.ROOT)) && !oListed.contains(strName)) oProblems.add(strEntry + ": not listed in plugin.xml");
+        }
+    }
+
+    public Path getJar()
+    {
+        return m_oJar;
+    }
+
+    /**
+     * @return size of the jar when it was inspected
+     */
+    public long getSize()
+    {
+        return m_lSize;
+    }
+
+    /**
+     * @return modification time of the jar when it was inspected
+     */
+    public long getLastModified()
+    {
+        return m_lLastModified;
+    }
+
+    /**
+     * @return fastpack name from plugin.xml, null if it could not be read
+     */
+    public String getName()
+    {
+        return m_strName;
+    }
+
+    /**
+     * @return Bundle-Name of the manifest, null if it could not be read
+     */
+    public String getBundleName()
+    {
+        return m_strBundleName;
+    }
+
+    /**
+     * @return Bundle-Version of the manifest, null if it could not be read
+     */
+    public String getVersion()
+    {
+        return m_strVersion;
+    }
+
+    /**
+     * @return names of the packaged files in central directory order, without the manifest and plugin.xml
+     */
+    public List<String> getEntries()
+    {
+        return m_oEntries;
+    }
+
+    public List<PluginResource> getResources()
+    {
+        return m_oResources;
+    }
+
+    /**
+     * @return one "path: problem" line per problem, sorted
+     */
+    public List<String> getProblems()
+    {
+        return m_oProblems;
+    }
+
+    /**
+     * @param strPattern file name or glob ("*.dashboard.xml"); patterns containing '/' are matched against the entry path
+     * @return the matching entries
+     */
+    public List<String> find(String strPattern)
+    {
+        PathMatcher oMatcher = FileSystems.getDefault().getPathMatcher("glob:" + strPattern);
+        boolean bPath = strPattern.indexOf('/') >= 0;
+        List<String> oMatches = new ArrayList<String>();
+        for (String strEntry : m_oEntries)
+        {
+            String strCandidate = bPath ? strEntry : strEntry.substring(strEntry.lastIndexOf('/') + 1);
+            if (oMatcher.matches(Paths.get(strCandidate))) oMatches.add(strEntry);
+        }
+        return oMatches;
+    }
+
+    /**
+     * @return the problems found reading the jar, without the plugin.xml checks (those depend on the classifier)
+     */
+    List<String> getReadProblems()
+    {
+        return m_oReadProblems;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (valueOrProblem(null, m_oJar.getFileName().toString(), null) != null) return String.format("%s: cannot be read, %d problems", m_oJar.getFileName(), m_oProblems.size());
+        return String.format("%s: %s, %s, %d entries, %d resources, %d problems", m_oJar.getFileName(),
+                valueOrProblem(m_strName, "plugin.xml", "no name in plugin.xml"), valueOrProblem(m_strVersion, JarFile.MANIFEST_NAME, "no Bundle-Version in the manifest"),
+                m_oEntries.size(), m_oResources.size(), m_oProblems.size());
+    }
+
+    /**
+     * @param strEntry the entry the value is read from, or the jar's file name
+     * @return the value if it was read, else the problem reading strEntry, else strMissing
+     */
+    private String valueOrProblem(String strValue, String strEntry, String strMissing)
+    {
+        if (strValue != null) return strValue;
+        for (String strProblem : m_oReadProblems)
+        {
+            if (strProblem.startsWith(strEntry + ": ")) return strProblem;
+        }
+        return strMissing;
+    }
+}
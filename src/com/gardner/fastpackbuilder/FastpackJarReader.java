@@ -0,0 +1,393 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the central directory of an existing fastpack jar.
+ * Only the directory is parsed, payloads stay on disk and can be copied
+ * as raw compressed bytes into a new jar without inflating them.
+ * Single entries (e.g. the manifest or plugin.xml) can be read with getInputStream.
+ * Zip64 jars (more than 65535 entries or more than 4 GB) are read as well.
+ */
+public class FastpackJarReader implements Closeable
+{
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long MAX_ZIP32 = 0xFFFFFFFFL;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private final Path m_oPath;
+    private final FileChannel m_oChannel;
+    private final Map<String, Entry> m_oEntries = new LinkedHashMap<String, Entry>();
+
+    public FastpackJarReader(Path oPath) throws IOException
+    {
+        m_oPath = oPath;
+        m_oChannel = FileChannel.open(oPath, StandardOpenOption.READ);
+        try
+        {
+            readCentralDirectory();
+        }
+        catch (IOException e)
+        {
+            m_oChannel.close();
+            throw e;
+        }
+    }
+
+    public Path getPath()
+    {
+        return m_oPath;
+    }
+
+    /**
+     * @return entries in central directory order
+     */
+    public Collection<Entry> getEntries()
+    {
+        return Collections.unmodifiableCollection(m_oEntries.values());
+    }
+
+    /**
+     * @return the entry or null if the jar does not contain it
+     */
+    public Entry getEntry(String strName)
+    {
+        return m_oEntries.get(strName);
+    }
+
+    /**
+     * Wrap an entry so it can be written to a new jar as is. The payload is copied, never inflated.
+     * The reader must stay open until the entry has been written.
+     */
+    public CompressedEntry toCompressedEntry(final Entry oEntry) throws IOException
+    {
+        final long lDataOffset = getDataOffset(oEntry);
+        return new CompressedEntry(oEntry.getName(), oEntry.getMethod(), oEntry.getCrc(), oEntry.getSize(), oEntry.getTime(), oEntry.getCompressedSize(), new CompressedEntry.Payload()
+        {
+            public void writeTo(WritableByteChannel oTarget) throws IOException
+            {
+                long lPosition = lDataOffset;
+                long lRemaining = oEntry.getCompressedSize();
+                while (lRemaining > 0)
+                {
+                    long lCopied = m_oChannel.transferTo(lPosition, lRemaining, oTarget);
+                    if (lCopied <= 0) throw new EOFException("Unexpected end of " + m_oPath + " reading " + oEntry.getName());
+                    lPosition += lCopied;
+                    lRemaining -= lCopied;
+                }
+            }
+        });
+    }
+
+    /**
+     * Read one entry, inflating it if needed. Only this entry's bytes are read from the jar.
+     * The stream must be closed before the reader.
+     */
+    public InputStream getInputStream(final Entry oEntry) throws IOException
+    {
+        if (oEntry.isEncrypted()) throw new IOException("Encrypted entry " + oEntry.getName() + " in " + m_oPath);
+        if (oEntry.getMethod() != CompressedEntry.STORED && oEntry.getMethod() != CompressedEntry.DEFLATED)
+        {
+            throw new IOException("Unsupported compression method " + oEntry.getMethod() + " of " + oEntry.getName() + " in " + m_oPath);
+        }
+        final long lEnd = getDataOffset(oEntry) + oEntry.getCompressedSize();
+        if (lEnd > m_oChannel.size()) throw new EOFException("Unexpected end of " + m_oPath + " reading " + oEntry.getName());
+        final long lStart = lEnd - oEntry.getCompressedSize();
+        InputStream oRaw = Channels.newInputStream(new ReadableByteChannel()
+        {
+            private long m_lPosition = lStart;
+            private boolean m_bOpen = true;
+
+            public int read(ByteBuffer oBuffer) throws IOException
+            {
+                if (m_lPosition >= lEnd) return -1;
+                ByteBuffer oTarget = oBuffer.duplicate();
+                if (oTarget.remaining() > lEnd - m_lPosition) oTarget.limit(oTarget.position() + (int) (lEnd - m_lPosition));
+                int iRead = m_oChannel.read(oTarget, m_lPosition);
+                if (iRead < 0) throw new EOFException("Unexpected end of " + m_oPath + " reading " + oEntry.getName());
+                oBuffer.position(oTarget.position());
+                m_lPosition += iRead;
+                return iRead;
+            }
+
+            public boolean isOpen()
+            {
+                return m_bOpen;
+            }
+
+            public void close()
+            {
+                m_bOpen = false; // The jar channel stays open
+            }
+        });
+        if (oEntry.getMethod() == CompressedEntry.STORED) return oRaw;
+        final Inflater oInflater = new Inflater(true);
+        return new InflaterInputStream(oRaw, oInflater, 8192)
+        {
+            private boolean m_bClosed = false;
+            private boolean m_bEof = false;
+
+            @Override
+            protected void fill() throws IOException
+            {
+                if (m_bEof) throw new EOFException("Unexpected end of " + oEntry.getName() + " in " + m_oPath);
+                len = in.read(buf, 0, buf.length);
+                if (len == -1)
+                {
+                    // Raw deflate data may need one extra byte to finish, as in java.util.zip.ZipFile
+                    buf[0] = 0;
+                    len = 1;
+                    m_bEof = true;
+                }
+                inf.setInput(buf, 0, len);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                if (m_bClosed) return;
+                m_bClosed = true;
+                super.close();
+                oInflater.end(); // Not ended by InflaterInputStream when passed in
+            }
+        };
+    }
+
+    /**
+     * @return position of the first payload byte of the entry
+     */
+    long getDataOffset(Entry oEntry) throws IOException
+    {
+        ByteBuffer oHeader = read(oEntry.m_lLocalHeaderOffset, 30);
+        if (oHeader.getInt(0) != LOCAL_HEADER_SIG) throw new IOException("Corrupt local header for " + oEntry.getName() + " in " + m_oPath);
+        int iNameLength = oHeader.getShort(26) & 0xFFFF;
+        int iExtraLength = oHeader.getShort(28) & 0xFFFF;
+        return oEntry.m_lLocalHeaderOffset + 30 + iNameLength + iExtraLength;
+    }
+
+    FileChannel getChannel()
+    {
+        return m_oChannel;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        m_oChannel.close();
+    }
+
+    private void readCentralDirectory() throws IOException
+    {
+        long lFileSize = m_oChannel.size();
+        if (lFileSize < END_OF_CENTRAL_DIR_SIZE) throw new IOException("Not a jar file: " + m_oPath);
+
+        // The end record is followed by a comment of unknown length, so search backwards for its signature.
+        int iTailLength = (int) Math.min(lFileSize, END_OF_CENTRAL_DIR_SIZE + MAX_COMMENT);
+        ByteBuffer oTail = read(lFileSize - iTailLength, iTailLength);
+        int iEnd = -1;
+        for (int i = iTailLength - END_OF_CENTRAL_DIR_SIZE; i >= 0; i--)
+        {
+            if (oTail.getInt(i) == END_OF_CENTRAL_DIR_SIG) 
+            {
+                iEnd = i;
+                break;
+            }
+        }
+        if (iEnd < 0) throw new IOException("No central directory found in " + m_oPath);
+
+        long lCount = oTail.getShort(iEnd + 10) & 0xFFFF;
+        long lDirSize = oTail.getInt(iEnd + 12) & 0xFFFFFFFFL;
+        long lDirOffset = oTail.getInt(iEnd + 16) & 0xFFFFFFFFL;
+
+        // A Zip64 jar has a locator right before the end record, pointing to the Zip64 end record with the real values.
+        // 0xFFFF entries alone do not make a jar Zip64, only the locator does.
+        long lEndPosition = lFileSize - iTailLength + iEnd;
+        if (lEndPosition >= ZIP64_LOCATOR_SIZE && iEnd >= ZIP64_LOCATOR_SIZE && oTail.getInt(iEnd - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIG)
+        {
+            long lZip64End = oTail.getLong(iEnd - ZIP64_LOCATOR_SIZE + 8);
+            if (lZip64End < 0 || lZip64End + ZIP64_END_SIZE > lEndPosition) throw new IOException("Corrupt Zip64 end record in " + m_oPath);
+            ByteBuffer oZip64End = read(lZip64End, ZIP64_END_SIZE);
+            if (oZip64End.getInt(0) != ZIP64_END_SIG) throw new IOException("Corrupt Zip64 end record in " + m_oPath);
+            lCount = oZip64End.getLong(32);
+            lDirSize = oZip64End.getLong(40);
+            lDirOffset = oZip64End.getLong(48);
+        }
+        if (lCount < 0 || lDirSize < 0 || lDirOffset < 0 || lDirOffset + lDirSize > lFileSize) throw new IOException("Corrupt central directory in " + m_oPath);
+        if (lDirSize > Integer.MAX_VALUE) throw new IOException("Central directory too large in " + m_oPath);
+
+        ByteBuffer oDir = read(lDirOffset, (int) lDirSize);
+        int iPos = 0;
+        for (long l = 0; l < lCount; l++)
+        {
+            if (iPos + 46 > oDir.limit() || oDir.getInt(iPos) != CENTRAL_HEADER_SIG) throw new IOException("Corrupt central directory in " + m_oPath);
+            Entry oEntry = new Entry();
+            oEntry.m_iFlags = oDir.getShort(iPos + 8) & 0xFFFF;
+            oEntry.m_iMethod = oDir.getShort(iPos + 10) & 0xFFFF;
+            oEntry.m_lDosTime = oDir.getInt(iPos + 12) & 0xFFFFFFFFL;
+            oEntry.m_lCrc = oDir.getInt(iPos + 16) & 0xFFFFFFFFL;
+            oEntry.m_lCompressedSize = oDir.getInt(iPos + 20) & 0xFFFFFFFFL;
+            oEntry.m_lSize = oDir.getInt(iPos + 24) & 0xFFFFFFFFL;
+            int iNameLength = oDir.getShort(iPos + 28) & 0xFFFF;
+            int iExtraLength = oDir.getShort(iPos + 30) & 0xFFFF;
+            int iCommentLength = oDir.getShort(iPos + 32) & 0xFFFF;
+            oEntry.m_lLocalHeaderOffset = oDir.getInt(iPos + 42) & 0xFFFFFFFFL;
+            if (iPos + 46 + iNameLength + iExtraLength + iCommentLength > oDir.limit()) throw new IOException("Corrupt central directory in " + m_oPath);
+
+            byte[] abName = new byte[iNameLength];
+            oDir.position(iPos + 46);
+            oDir.get(abName);
+            oEntry.m_strName = new String(abName, StandardCharsets.UTF_8);
+            readZip64Extra(oEntry, oDir, iPos + 46 + iNameLength, iExtraLength);
+            m_oEntries.put(oEntry.m_strName, oEntry);
+
+            iPos += 46 + iNameLength + iExtraLength + iCommentLength;
+        }
+    }
+
+    /**
+     * Take the values that did not fit into the central record (0xFFFFFFFF there) from its Zip64 extra field.
+     * They follow each other in the order size, compressed size, offset.
+     */
+    private void readZip64Extra(Entry oEntry, ByteBuffer oDir, int iStart, int iLength) throws IOException
+    {
+        if (oEntry.m_lSize != MAX_ZIP32 && oEntry.m_lCompressedSize != MAX_ZIP32 && oEntry.m_lLocalHeaderOffset != MAX_ZIP32) return;
+        int iPos = iStart;
+        while (iPos + 4 <= iStart + iLength)
+        {
+            int iId = oDir.getShort(iPos) & 0xFFFF;
+            int iSize = oDir.getShort(iPos + 2) & 0xFFFF;
+            if (iPos + 4 + iSize > iStart + iLength) break;
+            if (iId == ZIP64_EXTRA_ID)
+            {
+                int iValue = iPos + 4;
+                int iEnd = iValue + iSize;
+                if (oEntry.m_lSize == MAX_ZIP32 && iValue + 8 <= iEnd)
+                {
+                    oEntry.m_lSize = oDir.getLong(iValue);
+                    iValue += 8;
+                }
+                if (oEntry.m_lCompressedSize == MAX_ZIP32 && iValue + 8 <= iEnd)
+                {
+                    oEntry.m_lCompressedSize = oDir.getLong(iValue);
+                    iValue += 8;
+                }
+                if (oEntry.m_lLocalHeaderOffset == MAX_ZIP32 && iValue + 8 <= iEnd) oEntry.m_lLocalHeaderOffset = oDir.getLong(iValue);
+                break;
+            }
+            iPos += 4 + iSize;
+        }
+        if (oEntry.m_lSize < 0 || oEntry.m_lCompressedSize < 0 || oEntry.m_lLocalHeaderOffset < 0) throw new IOException("Corrupt Zip64 extra field for " + oEntry.m_strName + " in " + m_oPath);
+    }
+
+    private ByteBuffer read(long lPosition, int iLength) throws IOException
+    {
+        ByteBuffer oBuffer = ByteBuffer.allocate(iLength).order(ByteOrder.LITTLE_ENDIAN);
+        while (oBuffer.hasRemaining())
+        {
+            if (m_oChannel.read(oBuffer, lPosition + oBuffer.position()) < 0) throw new EOFException("Unexpected end of " + m_oPath);
+        }
+        oBuffer.flip();
+        return oBuffer;
+    }
+
+    /**
+     * Convert an MS-DOS date/time from a zip header back to java time.
+     */
+    static long dosToJavaTime(long lDosTime)
+    {
+        try
+        {
+            LocalDateTime oTime = LocalDateTime.of((int) ((lDosTime >> 25) & 0x7f) + 1980, (int) ((lDosTime >> 21) & 0x0f), (int) ((lDosTime >> 16) & 0x1f),
+                    (int) ((lDosTime >> 11) & 0x1f), (int) ((lDosTime >> 5) & 0x3f), (int) ((lDosTime << 1) & 0x3e));
+            return oTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        catch (DateTimeException e)
+        {
+            return 0; // Garbage in the header, treat as "unknown"
+        }
+    }
+
+    /**
+     * One central directory record.
+     */
+    public static class Entry
+    {
+        private String m_strName;
+        private int m_iFlags;
+        private int m_iMethod;
+        private long m_lDosTime;
+        private long m_lCrc;
+        private long m_lCompressedSize;
+        private long m_lSize;
+        private long m_lLocalHeaderOffset;
+
+        public String getName()
+        {
+            return m_strName;
+        }
+
+        public int getMethod()
+        {
+            return m_iMethod;
+        }
+
+        public long getCrc()
+        {
+            return m_lCrc;
+        }
+
+        public long getSize()
+        {
+            return m_lSize;
+        }
+
+        public long getCompressedSize()
+        {
+            return m_lCompressedSize;
+        }
+
+        public long getDosTime()
+        {
+            return m_lDosTime;
+        }
+
+        public long getTime()
+        {
+            return dosToJavaTime(m_lDosTime);
+        }
+
+        public boolean isEncrypted()
+        {
+            return (m_iFlags & 0x0001) != 0;
+        }
+    }
+}
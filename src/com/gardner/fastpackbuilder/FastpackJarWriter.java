@@ -0,0 +1,445 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a jar file from CompressedEntry objects.
+ *
+ * JarOutputStream insists on deflating the data itself, which means the compression
+ * has to happen on the thread that writes the file. This writer only lays out
+ * the zip structures (local headers, central directory) around payloads that
+ * were compressed elsewhere, so entries can be deflated in parallel and still
+ * be written in a fixed order. The same input always produces the same bytes.
+ *
+ * Headers and small payloads are collected in one large direct buffer so thousands of
+ * small dashboards don't turn into thousands of tiny writes. Payloads bigger than the
+ * buffer go straight to the channel (which allows FileChannel.transferTo to avoid copies).
+ */
+public class FastpackJarWriter implements Closeable
+{
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final long MAX_ZIP32 = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES32 = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel m_oChannel;
+    private final ByteBuffer m_oBuffer;
+    private final WritableByteChannel m_oBufferedChannel = new BufferedChannel();
+    private final List<CentralRecord> m_oCentralDirectory = new ArrayList<CentralRecord>();
+    private final Set<String> m_oNames = new HashSet<String>();
+    private long m_lPosition = 0;
+    private boolean m_bFinished = false;
+    private EntryOutputStream m_oOpenEntry = null;
+
+    public FastpackJarWriter(WritableByteChannel oChannel)
+    {
+        this(oChannel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FastpackJarWriter(WritableByteChannel oChannel, int iBufferSize)
+    {
+        m_oChannel = oChannel;
+        m_oBuffer = ByteBuffer.allocateDirect(Math.max(4096, iBufferSize));
+    }
+
+    public FastpackJarWriter(OutputStream oStream)
+    {
+        this(Channels.newChannel(oStream));
+    }
+
+    /**
+     * Append an entry to the jar.
+     * @param oEntry
+     * @throws IOException if an entry with the same name was already written
+     */
+    public void writeEntry(CompressedEntry oEntry) throws IOException
+    {
+        CentralRecord oRecord = newRecord(oEntry.getName(), oEntry.getMethod(), oEntry.getTime(), 0);
+        oRecord.lCrc = oEntry.getCrc();
+        oRecord.lCompressedSize = oEntry.getCompressedSize();
+        oRecord.lSize = oEntry.getSize();
+        writeLocalHeader(oRecord);
+
+        if (oRecord.lCompressedSize < m_oBuffer.capacity()) oEntry.writePayload(m_oBufferedChannel);
+        else
+        {
+            flush();
+            oEntry.writePayload(m_oChannel);
+        }
+        m_lPosition += oRecord.lCompressedSize;
+
+        m_oCentralDirectory.add(oRecord);
+    }
+
+    /**
+     * Start a deflated entry whose content is not known up front (e.g. plugin.xml streamed by StAX).
+     * CRC and sizes are written in a data descriptor after the content.
+     * The entry is complete when the returned stream is closed; no other entry can be written until then.
+     * @param strName name of the entry
+     * @param lTime modification time of the entry
+     * @param iLevel deflate level
+     * @return stream receiving the uncompressed content
+     * @throws IOException
+     */
+    public OutputStream openEntry(String strName, long lTime, int iLevel) throws IOException
+    {
+        CentralRecord oRecord = newRecord(strName, CompressedEntry.DEFLATED, lTime, FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(oRecord);
+        m_oOpenEntry = new EntryOutputStream(oRecord, iLevel);
+        return m_oOpenEntry;
+    }
+
+    private CentralRecord newRecord(String strName, int iMethod, long lTime, int iFlags) throws IOException
+    {
+        if (m_bFinished) throw new IOException("Jar already finished");
+        if (m_oOpenEntry != null) throw new IOException("Entry still open: " + m_oOpenEntry.m_oRecord.strName);
+        if (!m_oNames.add(strName)) throw new IOException("Duplicate jar entry: " + strName);
+
+        CentralRecord oRecord = new CentralRecord();
+        oRecord.strName = strName;
+        oRecord.abName = strName.getBytes(StandardCharsets.UTF_8);
+        oRecord.iFlags = FLAG_UTF8 | iFlags;
+        oRecord.iMethod = iMethod;
+        oRecord.lDosTime = javaToDosTime(lTime);
+        oRecord.lOffset = m_lPosition;
+        return oRecord;
+    }
+
+    /**
+     * Sizes of 4 GB and more go into a Zip64 extra field, as ZipOutputStream writes them. Entries with
+     * a data descriptor have no sizes in their local header.
+     */
+    private void writeLocalHeader(CentralRecord oRecord) throws IOException
+    {
+        boolean bZip64 = oRecord.lSize >= MAX_ZIP32 || oRecord.lCompressedSize >= MAX_ZIP32;
+        ByteBuffer oHeader = newBuffer(30 + oRecord.abName.length + (bZip64 ? 20 : 0));
+        oHeader.putInt(LOCAL_HEADER_SIG);
+        oHeader.putShort((short) (bZip64 ? 45 : oRecord.versionNeeded()));
+        oHeader.putShort((short) oRecord.iFlags);
+        oHeader.putShort((short) oRecord.iMethod);
+        oHeader.putInt((int) oRecord.lDosTime);
+        oHeader.putInt((int) oRecord.lCrc);
+        oHeader.putInt((int) (bZip64 ? MAX_ZIP32 : oRecord.lCompressedSize));
+        oHeader.putInt((int) (bZip64 ? MAX_ZIP32 : oRecord.lSize));
+        oHeader.putShort((short) oRecord.abName.length);
+        oHeader.putShort((short) (bZip64 ? 20 : 0)); // extra field length
+        oHeader.put(oRecord.abName);
+        if (bZip64)
+        {
+            oHeader.putShort((short) ZIP64_EXTRA_ID);
+            oHeader.putShort((short) 16);
+            oHeader.putLong(oRecord.lSize);
+            oHeader.putLong(oRecord.lCompressedSize);
+        }
+        write(oHeader);
+    }
+
+    /**
+     * Write the central directory. No further entries can be added afterwards.
+     * Sizes and offsets of 4 GB and more go into Zip64 extra fields, and a jar with 65535 entries or more,
+     * or whose central directory starts or ends past 4 GB, gets a Zip64 end record and locator; the same
+     * rules ZipOutputStream follows.
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        if (m_bFinished) return;
+        if (m_oOpenEntry != null) throw new IOException("Entry still open: " + m_oOpenEntry.m_oRecord.strName);
+        m_bFinished = true;
+
+        long lCentralDirOffset = m_lPosition;
+        for (CentralRecord oRecord : m_oCentralDirectory)
+        {
+            // Only the values that do not fit are moved to the extra field, in this order
+            boolean bSize64 = oRecord.lSize >= MAX_ZIP32;
+            boolean bCompressedSize64 = oRecord.lCompressedSize >= MAX_ZIP32;
+            boolean bOffset64 = oRecord.lOffset >= MAX_ZIP32;
+            int iExtraLength = (bSize64 ? 8 : 0) + (bCompressedSize64 ? 8 : 0) + (bOffset64 ? 8 : 0);
+            if (iExtraLength > 0) iExtraLength += 4;
+            int iVersion = iExtraLength > 0 ? 45 : oRecord.versionNeeded();
+
+            ByteBuffer oHeader = newBuffer(46 + oRecord.abName.length + iExtraLength);
+            oHeader.putInt(CENTRAL_HEADER_SIG);
+            oHeader.putShort((short) iVersion); // version made by
+            oHeader.putShort((short) iVersion);
+            oHeader.putShort((short) oRecord.iFlags);
+            oHeader.putShort((short) oRecord.iMethod);
+            oHeader.putInt((int) oRecord.lDosTime);
+            oHeader.putInt((int) oRecord.lCrc);
+            oHeader.putInt((int) (bCompressedSize64 ? MAX_ZIP32 : oRecord.lCompressedSize));
+            oHeader.putInt((int) (bSize64 ? MAX_ZIP32 : oRecord.lSize));
+            oHeader.putShort((short) oRecord.abName.length);
+            oHeader.putShort((short) iExtraLength);
+            oHeader.putShort((short) 0); // comment length
+            oHeader.putShort((short) 0); // disk number start
+            oHeader.putShort((short) 0); // internal attributes
+            oHeader.putInt(0); // external attributes
+            oHeader.putInt((int) (bOffset64 ? MAX_ZIP32 : oRecord.lOffset));
+            oHeader.put(oRecord.abName);
+            if (iExtraLength > 0)
+            {
+                oHeader.putShort((short) ZIP64_EXTRA_ID);
+                oHeader.putShort((short) (iExtraLength - 4));
+                if (bSize64) oHeader.putLong(oRecord.lSize);
+                if (bCompressedSize64) oHeader.putLong(oRecord.lCompressedSize);
+                if (bOffset64) oHeader.putLong(oRecord.lOffset);
+            }
+            write(oHeader);
+        }
+        long lCentralDirSize = m_lPosition - lCentralDirOffset;
+        int iCount = m_oCentralDirectory.size();
+        boolean bZip64 = iCount >= MAX_ENTRIES32 || lCentralDirOffset >= MAX_ZIP32 || lCentralDirSize >= MAX_ZIP32;
+
+        if (bZip64)
+        {
+            long lZip64EndOffset = m_lPosition;
+            ByteBuffer oZip64End = newBuffer(56 + 20);
+            oZip64End.putInt(ZIP64_END_SIG);
+            oZip64End.putLong(44); // size of the rest of the record
+            oZip64End.putShort((short) 45); // version made by
+            oZip64End.putShort((short) 45);
+            oZip64End.putInt(0); // number of this disk
+            oZip64End.putInt(0); // disk with central directory
+            oZip64End.putLong(iCount);
+            oZip64End.putLong(iCount);
+            oZip64End.putLong(lCentralDirSize);
+            oZip64End.putLong(lCentralDirOffset);
+
+            oZip64End.putInt(ZIP64_LOCATOR_SIG);
+            oZip64End.putInt(0); // disk with the Zip64 end record
+            oZip64End.putLong(lZip64EndOffset);
+            oZip64End.putInt(1); // number of disks
+            write(oZip64End);
+        }
+
+        ByteBuffer oEnd = newBuffer(22);
+        oEnd.putInt(END_OF_CENTRAL_DIR_SIG);
+        oEnd.putShort((short) 0); // number of this disk
+        oEnd.putShort((short) 0); // disk with central directory
+        oEnd.putShort((short) Math.min(iCount, MAX_ENTRIES32));
+        oEnd.putShort((short) Math.min(iCount, MAX_ENTRIES32));
+        oEnd.putInt((int) Math.min(lCentralDirSize, MAX_ZIP32));
+        oEnd.putInt((int) Math.min(lCentralDirOffset, MAX_ZIP32));
+        oEnd.putShort((short) 0); // comment length
+        write(oEnd);
+        flush();
+    }
+
+    /**
+     * @return number of bytes written to the jar so far, including buffered bytes
+     */
+    public long getPosition()
+    {
+        return m_lPosition;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            m_oChannel.close();
+        }
+    }
+
+    private ByteBuffer newBuffer(int iSize)
+    {
+        return ByteBuffer.allocate(iSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer oBuffer) throws IOException
+    {
+        oBuffer.flip();
+        m_lPosition += oBuffer.remaining();
+        put(oBuffer);
+    }
+
+    /**
+     * Copy into the write buffer, large chunks bypass it.
+     */
+    private void put(ByteBuffer oSource) throws IOException
+    {
+        if (oSource.remaining() > m_oBuffer.remaining()) flush();
+        if (oSource.remaining() > m_oBuffer.capacity())
+        {
+            while (oSource.hasRemaining()) m_oChannel.write(oSource);
+            return;
+        }
+        m_oBuffer.put(oSource);
+    }
+
+    private void flush() throws IOException
+    {
+        m_oBuffer.flip();
+        while (m_oBuffer.hasRemaining()) m_oChannel.write(m_oBuffer);
+        m_oBuffer.clear();
+    }
+
+    /**
+     * Convert java time to the MS-DOS date/time format used by zip headers.
+     * Same conversion as java.util.zip so the jar looks the same to every tool.
+     */
+    static long javaToDosTime(long lTime)
+    {
+        LocalDateTime oTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(lTime), ZoneId.systemDefault());
+        int iYear = oTime.getYear() - 1980;
+        if (iYear < 0) return (1 << 21) | (1 << 16); // 1980-01-01
+        return ((long) iYear << 25 | oTime.getMonthValue() << 21 | oTime.getDayOfMonth() << 16 | oTime.getHour() << 11 | oTime.getMinute() << 5 | oTime.getSecond() >> 1) & MAX_ZIP32;
+    }
+
+    /**
+     * Deflates the content of an open entry straight into the jar.
+     */
+    private class EntryOutputStream extends OutputStream
+    {
+        private final CentralRecord m_oRecord;
+        private final Deflater m_oDeflater;
+        private final CRC32 m_oCrc = new CRC32();
+        private final byte[] m_abBuffer = new byte[8192];
+        private final byte[] m_abSingle = new byte[1];
+        private long m_lSize = 0;
+        private long m_lCompressedSize = 0;
+        private boolean m_bClosed = false;
+
+        EntryOutputStream(CentralRecord oRecord, int iLevel)
+        {
+            m_oRecord = oRecord;
+            m_oDeflater = new Deflater(iLevel, true);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            m_abSingle[0] = (byte) b;
+            write(m_abSingle, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] abData, int iOffset, int iLen) throws IOException
+        {
+            if (m_bClosed) throw new IOException("Entry already closed: " + m_oRecord.strName);
+            if (iLen == 0) return;
+            m_oCrc.update(abData, iOffset, iLen);
+            m_lSize += iLen;
+            m_oDeflater.setInput(abData, iOffset, iLen);
+            while (!m_oDeflater.needsInput()) deflate();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (m_bClosed) return;
+            m_bClosed = true;
+            try
+            {
+                m_oDeflater.finish();
+                while (!m_oDeflater.finished()) deflate();
+            }
+            finally
+            {
+                m_oDeflater.end();
+            }
+            m_oRecord.lCrc = m_oCrc.getValue();
+            m_oRecord.lSize = m_lSize;
+            m_oRecord.lCompressedSize = m_lCompressedSize;
+
+            // Sizes of 4 GB and more take 8 bytes each, as ZipOutputStream writes them
+            boolean bZip64 = m_lSize >= MAX_ZIP32 || m_lCompressedSize >= MAX_ZIP32;
+            ByteBuffer oDescriptor = newBuffer(bZip64 ? 24 : 16);
+            oDescriptor.putInt(DATA_DESCRIPTOR_SIG);
+            oDescriptor.putInt((int) m_oRecord.lCrc);
+            if (bZip64)
+            {
+                oDescriptor.putLong(m_oRecord.lCompressedSize);
+                oDescriptor.putLong(m_oRecord.lSize);
+            }
+            else
+            {
+                oDescriptor.putInt((int) m_oRecord.lCompressedSize);
+                oDescriptor.putInt((int) m_oRecord.lSize);
+            }
+            FastpackJarWriter.this.write(oDescriptor);
+
+            m_oCentralDirectory.add(m_oRecord);
+            m_oOpenEntry = null;
+        }
+
+        private void deflate() throws IOException
+        {
+            int iLen = m_oDeflater.deflate(m_abBuffer);
+            if (iLen <= 0) return;
+            m_lCompressedSize += iLen;
+            m_lPosition += iLen;
+            put(ByteBuffer.wrap(m_abBuffer, 0, iLen));
+        }
+    }
+
+    /**
+     * Lets small payloads write into the shared buffer.
+     */
+    private class BufferedChannel implements WritableByteChannel
+    {
+        public int write(ByteBuffer oSource) throws IOException
+        {
+            int iLen = oSource.remaining();
+            put(oSource);
+            return iLen;
+        }
+
+        public boolean isOpen()
+        {
+            return m_oChannel.isOpen();
+        }
+
+        public void close()
+        {
+            // The writer owns the channel
+        }
+    }
+
+    private static class CentralRecord
+    {
+        String strName;
+        byte[] abName;
+        int iFlags;
+        int iMethod;
+        long lDosTime;
+        long lCrc;
+        long lCompressedSize;
+        long lSize;
+        long lOffset;
+
+        int versionNeeded()
+        {
+            return iMethod == CompressedEntry.DEFLATED ? 20 : 10;
+        }
+    }
+}
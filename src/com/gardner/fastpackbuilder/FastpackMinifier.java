@@ -0,0 +1,376 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.gardner.fastpackbuilder.Constants.IConstants;
+
+/**
+ * Strips indentation and comments from dashboard and system profile XML and from web dashboard JSON
+ * while they are packaged. Both passes stream, memory use does not grow with the file.
+ *
+ * XML is read with StAX and written again: whitespace-only text between tags is dropped unless it is the
+ * whole content of an element or xml:space="preserve" applies, comments are dropped, empty elements
+ * become &lt;a/&gt; and the document is written as UTF-8. Text, attributes, namespaces, processing
+ * instructions and the DOCTYPE are kept, characters the parser would normalise are written as
+ * character references.
+ *
+ * JSON only loses the whitespace between tokens, strings are copied byte for byte.
+ */
+public class FastpackMinifier
+{
+    public enum Format
+    {
+        XML, JSON
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // What was last written, decides whether pending whitespace is kept
+    private static final int OUT_NONE = 0;
+    private static final int OUT_START = 1;
+    private static final int OUT_END = 2;
+    private static final int OUT_TEXT = 3;
+
+    private static final ThreadLocal<XMLInputFactory> XML_FACTORY = new ThreadLocal<XMLInputFactory>()
+    {
+        @Override
+        protected XMLInputFactory initialValue()
+        {
+            XMLInputFactory oFactory = XMLInputFactory.newInstance();
+            oFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            oFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            oFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            oFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.FALSE);
+            return oFactory;
+        }
+    };
+
+    private FastpackMinifier()
+    {
+    }
+
+    /**
+     * @return how the file is minified, null if it is packaged as is.
+     * Dashboards and system profiles are XML, web dashboards are XML or JSON.
+     */
+    public static Format formatOf(String strRelativePath, ResourceType oType)
+    {
+        String strLower = strRelativePath.toLowerCase(Locale.ROOT);
+        boolean bWebDashboard = oType == ResourceType.RESOURCE && strLower.startsWith(IConstants.WEB_DASHBOARDS.toLowerCase(Locale.ROOT) + "/");
+        if (strLower.endsWith(".xml") && (oType == ResourceType.DASHBOARD || oType == ResourceType.SYSTEM_PROFILE || bWebDashboard)) return Format.XML;
+        if (strLower.endsWith(".json") && bWebDashboard) return Format.JSON;
+        return null;
+    }
+
+    /**
+     * Write the minified content. The output stream is flushed, neither stream is closed.
+     * @throws IOException if reading fails or the content is not well-formed, the output is incomplete then
+     */
+    public static void minify(Format oFormat, InputStream oIn, OutputStream oOut) throws IOException
+    {
+        if (oFormat == Format.XML) minifyXml(oIn, oOut);
+        else minifyJson(oIn, oOut);
+    }
+
+    public static void minifyXml(InputStream oIn, OutputStream oOut) throws IOException
+    {
+        Writer oWriter = new BufferedWriter(new OutputStreamWriter(oOut, StandardCharsets.UTF_8), BUFFER_SIZE);
+        try
+        {
+            XMLStreamReader oReader = XML_FACTORY.get().createXMLStreamReader(oIn);
+            try
+            {
+                new XmlPass(oReader, oWriter).run();
+            }
+            finally
+            {
+                oReader.close();
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(FastpackValidator.describe(e), e);
+        }
+        oWriter.flush();
+    }
+
+    public static void minifyJson(InputStream oIn, OutputStream oOut) throws IOException
+    {
+        byte[] abIn = new byte[BUFFER_SIZE];
+        byte[] abOut = new byte[BUFFER_SIZE];
+        int iOut = 0;
+        boolean bFirst = true;
+        boolean bString = false;
+        boolean bEscape = false;
+        boolean bSpace = false; // Whitespace was skipped since the last byte written
+        int iLast = -1; // Last byte written outside a string
+        int iLen;
+        while ((iLen = oIn.read(abIn)) >= 0)
+        {
+            if (bFirst && iLen >= 2)
+            {
+                int iBom = (abIn[0] & 0xFF) << 8 | (abIn[1] & 0xFF);
+                if (iBom == 0xFEFF || iBom == 0xFFFE) throw new IOException("UTF-16 JSON is not minified");
+                bFirst = false;
+            }
+            for (int i = 0; i < iLen; i++)
+            {
+                int b = abIn[i] & 0xFF;
+                if (bString)
+                {
+                    if (bEscape) bEscape = false;
+                    else if (b == '\\') bEscape = true;
+                    else if (b == '"') bString = false;
+                }
+                else
+                {
+                    if (b == ' ' || b == '\t' || b == '\n' || b == '\r')
+                    {
+                        bSpace = true;
+                        continue;
+                    }
+                    // Never glue two literals together, "1 2" must not become "12"
+                    if (bSpace && isLiteral(iLast) && isLiteral(b)) iOut = put(oOut, abOut, iOut, ' ');
+                    if (b == '"') bString = true;
+                    iLast = b;
+                    bSpace = false;
+                }
+                iOut = put(oOut, abOut, iOut, b);
+            }
+        }
+        if (bString) throw new IOException("unterminated JSON string");
+        oOut.write(abOut, 0, iOut);
+        oOut.flush();
+    }
+
+    private static int put(OutputStream oOut, byte[] abOut, int iOut, int b) throws IOException
+    {
+        if (iOut == abOut.length)
+        {
+            oOut.write(abOut, 0, iOut);
+            iOut = 0;
+        }
+        abOut[iOut] = (byte) b;
+        return iOut + 1;
+    }
+
+    private static boolean isLiteral(int b)
+    {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '-' || b == '+' || b == '.' || b >= 0x80;
+    }
+
+    /**
+     * One XML document, StAX events in, minified text out.
+     */
+    private static class XmlPass
+    {
+        private final XMLStreamReader m_oReader;
+        private final Writer m_oWriter;
+        private final StringBuilder m_oPending = new StringBuilder(); // Whitespace not yet known to be insignificant
+        private final Deque<Boolean> m_oPreserve = new ArrayDeque<Boolean>();
+        private boolean m_bStartOpen = false; // The last start tag still needs its '>' or '/>'
+        private int m_iLastOut = OUT_NONE;
+
+        XmlPass(XMLStreamReader oReader, Writer oWriter)
+        {
+            m_oReader = oReader;
+            m_oWriter = oWriter;
+        }
+
+        void run() throws XMLStreamException, IOException
+        {
+            writeDeclaration();
+            while (m_oReader.hasNext())
+            {
+                switch (m_oReader.next())
+                {
+                case XMLStreamReader.START_ELEMENT:
+                    flushPending(m_iLastOut == OUT_TEXT);
+                    startElement();
+                    break;
+                case XMLStreamReader.END_ELEMENT:
+                    flushPending(m_iLastOut == OUT_TEXT || m_iLastOut == OUT_START);
+                    endElement();
+                    break;
+                case XMLStreamReader.CHARACTERS:
+                case XMLStreamReader.CDATA:
+                case XMLStreamReader.SPACE:
+                    characters();
+                    break;
+                case XMLStreamReader.ENTITY_REFERENCE:
+                    flushPending(true);
+                    closeStart();
+                    m_oWriter.write('&');
+                    m_oWriter.write(m_oReader.getLocalName());
+                    m_oWriter.write(';');
+                    m_iLastOut = OUT_TEXT;
+                    break;
+                case XMLStreamReader.PROCESSING_INSTRUCTION:
+                    flushPending(m_iLastOut == OUT_TEXT);
+                    closeStart();
+                    m_oWriter.write("<?");
+                    m_oWriter.write(m_oReader.getPITarget());
+                    String strData = m_oReader.getPIData();
+                    if (strData != null && !strData.isEmpty()) m_oWriter.write(" " + strData);
+                    m_oWriter.write("?>");
+                    break;
+                case XMLStreamReader.DTD:
+                    m_oWriter.write(m_oReader.getText());
+                    break;
+                case XMLStreamReader.COMMENT:
+                default:
+                    break; // Comments go, whitespace around them stays pending
+                }
+            }
+        }
+
+        private void writeDeclaration() throws IOException
+        {
+            if (m_oReader.getVersion() == null) return; // No declaration, UTF-8 is the default
+            m_oWriter.write("<?xml version=\"" + m_oReader.getVersion() + "\" encoding=\"UTF-8\"");
+            if (m_oReader.standaloneSet()) m_oWriter.write(m_oReader.isStandalone() ? " standalone=\"yes\"" : " standalone=\"no\"");
+            m_oWriter.write("?>");
+        }
+
+        private void startElement() throws IOException
+        {
+            closeStart();
+            m_oWriter.write('<');
+            writeName(m_oReader.getPrefix(), m_oReader.getLocalName());
+            for (int i = 0; i < m_oReader.getNamespaceCount(); i++)
+            {
+                String strPrefix = m_oReader.getNamespacePrefix(i);
+                m_oWriter.write(strPrefix == null || strPrefix.isEmpty() ? " xmlns" : " xmlns:" + strPrefix);
+                writeAttributeValue(m_oReader.getNamespaceURI(i) == null ? "" : m_oReader.getNamespaceURI(i));
+            }
+            Boolean oPreserve = m_oPreserve.isEmpty() ? Boolean.FALSE : m_oPreserve.peek();
+            for (int i = 0; i < m_oReader.getAttributeCount(); i++)
+            {
+                m_oWriter.write(' ');
+                writeName(m_oReader.getAttributePrefix(i), m_oReader.getAttributeLocalName(i));
+                writeAttributeValue(m_oReader.getAttributeValue(i));
+                if (XMLConstants.XML_NS_URI.equals(m_oReader.getAttributeNamespace(i)) && m_oReader.getAttributeLocalName(i).equals("space"))
+                {
+                    oPreserve = Boolean.valueOf(m_oReader.getAttributeValue(i).equals("preserve"));
+                }
+            }
+            m_oPreserve.push(oPreserve);
+            m_bStartOpen = true;
+            m_iLastOut = OUT_START;
+        }
+
+        private void endElement() throws IOException
+        {
+            if (m_bStartOpen)
+            {
+                m_oWriter.write("/>");
+                m_bStartOpen = false;
+            }
+            else
+            {
+                m_oWriter.write("</");
+                writeName(m_oReader.getPrefix(), m_oReader.getLocalName());
+                m_oWriter.write('>');
+            }
+            m_oPreserve.pop();
+            m_iLastOut = OUT_END;
+        }
+
+        private void characters() throws IOException
+        {
+            String strText = m_oReader.getText();
+            if (m_oPreserve.isEmpty()) return; // Whitespace outside the root element
+            if (!m_oPreserve.peek().booleanValue() && isWhitespace(strText))
+            {
+                m_oPending.append(strText);
+                return;
+            }
+            flushPending(true);
+            closeStart();
+            writeText(strText);
+            m_iLastOut = OUT_TEXT;
+        }
+
+        private void flushPending(boolean bKeep) throws IOException
+        {
+            if (m_oPending.length() == 0) return;
+            if (bKeep)
+            {
+                closeStart();
+                writeText(m_oPending);
+                m_iLastOut = OUT_TEXT;
+            }
+            m_oPending.setLength(0);
+        }
+
+        private void closeStart() throws IOException
+        {
+            if (!m_bStartOpen) return;
+            m_oWriter.write('>');
+            m_bStartOpen = false;
+        }
+
+        private void writeName(String strPrefix, String strLocalName) throws IOException
+        {
+            if (strPrefix != null && !strPrefix.isEmpty())
+            {
+                m_oWriter.write(strPrefix);
+                m_oWriter.write(':');
+            }
+            m_oWriter.write(strLocalName);
+        }
+
+        private void writeText(CharSequence oText) throws IOException
+        {
+            for (int i = 0; i < oText.length(); i++)
+            {
+                char c = oText.charAt(i);
+                if (c == '&') m_oWriter.write("&amp;");
+                else if (c == '<') m_oWriter.write("&lt;");
+                else if (c == '>') m_oWriter.write("&gt;");
+                else if (c == '\r') m_oWriter.write("&#13;"); // Would be read back as a line feed
+                else m_oWriter.write(c);
+            }
+        }
+
+        private void writeAttributeValue(String strValue) throws IOException
+        {
+            m_oWriter.write("=\"");
+            for (int i = 0; i < strValue.length(); i++)
+            {
+                char c = strValue.charAt(i);
+                if (c == '&') m_oWriter.write("&amp;");
+                else if (c == '<') m_oWriter.write("&lt;");
+                else if (c == '"') m_oWriter.write("&quot;");
+                else if (c == '\n') m_oWriter.write("&#10;"); // Attribute value normalisation would turn these into spaces
+                else if (c == '\r') m_oWriter.write("&#13;");
+                else if (c == '\t') m_oWriter.write("&#9;");
+                else m_oWriter.write(c);
+            }
+            m_oWriter.write('"');
+        }
+
+        private static boolean isWhitespace(String strText)
+        {
+            for (int i = 0; i < strText.length(); i++)
+            {
+                char c = strText.charAt(i);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads files ahead of the jar writer so slow storage (e.g. a network share) is read while
+ * earlier entries are compressed and written, instead of every open and read stalling the build.
+ *
+ * A few reader threads (virtual threads on runtimes that have them) load the upcoming files, in jar order,
+ * into chunks of a buffer pool. The pool never holds more than the byte budget; a file is only read
+ * ahead once there is room for all of it, and files above half the budget are not read ahead at all but
+ * read by the compressor as before. Chunks go back to the pool when the compressor releases the content.
+ *
+ * fill() must be called by one thread only, the one writing the jar. take() and Content.release()
+ * can be called from any thread.
+ */
+public class FastpackReadAhead implements Closeable
+{
+    public static final int DEFAULT_READERS = 4;
+
+    private final List<ScannedFile> m_oFiles;
+    private final Map<String, Integer> m_oIndex;
+    private final boolean[] m_abTaken;
+    private final Map<String, Future<Content>> m_oPending = new HashMap<String, Future<Content>>();
+    private final Deque<ByteBuffer> m_oFreeChunks = new ArrayDeque<ByteBuffer>();
+    private final int m_iChunkSize;
+    private final int m_iMaxChunks;
+    private int m_iAvailableChunks;
+    private int m_iNext = 0;
+    private final AtomicInteger m_oPrefetched = new AtomicInteger();
+    private final ExecutorService m_oReaders;
+
+    /**
+     * @param oFiles files in the order they are written to the jar
+     * @param lBudget maximum number of bytes held in the buffer pool
+     * @param iChunkSize size of each pooled buffer
+     * @param iReaders number of files read at the same time
+     */
+    public FastpackReadAhead(List<ScannedFile> oFiles, long lBudget, int iChunkSize, int iReaders)
+    {
+        m_oFiles = oFiles;
+        m_oIndex = new HashMap<String, Integer>(oFiles.size() * 2);
+        for (int i = 0; i < oFiles.size(); i++) m_oIndex.put(oFiles.get(i).getRelativePath(), i);
+        m_abTaken = new boolean[oFiles.size()];
+        m_iChunkSize = iChunkSize;
+        m_iAvailableChunks = (int) Math.min(Integer.MAX_VALUE, Math.max(1, lBudget / iChunkSize));
+        m_iMaxChunks = Math.max(1, m_iAvailableChunks / 2);
+        m_oReaders = Executors.newFixedThreadPool(Math.max(1, iReaders), newThreadFactory("fastpack-read-"));
+    }
+
+    /**
+     * Start reading the next files, in order, as long as the budget has room for them. Never blocks.
+     */
+    public synchronized void fill()
+    {
+        while (m_iNext < m_oFiles.size())
+        {
+            ScannedFile oFile = m_oFiles.get(m_iNext);
+            int iChunks = (int) Math.min(Integer.MAX_VALUE, (oFile.getSize() + m_iChunkSize - 1) / m_iChunkSize);
+            if (m_abTaken[m_iNext] || iChunks == 0 || iChunks > m_iMaxChunks)
+            {
+                m_iNext++; // Already asked for, empty, or too large: the compressor reads it itself
+                continue;
+            }
+            if (iChunks > m_iAvailableChunks) return;
+
+            m_iAvailableChunks -= iChunks;
+            ByteBuffer[] aoChunks = new ByteBuffer[iChunks];
+            for (int i = 0; i < iChunks; i++)
+            {
+                ByteBuffer oChunk = m_oFreeChunks.poll();
+                aoChunks[i] = oChunk != null ? oChunk : ByteBuffer.allocateDirect(m_iChunkSize);
+            }
+            m_oPending.put(oFile.getRelativePath(), m_oReaders.submit(new Reader(oFile, aoChunks)));
+            m_iNext++;
+        }
+    }
+
+    /**
+     * Get the content of a file that was read ahead, waiting for the read to finish if needed.
+     * @return the content, to be released when done with it. Null if the file was not read ahead
+     * (too large, not reached yet, or the read failed), the caller has to read it itself.
+     */
+    public Content take(ScannedFile oFile) throws InterruptedIOException
+    {
+        Future<Content> oFuture;
+        synchronized (this)
+        {
+            oFuture = m_oPending.remove(oFile.getRelativePath());
+            if (oFuture == null)
+            {
+                Integer oIndex = m_oIndex.get(oFile.getRelativePath());
+                if (oIndex != null) m_abTaken[oIndex] = true; // Don't read it later, nobody would take it
+                return null;
+            }
+        }
+        try
+        {
+            return oFuture.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + oFile.getPath());
+        }
+        catch (ExecutionException e)
+        {
+            return null; // Read failed, the chunks were released by the reader. Reading it again reports the error.
+        }
+    }
+
+    /**
+     * @return number of files that were read ahead so far
+     */
+    public int getPrefetched()
+    {
+        return m_oPrefetched.get();
+    }
+
+    /**
+     * Stop the readers. Content that was taken stays valid until it is released.
+     */
+    public void close()
+    {
+        m_oReaders.shutdownNow();
+        synchronized (this)
+        {
+            for (Future<Content> oPending : m_oPending.values()) oPending.cancel(true);
+            m_oPending.clear();
+            m_oFreeChunks.clear();
+        }
+    }
+
+    private synchronized void release(ByteBuffer[] aoChunks)
+    {
+        for (ByteBuffer oChunk : aoChunks)
+        {
+            oChunk.clear();
+            m_oFreeChunks.push(oChunk);
+        }
+        m_iAvailableChunks += aoChunks.length;
+    }
+
+    /**
+     * Platform threads, or virtual threads when the runtime has them (Java 21 and later).
+     * Found by reflection so the builder still runs on older runtimes.
+     */
+    static ThreadFactory newThreadFactory(final String strPrefix)
+    {
+        try
+        {
+            // Call through the public Thread.Builder interface, the builder class itself is not accessible
+            Class<?> oBuilderClass = Class.forName("java.lang.Thread$Builder");
+            Method oName = oBuilderClass.getMethod("name", String.class, long.class);
+            Method oFactory = oBuilderClass.getMethod("factory");
+            Object oBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) oFactory.invoke(oName.invoke(oBuilder, strPrefix, 1L));
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return new ThreadFactory()
+            {
+                private final AtomicInteger m_oCount = new AtomicInteger();
+
+                public Thread newThread(Runnable oRunnable)
+                {
+                    Thread oThread = new Thread(oRunnable, strPrefix + m_oCount.incrementAndGet());
+                    oThread.setDaemon(true);
+                    return oThread;
+                }
+            };
+        }
+    }
+
+    private class Reader implements Callable<Content>
+    {
+        private final ScannedFile m_oFile;
+        private final ByteBuffer[] m_aoChunks;
+
+        Reader(ScannedFile oFile, ByteBuffer[] aoChunks)
+        {
+            m_oFile = oFile;
+            m_aoChunks = aoChunks;
+        }
+
+        public Content call() throws IOException
+        {
+            try (FileChannel oChannel = FileChannel.open(m_oFile.getPath(), StandardOpenOption.READ))
+            {
+                if (oChannel.size() != m_oFile.getSize()) throw new IOException("File changed since the scan: " + m_oFile.getPath());
+                long lRead = 0;
+                for (ByteBuffer oChunk : m_aoChunks)
+                {
+                    oChunk.limit((int) Math.min(m_iChunkSize, m_oFile.getSize() - lRead));
+                    while (oChunk.hasRemaining())
+                    {
+                        if (oChannel.read(oChunk) < 0) throw new IOException("File changed since the scan: " + m_oFile.getPath());
+                    }
+                    oChunk.flip();
+                    lRead += oChunk.limit();
+                }
+                m_oPrefetched.incrementAndGet();
+                return new Content(m_aoChunks, lRead);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                release(m_aoChunks);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The bytes of a file that was read ahead, in pooled chunks.
+     */
+    public class Content
+    {
+        private final ByteBuffer[] m_aoChunks;
+        private final long m_lSize;
+        private boolean m_bReleased = false;
+
+        private Content(ByteBuffer[] aoChunks, long lSize)
+        {
+            m_aoChunks = aoChunks;
+            m_lSize = lSize;
+        }
+
+        public long getSize()
+        {
+            return m_lSize;
+        }
+
+        /**
+         * @return number of chunks
+         */
+        public int getChunkCount()
+        {
+            return m_aoChunks.length;
+        }
+
+        /**
+         * @return a view of chunk i between position and limit, only valid until the content is released
+         */
+        public ByteBuffer getChunk(int i)
+        {
+            return m_aoChunks[i].duplicate();
+        }
+
+        /**
+         * @return the content as a stream, only valid until the content is released
+         */
+        public InputStream getInputStream()
+        {
+            return new InputStream()
+            {
+                private int m_iChunk = 0;
+                private ByteBuffer m_oCurrent = m_aoChunks.length > 0 ? getChunk(0) : null;
+
+                @Override
+                public int read()
+                {
+                    if (!next()) return -1;
+                    return m_oCurrent.get() & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] abData, int iOffset, int iLen)
+                {
+                    if (iLen == 0) return 0;
+                    if (!next()) return -1;
+                    int iRead = Math.min(iLen, m_oCurrent.remaining());
+                    m_oCurrent.get(abData, iOffset, iRead);
+                    return iRead;
+                }
+
+                private boolean next()
+                {
+                    while (m_oCurrent != null && !m_oCurrent.hasRemaining())
+                    {
+                        m_oCurrent = ++m_iChunk < m_aoChunks.length ? getChunk(m_iChunk) : null;
+                    }
+                    return m_oCurrent != null;
+                }
+            };
+        }
+
+        /**
+         * Give the chunks back to the pool. Calling it again does nothing.
+         */
+        public synchronized void release()
+        {
+            if (m_bReleased) return;
+            m_bReleased = true;
+            FastpackReadAhead.this.release(m_aoChunks);
+        }
+    }
+}
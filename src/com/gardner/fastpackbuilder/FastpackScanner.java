@@ -0,0 +1,193 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks the raw files folder once and produces a FastpackSnapshot.
+ * Top level directories (typically sensor packs) are walked in parallel when
+ * more than one thread is allowed.
+ */
+public class FastpackScanner
+{
+    static final Comparator<ScannedFile> BY_PATH = new Comparator<ScannedFile>()
+    {
+        public int compare(ScannedFile o1, ScannedFile o2)
+        {
+            return o1.getRelativePath().compareTo(o2.getRelativePath());
+        }
+    };
+
+    private final int m_iParallelism;
+    private final Set<Path> m_oExcluded = new HashSet<Path>();
+
+    public FastpackScanner(int iParallelism)
+    {
+        m_iParallelism = Math.max(1, iParallelism);
+    }
+
+    /**
+     * Leave a file out of the snapshot, e.g. the fastpack jar that is written into the input directory.
+     */
+    public FastpackScanner exclude(Path oPath)
+    {
+        m_oExcluded.add(oPath.toAbsolutePath().normalize());
+        return this;
+    }
+
+    public FastpackSnapshot scan(Path oRoot) throws IOException
+    {
+        final Path oBase = oRoot.toAbsolutePath().normalize();
+        List<ScannedFile> oFiles = new ArrayList<ScannedFile>();
+        List<ScannedFile> oDirs = new ArrayList<ScannedFile>();
+        List<Path> oSubTrees = new ArrayList<Path>();
+
+        // First level is listed here, everything below is walked per subtree.
+        try (DirectoryStream<Path> oStream = Files.newDirectoryStream(oBase))
+        {
+            for (Path oChild : oStream)
+            {
+                BasicFileAttributes oAttributes;
+                try
+                {
+                    oAttributes = Files.readAttributes(oChild, BasicFileAttributes.class);
+                }
+                catch (IOException e)
+                {
+                    continue; // e.g. a dangling link. Nothing to package.
+                }
+                if (m_oExcluded.contains(oChild)) continue;
+                if (oAttributes.isRegularFile()) oFiles.add(new ScannedFile(oChild, relativize(oBase, oChild), oAttributes));
+                else if (oAttributes.isDirectory()) oSubTrees.add(oChild);
+            }
+        }
+
+        if (m_iParallelism > 1 && oSubTrees.size() > 1)
+        {
+            List<SubTreeWalk> oTasks = new ArrayList<SubTreeWalk>();
+            for (Path oSubTree : oSubTrees) oTasks.add(new SubTreeWalk(oBase, oSubTree, m_oExcluded));
+            ForkJoinPool oPool = new ForkJoinPool(m_iParallelism);
+            try
+            {
+                oPool.submit(new RecursiveAction()
+                {
+                    protected void compute()
+                    {
+                        ForkJoinTask.invokeAll(oTasks);
+                    }
+                }).join();
+            }
+            catch (UncheckedIOException e)
+            {
+                throw e.getCause();
+            }
+            finally
+            {
+                oPool.shutdown();
+            }
+            for (SubTreeWalk oTask : oTasks)
+            {
+                oFiles.addAll(oTask.m_oFiles);
+                oDirs.addAll(oTask.m_oDirs);
+            }
+        }
+        else
+        {
+            for (Path oSubTree : oSubTrees) walk(oBase, oSubTree, m_oExcluded, oFiles, oDirs);
+        }
+
+        // Links can make the same relative path show up twice. Keep the first one.
+        Set<String> oSeen = new HashSet<String>(oFiles.size() * 2);
+        List<ScannedFile> oUniqueFiles = new ArrayList<ScannedFile>(oFiles.size());
+        for (ScannedFile oFile : oFiles) if (oSeen.add(oFile.getRelativePath())) oUniqueFiles.add(oFile);
+        oSeen.clear();
+        List<ScannedFile> oUniqueDirs = new ArrayList<ScannedFile>(oDirs.size());
+        for (ScannedFile oDir : oDirs) if (oSeen.add(oDir.getRelativePath())) oUniqueDirs.add(oDir);
+
+        Collections.sort(oUniqueFiles, BY_PATH);
+        Collections.sort(oUniqueDirs, BY_PATH);
+        return new FastpackSnapshot(oBase, oUniqueFiles, oUniqueDirs);
+    }
+
+    private static void walk(final Path oBase, Path oStart, final Set<Path> oExcluded, final List<ScannedFile> oFiles, final List<ScannedFile> oDirs) throws IOException
+    {
+        Files.walkFileTree(oStart, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path oDir, BasicFileAttributes oAttributes)
+            {
+                if (oExcluded.contains(oDir)) return FileVisitResult.SKIP_SUBTREE;
+                oDirs.add(new ScannedFile(oDir, relativize(oBase, oDir), oAttributes));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path oFile, BasicFileAttributes oAttributes)
+            {
+                if (oAttributes.isRegularFile() && !oExcluded.contains(oFile)) oFiles.add(new ScannedFile(oFile, relativize(oBase, oFile), oAttributes));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path oFile, IOException e) throws IOException
+            {
+                if (e instanceof FileSystemLoopException) return FileVisitResult.SKIP_SUBTREE;
+                throw e;
+            }
+        });
+    }
+
+    static String relativize(Path oBase, Path oPath)
+    {
+        return oBase.relativize(oPath).toString().replace(oPath.getFileSystem().getSeparator(), "/");
+    }
+
+    private static class SubTreeWalk extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Path m_oBase;
+        private final Path m_oStart;
+        private final Set<Path> m_oExcluded;
+        private final List<ScannedFile> m_oFiles = new ArrayList<ScannedFile>();
+        private final List<ScannedFile> m_oDirs = new ArrayList<ScannedFile>();
+
+        SubTreeWalk(Path oBase, Path oStart, Set<Path> oExcluded)
+        {
+            m_oBase = oBase;
+            m_oStart = oStart;
+            m_oExcluded = oExcluded;
+        }
+
+        @Override
+        protected void compute()
+        {
+            try
+            {
+                walk(m_oBase, m_oStart, m_oExcluded, m_oFiles, m_oDirs);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.gardner.fastpackbuilder;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable result of scanning the raw files folder.
+ * Files and directories are sorted by relative path so every consumer
+ * (plugin.xml, jar writer) sees them in the same order.
+ */
+public class FastpackSnapshot
+{
+    private final Path m_oRoot;
+    private final List<ScannedFile> m_oFiles;
+    private final List<ScannedFile> m_oDirectories;
+    private final long m_lTotalBytes;
+    private final long m_lNewestModified;
+
+    public FastpackSnapshot(Path oRoot, List<ScannedFile> oFiles, List<ScannedFile> oDirectories)
+    {
+        m_oRoot = oRoot;
+        m_oFiles = Collections.unmodifiableList(oFiles);
+        m_oDirectories = Collections.unmodifiableList(oDirectories);
+
+        long lTotal = 0;
+        long lNewest = 0;
+        for (ScannedFile oFile : oFiles)
+        {
+            lTotal += oFile.getSize();
+            lNewest = Math.max(lNewest, oFile.getLastModified());
+        }
+        m_lTotalBytes = lTotal;
+        m_lNewestModified = lNewest;
+    }
+
+    public Path getRoot()
+    {
+        return m_oRoot;
+    }
+
+    /**
+     * @return every regular file below the root, recursively
+     */
+    public List<ScannedFile> getFiles()
+    {
+        return m_oFiles;
+    }
+
+    /**
+     * @return every directory below the root, recursively
+     */
+    public List<ScannedFile> getDirectories()
+    {
+        return m_oDirectories;
+    }
+
+    public long getTotalBytes()
+    {
+        return m_lTotalBytes;
+    }
+
+    /**
+     * @return newest modification time of any file, 0 when there are no files
+     */
+    public long getNewestModified()
+    {
+        return m_lNewestModified;
+    }
+}
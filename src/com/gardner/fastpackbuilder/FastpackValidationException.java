@@ -0,0 +1,40 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by FastPackBuilder.build when the pre-flight validation found files the server would reject.
+ * Nothing was packaged. The message lists the first problems, getProblems() all of them.
+ */
+public class FastpackValidationException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_LISTED = 20;
+
+    private final List<String> m_oProblems;
+
+    public FastpackValidationException(String strFastpack, List<String> oProblems)
+    {
+        super(message(strFastpack, oProblems));
+        m_oProblems = Collections.unmodifiableList(oProblems);
+    }
+
+    /**
+     * @return one "path: problem" line per problem, sorted by path
+     */
+    public List<String> getProblems()
+    {
+        return m_oProblems;
+    }
+
+    private static String message(String strFastpack, List<String> oProblems)
+    {
+        StringBuilder oMessage = new StringBuilder();
+        oMessage.append(strFastpack).append(" failed validation with ").append(oProblems.size()).append(oProblems.size() == 1 ? " problem:" : " problems:");
+        for (int i = 0; i < oProblems.size() && i < MAX_LISTED; i++) oMessage.append("\n  ").append(oProblems.get(i));
+        if (oProblems.size() > MAX_LISTED) oMessage.append("\n  ... and ").append(oProblems.size() - MAX_LISTED).append(" more");
+        return oMessage.toString();
+    }
+}
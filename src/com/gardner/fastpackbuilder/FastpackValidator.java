@@ -0,0 +1,553 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.gardner.fastpackbuilder.Constants.IConstants;
+
+/**
+ * Pre-flight checks of a FastpackSnapshot, run before anything is packaged so a fastpack the server
+ * would reject is never built:
+ * <ul>
+ * <li>every .xml file (dashboards, system profiles, web dashboards, sensor pack plugin.xml) is well-formed</li>
+ * <li>every .json file is well-formed</li>
+ * <li>user plugins are jars with a manifest that names the bundle, as are sensor pack manifests</li>
+ * <li>every web dashboard has both its .json and its .xml file</li>
+ * <li>every sensor pack directory has a plugin.xml</li>
+ * </ul>
+ * XML is parsed with StAX and JSON with a streaming checker, so large system profiles are never held in memory.
+ * Files are checked on a fork-join pool. Every problem is collected rather than stopping at the first one.
+ * Given a FastpackEntryCache, files it holds were checked by an earlier build and only the structure is checked again.
+ */
+public class FastpackValidator
+{
+    private static final String BUNDLE_SYMBOLIC_NAME = "Bundle-SymbolicName";
+    private static final int FILES_PER_TASK = 8;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private enum Kind
+    {
+        XML, JSON, USER_PLUGIN, MANIFEST
+    }
+
+    private final ResourceClassifier m_oClassifier;
+    private final int m_iParallelism;
+    private final ThreadLocal<XMLInputFactory> m_oXmlFactory = new ThreadLocal<XMLInputFactory>()
+    {
+        @Override
+        protected XMLInputFactory initialValue()
+        {
+            XMLInputFactory oFactory = XMLInputFactory.newInstance();
+            // Well-formedness only: never resolve DTDs or entities outside the file
+            oFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            oFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            oFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+            return oFactory;
+        }
+    };
+
+    /**
+     * @param oClassifier decides which files are user plugins and which directories are sensor packs
+     * @param iParallelism number of threads checking files, 1 checks them on the calling thread
+     */
+    public FastpackValidator(ResourceClassifier oClassifier, int iParallelism)
+    {
+        m_oClassifier = oClassifier;
+        m_iParallelism = Math.max(1, iParallelism);
+    }
+
+    /**
+     * Validate the snapshot and throw if anything is wrong.
+     * @param strFastpack name used in the exception message
+     * @throws FastpackValidationException listing every problem
+     * @throws InterruptedIOException if the thread was interrupted, e.g. because the build was cancelled
+     */
+    public void check(String strFastpack, FastpackSnapshot oSnapshot) throws IOException
+    {
+        check(strFastpack, oSnapshot, null);
+    }
+
+    /**
+     * Validate the snapshot, skipping the content of files that are unchanged since an earlier build.
+     * @param oChecked entries of earlier builds, which only cache files that passed validation. Null to check every file.
+     * @throws FastpackValidationException listing every problem
+     * @throws InterruptedIOException if the thread was interrupted, e.g. because the build was cancelled
+     */
+    public void check(String strFastpack, FastpackSnapshot oSnapshot, FastpackEntryCache oChecked) throws IOException
+    {
+        List<String> oProblems = validate(oSnapshot, oChecked);
+        if (!oProblems.isEmpty()) throw new FastpackValidationException(strFastpack, oProblems);
+    }
+
+    /**
+     * @return one "path: problem" line per problem, sorted by path. Empty if the snapshot is fine.
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public List<String> validate(FastpackSnapshot oSnapshot) throws InterruptedIOException
+    {
+        return validate(oSnapshot, null);
+    }
+
+    /**
+     * @param oChecked entries of earlier builds, the content of files it holds is not checked again. Null to check every file.
+     * @return one "path: problem" line per problem, sorted by path. Empty if the snapshot is fine.
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public List<String> validate(FastpackSnapshot oSnapshot, FastpackEntryCache oChecked) throws InterruptedIOException
+    {
+        final Queue<String> oProblems = new ConcurrentLinkedQueue<String>();
+        checkStructure(oSnapshot, oProblems);
+
+        final List<ScannedFile> oFiles = new ArrayList<ScannedFile>();
+        final List<Kind> oKinds = new ArrayList<Kind>();
+        for (ScannedFile oFile : oSnapshot.getFiles())
+        {
+            Kind oKind = kindOf(oFile.getRelativePath());
+            if (oKind == null || (oChecked != null && oChecked.get(oFile) != null)) continue;
+            oFiles.add(oFile);
+            oKinds.add(oKind);
+        }
+
+        FileChecks oChecks = new FileChecks(oFiles, oKinds, 0, oFiles.size(), oProblems);
+        if (m_iParallelism > 1 && oFiles.size() > FILES_PER_TASK)
+        {
+            ForkJoinPool oPool = new ForkJoinPool(m_iParallelism);
+            try
+            {
+                oPool.submit(oChecks).get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while validating " + oSnapshot.getRoot());
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException(e.getCause()); // Checks report problems instead of throwing
+            }
+            finally
+            {
+                oPool.shutdownNow();
+            }
+        }
+        else oChecks.invoke();
+
+        List<String> oSorted = new ArrayList<String>(oProblems);
+        Collections.sort(oSorted);
+        return oSorted;
+    }
+
+    /**
+     * Checks that only need the file list: web dashboard pairs and sensor pack plugin.xml files.
+     */
+    private void checkStructure(FastpackSnapshot oSnapshot, Queue<String> oProblems)
+    {
+        Set<String> oPaths = new HashSet<String>(oSnapshot.getFiles().size() * 2);
+        Map<String, String> oJson = new HashMap<String, String>();
+        Map<String, String> oXml = new HashMap<String, String>();
+        for (ScannedFile oFile : oSnapshot.getFiles())
+        {
+            String strPath = oFile.getRelativePath();
+            oPaths.add(strPath);
+            if (!isWebDashboard(strPath)) continue;
+            String strLower = strPath.toLowerCase(Locale.ROOT);
+            if (strLower.endsWith(".json")) oJson.put(strLower.substring(0, strLower.length() - 5), strPath);
+            else if (strLower.endsWith(".xml")) oXml.put(strLower.substring(0, strLower.length() - 4), strPath);
+        }
+        for (Map.Entry<String, String> oEntry : oJson.entrySet())
+        {
+            if (!oXml.containsKey(oEntry.getKey())) oProblems.add(oEntry.getValue() + ": web dashboard has no .xml file");
+        }
+        for (Map.Entry<String, String> oEntry : oXml.entrySet())
+        {
+            if (!oJson.containsKey(oEntry.getKey())) oProblems.add(oEntry.getValue() + ": web dashboard has no .json file");
+        }
+
+        for (ScannedFile oDir : oSnapshot.getDirectories())
+        {
+            String strPath = oDir.getRelativePath();
+            if (!m_oClassifier.isSensorPack(strPath)) continue;
+            if (!oPaths.contains(strPath + "/plugin.xml")) oProblems.add(strPath + ": sensor pack has no plugin.xml (exclude the folder with --rules if it is not one)");
+        }
+    }
+
+    private Kind kindOf(String strRelativePath)
+    {
+        String strLower = strRelativePath.toLowerCase(Locale.ROOT);
+        if (strLower.endsWith(".xml")) return Kind.XML;
+        if (strLower.endsWith(".json")) return Kind.JSON;
+        int iSlash = strRelativePath.indexOf('/');
+        if (iSlash >= 0 && strRelativePath.substring(iSlash + 1).equals(JarFile.MANIFEST_NAME) && !isWebDashboard(strRelativePath)) return Kind.MANIFEST;
+        if (m_oClassifier.typeOf(strRelativePath) == ResourceType.USER_PLUGIN) return Kind.USER_PLUGIN;
+        return null;
+    }
+
+    private static boolean isWebDashboard(String strRelativePath)
+    {
+        int iSlash = strRelativePath.indexOf('/');
+        return iSlash == IConstants.WEB_DASHBOARDS.length() && strRelativePath.indexOf('/', iSlash + 1) < 0
+                && strRelativePath.regionMatches(true, 0, IConstants.WEB_DASHBOARDS, 0, iSlash);
+    }
+
+    /**
+     * @return the problem with the file, null if there is none
+     */
+    private String checkFile(ScannedFile oFile, Kind oKind)
+    {
+        try
+        {
+            switch (oKind)
+            {
+                case XML:
+                    return checkXml(oFile);
+                case JSON:
+                    return checkJson(oFile);
+                case USER_PLUGIN:
+                    return checkUserPlugin(oFile);
+                default:
+                    return checkManifest(oFile);
+            }
+        }
+        catch (IOException e)
+        {
+            return "cannot be read: " + e.getMessage();
+        }
+    }
+
+    private String checkXml(ScannedFile oFile) throws IOException
+    {
+        try (InputStream oIn = new BufferedInputStream(Files.newInputStream(oFile.getPath()), READ_BUFFER_SIZE))
+        {
+            XMLStreamReader oReader = m_oXmlFactory.get().createXMLStreamReader(oIn);
+            try
+            {
+                while (oReader.hasNext()) oReader.next();
+                return null;
+            }
+            finally
+            {
+                oReader.close();
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            return describe(e);
+        }
+    }
+
+    /**
+     * @return "malformed XML at line N: reason" without the parser's location prefix
+     */
+    static String describe(XMLStreamException e)
+    {
+        String strMessage = e.getMessage();
+        // The message starts with "ParseError at [row,col]:..." when there is a location
+        int iNewLine = strMessage != null ? strMessage.indexOf('\n') : -1;
+        if (iNewLine >= 0) strMessage = strMessage.substring(iNewLine + 1).replace("Message: ", "");
+        if (e.getLocation() != null) return "malformed XML at line " + e.getLocation().getLineNumber() + ": " + strMessage;
+        return "malformed XML: " + strMessage;
+    }
+
+    private String checkJson(ScannedFile oFile) throws IOException
+    {
+        try (Reader oReader = new BufferedReader(new InputStreamReader(Files.newInputStream(oFile.getPath()), StandardCharsets.UTF_8), READ_BUFFER_SIZE))
+        {
+            new JsonChecker(oReader).check();
+            return null;
+        }
+        catch (ParseException e)
+        {
+            return "malformed JSON at line " + e.getErrorOffset() + ": " + e.getMessage();
+        }
+    }
+
+    private String checkUserPlugin(ScannedFile oFile) throws IOException
+    {
+        try (JarFile oJar = new JarFile(oFile.getPath().toFile(), false))
+        {
+            Manifest oManifest = oJar.getManifest();
+            if (oManifest == null) return "user plugin has no " + JarFile.MANIFEST_NAME;
+            return checkBundle(oManifest, "user plugin");
+        }
+        catch (ZipException e)
+        {
+            return "user plugin is not a valid jar: " + e.getMessage();
+        }
+    }
+
+    private String checkManifest(ScannedFile oFile) throws IOException
+    {
+        try (InputStream oIn = new BufferedInputStream(Files.newInputStream(oFile.getPath())))
+        {
+            return checkBundle(new Manifest(oIn), "sensor pack");
+        }
+        catch (IOException e)
+        {
+            if (e.getClass() != IOException.class) throw e; // Manifest reports bad content as plain IOException
+            return "malformed manifest: " + e.getMessage();
+        }
+    }
+
+    private static String checkBundle(Manifest oManifest, String strWhat)
+    {
+        String strName = oManifest.getMainAttributes().getValue(BUNDLE_SYMBOLIC_NAME);
+        if (strName == null || strName.trim().isEmpty()) return strWhat + " manifest has no " + BUNDLE_SYMBOLIC_NAME;
+        if (oManifest.getMainAttributes().get(Attributes.Name.MANIFEST_VERSION) == null) return strWhat + " manifest has no " + Attributes.Name.MANIFEST_VERSION;
+        return null;
+    }
+
+    /**
+     * Checks a range of files, split in halves until the ranges are small.
+     */
+    private class FileChecks extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ScannedFile> m_oFiles;
+        private final List<Kind> m_oKinds;
+        private final int m_iStart;
+        private final int m_iEnd;
+        private final Queue<String> m_oProblems;
+
+        FileChecks(List<ScannedFile> oFiles, List<Kind> oKinds, int iStart, int iEnd, Queue<String> oProblems)
+        {
+            m_oFiles = oFiles;
+            m_oKinds = oKinds;
+            m_iStart = iStart;
+            m_iEnd = iEnd;
+            m_oProblems = oProblems;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (m_iParallelism > 1 && m_iEnd - m_iStart > FILES_PER_TASK)
+            {
+                int iMiddle = (m_iStart + m_iEnd) >>> 1;
+                invokeAll(new FileChecks(m_oFiles, m_oKinds, m_iStart, iMiddle, m_oProblems), new FileChecks(m_oFiles, m_oKinds, iMiddle, m_iEnd, m_oProblems));
+                return;
+            }
+            for (int i = m_iStart; i < m_iEnd; i++)
+            {
+                if (Thread.currentThread().isInterrupted() || isCancelled()) return;
+                ScannedFile oFile = m_oFiles.get(i);
+                String strProblem = checkFile(oFile, m_oKinds.get(i));
+                if (strProblem != null) m_oProblems.add(oFile.getRelativePath() + ": " + strProblem);
+            }
+        }
+    }
+
+    /**
+     * Streaming well-formedness check of a JSON document (RFC 8259), nothing is kept but the nesting depth.
+     */
+    private static class JsonChecker
+    {
+        private static final int MAX_DEPTH = 512;
+
+        private final Reader m_oReader;
+        private int m_iNext;
+        private int m_iLine = 1;
+
+        JsonChecker(Reader oReader) throws IOException
+        {
+            m_oReader = oReader;
+            m_iNext = oReader.read();
+            if (m_iNext == '\uFEFF') m_iNext = oReader.read(); // Byte order mark
+        }
+
+        void check() throws IOException, ParseException
+        {
+            skipWhitespace();
+            value(0);
+            skipWhitespace();
+            if (m_iNext != -1) throw error("unexpected " + describe(m_iNext) + " after the end of the document");
+        }
+
+        private void value(int iDepth) throws IOException, ParseException
+        {
+            if (iDepth > MAX_DEPTH) throw error("nested deeper than " + MAX_DEPTH + " levels");
+            switch (m_iNext)
+            {
+                case '{':
+                    next();
+                    skipWhitespace();
+                    if (m_iNext == '}')
+                    {
+                        next();
+                        return;
+                    }
+                    while (true)
+                    {
+                        skipWhitespace();
+                        if (m_iNext != '"') throw error("expected a member name but found " + describe(m_iNext));
+                        string();
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                        value(iDepth + 1);
+                        skipWhitespace();
+                        if (m_iNext != ',') break;
+                        next();
+                    }
+                    expect('}');
+                    return;
+                case '[':
+                    next();
+                    skipWhitespace();
+                    if (m_iNext == ']')
+                    {
+                        next();
+                        return;
+                    }
+                    while (true)
+                    {
+                        skipWhitespace();
+                        value(iDepth + 1);
+                        skipWhitespace();
+                        if (m_iNext != ',') break;
+                        next();
+                    }
+                    expect(']');
+                    return;
+                case '"':
+                    string();
+                    return;
+                case 't':
+                    literal("true");
+                    return;
+                case 'f':
+                    literal("false");
+                    return;
+                case 'n':
+                    literal("null");
+                    return;
+                default:
+                    if (m_iNext == '-' || isDigit(m_iNext)) number();
+                    else throw error("expected a value but found " + describe(m_iNext));
+            }
+        }
+
+        private void string() throws IOException, ParseException
+        {
+            next(); // Opening quote
+            while (m_iNext != '"')
+            {
+                if (m_iNext == -1) throw error("unterminated string");
+                if (m_iNext < 0x20) throw error("unescaped control character in string");
+                if (m_iNext == '\\')
+                {
+                    next();
+                    if (m_iNext == 'u')
+                    {
+                        for (int i = 0; i < 4; i++)
+                        {
+                            next();
+                            if (Character.digit(m_iNext, 16) < 0) throw error("invalid \\u escape");
+                        }
+                    }
+                    else if ("\"\\/bfnrt".indexOf(m_iNext) < 0 || m_iNext == -1) throw error("invalid escape \\" + describe(m_iNext));
+                }
+                next();
+            }
+            next();
+        }
+
+        private void number() throws IOException, ParseException
+        {
+            if (m_iNext == '-') next();
+            if (m_iNext == '0') next();
+            else if (isDigit(m_iNext)) digits();
+            else throw error("invalid number");
+            if (m_iNext == '.')
+            {
+                next();
+                if (!isDigit(m_iNext)) throw error("invalid number, expected a digit after '.'");
+                digits();
+            }
+            if (m_iNext == 'e' || m_iNext == 'E')
+            {
+                next();
+                if (m_iNext == '+' || m_iNext == '-') next();
+                if (!isDigit(m_iNext)) throw error("invalid number, expected a digit in the exponent");
+                digits();
+            }
+        }
+
+        private void digits() throws IOException
+        {
+            while (isDigit(m_iNext)) next();
+        }
+
+        private void literal(String strLiteral) throws IOException, ParseException
+        {
+            for (int i = 0; i < strLiteral.length(); i++)
+            {
+                if (m_iNext != strLiteral.charAt(i)) throw error("expected " + strLiteral);
+                next();
+            }
+        }
+
+        private void expect(char c) throws IOException, ParseException
+        {
+            if (m_iNext != c) throw error("expected '" + c + "' but found " + describe(m_iNext));
+            next();
+        }
+
+        private void skipWhitespace() throws IOException
+        {
+            while (m_iNext == ' ' || m_iNext == '\t' || m_iNext == '\n' || m_iNext == '\r') next();
+        }
+
+        private void next() throws IOException
+        {
+            if (m_iNext == '\n') m_iLine++;
+            m_iNext = m_oReader.read();
+        }
+
+        private ParseException error(String strMessage)
+        {
+            return new ParseException(strMessage, m_iLine);
+        }
+
+        private static boolean isDigit(int c)
+        {
+            return c >= '0' && c <= '9';
+        }
+
+        private static String describe(int c)
+        {
+            if (c == -1) return "end of file";
+            if (c < 0x20) return String.format("character 0x%02x", c);
+            return "'" + (char) c + "'";
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.gardner.fastpackbuilder;
+
+/**
+ * Name and version of one jar of a matrix build (FastPackBuilder.buildMatrix).
+ * Only the manifest and plugin.xml differ between the variants, the packaged files are the same.
+ */
+public class FastpackVariant
+{
+    private final String m_strName;
+    private final String m_strVersion;
+
+    public FastpackVariant(String strName, String strVersion)
+    {
+        m_strName = strName;
+        m_strVersion = strVersion;
+    }
+
+    public String getName()
+    {
+        return m_strName;
+    }
+
+    public String getVersion()
+    {
+        return m_strVersion;
+    }
+
+    /**
+     * @return NAME_VERSION, as in the jar's file name
+     */
+    @Override
+    public String toString()
+    {
+        return m_strName + "_" + m_strVersion;
+    }
+}
@@ -0,0 +1,211 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+
+/**
+ * Checks a fastpack built with digests (FastpackBuildOptions.setDigests) against them: every entry is inflated
+ * once, straight from the jar, and its SHA-256 compared with the one the manifest lists for it. Entries are
+ * checked in parallel. If the jar has a checksum file (see FastpackDigests) the jar's own digest is checked as well.
+ */
+public class FastpackVerification
+{
+    private final Path m_oJar;
+    private final int m_iVerified;
+    private final boolean m_bChecksum;
+    private final List<String> m_oProblems;
+
+    private FastpackVerification(Path oJar, int iVerified, boolean bChecksum, List<String> oProblems)
+    {
+        m_oJar = oJar;
+        m_iVerified = iVerified;
+        m_bChecksum = bChecksum;
+        Collections.sort(oProblems);
+        m_oProblems = Collections.unmodifiableList(oProblems);
+    }
+
+    /**
+     * @param oJar the fastpack
+     * @param iThreads number of entries checked at the same time
+     * @return the verification, a jar that cannot be read has that as its only problem
+     */
+    public static FastpackVerification verify(final Path oJar, int iThreads)
+    {
+        List<String> oProblems = new ArrayList<String>();
+        int iVerified = 0;
+        String strChecksum = null;
+        ExecutorService oPool = Executors.newFixedThreadPool(Math.max(1, iThreads), new ThreadFactory()
+        {
+            private final AtomicInteger m_oCount = new AtomicInteger();
+
+            public Thread newThread(Runnable oRunnable)
+            {
+                Thread oThread = new Thread(oRunnable, "fastpack-verify-" + m_oCount.incrementAndGet());
+                oThread.setDaemon(true);
+                return oThread;
+            }
+        });
+        try (final FastpackJarReader oReader = new FastpackJarReader(oJar))
+        {
+            // The jar's own digest is computed alongside the entries, it reads the file sequentially once
+            try
+            {
+                strChecksum = FastpackDigests.readChecksumFile(oJar.toFile());
+            }
+            catch (IOException e)
+            {
+                oProblems.add(FastpackDigests.getChecksumFile(oJar.toFile()).getName() + ": " + e.getMessage());
+            }
+            Future<byte[]> oJarDigest = null;
+            if (strChecksum != null)
+            {
+                oJarDigest = oPool.submit(new Callable<byte[]>()
+                {
+                    public byte[] call() throws IOException
+                    {
+                        return digest(oJar);
+                    }
+                });
+            }
+
+            if (oReader.getEntry(JarFile.MANIFEST_NAME) == null) throw new IOException(JarFile.MANIFEST_NAME + " is missing");
+            Map<String, byte[]> oListed = FastpackDigests.readDigests(oReader);
+            if (oListed.isEmpty()) oProblems.add(JarFile.MANIFEST_NAME + ": no " + FastpackDigests.DIGEST_ATTRIBUTE + " sections, the jar was built without digests");
+
+            Map<String, Future<byte[]>> oDigests = new LinkedHashMap<String, Future<byte[]>>();
+            Set<String> oEntries = new HashSet<String>();
+            for (final FastpackJarReader.Entry oEntry : oReader.getEntries())
+            {
+                String strName = oEntry.getName();
+                if (strName.endsWith("/") || strName.equals(JarFile.MANIFEST_NAME)) continue;
+                oEntries.add(strName);
+                if (!oListed.containsKey(strName))
+                {
+                    if (!oListed.isEmpty()) oProblems.add(strName + ": not listed in the manifest");
+                    continue;
+                }
+                oDigests.put(strName, oPool.submit(new Callable<byte[]>()
+                {
+                    public byte[] call() throws IOException
+                    {
+                        try (InputStream oIn = oReader.getInputStream(oEntry))
+                        {
+                            return FastpackDigests.digest(oIn);
+                        }
+                    }
+                }));
+            }
+            for (String strName : oListed.keySet())
+            {
+                if (!oEntries.contains(strName)) oProblems.add(strName + ": listed in the manifest but not in the jar");
+            }
+
+            for (Map.Entry<String, Future<byte[]>> oDigest : oDigests.entrySet())
+            {
+                try
+                {
+                    byte[] abListed = oListed.get(oDigest.getKey());
+                    if (abListed == null) oProblems.add(oDigest.getKey() + ": " + FastpackDigests.DIGEST_ATTRIBUTE + " is not valid Base64");
+                    else if (!Arrays.equals(abListed, oDigest.getValue().get())) oProblems.add(oDigest.getKey() + ": SHA-256 does not match the manifest");
+                    else iVerified++;
+                }
+                catch (ExecutionException e)
+                {
+                    oProblems.add(oDigest.getKey() + ": cannot be read: " + e.getCause().getMessage());
+                }
+            }
+            if (oJarDigest != null && !FastpackDigests.toHex(oJarDigest.get()).equals(strChecksum))
+            {
+                oProblems.add(oJar.getFileName() + ": SHA-256 does not match " + FastpackDigests.getChecksumFile(oJar.toFile()).getName());
+            }
+        }
+        catch (IOException | ExecutionException e)
+        {
+            oProblems.clear();
+            oProblems.add(oJar.getFileName() + ": cannot be read: " + (e instanceof ExecutionException ? e.getCause() : e).getMessage());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            oProblems.add(oJar.getFileName() + ": verification interrupted");
+        }
+        finally
+        {
+            oPool.shutdownNow();
+        }
+        return new FastpackVerification(oJar, iVerified, strChecksum != null, oProblems);
+    }
+
+    private static byte[] digest(Path oFile) throws IOException
+    {
+        MessageDigest oDigest = FastpackDigests.newSha256();
+        try (FileChannel oChannel = FileChannel.open(oFile, StandardOpenOption.READ))
+        {
+            ByteBuffer oBuffer = ByteBuffer.allocateDirect(FastpackBuildOptions.DEFAULT_IO_BUFFER_SIZE);
+            while (oChannel.read(oBuffer) >= 0)
+            {
+                oBuffer.flip();
+                oDigest.update(oBuffer);
+                oBuffer.clear();
+            }
+        }
+        return oDigest.digest();
+    }
+
+    public Path getJar()
+    {
+        return m_oJar;
+    }
+
+    /**
+     * @return number of entries whose digest matched
+     */
+    public int getVerified()
+    {
+        return m_iVerified;
+    }
+
+    /**
+     * @return true if the jar had a checksum file, whose digest was checked too
+     */
+    public boolean hasChecksum()
+    {
+        return m_bChecksum;
+    }
+
+    /**
+     * @return one "path: problem" line per problem, sorted
+     */
+    public List<String> getProblems()
+    {
+        return m_oProblems;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d entries verified%s, %d problems", m_oJar.getFileName(), m_iVerified,
+                m_bChecksum ? " and checksum file checked" : "", m_oProblems.size());
+    }
+}
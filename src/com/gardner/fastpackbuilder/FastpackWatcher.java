@@ -0,0 +1,254 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilds a fastpack whenever something in its raw files folder changes.
+ *
+ * Every directory below the input folder (web dashboards, sensor packs) is watched. Bursts of changes,
+ * e.g. an editor saving several files, are collected until the folder has been quiet for the quiet period
+ * and then trigger a single build. The file index and the compressed entries are kept in memory between
+ * builds, so only the files that changed are read and compressed again; plugin.xml and the jar are rewritten.
+ * The jar, its temp file, the build report and the delta file are ignored when they are written into the watched folder.
+ */
+public class FastpackWatcher implements Closeable
+{
+    public static final long DEFAULT_QUIET_PERIOD = 300;
+
+    private final Path m_oRoot;
+    private final String m_strFastpackName;
+    private final String m_strFastpackVersion;
+    private final FastpackBuildOptions m_oOptions;
+    private final FastPackBuilder m_oBuilder;
+    private final FastpackEntryCache m_oEntryCache = new FastpackEntryCache();
+    private final File m_oOutputDir; // Jars and reports written there are not input
+    private long m_lQuietPeriod = DEFAULT_QUIET_PERIOD;
+
+    // File index, only used by the thread running watch()
+    private final Map<String, ScannedFile> m_oFiles = new HashMap<String, ScannedFile>();
+    private final Map<String, ScannedFile> m_oDirs = new HashMap<String, ScannedFile>();
+    private final Map<WatchKey, Path> m_oKeys = new HashMap<WatchKey, Path>();
+    private boolean m_bOverflow = false;
+    private volatile WatchService m_oWatchService;
+    private volatile boolean m_bClosed = false;
+
+    public FastpackWatcher(File oInputDir, String strFastpackName, String strFastpackVersion, FastpackBuildOptions oOptions)
+    {
+        m_oRoot = oInputDir.toPath().toAbsolutePath().normalize();
+        m_strFastpackName = strFastpackName;
+        m_strFastpackVersion = strFastpackVersion;
+        m_oOptions = oOptions;
+        m_oBuilder = new FastPackBuilder(oInputDir, oOptions);
+        m_oBuilder.setEntryCache(m_oEntryCache);
+        m_oOutputDir = FastPackBuilder.getOutputDirectory(oInputDir, oOptions);
+    }
+
+    /**
+     * @param lQuietPeriod milliseconds without changes before a build starts
+     */
+    public FastpackWatcher setQuietPeriod(long lQuietPeriod)
+    {
+        m_lQuietPeriod = Math.max(0, lQuietPeriod);
+        return this;
+    }
+
+    /**
+     * @return the builder used for every rebuild, e.g. to register a listener
+     */
+    public FastPackBuilder getBuilder()
+    {
+        return m_oBuilder;
+    }
+
+    /**
+     * Build the fastpack, then rebuild it on every change until close() is called or the thread is interrupted.
+     * A failed rebuild is reported and watching goes on.
+     * @throws IOException if the folder cannot be watched
+     */
+    public void watch() throws IOException
+    {
+        m_oWatchService = FileSystems.getDefault().newWatchService();
+        try
+        {
+            rescan();
+            rebuild(m_oFiles.size());
+
+            while (!m_bClosed)
+            {
+                WatchKey oKey = m_oWatchService.take();
+                Set<Path> oChanged = new LinkedHashSet<Path>();
+                boolean bRescan = collect(oKey, oChanged);
+                // Debounce: wait until the folder has been quiet for a while
+                while ((oKey = m_oWatchService.poll(m_lQuietPeriod, TimeUnit.MILLISECONDS)) != null)
+                {
+                    bRescan |= collect(oKey, oChanged);
+                }
+
+                int iChanged;
+                if (bRescan)
+                {
+                    // Events were lost, a file may have been rewritten with the same size and timestamp
+                    if (m_bOverflow) m_oEntryCache.clear();
+                    m_bOverflow = false;
+                    for (Path oPath : oChanged) m_oEntryCache.remove(FastpackScanner.relativize(m_oRoot, oPath));
+                    rescan();
+                    iChanged = Math.max(1, oChanged.size());
+                }
+                else iChanged = update(oChanged);
+                if (iChanged > 0) rebuild(iChanged);
+            }
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            // close() was called
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    /**
+     * Stop watching. A running build is cancelled.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        m_bClosed = true;
+        m_oBuilder.cancel();
+        WatchService oWatchService = m_oWatchService;
+        if (oWatchService != null) oWatchService.close();
+    }
+
+    /**
+     * Read the events of one key.
+     * @param oChanged receives the absolute paths that were created, modified or deleted
+     * @return true if the index has to be rebuilt from scratch (events lost, directories created or deleted)
+     */
+    private boolean collect(WatchKey oKey, Set<Path> oChanged) throws IOException
+    {
+        boolean bRescan = false;
+        Path oDir = m_oKeys.get(oKey);
+        for (WatchEvent<?> oEvent : oKey.pollEvents())
+        {
+            if (oEvent.kind() == StandardWatchEventKinds.OVERFLOW || oDir == null)
+            {
+                m_bOverflow = true;
+                bRescan = true;
+                continue;
+            }
+            Path oChild = oDir.resolve((Path) oEvent.context()).normalize();
+            if (FastPackBuilder.isOutputFile(m_oOutputDir, m_strFastpackName, oChild)) continue; // Our own jars and reports
+            oChanged.add(oChild);
+
+            String strRelativePath = FastpackScanner.relativize(m_oRoot, oChild);
+            if (oEvent.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(oChild)) bRescan = true; // A new subtree to watch
+            else if (oEvent.kind() == StandardWatchEventKinds.ENTRY_DELETE && m_oDirs.containsKey(strRelativePath)) bRescan = true;
+        }
+        if (!oKey.reset())
+        {
+            m_oKeys.remove(oKey);
+            if (m_oRoot.equals(oDir)) throw new IOException("Input directory " + m_oRoot + " is no longer accessible");
+        }
+        return bRescan;
+    }
+
+    /**
+     * Apply file changes to the index.
+     * @return number of files that were added, modified or removed
+     */
+    private int update(Set<Path> oChanged)
+    {
+        int iChanged = 0;
+        for (Path oPath : oChanged)
+        {
+            String strRelativePath = FastpackScanner.relativize(m_oRoot, oPath);
+            if (m_oDirs.containsKey(strRelativePath)) continue; // Directory timestamps change with their content
+            m_oEntryCache.remove(strRelativePath);
+            try
+            {
+                BasicFileAttributes oAttributes = Files.readAttributes(oPath, BasicFileAttributes.class);
+                if (oAttributes.isRegularFile())
+                {
+                    m_oFiles.put(strRelativePath, new ScannedFile(oPath, strRelativePath, oAttributes));
+                    iChanged++;
+                    continue;
+                }
+            }
+            catch (IOException e)
+            {
+                // Deleted (or not readable), it is dropped below
+            }
+            if (m_oFiles.remove(strRelativePath) != null) iChanged++;
+        }
+        return iChanged;
+    }
+
+    /**
+     * Scan the whole folder and watch every directory in it.
+     */
+    private void rescan() throws IOException
+    {
+        FastpackScanner oScanner = new FastpackScanner(m_oOptions.getThreads());
+        FastPackBuilder.excludeOutputs(oScanner, m_oOutputDir, m_strFastpackName);
+        FastpackSnapshot oSnapshot = oScanner.scan(m_oRoot);
+
+        m_oFiles.clear();
+        m_oDirs.clear();
+        for (ScannedFile oFile : oSnapshot.getFiles()) m_oFiles.put(oFile.getRelativePath(), oFile);
+        for (ScannedFile oDir : oSnapshot.getDirectories()) m_oDirs.put(oDir.getRelativePath(), oDir);
+
+        register(m_oRoot);
+        for (ScannedFile oDir : oSnapshot.getDirectories()) register(oDir.getPath());
+    }
+
+    private void register(Path oDir) throws IOException
+    {
+        // Registering a directory again returns its existing key
+        WatchKey oKey = oDir.register(m_oWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        m_oKeys.put(oKey, oDir);
+    }
+
+    private void rebuild(int iChanged)
+    {
+        List<ScannedFile> oFiles = new ArrayList<ScannedFile>(m_oFiles.values());
+        List<ScannedFile> oDirs = new ArrayList<ScannedFile>(m_oDirs.values());
+        Collections.sort(oFiles, FastpackScanner.BY_PATH);
+        Collections.sort(oDirs, FastpackScanner.BY_PATH);
+
+        long lStart = System.nanoTime();
+        try
+        {
+            File oJar = m_oBuilder.build(m_strFastpackName, m_strFastpackVersion, new FastpackSnapshot(m_oRoot, oFiles, oDirs));
+            int iReused = m_oBuilder.getLastReport().getPhase(FastpackBuildReport.Phase.COMPRESS).getReused();
+            System.out.println(String.format("Built %s in %d ms (%d changed, %d of %d entries reused)", oJar, (System.nanoTime() - lStart) / 1000000, iChanged, iReused, oFiles.size()));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            if (!m_bClosed) System.out.println("Build of " + m_strFastpackName + "_" + m_strFastpackVersion + " failed, waiting for the next change: " + e);
+        }
+    }
+}
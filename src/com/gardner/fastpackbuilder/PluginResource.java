@@ -0,0 +1,62 @@
+package com.gardner.fastpackbuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One &lt;resource&gt; element of the fastpack plugin.xml, e.g.
+ * <pre>
+ * &lt;resource resource="webdashboards/7b8ed814.json" resource_type="resource" target_dir="conf/dashboards/web"&gt;
+ *     &lt;instance instance="server"/&gt;
+ * &lt;/resource&gt;
+ * </pre>
+ */
+public class PluginResource
+{
+    private final String m_strResource;
+    private final String m_strResourceType;
+    private final String m_strTargetDir;
+    private final List<String> m_oInstances = new ArrayList<String>();
+
+    /**
+     * @param strResource value of the resource attribute
+     * @param strResourceType value of the resource_type attribute or null to leave it out
+     * @param strTargetDir value of the target_dir attribute or null to leave it out
+     */
+    public PluginResource(String strResource, String strResourceType, String strTargetDir)
+    {
+        m_strResource = strResource;
+        m_strResourceType = strResourceType;
+        m_strTargetDir = strTargetDir;
+    }
+
+    /**
+     * Add an &lt;instance instance="..."/&gt; child.
+     */
+    public PluginResource addInstance(String strInstance)
+    {
+        m_oInstances.add(strInstance);
+        return this;
+    }
+
+    public String getResource()
+    {
+        return m_strResource;
+    }
+
+    public String getResourceType()
+    {
+        return m_strResourceType;
+    }
+
+    public String getTargetDir()
+    {
+        return m_strTargetDir;
+    }
+
+    public List<String> getInstances()
+    {
+        return Collections.unmodifiableList(m_oInstances);
+    }
+}
@@ -0,0 +1,104 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.gardner.fastpackbuilder.Constants.IConstants;
+
+/**
+ * Streams the fastpack plugin.xml to an OutputStream with StAX.
+ * Only the XML text is streamed: the resources are passed in as a list, but the document is never held
+ * as a DOM or String, each &lt;resource&gt; element is written as soon as it is visited.
+ *
+ * Output structure:
+ * <pre>
+ * &lt;plugin&gt;
+ *     &lt;extension id="Installer Content" point="com.dynatrace.diagnostics.InstallerContent"&gt;
+ *         &lt;metainfo installer_type="resourcepack" name="{FASTPACK_NAME}"&gt;
+ *             &lt;resource resource="..." resource_type="..."/&gt;
+ *         &lt;/metainfo&gt;
+ *     &lt;/extension&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ */
+public class PluginXmlWriter
+{
+    private static final XMLOutputFactory XML_FACTORY = XMLOutputFactory.newInstance();
+    private static final String INDENT = "    ";
+
+    /**
+     * Write plugin.xml. The stream is flushed but not closed.
+     * @param oOut where to write the UTF-8 encoded document
+     * @param strFastpackName value of the metainfo name attribute
+     * @param oResources resource elements in the order they should appear
+     * @throws IOException
+     */
+    public void write(OutputStream oOut, String strFastpackName, List<PluginResource> oResources) throws IOException
+    {
+        try
+        {
+            XMLStreamWriter oWriter = XML_FACTORY.createXMLStreamWriter(oOut, "UTF-8");
+            oWriter.writeStartDocument("UTF-8", "1.0");
+            newLine(oWriter, 0);
+
+            oWriter.writeStartElement(IConstants.PLUGIN);
+            newLine(oWriter, 1);
+            oWriter.writeStartElement(IConstants.EXTENSION);
+            oWriter.writeAttribute("id", "Installer Content");
+            oWriter.writeAttribute("point", "com.dynatrace.diagnostics.InstallerContent");
+            newLine(oWriter, 2);
+            oWriter.writeStartElement("metainfo");
+            oWriter.writeAttribute("installer_type", "resourcepack");
+            oWriter.writeAttribute("name", strFastpackName);
+
+            for (PluginResource oResource : oResources)
+            {
+                newLine(oWriter, 3);
+                if (oResource.getInstances().isEmpty()) oWriter.writeEmptyElement(IConstants.RESOURCE);
+                else oWriter.writeStartElement(IConstants.RESOURCE);
+
+                oWriter.writeAttribute(IConstants.RESOURCE, oResource.getResource());
+                if (oResource.getResourceType() != null) oWriter.writeAttribute(IConstants.RESOURCE_TYPE, oResource.getResourceType());
+                if (oResource.getTargetDir() != null) oWriter.writeAttribute("target_dir", oResource.getTargetDir());
+
+                if (!oResource.getInstances().isEmpty())
+                {
+                    for (String strInstance : oResource.getInstances())
+                    {
+                        newLine(oWriter, 4);
+                        oWriter.writeEmptyElement("instance");
+                        oWriter.writeAttribute("instance", strInstance);
+                    }
+                    newLine(oWriter, 3);
+                    oWriter.writeEndElement(); // resource
+                }
+            }
+
+            newLine(oWriter, 2);
+            oWriter.writeEndElement(); // metainfo
+            newLine(oWriter, 1);
+            oWriter.writeEndElement(); // extension
+            newLine(oWriter, 0);
+            oWriter.writeEndElement(); // plugin
+            newLine(oWriter, 0);
+            oWriter.writeEndDocument();
+            oWriter.flush();
+            oWriter.close();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException("Exception caught writing plugin.xml", e);
+        }
+        oOut.flush();
+    }
+
+    private void newLine(XMLStreamWriter oWriter, int iDepth) throws XMLStreamException
+    {
+        oWriter.writeCharacters("\n");
+        for (int i = 0; i < iDepth; i++) oWriter.writeCharacters(INDENT);
+    }
+}
@@ -0,0 +1,379 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gardner.fastpackbuilder.Constants.IConstants;
+
+/**
+ * Decides which resource_type (and target_dir) a file gets in plugin.xml, and which files are left out of it.
+ *
+ * Rules map a pattern to a resource type. A pattern without '/' is matched against the file name, one with '/'
+ * against the path relative to the input directory. Patterns are compiled into lookups when first used:
+ * <ul>
+ * <li>plain names or paths ("license.key") go into hash maps,</li>
+ * <li>suffix patterns ("*.dashboard.xml") go into a suffix trie, the longest matching suffix wins,</li>
+ * <li>anything else is a glob ("reports/**.pdf"), the glob added last wins.</li>
+ * </ul>
+ * Paths are looked up before names, exact matches before globs. A rule added later replaces one with the same pattern,
+ * so rules loaded from a file override the defaults. Files no rule matches get no resource_type attribute.
+ * Directories are sensor packs unless a rule excludes them.
+ *
+ * Rules files have one rule per line: pattern,resource_type[,target_dir[,instance]]. The resource type is a
+ * resource_type value (e.g. dashboard, resource) or "exclude". Blank lines and lines starting with # are ignored.
+ */
+public class ResourceClassifier
+{
+    public static final String EXCLUDE = "exclude";
+
+    private static final ResourceClassifier DEFAULT = withDefaults();
+    private static final Rule UNMATCHED = new Rule("*", ResourceType.OTHER, null, null, false);
+
+    private final List<Rule> m_oRules = new ArrayList<Rule>();
+    private volatile Index m_oIndex;
+
+    /**
+     * What a pattern maps to.
+     */
+    public static class Rule
+    {
+        private final String m_strPattern;
+        private final ResourceType m_oType;
+        private final String m_strTargetDir;
+        private final String m_strInstance;
+        private final boolean m_bExcluded;
+
+        Rule(String strPattern, ResourceType oType, String strTargetDir, String strInstance, boolean bExcluded)
+        {
+            m_strPattern = strPattern;
+            m_oType = oType;
+            m_strTargetDir = strTargetDir;
+            m_strInstance = strInstance;
+            m_bExcluded = bExcluded;
+        }
+
+        public String getPattern()
+        {
+            return m_strPattern;
+        }
+
+        /**
+         * @return the resource type, OTHER for excluded files
+         */
+        public ResourceType getType()
+        {
+            return m_oType;
+        }
+
+        /**
+         * @return value of the target_dir attribute, may be null
+         */
+        public String getTargetDir()
+        {
+            return m_strTargetDir;
+        }
+
+        /**
+         * @return instance element of the resource, may be null
+         */
+        public String getInstance()
+        {
+            return m_strInstance;
+        }
+
+        /**
+         * @return true if the file is packaged but not listed in plugin.xml
+         */
+        public boolean isExcluded()
+        {
+            return m_bExcluded;
+        }
+    }
+
+    /**
+     * @return the rules the builder always used: dashboards, system profiles, user plugins, licenses and sessions by suffix,
+     * the manifest, plugin.xml and the META-INF and web dashboard folders excluded
+     */
+    public static ResourceClassifier withDefaults()
+    {
+        return new ResourceClassifier()
+                .add("*.dashboard.xml", ResourceType.DASHBOARD, null)
+                .add("*.profile.xml", ResourceType.SYSTEM_PROFILE, null)
+                .add("*.jar", ResourceType.USER_PLUGIN, null)
+                .add("*.key", ResourceType.LICENSE_FILE, null)
+                .add("*.dts", ResourceType.SESSION, null)
+                .exclude("MANIFEST.MF")
+                .exclude("plugin.xml")
+                .exclude("META-INF")
+                .exclude(IConstants.WEB_DASHBOARDS);
+    }
+
+    /**
+     * @return the shared default classifier. Do not add rules to it, use withDefaults() for a copy.
+     */
+    public static ResourceClassifier getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Map matching files to a resource type.
+     * @param strPattern file name, relative path, suffix ("*.xml") or glob
+     * @param strTargetDir value of the target_dir attribute, null for none
+     */
+    public ResourceClassifier add(String strPattern, ResourceType oType, String strTargetDir)
+    {
+        return add(strPattern, oType, strTargetDir, null);
+    }
+
+    /**
+     * @param strInstance instance the resource is installed on (e.g. "server"), null for none
+     */
+    public synchronized ResourceClassifier add(String strPattern, ResourceType oType, String strTargetDir, String strInstance)
+    {
+        m_oRules.add(new Rule(strPattern, oType, strTargetDir, strInstance, false));
+        m_oIndex = null;
+        return this;
+    }
+
+    /**
+     * Leave matching files and directories out of plugin.xml. They are still packaged.
+     */
+    public synchronized ResourceClassifier exclude(String strPattern)
+    {
+        m_oRules.add(new Rule(strPattern, ResourceType.OTHER, null, null, true));
+        m_oIndex = null;
+        return this;
+    }
+
+    /**
+     * Add the rules of a rules file.
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException for a malformed line
+     */
+    public ResourceClassifier load(File oFile) throws IOException
+    {
+        int iLine = 0;
+        try (BufferedReader oReader = Files.newBufferedReader(oFile.toPath(), StandardCharsets.UTF_8))
+        {
+            String strLine;
+            while ((strLine = oReader.readLine()) != null)
+            {
+                iLine++;
+                strLine = strLine.trim();
+                if (strLine.isEmpty() || strLine.startsWith("#")) continue;
+                String[] astrParts = strLine.split(",", 4);
+                for (int i = 0; i < astrParts.length; i++) astrParts[i] = astrParts[i].trim();
+                if (astrParts.length < 2 || astrParts[0].isEmpty()) throw new IllegalArgumentException(oFile + " line " + iLine + ": expected pattern,resource_type[,target_dir[,instance]]");
+
+                if (astrParts[1].equalsIgnoreCase(EXCLUDE))
+                {
+                    exclude(astrParts[0]);
+                    continue;
+                }
+                ResourceType oType = ResourceType.forAttributeValue(astrParts[1]);
+                if (oType == null) throw new IllegalArgumentException(oFile + " line " + iLine + ": unknown resource type " + astrParts[1]);
+                add(astrParts[0], oType, part(astrParts, 2), part(astrParts, 3));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Find the rule for a file.
+     * @param strRelativePath '/' separated path relative to the input directory
+     * @return the matching rule, a rule of type OTHER if none matches
+     */
+    public Rule classify(String strRelativePath)
+    {
+        Rule oRule = getIndex().find(strRelativePath);
+        return oRule != null ? oRule : UNMATCHED;
+    }
+
+    /**
+     * @return true if the file or directory is left out of plugin.xml
+     */
+    public boolean isExcluded(String strRelativePath)
+    {
+        Rule oRule = getIndex().find(strRelativePath);
+        return oRule != null && oRule.isExcluded();
+    }
+
+    /**
+     * @return true if the directory is a sensor pack: a top level directory that is not excluded. plugin.xml lists
+     * it with resource_type="sensorPack" and the server expects a plugin.xml in it.
+     * @param strRelativePath '/' separated path relative to the input directory
+     */
+    public boolean isSensorPack(String strRelativePath)
+    {
+        return strRelativePath.indexOf('/') < 0 && !isExcluded(strRelativePath);
+    }
+
+    /**
+     * Type of a jar entry, used to pick its compression. Everything below the web dashboards folder is a RESOURCE,
+     * everything below any other folder belongs to a sensor pack, files at the top are classified by the rules.
+     * @param strRelativePath entry name, '/' separated
+     */
+    public ResourceType typeOf(String strRelativePath)
+    {
+        int iSlash = strRelativePath.indexOf('/');
+        if (iSlash < 0) return classify(strRelativePath).getType();
+        if (iSlash == IConstants.WEB_DASHBOARDS.length() && strRelativePath.regionMatches(true, 0, IConstants.WEB_DASHBOARDS, 0, iSlash)) return ResourceType.RESOURCE;
+        return ResourceType.SENSOR_PACK;
+    }
+
+    private Index getIndex()
+    {
+        Index oIndex = m_oIndex;
+        if (oIndex == null)
+        {
+            synchronized (this)
+            {
+                if (m_oIndex == null) m_oIndex = new Index(m_oRules);
+                oIndex = m_oIndex;
+            }
+        }
+        return oIndex;
+    }
+
+    private static String part(String[] astrParts, int i)
+    {
+        return astrParts.length > i && !astrParts[i].isEmpty() ? astrParts[i] : null;
+    }
+
+    /**
+     * The rules compiled for lookup. Immutable once built.
+     */
+    private static class Index
+    {
+        private final Map<String, Rule> m_oPaths = new HashMap<String, Rule>();
+        private final Map<String, Rule> m_oNames = new HashMap<String, Rule>();
+        private final SuffixNode m_oSuffixes = new SuffixNode();
+        private final List<Glob> m_oPathGlobs = new ArrayList<Glob>();
+        private final List<Glob> m_oNameGlobs = new ArrayList<Glob>();
+
+        Index(List<Rule> oRules)
+        {
+            for (Rule oRule : oRules)
+            {
+                String strPattern = oRule.getPattern();
+                boolean bPath = strPattern.indexOf('/') >= 0;
+                if (!hasWildcard(strPattern, 0)) (bPath ? m_oPaths : m_oNames).put(strPattern, oRule);
+                else if (!bPath && strPattern.charAt(0) == '*' && !hasWildcard(strPattern, 1)) m_oSuffixes.put(strPattern.substring(1), oRule);
+                else (bPath ? m_oPathGlobs : m_oNameGlobs).add(0, new Glob(strPattern, oRule)); // Last added first
+            }
+        }
+
+        Rule find(String strRelativePath)
+        {
+            Rule oRule = m_oPaths.get(strRelativePath);
+            if (oRule != null) return oRule;
+            oRule = findGlob(m_oPathGlobs, strRelativePath);
+            if (oRule != null) return oRule;
+
+            int iSlash = strRelativePath.lastIndexOf('/');
+            String strName = iSlash < 0 ? strRelativePath : strRelativePath.substring(iSlash + 1);
+            oRule = m_oNames.get(strName);
+            if (oRule != null) return oRule;
+            oRule = m_oSuffixes.find(strName);
+            if (oRule != null) return oRule;
+            return findGlob(m_oNameGlobs, strName);
+        }
+
+        private static Rule findGlob(List<Glob> oGlobs, String strPath)
+        {
+            if (oGlobs.isEmpty()) return null;
+            Path oPath = Paths.get(strPath);
+            for (Glob oGlob : oGlobs)
+            {
+                if (oGlob.oMatcher.matches(oPath)) return oGlob.oRule;
+            }
+            return null;
+        }
+
+        private static boolean hasWildcard(String strPattern, int iFrom)
+        {
+            for (int i = iFrom; i < strPattern.length(); i++)
+            {
+                char c = strPattern.charAt(i);
+                if (c == '*' || c == '?' || c == '[' || c == '{' || c == '\\') return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Glob
+    {
+        final PathMatcher oMatcher;
+        final Rule oRule;
+
+        Glob(String strPattern, Rule oRule)
+        {
+            oMatcher = FileSystems.getDefault().getPathMatcher("glob:" + strPattern);
+            this.oRule = oRule;
+        }
+    }
+
+    /**
+     * Trie over reversed suffixes. Walking a file name backwards visits every rule whose suffix it ends with,
+     * the deepest one is the longest match.
+     */
+    private static class SuffixNode
+    {
+        private char[] m_acKeys = new char[0];
+        private SuffixNode[] m_aoChildren = new SuffixNode[0];
+        private Rule m_oRule;
+
+        void put(String strSuffix, Rule oRule)
+        {
+            SuffixNode oNode = this;
+            for (int i = strSuffix.length() - 1; i >= 0; i--) oNode = oNode.child(strSuffix.charAt(i), true);
+            oNode.m_oRule = oRule;
+        }
+
+        Rule find(String strName)
+        {
+            Rule oMatch = m_oRule;
+            SuffixNode oNode = this;
+            for (int i = strName.length() - 1; i >= 0 && oNode != null; i--)
+            {
+                oNode = oNode.child(strName.charAt(i), false);
+                if (oNode != null && oNode.m_oRule != null) oMatch = oNode.m_oRule;
+            }
+            return oMatch;
+        }
+
+        private SuffixNode child(char c, boolean bCreate)
+        {
+            int iIndex = Arrays.binarySearch(m_acKeys, c);
+            if (iIndex >= 0) return m_aoChildren[iIndex];
+            if (!bCreate) return null;
+
+            // Keep the keys sorted so lookups can binary search
+            int iInsert = -iIndex - 1;
+            char[] acKeys = new char[m_acKeys.length + 1];
+            SuffixNode[] aoChildren = new SuffixNode[m_aoChildren.length + 1];
+            System.arraycopy(m_acKeys, 0, acKeys, 0, iInsert);
+            System.arraycopy(m_aoChildren, 0, aoChildren, 0, iInsert);
+            acKeys[iInsert] = c;
+            aoChildren[iInsert] = new SuffixNode();
+            System.arraycopy(m_acKeys, iInsert, acKeys, iInsert + 1, m_acKeys.length - iInsert);
+            System.arraycopy(m_aoChildren, iInsert, aoChildren, iInsert + 1, m_aoChildren.length - iInsert);
+            m_acKeys = acKeys;
+            m_aoChildren = aoChildren;
+            return aoChildren[iInsert];
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.gardner.fastpackbuilder;
+
+import com.gardner.fastpackbuilder.Constants.IConstants;
+
+/**
+ * The resource_type values a fastpack plugin.xml knows about.
+ * See https://community.dynatrace.com/community/display/DOCDT99/Building+FastPacks
+ */
+public enum ResourceType
+{
+    DASHBOARD("dashboard"),
+    SYSTEM_PROFILE("systemProfile"),
+    USER_PLUGIN("userPlugin"),
+    LICENSE_FILE("licenseFile"),
+    SENSOR_PACK("sensorPack"),
+    SESSION("session"), // This is not in the official documentation
+    RESOURCE(IConstants.RESOURCE), // Web dashboards
+    OTHER(null); // No resource_type attribute is written
+
+    private final String m_strAttributeValue;
+
+    private ResourceType(String strAttributeValue)
+    {
+        m_strAttributeValue = strAttributeValue;
+    }
+
+    /**
+     * @return value of the resource_type attribute, null for OTHER
+     */
+    public String getAttributeValue()
+    {
+        return m_strAttributeValue;
+    }
+
+    /**
+     * @param strValue a resource_type value, an enum name, or "none" for OTHER. Case is ignored.
+     * @return the matching type, null if there is none
+     */
+    public static ResourceType forAttributeValue(String strValue)
+    {
+        if (strValue.equalsIgnoreCase("none")) return OTHER;
+        for (ResourceType oType : values())
+        {
+            if (strValue.equalsIgnoreCase(oType.name()) || strValue.equalsIgnoreCase(oType.m_strAttributeValue)) return oType;
+        }
+        return null;
+    }
+
+    /**
+     * Type of a file by its name, using the default rules of the ResourceClassifier:
+     * dashboards:                      resource_type="dashboard"
+     * profiles:                        resource_type="systemProfile"
+     * user plugin (directory or .jar)  resource_type="userPlugin" 
+     * license file:                    resource_type="licenseFile" 
+     * session files:                   resource_type="session"
+     * anything else has no resource_type
+     */
+    public static ResourceType forFileName(String strName)
+    {
+        return ResourceClassifier.getDefault().classify(strName).getType();
+    }
+
+    /**
+     * Type of a jar entry using the default rules, see ResourceClassifier.typeOf.
+     * @param strRelativePath entry name, '/' separated
+     */
+    public static ResourceType forEntry(String strRelativePath)
+    {
+        return ResourceClassifier.getDefault().typeOf(strRelativePath);
+    }
+}
@@ -0,0 +1,70 @@
+package com.gardner.fastpackbuilder;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file or directory found by the FastpackScanner.
+ * The attributes are read once during the scan and cached here so later steps
+ * don't have to stat the file again.
+ */
+public class ScannedFile
+{
+    private final Path m_oPath;
+    private final String m_strRelativePath;
+    private final boolean m_bDirectory;
+    private final long m_lSize;
+    private final long m_lLastModified;
+
+    public ScannedFile(Path oPath, String strRelativePath, BasicFileAttributes oAttributes)
+    {
+        m_oPath = oPath;
+        m_strRelativePath = strRelativePath;
+        m_bDirectory = oAttributes.isDirectory();
+        m_lSize = m_bDirectory ? 0 : oAttributes.size();
+        m_lLastModified = oAttributes.lastModifiedTime().toMillis();
+    }
+
+    public Path getPath()
+    {
+        return m_oPath;
+    }
+
+    /**
+     * @return path relative to the input directory, using '/' as separator. This is the jar entry name.
+     */
+    public String getRelativePath()
+    {
+        return m_strRelativePath;
+    }
+
+    /**
+     * @return last path element, e.g. "sample.dashboard.xml"
+     */
+    public String getName()
+    {
+        int iSlash = m_strRelativePath.lastIndexOf('/');
+        return iSlash < 0 ? m_strRelativePath : m_strRelativePath.substring(iSlash + 1);
+    }
+
+    public boolean isDirectory()
+    {
+        return m_bDirectory;
+    }
+
+    public long getSize()
+    {
+        return m_lSize;
+    }
+
+    public long getLastModified()
+    {
+        return m_lLastModified;
+    }
+
+    @Override
+    public String toString()
+    {
+        return m_strRelativePath;
+    }
+}
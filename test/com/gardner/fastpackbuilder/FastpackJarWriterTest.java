@@ -0,0 +1,366 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a jar with FastpackJarWriter and reads it back with java.util.zip: ZipFile, which goes by the
+ * central directory, and ZipInputStream, which goes by the local headers and data descriptors. Covers
+ * stored and deflated entries, empty ones, payloads larger than the writer's buffer, non-ASCII names
+ * and entries streamed through openEntry, and jars with more entries than the zip format's 16 bit count,
+ * which need the Zip64 end record. FastpackJarReader is checked against the same jars, a Zip64 jar written by
+ * ZipOutputStream and a corrupt one. With --large an entry of more than 4 GB is written as well, which needs
+ * Zip64 sizes and offsets; that takes a while and about 5 GB of temp space.
+ *
+ * <pre>
+ * java -cp test-classes com.gardner.fastpackbuilder.FastpackJarWriterTest [--large]
+ * </pre>
+ */
+public class FastpackJarWriterTest
+{
+    private static final long TIME = 1500000000000L;
+
+    private static int s_iFailures = 0;
+
+    public static void main(String[] args) throws Exception
+    {
+        mixedEntries();
+        manyEntries(0xFFFF - 1);
+        manyEntries(0xFFFF);
+        manyEntries(70000);
+        zipOutputStreamZip64();
+        corruptNameLength();
+        if (Arrays.asList(args).contains("--large")) largeEntry();
+
+        if (s_iFailures > 0)
+        {
+            System.out.println(s_iFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void mixedEntries() throws IOException
+    {
+        Map<String, byte[]> oContent = new LinkedHashMap<String, byte[]>();
+        oContent.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        oContent.put("dashboards/Sales.dashboard.xml", repeat("<dashboard/>\n", 200));
+        oContent.put("dashboards/empty.dashboard.xml", new byte[0]);
+        oContent.put("plugins/random.jar", random(3 * FastpackJarWriter.DEFAULT_BUFFER_SIZE + 17));
+        oContent.put("dashboards/Large.dashboard.xml", repeat("<chart name=\"Response Time\"/>\n", 20000));
+        oContent.put("dashboards/\u00dcbersicht \u65e5\u672c.dashboard.xml", "<dashboard/>".getBytes(StandardCharsets.UTF_8));
+        oContent.put("licenses/stored.key", random(100));
+        oContent.put("licenses/stored-large.key", random(2 * FastpackJarWriter.DEFAULT_BUFFER_SIZE));
+        Map<String, byte[]> oStreamed = new LinkedHashMap<String, byte[]>();
+        oStreamed.put("plugin.xml", repeat("<plugin/>\n", 5000));
+        oStreamed.put("streamed-empty.xml", new byte[0]);
+
+        Path oJar = Files.createTempFile("fastpack-test-", ".jar");
+        try
+        {
+            try (FastpackJarWriter oWriter = new FastpackJarWriter(FileChannel.open(oJar, StandardOpenOption.WRITE)))
+            {
+                for (Map.Entry<String, byte[]> oEntry : oContent.entrySet())
+                {
+                    boolean bStored = oEntry.getKey().endsWith(".key");
+                    oWriter.writeEntry(bStored ? stored(oEntry.getKey(), oEntry.getValue()) : deflated(oEntry.getKey(), oEntry.getValue()));
+                }
+                for (Map.Entry<String, byte[]> oEntry : oStreamed.entrySet())
+                {
+                    try (OutputStream oOut = oWriter.openEntry(oEntry.getKey(), TIME, Deflater.DEFAULT_COMPRESSION))
+                    {
+                        // Odd sized writes, the stream must not depend on how the content is handed over
+                        byte[] abData = oEntry.getValue();
+                        for (int i = 0; i < abData.length; i += 1000) oOut.write(abData, i, Math.min(1000, abData.length - i));
+                    }
+                }
+                oWriter.finish();
+            }
+            oContent.putAll(oStreamed);
+
+            try (ZipFile oZip = new ZipFile(oJar.toFile()))
+            {
+                List<String> oNames = new ArrayList<String>();
+                for (Enumeration<? extends ZipEntry> oEntries = oZip.entries(); oEntries.hasMoreElements();) oNames.add(oEntries.nextElement().getName());
+                check("ZipFile lists the entries in order", oNames.equals(new ArrayList<String>(oContent.keySet())));
+                for (Map.Entry<String, byte[]> oEntry : oContent.entrySet())
+                {
+                    ZipEntry oZipEntry = oZip.getEntry(oEntry.getKey());
+                    if (!check("ZipFile finds " + oEntry.getKey(), oZipEntry != null)) continue;
+                    try (InputStream oIn = oZip.getInputStream(oZipEntry))
+                    {
+                        check("ZipFile reads " + oEntry.getKey(), Arrays.equals(oEntry.getValue(), readAll(oIn)));
+                    }
+                    check("ZipFile size of " + oEntry.getKey(), oZipEntry.getSize() == oEntry.getValue().length);
+                    check("ZipFile CRC of " + oEntry.getKey(), oZipEntry.getCrc() == crc(oEntry.getValue()));
+                    check("ZipFile time of " + oEntry.getKey(), Math.abs(oZipEntry.getTime() - TIME) < 2000);
+                }
+            }
+
+            try (ZipInputStream oZip = new ZipInputStream(Files.newInputStream(oJar)))
+            {
+                int iRead = 0;
+                ZipEntry oZipEntry;
+                while ((oZipEntry = oZip.getNextEntry()) != null)
+                {
+                    byte[] abExpected = oContent.get(oZipEntry.getName());
+                    check("ZipInputStream reads " + oZipEntry.getName(), abExpected != null && Arrays.equals(abExpected, readAll(oZip)));
+                    iRead++;
+                }
+                check("ZipInputStream reads every entry", iRead == oContent.size());
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(oJar);
+        }
+    }
+
+    private static void manyEntries(int iCount) throws IOException
+    {
+        Path oJar = Files.createTempFile("fastpack-test-", ".jar");
+        try
+        {
+            try (FastpackJarWriter oWriter = new FastpackJarWriter(FileChannel.open(oJar, StandardOpenOption.WRITE)))
+            {
+                for (int i = 0; i < iCount; i++)
+                {
+                    String strName = "sensors/pack/" + i + ".xml";
+                    oWriter.writeEntry(stored(strName, strName.getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+            try (ZipFile oZip = new ZipFile(oJar.toFile()))
+            {
+                check(iCount + " entries: ZipFile counts them", oZip.size() == iCount);
+                String strLast = "sensors/pack/" + (iCount - 1) + ".xml";
+                ZipEntry oZipEntry = oZip.getEntry(strLast);
+                if (check(iCount + " entries: ZipFile finds the last", oZipEntry != null))
+                {
+                    try (InputStream oIn = oZip.getInputStream(oZipEntry))
+                    {
+                        check(iCount + " entries: ZipFile reads the last", Arrays.equals(strLast.getBytes(StandardCharsets.UTF_8), readAll(oIn)));
+                    }
+                }
+            }
+            try (FastpackJarReader oReader = new FastpackJarReader(oJar))
+            {
+                check(iCount + " entries: FastpackJarReader counts them", oReader.getEntries().size() == iCount);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(oJar);
+        }
+    }
+
+    /**
+     * Jars built before FastpackJarWriter came from JarOutputStream, which switches to Zip64 at 65535 entries.
+     */
+    private static void zipOutputStreamZip64() throws IOException
+    {
+        Path oJar = Files.createTempFile("fastpack-test-", ".jar");
+        try
+        {
+            try (ZipOutputStream oZip = new ZipOutputStream(Files.newOutputStream(oJar)))
+            {
+                for (int i = 0; i < 70000; i++)
+                {
+                    oZip.putNextEntry(new ZipEntry("sensors/pack/" + i + ".xml"));
+                    oZip.write(Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+                    oZip.closeEntry();
+                }
+            }
+            try (FastpackJarReader oReader = new FastpackJarReader(oJar))
+            {
+                check("ZipOutputStream Zip64: FastpackJarReader counts the entries", oReader.getEntries().size() == 70000);
+                try (InputStream oIn = oReader.getInputStream(oReader.getEntry("sensors/pack/69999.xml")))
+                {
+                    check("ZipOutputStream Zip64: FastpackJarReader reads the last", Arrays.equals("69999".getBytes(StandardCharsets.UTF_8), readAll(oIn)));
+                }
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(oJar);
+        }
+    }
+
+    /**
+     * A name length pointing past the central directory is an IOException, not a buffer exception.
+     */
+    private static void corruptNameLength() throws IOException
+    {
+        Path oJar = Files.createTempFile("fastpack-test-", ".jar");
+        try
+        {
+            try (FastpackJarWriter oWriter = new FastpackJarWriter(FileChannel.open(oJar, StandardOpenOption.WRITE)))
+            {
+                oWriter.writeEntry(stored("a.xml", new byte[10]));
+            }
+            byte[] abJar = Files.readAllBytes(oJar);
+            int iCentral = abJar.length - 22 - 46 - 5;
+            abJar[iCentral + 28] = (byte) 0xFF; // Name length of the only central record
+            Files.write(oJar, abJar);
+            String strError;
+            try (FastpackJarReader oReader = new FastpackJarReader(oJar))
+            {
+                strError = "no error, " + oReader.getEntries().size() + " entries";
+            }
+            catch (IOException e)
+            {
+                strError = e.getMessage();
+            }
+            catch (RuntimeException e)
+            {
+                strError = e.toString();
+            }
+            check("corrupt name length: " + strError, strError.startsWith("Corrupt central directory"));
+        }
+        finally
+        {
+            Files.deleteIfExists(oJar);
+        }
+    }
+
+    /**
+     * A stored entry of 4 GB and a bit, so its sizes and the offsets of the entries after it need Zip64.
+     */
+    private static void largeEntry() throws IOException
+    {
+        final long lSize = 4097L * 1024 * 1024; // Whole chunks, just over 4 GB
+        CRC32 oCrc = new CRC32();
+        final byte[] abChunk = new byte[1024 * 1024];
+        for (long l = 0; l < lSize; l += abChunk.length) oCrc.update(abChunk);
+        CompressedEntry oLarge = new CompressedEntry("sessions/large.dts", CompressedEntry.STORED, oCrc.getValue(), lSize, TIME, lSize, new CompressedEntry.Payload()
+        {
+            public void writeTo(WritableByteChannel oTarget) throws IOException
+            {
+                for (long l = 0; l < lSize; l += abChunk.length)
+                {
+                    ByteBuffer oBuffer = ByteBuffer.wrap(abChunk);
+                    while (oBuffer.hasRemaining()) oTarget.write(oBuffer);
+                }
+            }
+        });
+        byte[] abAfter = "<dashboard/>".getBytes(StandardCharsets.UTF_8);
+
+        Path oJar = Files.createTempFile("fastpack-test-", ".jar");
+        try
+        {
+            try (FastpackJarWriter oWriter = new FastpackJarWriter(FileChannel.open(oJar, StandardOpenOption.WRITE)))
+            {
+                oWriter.writeEntry(stored("dashboards/before.dashboard.xml", abAfter));
+                oWriter.writeEntry(oLarge);
+                oWriter.writeEntry(deflated("dashboards/after.dashboard.xml", abAfter));
+                try (OutputStream oOut = oWriter.openEntry("plugin.xml", TIME, Deflater.DEFAULT_COMPRESSION))
+                {
+                    oOut.write(abAfter);
+                }
+            }
+            try (ZipFile oZip = new ZipFile(oJar.toFile()))
+            {
+                ZipEntry oZipEntry = oZip.getEntry("sessions/large.dts");
+                check("large entry: ZipFile size", oZipEntry != null && oZipEntry.getSize() == lSize && oZipEntry.getCompressedSize() == lSize);
+                for (String strName : new String[] { "dashboards/after.dashboard.xml", "plugin.xml" })
+                {
+                    try (InputStream oIn = oZip.getInputStream(oZip.getEntry(strName)))
+                    {
+                        check("large entry: ZipFile reads " + strName + " after it", Arrays.equals(abAfter, readAll(oIn)));
+                    }
+                }
+            }
+            try (FastpackJarReader oReader = new FastpackJarReader(oJar))
+            {
+                FastpackJarReader.Entry oEntry = oReader.getEntry("sessions/large.dts");
+                check("large entry: FastpackJarReader size", oEntry != null && oEntry.getSize() == lSize);
+                try (InputStream oIn = oReader.getInputStream(oReader.getEntry("plugin.xml")))
+                {
+                    check("large entry: FastpackJarReader reads plugin.xml after it", Arrays.equals(abAfter, readAll(oIn)));
+                }
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(oJar);
+        }
+    }
+
+    private static CompressedEntry stored(String strName, byte[] abData)
+    {
+        return new CompressedEntry(strName, CompressedEntry.STORED, crc(abData), abData.length, TIME, abData);
+    }
+
+    private static CompressedEntry deflated(String strName, byte[] abData)
+    {
+        Deflater oDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        oDeflater.setInput(abData);
+        oDeflater.finish();
+        ByteArrayOutputStream oOut = new ByteArrayOutputStream();
+        byte[] abBuffer = new byte[8192];
+        while (!oDeflater.finished()) oOut.write(abBuffer, 0, oDeflater.deflate(abBuffer));
+        oDeflater.end();
+        return new CompressedEntry(strName, CompressedEntry.DEFLATED, crc(abData), abData.length, TIME, oOut.toByteArray());
+    }
+
+    private static long crc(byte[] abData)
+    {
+        CRC32 oCrc = new CRC32();
+        oCrc.update(abData);
+        return oCrc.getValue();
+    }
+
+    private static byte[] repeat(String strText, int iTimes)
+    {
+        StringBuilder oText = new StringBuilder();
+        for (int i = 0; i < iTimes; i++) oText.append(strText);
+        return oText.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] random(int iSize)
+    {
+        byte[] abData = new byte[iSize];
+        new Random(iSize).nextBytes(abData);
+        return abData;
+    }
+
+    private static byte[] readAll(InputStream oIn) throws IOException
+    {
+        ByteArrayOutputStream oOut = new ByteArrayOutputStream();
+        byte[] abBuffer = new byte[8192];
+        int iLen;
+        while ((iLen = oIn.read(abBuffer)) >= 0) oOut.write(abBuffer, 0, iLen);
+        return oOut.toByteArray();
+    }
+
+    private static boolean check(String strName, boolean bPassed)
+    {
+        if (!bPassed)
+        {
+            System.out.println("FAILED " + strName);
+            s_iFailures++;
+        }
+        return bPassed;
+    }
+}
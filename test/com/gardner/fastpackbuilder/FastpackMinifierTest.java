@@ -0,0 +1,239 @@
+package com.gardner.fastpackbuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Round trips through FastpackMinifier. Every XML document is parsed before and after minifying and the
+ * StAX event streams are compared, after dropping what the minifier may drop (comments and whitespace-only
+ * text between tags). JSON is compared token by token, strings byte for byte.
+ *
+ * <pre>
+ * java -cp test-classes com.gardner.fastpackbuilder.FastpackMinifierTest
+ * </pre>
+ */
+public class FastpackMinifierTest
+{
+    private static int s_iFailures = 0;
+
+    public static void main(String[] args) throws Exception
+    {
+        xml("indentation", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<dashboard>\n  <a x=\"1\">\n    <b/>\n  </a>\n  <c></c>\n</dashboard>\n");
+        xml("comments", "<a>\n  <!-- gone -->\n  <b>one<!-- split -->two</b>\n  <!-- gone --><c/>\n</a>");
+        xml("whitespace-only content", "<a>\n  <b>   </b>\n  <c>\t\n</c>\n</a>");
+        xml("xml:space preserve", "<a>\n  <b xml:space=\"preserve\">\n    <c>  </c>\n    <d xml:space=\"default\">\n      <e/>\n    </d>\n  </b>\n  <f/>\n</a>");
+        xml("CDATA", "<a>\n  <b><![CDATA[ <not> & a tag ]]></b>\n  <c>x<![CDATA[]]>y</c>\n  <d><![CDATA[ ]]]]><![CDATA[> ]]></d>\n</a>");
+        xml("CR in text", "<a>\n  <b>line&#13;\nnext&#13;</b>\n  <c>&#13;</c>\n</a>");
+        xml("newlines and tabs in attributes", "<a x=\"one&#10;two\" y=\"tab&#9;tab\" z=\"cr&#13;lf&#10;\" w=\"&lt;&amp;&quot;&apos;&gt;\">\n  <b v=\"  spaced  \"/>\n</a>");
+        xml("namespaces", "<a xmlns=\"urn:one\" xmlns:p=\"urn:two\">\n  <p:b p:x=\"1\"/>\n  <c xmlns=\"\"/>\n</a>");
+        xml("processing instructions", "<?xml version=\"1.0\"?>\n<?top data?>\n<a>\n  <?inner more data?>\n  <b/>\n</a>");
+        xml("non-ASCII text", "<a>\n  <b n=\"\u00e4\u00f6\u00fc \u20ac\">\u65e5\u672c \ud83d\ude00</b>\n</a>");
+        check("indentation is removed", minify(FastpackMinifier.Format.XML, "<a>\n  <b/>\n</a>").equals("<a><b/></a>"));
+
+        json("whitespace", "{\n  \"a\" : [ 1 , 2 ],\n  \"b\" : { \"c\" : null }\n}\n");
+        json("strings are kept", "{ \"a b\" : \" x \\\" y \\\\\", \"\u00e4\" : \"\\u00e4 \t\" }");
+        json("adjacent literals", "[ true false null 1 -2.5e+3 ]\n1 2\ntrue\tnull");
+        json("literals split across buffers", longJson());
+        check("adjacent literals keep one space", minify(FastpackMinifier.Format.JSON, "[1  2,\n3\n\tfalse ]").equals("[1 2,3 false]"));
+
+        if (s_iFailures > 0)
+        {
+            System.out.println(s_iFailures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static void xml(String strName, String strXml) throws Exception
+    {
+        String strMinified = minify(FastpackMinifier.Format.XML, strXml);
+        List<String> oExpected = events(strXml);
+        List<String> oActual = events(strMinified);
+        if (!check(strName, oExpected.equals(oActual)))
+        {
+            System.out.println("  minified: " + shorten(strMinified));
+            System.out.println("  expected: " + shorten(oExpected.toString()));
+            System.out.println("  actual:   " + shorten(oActual.toString()));
+        }
+    }
+
+    private static void json(String strName, String strJson) throws Exception
+    {
+        String strMinified = minify(FastpackMinifier.Format.JSON, strJson);
+        List<String> oExpected = tokens(strJson);
+        List<String> oActual = tokens(strMinified);
+        if (!check(strName, oExpected.equals(oActual) && strMinified.length() <= strJson.length()))
+        {
+            System.out.println("  minified: " + shorten(strMinified));
+            System.out.println("  expected: " + shorten(oExpected.toString()));
+            System.out.println("  actual:   " + shorten(oActual.toString()));
+        }
+    }
+
+    private static boolean check(String strName, boolean bPassed)
+    {
+        System.out.println((bPassed ? "ok     " : "FAILED ") + strName);
+        if (!bPassed) s_iFailures++;
+        return bPassed;
+    }
+
+    private static String shorten(String strText)
+    {
+        return strText.length() > 200 ? strText.substring(0, 200) + "..." : strText;
+    }
+
+    private static String minify(FastpackMinifier.Format oFormat, String strIn) throws IOException
+    {
+        ByteArrayOutputStream oOut = new ByteArrayOutputStream();
+        FastpackMinifier.minify(oFormat, new ByteArrayInputStream(strIn.getBytes(StandardCharsets.UTF_8)), oOut);
+        return new String(oOut.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return one line per StAX event. Comments are left out, neighbouring text (characters and CDATA) is
+     * merged, whitespace-only text is left out unless xml:space="preserve" applies or it is the whole content
+     * of its element.
+     */
+    private static List<String> events(String strXml) throws XMLStreamException
+    {
+        XMLInputFactory oFactory = XMLInputFactory.newInstance();
+        oFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XMLStreamReader oReader = oFactory.createXMLStreamReader(new ByteArrayInputStream(strXml.getBytes(StandardCharsets.UTF_8)));
+
+        List<String> oEvents = new ArrayList<String>();
+        Deque<Boolean> oPreserve = new ArrayDeque<Boolean>();
+        StringBuilder oText = null;
+        boolean bTextPreserved = false;
+        String strLast = null;
+        while (oReader.hasNext())
+        {
+            int iEvent = oReader.next();
+            if (iEvent == XMLStreamReader.COMMENT) continue;
+            if (iEvent == XMLStreamReader.CHARACTERS || iEvent == XMLStreamReader.CDATA || iEvent == XMLStreamReader.SPACE)
+            {
+                if (oText == null)
+                {
+                    oText = new StringBuilder();
+                    bTextPreserved = !oPreserve.isEmpty() && oPreserve.peek().booleanValue();
+                }
+                oText.append(oReader.getText());
+                continue;
+            }
+            if (oText != null)
+            {
+                // Whitespace is significant when preserved or when it is all the element holds
+                boolean bWhole = strLast != null && strLast.startsWith("start ") && iEvent == XMLStreamReader.END_ELEMENT;
+                if (bTextPreserved || bWhole || oText.toString().trim().length() > 0 && !oPreserve.isEmpty()) oEvents.add("text " + escape(oText.toString()));
+                oText = null;
+            }
+
+            String strEvent;
+            switch (iEvent)
+            {
+                case XMLStreamReader.START_ELEMENT:
+                    Map<String, String> oAttributes = new TreeMap<String, String>();
+                    boolean bPreserve = !oPreserve.isEmpty() && oPreserve.peek().booleanValue();
+                    for (int i = 0; i < oReader.getAttributeCount(); i++)
+                    {
+                        oAttributes.put(oReader.getAttributeName(i).toString(), escape(oReader.getAttributeValue(i)));
+                        if (XMLConstants.XML_NS_URI.equals(oReader.getAttributeNamespace(i)) && oReader.getAttributeLocalName(i).equals("space"))
+                        {
+                            bPreserve = oReader.getAttributeValue(i).equals("preserve");
+                        }
+                    }
+                    for (int i = 0; i < oReader.getNamespaceCount(); i++)
+                    {
+                        oAttributes.put("xmlns:" + oReader.getNamespacePrefix(i), oReader.getNamespaceURI(i));
+                    }
+                    oPreserve.push(Boolean.valueOf(bPreserve));
+                    strEvent = "start " + oReader.getName() + " " + oAttributes;
+                    break;
+                case XMLStreamReader.END_ELEMENT:
+                    oPreserve.pop();
+                    strEvent = "end " + oReader.getName();
+                    break;
+                case XMLStreamReader.PROCESSING_INSTRUCTION:
+                    strEvent = "pi " + oReader.getPITarget() + " " + oReader.getPIData();
+                    break;
+                case XMLStreamReader.DTD:
+                    strEvent = "dtd " + oReader.getText();
+                    break;
+                default:
+                    strEvent = null; // Document start and end
+                    break;
+            }
+            if (strEvent != null)
+            {
+                oEvents.add(strEvent);
+                strLast = strEvent;
+            }
+        }
+        oReader.close();
+        return oEvents;
+    }
+
+    private static String escape(String strText)
+    {
+        return strText.replace("\\", "\\\\").replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t");
+    }
+
+    /**
+     * @return strings (with their quotes and escapes), punctuation and literals, whitespace between them left out
+     */
+    private static List<String> tokens(String strJson)
+    {
+        List<String> oTokens = new ArrayList<String>();
+        int i = 0;
+        while (i < strJson.length())
+        {
+            char c = strJson.charAt(i);
+            int iStart = i;
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r')
+            {
+                i++;
+                continue;
+            }
+            if (c == '"')
+            {
+                i++;
+                while (strJson.charAt(i) != '"') i += strJson.charAt(i) == '\\' ? 2 : 1;
+                i++;
+            }
+            else if ("{}[],:".indexOf(c) >= 0) i++;
+            else
+            {
+                while (i < strJson.length() && " \t\n\r{}[],:\"".indexOf(strJson.charAt(i)) < 0) i++;
+            }
+            oTokens.add(strJson.substring(iStart, i));
+        }
+        return oTokens;
+    }
+
+    /**
+     * @return an array of numbers and literals long enough to span several minifier buffers, separated
+     * by runs of whitespace that end at varying offsets
+     */
+    private static String longJson()
+    {
+        StringBuilder oJson = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++)
+        {
+            oJson.append(i % 3 == 0 ? "true" : i % 3 == 1 ? Integer.toString(-i) : "1.5e" + i);
+            for (int j = 0; j <= i % 7; j++) oJson.append(j % 2 == 0 ? ' ' : '\n');
+        }
+        return oJson.append(']').toString();
+    }
+}